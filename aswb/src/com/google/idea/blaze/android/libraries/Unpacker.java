@@ -23,6 +23,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.idea.blaze.base.command.buildresult.BlazeArtifact;
 import com.google.idea.blaze.base.command.buildresult.BlazeArtifact.LocalFileArtifact;
+import com.google.idea.blaze.base.filecache.SharedArtifactStore;
 import com.google.idea.blaze.base.io.FileOperationProvider;
 import com.google.idea.blaze.base.prefetch.FetchExecutor;
 import com.intellij.openapi.diagnostic.Logger;
@@ -32,7 +33,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
@@ -80,6 +80,7 @@ public final class Unpacker {
                 FetchExecutor.EXECUTOR.submit(
                     () -> unpackAarToDir(ops, toCache.get(key), aarCache))));
     Futures.allAsList(futures).get();
+    SharedArtifactStore.getInstance().save();
   }
 
   /**
@@ -114,11 +115,9 @@ public final class Unpacker {
 
       // copy merged jar
       if (aarAndJar.jar() != null) {
-        try (InputStream stream = aarAndJar.jar().getInputStream()) {
-          Path destination = Paths.get(UnpackedAarUtils.getJarFile(aarDir).getPath());
-          ops.mkdirs(destination.getParent().toFile());
-          Files.copy(stream, destination, StandardCopyOption.REPLACE_EXISTING);
-        }
+        File destination = UnpackedAarUtils.getJarFile(aarDir);
+        ops.mkdirs(destination.getParentFile());
+        SharedArtifactStore.getInstance().materialize(aarAndJar.jar(), destination);
       }
 
     } catch (IOException e) {
@@ -368,7 +368,8 @@ abstract class BlazeModuleSystemBase implements AndroidModuleSystem {
       return ImmutableList.of();
     }
 
-    return ReverseDependencyMap.get(module.getProject()).get(resourceModuleKey).stream()
+    return ReverseDependencyMap.getReverseDependencies(module.getProject(), resourceModuleKey)
+        .stream()
         .map(projectData.getTargetMap()::get)
         .filter(Objects::nonNull)
         .map(TargetIdeInfo::getKey)
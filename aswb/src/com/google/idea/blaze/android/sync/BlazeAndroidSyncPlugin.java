@@ -190,7 +190,13 @@ public class BlazeAndroidSyncPlugin implements BlazeSyncPlugin {
 
     LanguageLevel javaLanguageLevel =
         JavaLanguageLevelHelper.getJavaLanguageLevel(projectViewSet, blazeProjectData);
-    setProjectSdkAndLanguageLevel(project, sdk, javaLanguageLevel);
+    // setting the project SDK triggers a roots change, even if it's unchanged
+    Sdk currentSdk = ProjectRootManagerEx.getInstanceEx(project).getProjectSdk();
+    LanguageLevel currentLanguageLevel =
+        LanguageLevelProjectExtension.getInstance(project).getLanguageLevel();
+    if (sdk != currentSdk || javaLanguageLevel != currentLanguageLevel) {
+      setProjectSdkAndLanguageLevel(project, sdk, javaLanguageLevel);
+    }
   }
 
   @Override
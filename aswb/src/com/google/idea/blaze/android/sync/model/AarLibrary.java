@@ -16,6 +16,7 @@
 package com.google.idea.blaze.android.sync.model;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.devtools.intellij.model.ProjectData;
 import com.google.idea.blaze.android.libraries.UnpackedAars;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
@@ -28,7 +29,6 @@ import com.google.idea.common.experiments.BoolExperiment;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.OrderRootType;
-import com.intellij.openapi.roots.libraries.Library.ModifiableModel;
 import com.intellij.openapi.util.text.StringUtil;
 import java.io.File;
 import java.util.Objects;
@@ -111,28 +111,27 @@ public final class AarLibrary extends BlazeLibrary {
    * org.jetbrains.android.facet.ResourceFolderManager#addAarsFromModuleLibraries}.
    */
   @Override
-  public void modifyLibraryModel(
-      Project project,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      ModifiableModel libraryModel) {
+  public ImmutableListMultimap<OrderRootType, String> getLibraryRoots(
+      Project project, ArtifactLocationDecoder artifactLocationDecoder) {
+    ImmutableListMultimap.Builder<OrderRootType, String> roots = ImmutableListMultimap.builder();
     UnpackedAars unpackedAars = UnpackedAars.getInstance(project);
 
     File resourceDirectory = unpackedAars.getResourceDirectory(artifactLocationDecoder, this);
     if (resourceDirectory == null) {
       logger.warn("No resource directory found for aar: " + aarArtifact);
-      return;
+      return roots.build();
     }
-    libraryModel.addRoot(pathToUrl(resourceDirectory), OrderRootType.CLASSES);
+    roots.put(OrderRootType.CLASSES, pathToUrl(resourceDirectory));
 
     // aars that were generated by the aspect to expose resources external to the project don't
     // have class jars or sources
     if (libraryArtifact == null) {
-      return;
+      return roots.build();
     }
 
     File jar = unpackedAars.getClassJar(artifactLocationDecoder, this);
     if (jar != null) {
-      libraryModel.addRoot(pathToUrl(jar), OrderRootType.CLASSES);
+      roots.put(OrderRootType.CLASSES, pathToUrl(jar));
     }
 
     // Unconditionally add any linked to source jars. BlazeJarLibrary doesn't do this - it only
@@ -145,9 +144,10 @@ public final class AarLibrary extends BlazeLibrary {
       File sourceJar =
           JarCache.getInstance(project).getCachedSourceJar(artifactLocationDecoder, srcJar);
       if (sourceJar != null) {
-        libraryModel.addRoot(pathToUrl(sourceJar), OrderRootType.SOURCES);
+        roots.put(OrderRootType.SOURCES, pathToUrl(sourceJar));
       }
     }
+    return roots.build();
   }
 
   @Nullable
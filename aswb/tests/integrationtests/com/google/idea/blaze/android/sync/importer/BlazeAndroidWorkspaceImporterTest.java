@@ -87,6 +87,7 @@ import com.google.idea.blaze.java.sync.model.BlazeJarLibrary;
 import com.google.idea.blaze.java.sync.model.BlazeJavaImportResult;
 import com.google.idea.blaze.java.sync.source.JavaLikeLanguage;
 import com.google.idea.blaze.java.sync.source.JavaSourcePackageReader;
+import com.google.idea.blaze.java.sync.source.PackageDeclarationCache;
 import com.google.idea.blaze.java.sync.source.PackageManifestReader;
 import com.google.idea.blaze.java.sync.source.SourceArtifact;
 import com.google.idea.blaze.java.sync.workingset.JavaWorkingSet;
@@ -179,7 +180,8 @@ public class BlazeAndroidWorkspaceImporterTest extends BlazeTestCase {
           public String getDeclaredPackageOfJavaFile(
               BlazeContext context,
               ArtifactLocationDecoder artifactLocationDecoder,
-              SourceArtifact sourceArtifact) {
+              SourceArtifact sourceArtifact,
+              PackageDeclarationCache cache) {
             return null;
           }
         });
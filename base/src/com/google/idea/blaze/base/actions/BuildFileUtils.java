@@ -111,10 +111,9 @@ final class BuildFileUtils {
             .collect(toImmutableSet());
 
     String nameToMatch = label.targetName().toString();
-    for (FuncallExpression expr : buildFile.findChildrenByClass(FuncallExpression.class)) {
+    for (FuncallExpression expr : buildFile.getNamedRules()) {
       String name = expr.getNameArgumentValue();
       if (loadedSymbols.contains(expr.getFunctionName())
-          && name != null
           && name.length() < nameToMatch.length()
           && nameToMatch.startsWith(name)
           && (nameToMatch.charAt(name.length()) == '_'
@@ -20,8 +20,18 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
-/** An base output stream which marshals output into newline-delimited segments for processing. */
+/**
+ * An base output stream which marshals output into newline-delimited segments for processing.
+ *
+ * <p>Lines are split at the byte level ('\r' and '\n' never occur inside a multi-byte UTF-8
+ * sequence), so characters split across writes are decoded correctly. The line and decode buffers
+ * are reused between lines.
+ */
 public final class LineProcessingOutputStream extends OutputStream {
 
   /** A line processor */
@@ -34,7 +44,38 @@ public final class LineProcessingOutputStream extends OutputStream {
     boolean processLine(String line);
   }
 
-  private final StringBuffer stringBuffer = new StringBuffer();
+  /**
+   * A line processor which can inspect each line without it being copied into a {@link String}.
+   */
+  public interface CharSequenceLineProcessor extends LineProcessor {
+    /**
+     * Process a single, complete line of output. The line is a view over a reused buffer, and is
+     * only valid for the duration of this call.
+     *
+     * @return Whether line processing should continue
+     */
+    boolean processLine(CharSequence line);
+
+    @Override
+    default boolean processLine(String line) {
+      return processLine((CharSequence) line);
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 1024;
+  /** Buffers grown beyond this size for an unusually long line are released afterwards. */
+  private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+  private final CharsetDecoder decoder =
+      UTF_8
+          .newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private byte[] lineBytes = new byte[INITIAL_CAPACITY];
+  private int lineLength;
+  private CharBuffer lineChars = CharBuffer.allocate(INITIAL_CAPACITY);
+  /** Whether the last write ended in '\r', so a leading '\n' completes that line break. */
+  private boolean skipLineFeed;
   private volatile boolean closed;
   private final ImmutableList<LineProcessor> lineProcessors;
 
@@ -52,42 +93,87 @@ public final class LineProcessingOutputStream extends OutputStream {
 
   @Override
   public synchronized void write(byte[] b, int off, int len) {
-    if (!closed) {
-      String text = new String(b, off, len, UTF_8);
-      stringBuffer.append(text);
-
-      while (true) {
-        int lineBreakIndex = -1;
-        int lineBreakLength = 0;
-        for (int i = 0; i < stringBuffer.length(); ++i) {
-          char c = stringBuffer.charAt(i);
-          if (c == '\r' || c == '\n') {
-            lineBreakIndex = i;
-            lineBreakLength = 1;
-            if (c == '\r'
-                && (i + 1) < stringBuffer.length()
-                && stringBuffer.charAt(i + 1) == '\n') {
-              ++lineBreakLength;
-            }
-            break;
-          }
-        }
-
-        if (lineBreakIndex == -1) {
-          return;
+    if (closed) {
+      return;
+    }
+    int end = off + len;
+    int i = off;
+    if (skipLineFeed && i < end) {
+      if (b[i] == '\n') {
+        i++;
+      }
+      skipLineFeed = false;
+    }
+    int lineStart = i;
+    for (; i < end; i++) {
+      byte c = b[i];
+      if (c != '\n' && c != '\r') {
+        continue;
+      }
+      append(b, lineStart, i - lineStart);
+      processLine();
+      if (c == '\r') {
+        if (i + 1 == end) {
+          skipLineFeed = true;
+        } else if (b[i + 1] == '\n') {
+          i++;
         }
+      }
+      lineStart = i + 1;
+    }
+    append(b, lineStart, end - lineStart);
+  }
 
-        String line = stringBuffer.substring(0, lineBreakIndex);
-
-        stringBuffer.delete(0, lineBreakIndex + lineBreakLength);
+  private void append(byte[] b, int off, int len) {
+    if (len == 0) {
+      return;
+    }
+    int required = lineLength + len;
+    if (required > lineBytes.length) {
+      byte[] grown = new byte[Math.max(required, lineBytes.length * 2)];
+      System.arraycopy(lineBytes, 0, grown, 0, lineLength);
+      lineBytes = grown;
+    }
+    System.arraycopy(b, off, lineBytes, lineLength, len);
+    lineLength = required;
+  }
 
-        for (LineProcessor lineProcessor : lineProcessors) {
-          if (!lineProcessor.processLine(line)) {
-            break;
-          }
+  private void processLine() {
+    int maxChars = (int) Math.ceil(lineLength * (double) decoder.maxCharsPerByte());
+    if (maxChars > lineChars.capacity()) {
+      lineChars = CharBuffer.allocate(Math.max(maxChars, lineChars.capacity() * 2));
+    }
+    lineChars.clear();
+    decoder.reset();
+    decoder.decode(ByteBuffer.wrap(lineBytes, 0, lineLength), lineChars, true);
+    decoder.flush(lineChars);
+    lineChars.flip();
+    lineLength = 0;
+
+    String line = null;
+    for (LineProcessor lineProcessor : lineProcessors) {
+      boolean shouldContinue;
+      if (lineProcessor instanceof CharSequenceLineProcessor) {
+        lineChars.rewind();
+        shouldContinue = ((CharSequenceLineProcessor) lineProcessor).processLine(lineChars);
+      } else {
+        if (line == null) {
+          lineChars.rewind();
+          line = lineChars.toString();
         }
+        shouldContinue = lineProcessor.processLine(line);
+      }
+      if (!shouldContinue) {
+        break;
       }
     }
+
+    if (lineBytes.length > MAX_RETAINED_CAPACITY) {
+      lineBytes = new byte[INITIAL_CAPACITY];
+    }
+    if (lineChars.capacity() > MAX_RETAINED_CAPACITY) {
+      lineChars = CharBuffer.allocate(INITIAL_CAPACITY);
+    }
   }
 
   @Override
@@ -245,6 +245,7 @@ public class BlazeBuildService {
                                 buildInvoker,
                                 projectView,
                                 shardedTargets.shardedTargets,
+                                /* workingSet= */ null,
                                 projectData.getWorkspaceLanguageSettings(),
                                 ImmutableSet.of(OutputGroup.COMPILE),
                                 BlazeInvocationContext.OTHER_CONTEXT);
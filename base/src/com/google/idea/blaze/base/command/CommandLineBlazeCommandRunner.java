@@ -20,21 +20,30 @@ import com.google.idea.blaze.base.async.process.ExternalTask;
 import com.google.idea.blaze.base.async.process.LineProcessingOutputStream;
 import com.google.idea.blaze.base.command.buildresult.BuildResultHelper;
 import com.google.idea.blaze.base.command.buildresult.BuildResultHelper.GetArtifactsException;
+import com.google.idea.blaze.base.command.buildresult.BuildResultHelperBep;
+import com.google.idea.blaze.base.command.buildresult.ParsedBepOutput.TargetCompletedListener;
 import com.google.idea.blaze.base.console.BlazeConsoleLineProcessorProvider;
 import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
+import com.google.idea.blaze.base.scope.output.StatusOutput;
 import com.google.idea.blaze.base.scope.scopes.SharedStringPoolScope;
 import com.google.idea.blaze.base.sync.aspects.BlazeBuildOutputs;
 import com.google.idea.blaze.base.sync.aspects.BuildResult;
 import com.google.idea.blaze.base.sync.aspects.BuildResult.Status;
+import com.google.idea.common.experiments.BoolExperiment;
 import com.intellij.openapi.project.Project;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** {@inheritDoc} Start a build via local binary */
 public class CommandLineBlazeCommandRunner implements BlazeCommandRunner {
 
+  private static final BoolExperiment streamBepOutput =
+      new BoolExperiment("blaze.command.runner.stream.bep.output", true);
+
   @Override
   public BlazeBuildOutputs run(
       Project project,
@@ -42,15 +51,37 @@ public class CommandLineBlazeCommandRunner implements BlazeCommandRunner {
       BuildResultHelper buildResultHelper,
       WorkspaceRoot workspaceRoot,
       BlazeContext context) {
-    int retVal =
-        ExternalTask.builder(workspaceRoot)
-            .addBlazeCommand(blazeCommandBuilder.build())
-            .context(context)
-            .stderr(
-                LineProcessingOutputStream.of(
-                    BlazeConsoleLineProcessorProvider.getAllStderrLineProcessors(context)))
-            .build()
-            .run();
+    Interner<String> stringInterner =
+        Optional.ofNullable(context.getScope(SharedStringPoolScope.class))
+            .map(SharedStringPoolScope::getStringInterner)
+            .orElse(null);
+    AtomicBoolean buildFinished = new AtomicBoolean();
+    if (streamBepOutput.getValue() && buildResultHelper instanceof BuildResultHelperBep) {
+      AtomicInteger completedTargets = new AtomicInteger();
+      TargetCompletedListener progressListener =
+          (label, configurationMnemonic) ->
+              context.output(
+                  new StatusOutput(
+                      String.format(
+                          "Built %s top-level targets...", completedTargets.incrementAndGet())));
+      ((BuildResultHelperBep) buildResultHelper)
+          .startStreaming(buildFinished::get, stringInterner, progressListener);
+    }
+    int retVal;
+    try {
+      retVal =
+          ExternalTask.builder(workspaceRoot)
+              .addBlazeCommand(blazeCommandBuilder.build())
+              .context(context)
+              .stderr(
+                  LineProcessingOutputStream.of(
+                      BlazeConsoleLineProcessorProvider.getAllStderrLineProcessors(context)))
+              .build()
+              .run();
+    } finally {
+      // otherwise the streaming thread would wait for more output forever
+      buildFinished.set(true);
+    }
 
     BuildResult buildResult = BuildResult.fromExitCode(retVal);
     if (buildResult.status == Status.FATAL_ERROR) {
@@ -58,11 +89,6 @@ public class CommandLineBlazeCommandRunner implements BlazeCommandRunner {
     }
     try {
       context.output(PrintOutput.log("Build command finished. Retrieving BEP outputs..."));
-
-      Interner<String> stringInterner =
-          Optional.ofNullable(context.getScope(SharedStringPoolScope.class))
-              .map(SharedStringPoolScope::getStringInterner)
-              .orElse(null);
       return BlazeBuildOutputs.fromParsedBepOutput(
           buildResult, buildResultHelper.getBuildOutput(stringInterner));
     } catch (GetArtifactsException e) {
@@ -32,7 +32,7 @@ public class BepArtifactData {
   /** The top-level targets this artifact is transitively associated with. */
   public final ImmutableSet<String> topLevelTargets;
 
-  BepArtifactData(
+  public BepArtifactData(
       OutputArtifact artifact,
       Collection<String> outputGroups,
       Collection<String> topLevelTargets) {
@@ -15,7 +15,13 @@
  */
 package com.google.idea.blaze.base.command.buildresult;
 
+import com.google.common.collect.Interner;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
 import com.google.idea.blaze.base.command.buildresult.BuildEventStreamProvider.BuildEventStreamException;
+import com.google.idea.blaze.base.command.buildresult.ParsedBepOutput.IncrementalParser;
+import com.google.idea.blaze.base.command.buildresult.ParsedBepOutput.TargetCompletedListener;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import java.io.BufferedInputStream;
@@ -25,6 +31,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+import javax.annotation.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
 /**
  * Build event protocol implementation to get build results.
@@ -36,6 +46,8 @@ public class BuildResultHelperBep implements BuildResultHelper {
 
   private static final Logger logger = Logger.getInstance(BuildResultHelperBep.class);
   private final File outputFile;
+  /** The BEP output parsed while the build was running, if {@link #startStreaming} was called. */
+  @Nullable private ListenableFuture<ParsedBepOutput> streamedOutput;
 
   public BuildResultHelperBep() {
     outputFile = BuildEventProtocolUtils.createTempOutputFile();
@@ -46,9 +58,55 @@ public class BuildResultHelperBep implements BuildResultHelper {
     return BuildEventProtocolUtils.getBuildFlags(outputFile);
   }
 
+  /**
+   * Starts parsing the BEP output file on a background thread while the build is running, so the
+   * output is ready as soon as the build finishes, and the listener is notified of each target as it
+   * completes.
+   *
+   * @param buildFinished whether blaze has exited, so no more events will be written
+   */
+  public void startStreaming(
+      BooleanSupplier buildFinished,
+      @Nullable Interner<String> interner,
+      @Nullable TargetCompletedListener listener) {
+    streamedOutput =
+        MoreExecutors.listeningDecorator(PooledThreadExecutor.INSTANCE)
+            .submit(() -> streamBuildOutput(buildFinished, interner, listener));
+  }
+
+  private ParsedBepOutput streamBuildOutput(
+      BooleanSupplier buildFinished,
+      @Nullable Interner<String> interner,
+      @Nullable TargetCompletedListener listener)
+      throws IOException, BuildEventStreamException {
+    try (InputStream inputStream =
+        new BufferedInputStream(new TailingInputStream(outputFile, buildFinished))) {
+      BuildEventStreamProvider stream = BuildEventStreamProvider.fromInputStream(inputStream);
+      IncrementalParser parser = new IncrementalParser(interner, listener);
+      BuildEventStreamProtos.BuildEvent event;
+      while ((event = stream.getNext()) != null) {
+        parser.processEvent(event);
+        if (event.getLastMessage()) {
+          break;
+        }
+      }
+      return parser.build(stream.getBytesConsumed());
+    }
+  }
+
   @Override
   public ParsedBepOutput getBuildOutput(Optional<String> completedBuildId)
       throws GetArtifactsException {
+    if (streamedOutput != null) {
+      try {
+        return streamedOutput.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new GetArtifactsException(e.getMessage());
+      } catch (ExecutionException e) {
+        logger.warn("Streaming BEP output failed, re-reading " + outputFile, e.getCause());
+      }
+    }
     try (InputStream inputStream = new BufferedInputStream(new FileInputStream(outputFile))) {
       return ParsedBepOutput.parseBepArtifacts(inputStream);
     } catch (IOException | BuildEventStreamException e) {
@@ -68,6 +126,9 @@ public class BuildResultHelperBep implements BuildResultHelper {
 
   @Override
   public void close() {
+    if (streamedOutput != null) {
+      streamedOutput.cancel(true);
+    }
     if (!outputFile.delete()) {
       logger.warn("Could not delete BEP output file: " + outputFile);
     }
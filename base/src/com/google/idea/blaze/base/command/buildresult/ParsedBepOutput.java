@@ -22,6 +22,7 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
@@ -40,6 +41,7 @@ import java.io.InputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -74,39 +76,70 @@ public final class ParsedBepOutput {
   public static ParsedBepOutput parseBepArtifacts(
       BuildEventStreamProvider stream, @Nullable Interner<String> interner)
       throws BuildEventStreamException {
-
-    if (interner == null) {
-      interner = Interners.newStrongInterner();
+    IncrementalParser parser = new IncrementalParser(interner, null);
+    BuildEventStreamProtos.BuildEvent event;
+    while ((event = stream.getNext()) != null) {
+      parser.processEvent(event);
     }
+    return parser.build(stream.getBytesConsumed());
+  }
 
-    BuildEventStreamProtos.BuildEvent event;
-    Map<String, String> configIdToMnemonic = new HashMap<>();
-    Set<String> topLevelFileSets = new HashSet<>();
-    Map<String, FileSet.Builder> fileSets = new LinkedHashMap<>();
-    ImmutableSetMultimap.Builder<String, String> targetToFileSets = ImmutableSetMultimap.builder();
-    String localExecRoot = null;
-    String buildId = null;
-    long startTimeMillis = 0L;
-    BuildResult buildResult = BuildResult.SUCCESS;
-    boolean emptyBuildEventStream = true;
+  /**
+   * Notified of each top-level target as soon as it completes. The target's artifacts aren't
+   * resolved until the whole stream is parsed, and are available from {@link ParsedBepOutput}.
+   */
+  public interface TargetCompletedListener {
+    /**
+     * Called when a top-level target completes.
+     *
+     * @param configurationMnemonic the mnemonic of the target's configuration, or null if it
+     *     hasn't been announced
+     */
+    void targetCompleted(String label, @Nullable String configurationMnemonic);
+  }
 
-    while ((event = stream.getNext()) != null) {
+  /**
+   * Builds a {@link ParsedBepOutput} one event at a time, so BEP output can be parsed while the
+   * build is still running.
+   */
+  public static final class IncrementalParser {
+    private final Interner<String> interner;
+    @Nullable private final TargetCompletedListener listener;
+
+    private final Map<String, String> configIdToMnemonic = new HashMap<>();
+    private final Set<String> topLevelFileSets = new HashSet<>();
+    private final Map<String, FileSet.Builder> fileSets = new LinkedHashMap<>();
+    private final ImmutableSetMultimap.Builder<String, String> targetToFileSets =
+        ImmutableSetMultimap.builder();
+    @Nullable private String localExecRoot = null;
+    @Nullable private String buildId = null;
+    private long startTimeMillis = 0L;
+    private BuildResult buildResult = BuildResult.SUCCESS;
+    private boolean emptyBuildEventStream = true;
+
+    public IncrementalParser(
+        @Nullable Interner<String> interner, @Nullable TargetCompletedListener listener) {
+      this.interner = interner != null ? interner : Interners.newStrongInterner();
+      this.listener = listener;
+    }
+
+    public void processEvent(BuildEventStreamProtos.BuildEvent event) {
       emptyBuildEventStream = false;
       switch (event.getId().getIdCase()) {
         case WORKSPACE:
           localExecRoot = event.getWorkspaceInfo().getLocalExecRoot();
-          continue;
+          return;
         case CONFIGURATION:
           configIdToMnemonic.put(
               event.getId().getConfiguration().getId(), event.getConfiguration().getMnemonic());
-          continue;
+          return;
         case NAMED_SET:
           NamedSetOfFiles namedSet = internNamedSet(event.getNamedSetOfFiles(), interner);
           fileSets.compute(
               event.getId().getNamedSet().getId(),
               (k, v) ->
                   v != null ? v.setNamedSet(namedSet) : FileSet.builder().setNamedSet(namedSet));
-          continue;
+          return;
         case TARGET_COMPLETED:
           String label = event.getId().getTargetCompleted().getLabel();
           String configId = event.getId().getTargetCompleted().getConfiguration().getId();
@@ -131,33 +164,40 @@ public final class ParsedBepOutput {
                           });
                     }
                   });
-          continue;
+          if (listener != null) {
+            listener.targetCompleted(label, configIdToMnemonic.get(configId));
+          }
+          return;
         case STARTED:
           buildId = Strings.emptyToNull(event.getStarted().getUuid());
           startTimeMillis = event.getStarted().getStartTimeMillis();
-          continue;
+          return;
         case BUILD_FINISHED:
           buildResult = BuildResult.fromExitCode(event.getFinished().getExitCode().getCode());
-          continue;
+          return;
         default: // continue
       }
     }
-    // If stream is empty, it means that service failed to retrieve any blaze build event from build
-    // event stream. This should not happen if a build start correctly.
-    if (emptyBuildEventStream) {
-      throw new BuildEventStreamException("No build events found");
+
+    /** Returns the parsed output of all events processed so far. */
+    public ParsedBepOutput build(long bytesConsumed) throws BuildEventStreamException {
+      // If stream is empty, it means that service failed to retrieve any blaze build event from
+      // build event stream. This should not happen if a build start correctly.
+      if (emptyBuildEventStream) {
+        throw new BuildEventStreamException("No build events found");
+      }
+      ImmutableMap<String, FileSet> filesMap =
+          fillInTransitiveFileSetData(
+              fileSets, topLevelFileSets, configIdToMnemonic, startTimeMillis);
+      return new ParsedBepOutput(
+          buildId,
+          localExecRoot,
+          filesMap,
+          targetToFileSets.build(),
+          startTimeMillis,
+          buildResult,
+          bytesConsumed);
     }
-    ImmutableMap<String, FileSet> filesMap =
-        fillInTransitiveFileSetData(
-            fileSets, topLevelFileSets, configIdToMnemonic, startTimeMillis);
-    return new ParsedBepOutput(
-        buildId,
-        localExecRoot,
-        filesMap,
-        targetToFileSets.build(),
-        startTimeMillis,
-        buildResult,
-        stream.getBytesConsumed());
   }
 
   private static List<String> getFileSets(BuildEventStreamProtos.OutputGroup group) {
@@ -216,6 +256,9 @@ public final class ParsedBepOutput {
   private final BuildResult buildResult;
   private final long bepBytesConsumed;
 
+  /** The distinct artifacts in each output group, built on first use. */
+  @Nullable private volatile ImmutableListMultimap<String, OutputArtifact> outputGroupArtifacts;
+
   @VisibleForTesting
   public ParsedBepOutput(
       @Nullable String buildId,
@@ -270,15 +313,31 @@ public final class ParsedBepOutput {
 
   public ImmutableList<OutputArtifact> getOutputGroupArtifacts(
       String outputGroup, Predicate<String> pathFilter) {
-    return fileSets.values().stream()
-        .filter(f -> f.outputGroups.contains(outputGroup))
-        .map(f -> f.parsedOutputs)
-        .flatMap(List::stream)
+    return getOutputGroupArtifacts().get(outputGroup).stream()
         .filter(o -> pathFilter.test(o.getRelativePath()))
-        .distinct()
         .collect(toImmutableList());
   }
 
+  private ImmutableListMultimap<String, OutputArtifact> getOutputGroupArtifacts() {
+    ImmutableListMultimap<String, OutputArtifact> index = outputGroupArtifacts;
+    if (index == null) {
+      Map<String, Set<OutputArtifact>> artifacts = new LinkedHashMap<>();
+      for (FileSet fileSet : fileSets.values()) {
+        for (String outputGroup : fileSet.outputGroups) {
+          artifacts
+              .computeIfAbsent(outputGroup, g -> new LinkedHashSet<>())
+              .addAll(fileSet.parsedOutputs);
+        }
+      }
+      ImmutableListMultimap.Builder<String, OutputArtifact> builder =
+          ImmutableListMultimap.builder();
+      artifacts.forEach(builder::putAll);
+      index = builder.build();
+      outputGroupArtifacts = index;
+    }
+    return index;
+  }
+
   /**
    * Returns a map from artifact key to {@link BepArtifactData} for all artifacts reported during
    * the build.
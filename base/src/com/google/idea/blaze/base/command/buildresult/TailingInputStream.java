@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.command.buildresult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.BooleanSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * Reads a file which is still being written. At the end of the file, reads block until more data
+ * is written, or the writer is finished.
+ */
+final class TailingInputStream extends InputStream {
+  private static final long POLL_INTERVAL_MILLIS = 50;
+
+  private final File file;
+  private final BooleanSupplier writerFinished;
+  @Nullable private InputStream in;
+
+  TailingInputStream(File file, BooleanSupplier writerFinished) {
+    this.file = file;
+    this.writerFinished = writerFinished;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (true) {
+      // check before reading, so nothing written before the writer finished is missed
+      boolean finished = writerFinished.getAsBoolean();
+      if (in == null && file.exists()) {
+        in = new FileInputStream(file);
+      }
+      if (in != null) {
+        int read = in.read(b, off, len);
+        if (read != -1) {
+          return read;
+        }
+      }
+      if (finished) {
+        return -1;
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for " + file);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+    }
+  }
+}
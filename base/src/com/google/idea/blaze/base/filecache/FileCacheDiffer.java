@@ -103,6 +103,13 @@ public final class FileCacheDiffer {
   private static boolean shouldUpdateLocal(
       LocalFileArtifact newOutput, @Nullable File localFile, Map<File, Long> timestamps) {
     Long oldTimestamp = localFile != null ? timestamps.get(localFile) : null;
+    if (oldTimestamp != null) {
+      // cached files linked to the shared artifact store don't keep their artifact's timestamp
+      Long sourceTimestamp = SharedArtifactStore.getInstance().getSourceModifiedTime(localFile);
+      if (sourceTimestamp != null) {
+        oldTimestamp = sourceTimestamp;
+      }
+    }
     Long newTimestamp = timestamps.get(newOutput.getFile());
     // we should be comparing sync start time, not artifact creation time. For now, keep the
     // behavior unchanged
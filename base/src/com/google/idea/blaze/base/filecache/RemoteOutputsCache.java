@@ -54,11 +54,8 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.PathUtil;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -187,6 +184,7 @@ public final class RemoteOutputsCache {
       futures.addAll(deleteCacheFiles(removed));
 
       Futures.allAsList(futures).get();
+      SharedArtifactStore.getInstance().save();
 
       this.cachedFiles =
           newState.keySet().stream()
@@ -243,9 +241,9 @@ public final class RemoteOutputsCache {
             futures.add(
                 FetchExecutor.EXECUTOR.submit(
                     () -> {
-                      Path destination = new File(cacheDir, key).toPath();
-                      try (InputStream stream = artifact.getInputStream()) {
-                        Files.copy(stream, destination, StandardCopyOption.REPLACE_EXISTING);
+                      try {
+                        SharedArtifactStore.getInstance()
+                            .materialize(artifact, new File(cacheDir, key));
                       } catch (IOException e) {
                         logger.warn(
                             String.format("Fail to copy artifact %s to %s", artifact, cacheDir), e);
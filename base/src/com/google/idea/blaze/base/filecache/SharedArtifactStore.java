@@ -0,0 +1,548 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.filecache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.hash.Funnels;
+import com.google.idea.blaze.base.command.buildresult.BlazeArtifact;
+import com.google.idea.blaze.base.command.buildresult.BlazeArtifact.LocalFileArtifact;
+import com.google.idea.blaze.base.command.buildresult.RemoteOutputArtifact;
+import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
+import com.google.idea.blaze.base.sync.data.VersionedCacheFile;
+import com.google.idea.common.experiments.BoolExperiment;
+import com.google.idea.common.experiments.IntExperiment;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * A content-addressed store of cached build outputs (e.g. library jars), shared by all projects.
+ *
+ * <p>Per-project caches hard link their files to the stored copy, so identical outputs are only
+ * stored once however many projects (e.g. checkouts of the same repository) use them. Where hard
+ * links aren't supported, for example when a project is on a different file system, files are
+ * copied instead.
+ *
+ * <p>Stored files are evicted in least-recently-used order once the store grows past its size
+ * limit. Files which are still linked from a project cache don't count towards the limit and aren't
+ * evicted, since deleting them wouldn't free any disk space.
+ *
+ * <p>All links to a stored file share its modified time, so the store also records the modified
+ * time of the local artifact last materialized at each destination, for callers deciding whether a
+ * cached file is out of date.
+ *
+ * <p>The index of stored files is shared with other IDE instances using the store. It's updated
+ * under a file lock, merging in the changes other instances saved in the meantime.
+ */
+public final class SharedArtifactStore {
+  private static final Logger logger = Logger.getInstance(SharedArtifactStore.class);
+
+  private static final BoolExperiment enabled =
+      new BoolExperiment("blaze.shared.artifact.store.enabled", true);
+
+  private static final IntExperiment maxSizeMegabytes =
+      new IntExperiment("blaze.shared.artifact.store.max.size.mb", 20 * 1024);
+
+  private static final String INDEX_FILE_NAME = "index.dat";
+  private static final String LOCK_FILE_NAME = "index.lock";
+  private static final int MAGIC = 0x425a4153; // "BZAS"
+  private static final int VERSION = 2;
+
+  /**
+   * Digests of local files which haven't been stored for this long are forgotten, as are the
+   * sources of destinations which haven't been materialized for this long.
+   */
+  private static final long LOCAL_DIGEST_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+  /** Copies artifacts directly, in unit tests which don't register the application service. */
+  private static final SharedArtifactStore DIRECT_COPY = new SharedArtifactStore(null);
+
+  public static SharedArtifactStore getInstance() {
+    SharedArtifactStore store = ServiceManager.getService(SharedArtifactStore.class);
+    return store != null ? store : DIRECT_COPY;
+  }
+
+  @Nullable private final File directory;
+
+  // guarded by this. Keyed by digest, in access order
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalSize;
+  private boolean loaded;
+  // guarded by this. The digests of files evicted since the index was last saved
+  private final Set<String> evicted = new HashSet<>();
+
+  /** Threads in this process take turns to lock the index file, which can't be locked twice. */
+  private final Object saveLock = new Object();
+
+  /** The digests of local files, keyed by path, so unchanged files aren't hashed again. */
+  private final Map<String, LocalDigest> localDigests = new ConcurrentHashMap<>();
+
+  /**
+   * The modified time of the local artifact last materialized at each destination, keyed by the
+   * destination path.
+   */
+  private final Map<String, MaterializedSource> materializedSources = new ConcurrentHashMap<>();
+
+  private volatile boolean modified;
+
+  public SharedArtifactStore() {
+    this(
+        ApplicationManager.getApplication().isUnitTestMode()
+            ? null
+            : BlazeDataStorage.getSharedArtifactStoreDir());
+  }
+
+  @VisibleForTesting
+  SharedArtifactStore(@Nullable File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Places a copy of the given artifact at {@code destination}, replacing any existing file.
+   *
+   * <p>The copy is a hard link to the stored artifact where possible, storing the artifact first if
+   * necessary. Callers mustn't modify the destination file in place.
+   */
+  public void materialize(BlazeArtifact artifact, File destination) throws IOException {
+    if (directory == null || !enabled.getValue()) {
+      copy(artifact, destination.toPath());
+      return;
+    }
+    materialize(artifact, destination, maxSizeMegabytes.getValue() * 1024L * 1024L);
+  }
+
+  /**
+   * Returns the modified time of the local artifact last materialized at the given destination, or
+   * null if it isn't known.
+   *
+   * <p>The destination is a link to a stored file, which keeps the modified time of whichever
+   * artifact with the same contents was stored first, so its own modified time can't be compared
+   * with the artifact's.
+   */
+  @Nullable
+  public Long getSourceModifiedTime(File destination) {
+    if (directory == null || !enabled.getValue()) {
+      return null;
+    }
+    return getMaterializedSourceModifiedTime(destination);
+  }
+
+  @VisibleForTesting
+  @Nullable
+  Long getMaterializedSourceModifiedTime(File destination) {
+    synchronized (this) {
+      ensureLoaded();
+    }
+    MaterializedSource source = materializedSources.get(destination.getPath());
+    return source != null ? source.modifiedTime : null;
+  }
+
+  @VisibleForTesting
+  void materialize(BlazeArtifact artifact, File destination, long maxSizeBytes)
+      throws IOException {
+    Path target = destination.toPath();
+    // read before storing, so a concurrent change to the artifact is picked up next time
+    long sourceModifiedTime =
+        artifact instanceof LocalFileArtifact
+            ? ((LocalFileArtifact) artifact).getFile().lastModified()
+            : 0L;
+    File stored;
+    try {
+      stored = store(artifact, maxSizeBytes);
+    } catch (IOException e) {
+      logger.warn("Could not add " + artifact + " to the shared artifact store", e);
+      copy(artifact, target);
+      materializedSources.remove(destination.getPath());
+      modified = true;
+      return;
+    }
+    Files.deleteIfExists(target);
+    try {
+      Files.createLink(target, stored.toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      // e.g. the destination is on a different file system, or the file was just evicted
+      if (e instanceof NoSuchFileException || !stored.exists()) {
+        copy(artifact, target);
+      } else {
+        Files.copy(
+            stored.toPath(),
+            target,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.COPY_ATTRIBUTES);
+      }
+    }
+    if (artifact instanceof LocalFileArtifact) {
+      materializedSources.put(
+          destination.getPath(),
+          new MaterializedSource(sourceModifiedTime, System.currentTimeMillis()));
+      modified = true;
+    }
+  }
+
+  /**
+   * Returns the stored copy of the given artifact, storing it if necessary and then evicting other
+   * files to keep the store within the given size.
+   */
+  private File store(BlazeArtifact artifact, long maxSizeBytes) throws IOException {
+    String digest = digest(artifact);
+    File stored = getStoredFile(digest);
+    synchronized (this) {
+      ensureLoaded();
+      Entry entry = entries.get(digest);
+      if (entry != null && stored.exists()) {
+        entry.lastAccessMillis = System.currentTimeMillis();
+        modified = true;
+        return stored;
+      }
+    }
+    // another IDE instance may have stored the file since the index was read
+    if (!stored.exists()) {
+      Files.createDirectories(stored.getParentFile().toPath());
+      File tempFile = File.createTempFile(digest, ".tmp", stored.getParentFile());
+      try {
+        copy(artifact, tempFile.toPath());
+        Files.move(
+            tempFile.toPath(),
+            stored.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tempFile.toPath());
+      }
+    }
+    synchronized (this) {
+      Entry previous = entries.put(digest, new Entry(stored.length(), System.currentTimeMillis()));
+      if (previous != null) {
+        totalSize -= previous.size;
+      }
+      totalSize += stored.length();
+      modified = true;
+      evict(maxSizeBytes, digest);
+    }
+    return stored;
+  }
+
+  /**
+   * Deletes the least recently used files until the store is no larger than the given size, other
+   * than the file which was just stored and is about to be linked.
+   *
+   * <p>Files which are still linked from elsewhere are skipped, and their size isn't counted, since
+   * deleting them wouldn't free anything. Each file is only checked for links once between saves,
+   * so storing a file doesn't mean checking every linked file again.
+   */
+  private synchronized void evict(long maxSizeBytes, String keep) {
+    long size = totalSize;
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (size > maxSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Entry> eldest = iterator.next();
+      Entry entry = eldest.getValue();
+      if (eldest.getKey().equals(keep)) {
+        continue;
+      }
+      Path stored = getStoredFile(eldest.getKey()).toPath();
+      if (!entry.linked) {
+        entry.linked = isLinked(stored);
+      }
+      if (entry.linked) {
+        size -= entry.size;
+        continue;
+      }
+      try {
+        Files.deleteIfExists(stored);
+      } catch (IOException e) {
+        logger.warn("Could not evict shared artifact " + eldest.getKey(), e);
+        continue;
+      }
+      size -= entry.size;
+      totalSize -= entry.size;
+      iterator.remove();
+      evicted.add(eldest.getKey());
+      modified = true;
+    }
+  }
+
+  /** Returns whether the given stored file is also linked from elsewhere, e.g. a project cache. */
+  private static boolean isLinked(Path stored) {
+    try {
+      return ((Number) Files.getAttribute(stored, "unix:nlink")).intValue() > 1;
+    } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+      // link counts aren't available, e.g. on Windows
+      return false;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getTotalSize() {
+    ensureLoaded();
+    return totalSize;
+  }
+
+  /**
+   * Returns a digest identifying the contents of the given artifact. Remote artifacts already have
+   * a unique ID derived from their contents, and local files are only hashed when they change.
+   */
+  private String digest(BlazeArtifact artifact) throws IOException {
+    if (artifact instanceof RemoteOutputArtifact) {
+      return Hashing.sha256()
+          .hashString(((RemoteOutputArtifact) artifact).getHashId(), StandardCharsets.UTF_8)
+          .toString();
+    }
+    if (artifact instanceof LocalFileArtifact) {
+      File file = ((LocalFileArtifact) artifact).getFile();
+      long size = file.length();
+      long modifiedTime = file.lastModified();
+      LocalDigest cached = localDigests.get(file.getPath());
+      String digest =
+          cached != null && cached.size == size && cached.modifiedTime == modifiedTime
+              ? cached.digest
+              : hashContents(artifact);
+      localDigests.put(
+          file.getPath(), new LocalDigest(size, modifiedTime, digest, System.currentTimeMillis()));
+      modified = true;
+      return digest;
+    }
+    return hashContents(artifact);
+  }
+
+  private static String hashContents(BlazeArtifact artifact) throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    try (InputStream stream = artifact.getInputStream()) {
+      ByteStreams.copy(stream, Funnels.asOutputStream(hasher));
+    }
+    return hasher.hash().toString();
+  }
+
+  private File getStoredFile(String digest) {
+    return new File(new File(directory, digest.substring(0, 2)), digest);
+  }
+
+  private static void copy(BlazeArtifact artifact, Path destination) throws IOException {
+    if (artifact instanceof LocalFileArtifact) {
+      Files.copy(
+          ((LocalFileArtifact) artifact).getFile().toPath(),
+          destination,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.COPY_ATTRIBUTES);
+      return;
+    }
+    try (InputStream stream = artifact.getInputStream()) {
+      Files.copy(stream, destination, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    VersionedCacheFile indexFile = getIndexFile();
+    try {
+      indexFile.read(this::merge);
+    } catch (IOException e) {
+      logger.warn("Ignoring unreadable shared artifact index " + indexFile.getFile(), e);
+      entries.clear();
+      localDigests.clear();
+      materializedSources.clear();
+      totalSize = 0;
+    }
+  }
+
+  /**
+   * Writes the index back to disk if anything changed since it was read, first merging in the
+   * changes saved by other IDE instances in the meantime.
+   */
+  public void save() {
+    if (directory == null || !modified) {
+      return;
+    }
+    VersionedCacheFile indexFile = getIndexFile();
+    synchronized (saveLock) {
+      try {
+        Files.createDirectories(directory.toPath());
+        try (FileChannel channel =
+                FileChannel.open(
+                    new File(directory, LOCK_FILE_NAME).toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            FileLock lock = channel.lock()) {
+          synchronized (this) {
+            ensureLoaded();
+            try {
+              indexFile.read(this::merge);
+            } catch (IOException e) {
+              logger.warn("Overwriting unreadable shared artifact index " + indexFile.getFile(), e);
+            }
+            indexFile.write(this::write);
+            evicted.clear();
+            entries.values().forEach(entry -> entry.linked = false);
+            modified = false;
+          }
+        }
+      } catch (IOException e) {
+        logger.warn("Could not save shared artifact index " + indexFile.getFile(), e);
+      }
+    }
+  }
+
+  private VersionedCacheFile getIndexFile() {
+    return new VersionedCacheFile(new File(directory, INDEX_FILE_NAME), MAGIC, VERSION);
+  }
+
+  /**
+   * Merges the saved index into this one, keeping the most recent use of each entry. Entries which
+   * this instance evicted, or which are only in this index and whose files another instance
+   * evicted, are dropped.
+   */
+  private Void merge(DataInputStream in) throws IOException {
+    Map<String, Entry> saved = new HashMap<>();
+    int entryCount = in.readInt();
+    for (int i = 0; i < entryCount; i++) {
+      String digest = in.readUTF();
+      saved.put(digest, new Entry(in.readLong(), in.readLong()));
+    }
+    int localDigestCount = in.readInt();
+    for (int i = 0; i < localDigestCount; i++) {
+      String path = in.readUTF();
+      LocalDigest digest =
+          new LocalDigest(in.readLong(), in.readLong(), in.readUTF(), in.readLong());
+      localDigests.merge(path, digest, (a, b) -> a.lastUsedMillis >= b.lastUsedMillis ? a : b);
+    }
+    int materializedSourceCount = in.readInt();
+    for (int i = 0; i < materializedSourceCount; i++) {
+      String path = in.readUTF();
+      MaterializedSource source = new MaterializedSource(in.readLong(), in.readLong());
+      materializedSources.merge(
+          path, source, (a, b) -> a.lastUsedMillis >= b.lastUsedMillis ? a : b);
+    }
+    Map<String, Entry> merged = new HashMap<>();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry savedEntry = saved.remove(e.getKey());
+      if (savedEntry != null || getStoredFile(e.getKey()).exists()) {
+        merged.put(e.getKey(), mostRecentlyUsed(e.getValue(), savedEntry));
+      }
+    }
+    saved.keySet().removeAll(evicted);
+    merged.putAll(saved);
+
+    // entries are kept in access order, least recently used first
+    List<Map.Entry<String, Entry>> sorted = new ArrayList<>(merged.entrySet());
+    sorted.sort(Comparator.comparingLong(e -> e.getValue().lastAccessMillis));
+    entries.clear();
+    totalSize = 0;
+    for (Map.Entry<String, Entry> e : sorted) {
+      entries.put(e.getKey(), e.getValue());
+      totalSize += e.getValue().size;
+    }
+    return null;
+  }
+
+  private static Entry mostRecentlyUsed(Entry entry, @Nullable Entry other) {
+    return other == null || entry.lastAccessMillis >= other.lastAccessMillis ? entry : other;
+  }
+
+  private void write(DataOutputStream out) throws IOException {
+    long cutoff = System.currentTimeMillis() - LOCAL_DIGEST_MAX_AGE_MILLIS;
+    localDigests.values().removeIf(d -> d.lastUsedMillis < cutoff);
+    materializedSources.values().removeIf(s -> s.lastUsedMillis < cutoff);
+    Map<String, LocalDigest> digests = new LinkedHashMap<>(localDigests);
+    Map<String, MaterializedSource> sources = new LinkedHashMap<>(materializedSources);
+    out.writeInt(entries.size());
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      out.writeUTF(e.getKey());
+      out.writeLong(e.getValue().size);
+      out.writeLong(e.getValue().lastAccessMillis);
+    }
+    out.writeInt(digests.size());
+    for (Map.Entry<String, LocalDigest> e : digests.entrySet()) {
+      LocalDigest digest = e.getValue();
+      out.writeUTF(e.getKey());
+      out.writeLong(digest.size);
+      out.writeLong(digest.modifiedTime);
+      out.writeUTF(digest.digest);
+      out.writeLong(digest.lastUsedMillis);
+    }
+    out.writeInt(sources.size());
+    for (Map.Entry<String, MaterializedSource> e : sources.entrySet()) {
+      out.writeUTF(e.getKey());
+      out.writeLong(e.getValue().modifiedTime);
+      out.writeLong(e.getValue().lastUsedMillis);
+    }
+  }
+
+  private static class Entry {
+    final long size;
+    long lastAccessMillis;
+    // whether the stored file was found to be linked from elsewhere, since the index was last saved
+    boolean linked;
+
+    Entry(long size, long lastAccessMillis) {
+      this.size = size;
+      this.lastAccessMillis = lastAccessMillis;
+    }
+  }
+
+  private static class LocalDigest {
+    final long size;
+    final long modifiedTime;
+    final String digest;
+    final long lastUsedMillis;
+
+    LocalDigest(long size, long modifiedTime, String digest, long lastUsedMillis) {
+      this.size = size;
+      this.modifiedTime = modifiedTime;
+      this.digest = digest;
+      this.lastUsedMillis = lastUsedMillis;
+    }
+  }
+
+  private static class MaterializedSource {
+    final long modifiedTime;
+    final long lastUsedMillis;
+
+    MaterializedSource(long modifiedTime, long lastUsedMillis) {
+      this.modifiedTime = modifiedTime;
+      this.lastUsedMillis = lastUsedMillis;
+    }
+  }
+}
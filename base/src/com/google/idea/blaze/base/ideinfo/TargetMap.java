@@ -18,16 +18,96 @@ package com.google.idea.blaze.base.ideinfo;
 import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.devtools.intellij.model.ProjectData;
+import java.lang.ref.WeakReference;
 import java.util.Objects;
 import javax.annotation.Nullable;
 
 /** Map of configured targets (and soon aspects). */
 public final class TargetMap implements ProtoWrapper<ProjectData.TargetMap> {
-  private final ImmutableMap<TargetKey, TargetIdeInfo> targetMap;
+
+  /**
+   * A source of targets which are decoded on demand, e.g. from an on-disk cache. Individual
+   * lookups go through the source until the full map is requested.
+   */
+  public interface LazyTargets {
+    /** Returns the target for the given key, decoding it if necessary. */
+    @Nullable
+    TargetIdeInfo get(TargetKey key);
+
+    /** Returns true if {@link #get(TargetKey)} would return a target, without decoding it. */
+    boolean contains(TargetKey key);
+
+    /** Returns the keys of all targets, without decoding them. */
+    ImmutableSet<TargetKey> keys();
+
+    /** Decodes and returns all targets. Called at most once per {@link TargetMap}. */
+    ImmutableMap<TargetKey, TargetIdeInfo> getAll();
+  }
+
+  @Nullable private volatile ImmutableMap<TargetKey, TargetIdeInfo> targetMap;
+  @Nullable private volatile LazyTargets lazyTargets;
+
+  /**
+   * The target map this one was derived from, if known. Weakly referenced, so target maps don't
+   * keep all their predecessors alive.
+   */
+  @Nullable private final WeakReference<TargetMap> base;
+  /** The keys of targets added, changed or removed relative to {@link #base}. */
+  private final ImmutableSet<TargetKey> changedKeys;
 
   public TargetMap(ImmutableMap<TargetKey, TargetIdeInfo> targetMap) {
+    this(targetMap, null, ImmutableSet.of());
+  }
+
+  private TargetMap(
+      ImmutableMap<TargetKey, TargetIdeInfo> targetMap,
+      @Nullable TargetMap base,
+      ImmutableSet<TargetKey> changedKeys) {
     this.targetMap = targetMap;
+    this.lazyTargets = null;
+    this.base = base != null ? new WeakReference<>(base) : null;
+    this.changedKeys = changedKeys;
+  }
+
+  private TargetMap(LazyTargets lazyTargets) {
+    this.targetMap = null;
+    this.lazyTargets = lazyTargets;
+    this.base = null;
+    this.changedKeys = ImmutableSet.of();
+  }
+
+  /**
+   * Returns a {@link TargetMap} whose targets are only decoded when first accessed. {@link
+   * #get(TargetKey)} decodes single targets, {@link #contains(TargetKey)} and {@link #keySet()}
+   * decode none, while any call needing the full set of targets decodes all of them.
+   */
+  public static TargetMap lazy(LazyTargets lazyTargets) {
+    return new TargetMap(lazyTargets);
+  }
+
+  /**
+   * Returns a target map derived from {@code base}, recording which keys were added, changed or
+   * removed, so the changes can later be found without comparing every target.
+   */
+  public static TargetMap derivedFrom(
+      TargetMap base,
+      ImmutableMap<TargetKey, TargetIdeInfo> targetMap,
+      ImmutableSet<TargetKey> changedKeys) {
+    return new TargetMap(targetMap, base, changedKeys);
+  }
+
+  /**
+   * Returns the keys of targets which may have been added, changed or removed since the given
+   * target map, or null if they aren't known.
+   */
+  @Nullable
+  public ImmutableSet<TargetKey> getChangedKeys(TargetMap previous) {
+    if (previous == this) {
+      return ImmutableSet.of();
+    }
+    return base != null && base.get() == previous ? changedKeys : null;
   }
 
   public static TargetMap fromProto(ProjectData.TargetMap proto) {
@@ -41,25 +121,55 @@ public final class TargetMap implements ProtoWrapper<ProjectData.TargetMap> {
   @Override
   public ProjectData.TargetMap toProto() {
     ProjectData.TargetMap.Builder builder = ProjectData.TargetMap.newBuilder();
-    targetMap.values().stream().map(TargetIdeInfo::toProto).forEach(builder::addTargets);
+    map().values().stream().map(TargetIdeInfo::toProto).forEach(builder::addTargets);
     return builder.build();
   }
 
   @Nullable
   public TargetIdeInfo get(TargetKey key) {
-    return targetMap.get(key);
+    ImmutableMap<TargetKey, TargetIdeInfo> targetMap = this.targetMap;
+    if (targetMap != null) {
+      return targetMap.get(key);
+    }
+    LazyTargets lazyTargets = this.lazyTargets;
+    return lazyTargets != null ? lazyTargets.get(key) : map().get(key);
   }
 
   public boolean contains(TargetKey key) {
-    return targetMap.containsKey(key);
+    ImmutableMap<TargetKey, TargetIdeInfo> targetMap = this.targetMap;
+    if (targetMap != null) {
+      return targetMap.containsKey(key);
+    }
+    LazyTargets lazyTargets = this.lazyTargets;
+    return lazyTargets != null ? lazyTargets.contains(key) : map().containsKey(key);
+  }
+
+  /** Returns the keys of all targets, without decoding lazily loaded targets. */
+  public ImmutableSet<TargetKey> keySet() {
+    ImmutableMap<TargetKey, TargetIdeInfo> targetMap = this.targetMap;
+    if (targetMap != null) {
+      return targetMap.keySet();
+    }
+    LazyTargets lazyTargets = this.lazyTargets;
+    return lazyTargets != null ? lazyTargets.keys() : map().keySet();
   }
 
   public ImmutableCollection<TargetIdeInfo> targets() {
-    return targetMap.values();
+    return map().values();
   }
 
   public ImmutableMap<TargetKey, TargetIdeInfo> map() {
-    return targetMap;
+    ImmutableMap<TargetKey, TargetIdeInfo> targetMap = this.targetMap;
+    if (targetMap != null) {
+      return targetMap;
+    }
+    synchronized (this) {
+      if (this.targetMap == null) {
+        this.targetMap = lazyTargets.getAll();
+        lazyTargets = null;
+      }
+      return this.targetMap;
+    }
   }
 
   @Override
@@ -71,15 +181,20 @@ public final class TargetMap implements ProtoWrapper<ProjectData.TargetMap> {
       return false;
     }
     TargetMap other = (TargetMap) o;
-    return Objects.equals(targetMap, other.targetMap);
+    LazyTargets lazyTargets = this.lazyTargets;
+    if (lazyTargets != null && lazyTargets == other.lazyTargets) {
+      return true;
+    }
+    // only decode the targets if their keys match
+    return keySet().equals(other.keySet()) && map().equals(other.map());
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(targetMap);
+    return keySet().hashCode();
   }
 
   public int size() {
-    return this.targetMap.size();
+    return keySet().size();
   }
 }
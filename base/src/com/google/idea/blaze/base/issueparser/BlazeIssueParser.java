@@ -20,6 +20,7 @@ import static com.google.idea.blaze.base.scope.output.IssueOutput.Category.ERROR
 import static com.google.idea.blaze.base.scope.output.IssueOutput.Category.NOTE;
 import static com.google.idea.blaze.base.scope.output.IssueOutput.Category.WARNING;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ascii;
 import com.google.common.collect.ImmutableList;
 import com.google.idea.blaze.base.command.BlazeInvocationContext;
@@ -38,7 +39,10 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.TextRange;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -107,14 +111,35 @@ public class BlazeIssueParser {
   /** Used by BlazeIssueParser. Generally implemented by subclassing SingleLineParser */
   public interface Parser {
     ParseResult parse(String currentLine, List<String> previousLines);
+
+    /**
+     * Literal strings, at least one of which occurs in every line this parser can match (or start a
+     * multi-line match on). Lines containing none of them aren't passed to the parser. If empty,
+     * every line is passed to the parser.
+     */
+    default ImmutableList<String> keywords() {
+      return ImmutableList.of();
+    }
   }
 
-  /** Base for a Parser that consumes a single contextless line at a time, matched via regex */
+  /**
+   * Base for a Parser that consumes a single contextless line at a time, matched via regex.
+   *
+   * <p>The literal text the regex starts with is used as the parser's keyword.
+   */
   public abstract static class SingleLineParser implements Parser {
     final Pattern pattern;
+    private final ImmutableList<String> keywords;
 
     public SingleLineParser(String regex) {
       pattern = Pattern.compile(regex);
+      String prefix = requiredLiteralPrefix(regex);
+      keywords = prefix.isEmpty() ? ImmutableList.of() : ImmutableList.of(prefix);
+    }
+
+    @Override
+    public ImmutableList<String> keywords() {
+      return keywords;
     }
 
     @Override
@@ -137,6 +162,60 @@ public class BlazeIssueParser {
     protected abstract IssueOutput createIssue(Matcher matcher);
   }
 
+  /**
+   * Returns the literal text which every match of the given regex must start with, or an empty
+   * string if there isn't any (e.g. the regex starts with a group or has a top-level alternation).
+   */
+  @VisibleForTesting
+  static String requiredLiteralPrefix(String regex) {
+    if (hasTopLevelAlternation(regex)) {
+      return "";
+    }
+    StringBuilder prefix = new StringBuilder();
+    int i = regex.startsWith("^") ? 1 : 0;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      int next = i + 1;
+      if (c == '\\') {
+        if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+          break; // a character class, back-reference or quoted section
+        }
+        c = regex.charAt(next);
+        next++;
+      } else if (".^$|?*+()[]{}".indexOf(c) >= 0) {
+        break;
+      }
+      if (next < regex.length() && "?*{".indexOf(regex.charAt(next)) >= 0) {
+        break; // the character is optional
+      }
+      prefix.append(c);
+      i = next;
+    }
+    return prefix.toString();
+  }
+
+  private static boolean hasTopLevelAlternation(String regex) {
+    int depth = 0;
+    boolean inCharacterClass = false;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inCharacterClass) {
+        inCharacterClass = c != ']';
+      } else if (c == '[') {
+        inCharacterClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static File fileFromAbsolutePath(String absolutePath) {
     return new File(absolutePath);
   }
@@ -221,6 +300,20 @@ public class BlazeIssueParser {
       this.project = project;
     }
 
+    @Override
+    ParseResult parse(String line) {
+      // The file path can't contain a colon, so the first colon must be followed by a line number.
+      int colon = line.indexOf(':');
+      if (colon <= 0 || colon + 1 == line.length()) {
+        return ParseResult.NO_RESULT;
+      }
+      char next = line.charAt(colon + 1);
+      if (next < '0' || next > '9') {
+        return ParseResult.NO_RESULT;
+      }
+      return super.parse(line);
+    }
+
     @Override
     protected IssueOutput createIssue(Matcher matcher) {
       final File file = FileResolver.resolveToFile(project, matcher.group(1));
@@ -261,6 +354,11 @@ public class BlazeIssueParser {
         Pattern.compile(
             "(ERROR): (.*?):([0-9]+):([0-9]+): (Traceback \\(most recent call last\\):)");
 
+    @Override
+    public ImmutableList<String> keywords() {
+      return ImmutableList.of("Traceback (most recent call last):");
+    }
+
     @Override
     public ParseResult parse(String currentLine, List<String> previousLines) {
       if (previousLines.isEmpty()) {
@@ -477,6 +575,12 @@ public class BlazeIssueParser {
   }
 
   private final ImmutableList<Parser> parsers;
+  /** Finds the keywords of all parsers in a line. Null if no parser has any keywords. */
+  @Nullable private final KeywordMatcher keywordMatcher;
+  /** The indices of each parser's keywords, or null for parsers which accept every line. */
+  private final BitSet[] parserKeywords;
+
+  private final BitSet foundKeywords = new BitSet();
   /**
    * The parser that requested more lines of input during the last call to {@link
    * #parseIssue(String)}.
@@ -487,6 +591,23 @@ public class BlazeIssueParser {
 
   public BlazeIssueParser(ImmutableList<Parser> parsers) {
     this.parsers = parsers;
+    this.parserKeywords = new BitSet[parsers.size()];
+    Map<String, Integer> keywordIndices = new LinkedHashMap<>();
+    for (int i = 0; i < parsers.size(); i++) {
+      ImmutableList<String> keywords = parsers.get(i).keywords();
+      if (keywords.isEmpty() || keywords.contains("")) {
+        continue;
+      }
+      parserKeywords[i] = new BitSet();
+      for (String keyword : keywords) {
+        Integer index = keywordIndices.computeIfAbsent(keyword, k -> keywordIndices.size());
+        parserKeywords[i].set(index);
+      }
+    }
+    this.keywordMatcher =
+        keywordIndices.isEmpty()
+            ? null
+            : new KeywordMatcher(ImmutableList.copyOf(keywordIndices.keySet()));
   }
 
   @Nullable
@@ -505,7 +626,15 @@ public class BlazeIssueParser {
       // multi line match failed, continue with other parsers
     }
 
-    for (Parser parser : parsers) {
+    foundKeywords.clear();
+    if (keywordMatcher != null) {
+      keywordMatcher.findKeywords(line, foundKeywords);
+    }
+    for (int i = 0; i < parsers.size(); i++) {
+      if (parserKeywords[i] != null && !parserKeywords[i].intersects(foundKeywords)) {
+        continue;
+      }
+      Parser parser = parsers.get(i);
       ParseResult issue = parser.parse(line, ImmutableList.of());
       if (issue.needsMoreInput) {
         multilineMatchingParser = parser;
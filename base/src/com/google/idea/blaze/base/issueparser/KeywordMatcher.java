@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.issueparser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds which of a fixed set of keywords occur in a line, in a single pass over the line
+ * (Aho-Corasick).
+ */
+final class KeywordMatcher {
+
+  /** Outgoing edges of each node, sorted by character. */
+  private final char[][] edgeChars;
+
+  private final int[][] edgeTargets;
+  private final int[] failure;
+  /** The keywords ending at each node, including via failure links. Null if there are none. */
+  private final BitSet[] outputs;
+
+  KeywordMatcher(List<String> keywords) {
+    List<StringBuilder> chars = new ArrayList<>();
+    List<List<Integer>> targets = new ArrayList<>();
+    List<BitSet> outputList = new ArrayList<>();
+    chars.add(new StringBuilder());
+    targets.add(new ArrayList<>());
+    outputList.add(null);
+
+    for (int i = 0; i < keywords.size(); i++) {
+      int node = 0;
+      for (char c : keywords.get(i).toCharArray()) {
+        int index = chars.get(node).indexOf(String.valueOf(c));
+        if (index >= 0) {
+          node = targets.get(node).get(index);
+          continue;
+        }
+        int child = chars.size();
+        chars.add(new StringBuilder());
+        targets.add(new ArrayList<>());
+        outputList.add(null);
+        chars.get(node).append(c);
+        targets.get(node).add(child);
+        node = child;
+      }
+      if (outputList.get(node) == null) {
+        outputList.set(node, new BitSet());
+      }
+      outputList.get(node).set(i);
+    }
+
+    int size = chars.size();
+    edgeChars = new char[size][];
+    edgeTargets = new int[size][];
+    for (int node = 0; node < size; node++) {
+      char[] nodeChars = chars.get(node).toString().toCharArray();
+      Integer[] order = new Integer[nodeChars.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Character.compare(nodeChars[a], nodeChars[b]));
+      edgeChars[node] = new char[order.length];
+      edgeTargets[node] = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        edgeChars[node][i] = nodeChars[order[i]];
+        edgeTargets[node][i] = targets.get(node).get(order[i]);
+      }
+    }
+
+    // breadth-first, so each node's failure target is complete before its children are visited
+    failure = new int[size];
+    outputs = outputList.toArray(new BitSet[0]);
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int child : edgeTargets[0]) {
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int node = queue.remove();
+      for (int i = 0; i < edgeChars[node].length; i++) {
+        char c = edgeChars[node][i];
+        int child = edgeTargets[node][i];
+        int fallback = failure[node];
+        while (fallback != 0 && next(fallback, c) == -1) {
+          fallback = failure[fallback];
+        }
+        int target = next(fallback, c);
+        failure[child] = target != -1 ? target : 0;
+        BitSet inherited = outputs[failure[child]];
+        if (inherited != null) {
+          if (outputs[child] == null) {
+            outputs[child] = new BitSet();
+          }
+          outputs[child].or(inherited);
+        }
+        queue.add(child);
+      }
+    }
+  }
+
+  /** Sets the index of each keyword occurring in the given text in {@code found}. */
+  void findKeywords(CharSequence text, BitSet found) {
+    int node = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      int target = next(node, c);
+      while (target == -1 && node != 0) {
+        node = failure[node];
+        target = next(node, c);
+      }
+      node = target != -1 ? target : 0;
+      if (outputs[node] != null) {
+        found.or(outputs[node]);
+      }
+    }
+  }
+
+  private int next(int node, char c) {
+    int index = Arrays.binarySearch(edgeChars[node], c);
+    return index >= 0 ? edgeTargets[node][index] : -1;
+  }
+}
@@ -43,11 +43,9 @@ public class LabelRuleLookupElement extends BuildLookupElement {
 
     String ruleFragment = LabelUtils.getRuleComponent(originalString);
     List<BuildLookupElement> lookups = Lists.newArrayList();
-    for (FuncallExpression target : file.findChildrenByClass(FuncallExpression.class)) {
+    for (FuncallExpression target : file.getNamedRules()) {
       String targetName = target.getName();
-      if (targetName == null
-          || Objects.equals(target.getName(), excluded)
-          || !targetName.startsWith(ruleFragment)) {
+      if (Objects.equals(targetName, excluded) || !targetName.startsWith(ruleFragment)) {
         continue;
       }
       String ruleType = target.getFunctionName();
@@ -19,7 +19,6 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
@@ -92,64 +91,67 @@ public final class UnixGlob {
     return list;
   }
 
-  /** Calls {@link #matches(String, String, Cache) matches(pattern, str, null)} */
+  /**
+   * Compiled patterns, shared between globs. The same few patterns are typically matched against
+   * many files, e.g. when evaluating a glob or searching for globs referencing a file.
+   */
+  private static final Cache<String, Predicate<String>> compiledPatterns =
+      CacheBuilder.newBuilder().maximumSize(1000).build();
+
+  /** Calls {@link #compile(String) compile(pattern).test(str)} */
   public static boolean matches(String pattern, String str) {
-    try {
-      return matches(pattern, str, null);
-    } catch (PatternSyntaxException e) {
-      return false;
-    }
+    return compile(pattern).test(str);
   }
 
   /**
-   * Returns whether {@code str} matches the glob pattern {@code pattern}. This method may use the
-   * {@code patternCache} to speed up the matching process.
-   *
-   * @param pattern a glob pattern
-   * @param str the string to match
-   * @param patternCache a cache from patterns to compiled Pattern objects, or {@code null} to skip
-   *     caching
+   * Returns a matcher for the glob pattern {@code pattern}, which tests whether a string matches
+   * it. Matchers are cached, so repeatedly compiling the same pattern is cheap.
    */
-  private static boolean matches(String pattern, String str, Cache<String, Pattern> patternCache) {
-    if (pattern.length() == 0 || str.length() == 0) {
-      return false;
-    }
-
-    // Common case: **
-    if (pattern.equals("**")) {
-      return true;
+  public static Predicate<String> compile(String pattern) {
+    Predicate<String> matcher = compiledPatterns.getIfPresent(pattern);
+    if (matcher == null) {
+      matcher = doCompile(pattern);
+      compiledPatterns.put(pattern, matcher);
     }
+    return matcher;
+  }
 
-    // Common case: *
-    if (pattern.equals("*")) {
-      return true;
+  private static Predicate<String> doCompile(String pattern) {
+    if (pattern.length() == 0) {
+      return str -> false;
     }
 
-    // If a filename starts with '.', this char must be matched explicitly.
-    if (str.charAt(0) == '.' && pattern.charAt(0) != '.') {
-      return false;
+    // Common case: ** or *
+    if (pattern.equals("**") || pattern.equals("*")) {
+      return str -> str.length() != 0;
     }
 
-    // Common case: *.xyz
-    if (pattern.charAt(0) == '*' && pattern.lastIndexOf('*') == 0) {
-      return str.endsWith(pattern.substring(1));
-    }
-    // Common case: xyz*
+    Predicate<String> matcher;
     int lastIndex = pattern.length() - 1;
-    // The first clause of this if statement is unnecessary, but is an
-    // optimization--charAt runs faster than indexOf.
-    if (pattern.charAt(lastIndex) == '*' && pattern.indexOf('*') == lastIndex) {
-      return str.startsWith(pattern.substring(0, lastIndex));
-    }
-
-    Pattern regex = patternCache == null ? null : patternCache.getIfPresent(pattern);
-    if (regex == null) {
-      regex = makePatternFromWildcard(pattern);
-      if (patternCache != null) {
-        patternCache.put(pattern, regex);
+    if (pattern.charAt(0) == '*' && pattern.lastIndexOf('*') == 0) {
+      // Common case: *.xyz
+      String suffix = pattern.substring(1);
+      matcher = str -> str.endsWith(suffix);
+    } else if (pattern.charAt(lastIndex) == '*' && pattern.indexOf('*') == lastIndex) {
+      // Common case: xyz*
+      String prefix = pattern.substring(0, lastIndex);
+      matcher = str -> str.startsWith(prefix);
+    } else {
+      Pattern regex;
+      try {
+        regex = makePatternFromWildcard(pattern);
+      } catch (PatternSyntaxException e) {
+        return str -> false;
       }
+      matcher = str -> regex.matcher(str).matches();
     }
-    return regex.matcher(str).matches();
+
+    // If a filename starts with '.', this char must be matched explicitly.
+    boolean matchesLeadingDot = pattern.charAt(0) == '.';
+    return str ->
+        str.length() != 0
+            && (matchesLeadingDot || str.charAt(0) != '.')
+            && matcher.test(str);
   }
 
   /**
@@ -367,15 +369,6 @@ public final class UnixGlob {
   private static final class GlobVisitor {
     // These collections are used across workers and must therefore be thread-safe.
     private final Set<File> results = Sets.newConcurrentHashSet();
-    private final Cache<String, Pattern> cache =
-        CacheBuilder.newBuilder()
-            .build(
-                new CacheLoader<String, Pattern>() {
-                  @Override
-                  public Pattern load(String wildcard) {
-                    return makePatternFromWildcard(wildcard);
-                  }
-                });
 
     private final GlobFuture result;
     private final ThreadPoolExecutor executor;
@@ -435,8 +428,7 @@ public final class UnixGlob {
       pendingOps.incrementAndGet();
       try {
         for (String[] splitPattern : checkAndSplitPatterns(patterns)) {
-          queueGlob(
-              base, baseIsDirectory, splitPattern, 0, excludeDirectories, results, cache, dirPred);
+          queueGlob(base, baseIsDirectory, splitPattern, 0, excludeDirectories, results, dirPred);
         }
       } finally {
         decrementAndCheckDone();
@@ -452,21 +444,13 @@ public final class UnixGlob {
         int idx,
         boolean excludeDirectories,
         Collection<File> results,
-        Cache<String, Pattern> cache,
         Predicate<File> dirPred)
         throws IOException {
       enqueue(
           () -> {
             try {
               reallyGlob(
-                  base,
-                  baseIsDirectory,
-                  patternParts,
-                  idx,
-                  excludeDirectories,
-                  results,
-                  cache,
-                  dirPred);
+                  base, baseIsDirectory, patternParts, idx, excludeDirectories, results, dirPred);
             } catch (IOException e) {
               failure.set(e);
             }
@@ -528,7 +512,6 @@ public final class UnixGlob {
         int idx,
         boolean excludeDirectories,
         Collection<File> results,
-        Cache<String, Pattern> cache,
         Predicate<File> dirPred)
         throws IOException {
       ProgressManager.checkCanceled();
@@ -554,14 +537,7 @@ public final class UnixGlob {
       // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
       if ("**".equals(pattern)) {
         queueGlob(
-            base,
-            baseIsDirectory,
-            patternParts,
-            idx + 1,
-            excludeDirectories,
-            results,
-            cache,
-            dirPred);
+            base, baseIsDirectory, patternParts, idx + 1, excludeDirectories, results, dirPred);
       }
 
       if (!pattern.contains("*") && !pattern.contains("?")) {
@@ -573,8 +549,7 @@ public final class UnixGlob {
           return;
         }
 
-        queueGlob(
-            child, childIsDir, patternParts, idx + 1, excludeDirectories, results, cache, dirPred);
+        queueGlob(child, childIsDir, patternParts, idx + 1, excludeDirectories, results, dirPred);
         return;
       }
 
@@ -588,22 +563,14 @@ public final class UnixGlob {
         if ("**".equals(pattern)) {
           // Recurse without shifting the pattern.
           if (childIsDir) {
-            queueGlob(
-                child, childIsDir, patternParts, idx, excludeDirectories, results, cache, dirPred);
+            queueGlob(child, childIsDir, patternParts, idx, excludeDirectories, results, dirPred);
           }
         }
-        if (matches(pattern, child.getName(), cache)) {
+        if (compile(pattern).test(child.getName())) {
           // Recurse and consume one segment of the pattern.
           if (childIsDir) {
             queueGlob(
-                child,
-                childIsDir,
-                patternParts,
-                idx + 1,
-                excludeDirectories,
-                results,
-                cache,
-                dirPred);
+                child, childIsDir, patternParts, idx + 1, excludeDirectories, results, dirPred);
           } else {
             // Instead of using an async call, just repeat the base case above.
             if (idx + 1 == patternParts.length) {
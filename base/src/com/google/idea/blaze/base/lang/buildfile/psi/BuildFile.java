@@ -15,6 +15,7 @@
  */
 package com.google.idea.blaze.base.lang.buildfile.psi;
 
+import com.google.common.collect.ImmutableCollection;
 import com.google.idea.blaze.base.lang.buildfile.language.BuildFileType;
 import com.google.idea.blaze.base.lang.buildfile.references.QuoteType;
 import com.google.idea.blaze.base.lang.buildfile.search.BlazePackage;
@@ -131,36 +132,30 @@ public class BuildFile extends PsiFileBase implements BuildElement, DocStringOwn
   /** Finds a top-level rule with a "name" keyword argument with the given value. */
   @Nullable
   public FuncallExpression findRule(String name) {
-    for (FuncallExpression expr : findChildrenByClass(FuncallExpression.class)) {
-      String ruleName = expr.getNameArgumentValue();
-      if (name.equals(ruleName)) {
-        return expr;
-      }
-    }
-    return null;
+    return BuildFileSymbols.get(this).rules.get(name);
+  }
+
+  /**
+   * All top-level rules with a "name" keyword argument, in declaration order. Only the first rule
+   * with a given name is included.
+   */
+  public ImmutableCollection<FuncallExpression> getNamedRules() {
+    return BuildFileSymbols.get(this).rules.values();
   }
 
   @Nullable
   public FunctionStatement findDeclaredFunction(String name) {
-    for (FunctionStatement fn : getFunctionDeclarations()) {
-      if (name.equals(fn.getName())) {
-        return fn;
-      }
-    }
-    return null;
+    return BuildFileSymbols.get(this).functions.get(name);
   }
 
   @Nullable
   public FunctionStatement findLoadedFunction(String name) {
-    for (LoadStatement loadStatement : findChildrenByClass(LoadStatement.class)) {
-      for (LoadedSymbol loadedSymbol : loadStatement.getImportedSymbolElements()) {
-        if (name.equals(loadedSymbol.getSymbolString())) {
-          PsiElement element = loadedSymbol.getLoadedElement();
-          return element instanceof FunctionStatement ? (FunctionStatement) element : null;
-        }
-      }
+    LoadedSymbol loadedSymbol = BuildFileSymbols.get(this).loadedSymbols.get(name);
+    if (loadedSymbol == null) {
+      return null;
     }
-    return null;
+    PsiElement element = loadedSymbol.getLoadedElement();
+    return element instanceof FunctionStatement ? (FunctionStatement) element : null;
   }
 
   public BuildElement findSymbolInScope(String name) {
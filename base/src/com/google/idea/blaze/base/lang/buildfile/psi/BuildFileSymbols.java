@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.lang.buildfile.psi;
+
+import com.google.common.collect.ImmutableMap;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The top-level named rules, function declarations and loaded symbols of a {@link BuildFile},
+ * indexed by name.
+ *
+ * <p>Built in a single pass over the file's children and cached until the file is next modified,
+ * so repeated label resolution and completion don't rescan the whole file. Where a name is
+ * declared more than once, the first declaration wins.
+ */
+final class BuildFileSymbols {
+
+  static BuildFileSymbols get(BuildFile file) {
+    return CachedValuesManager.getCachedValue(
+        file, () -> CachedValueProvider.Result.create(build(file), file));
+  }
+
+  final ImmutableMap<String, FuncallExpression> rules;
+  final ImmutableMap<String, FunctionStatement> functions;
+  // loaded elements are resolved lazily, as they depend on the contents of other files
+  final ImmutableMap<String, LoadedSymbol> loadedSymbols;
+
+  private BuildFileSymbols(
+      ImmutableMap<String, FuncallExpression> rules,
+      ImmutableMap<String, FunctionStatement> functions,
+      ImmutableMap<String, LoadedSymbol> loadedSymbols) {
+    this.rules = rules;
+    this.functions = functions;
+    this.loadedSymbols = loadedSymbols;
+  }
+
+  private static BuildFileSymbols build(BuildFile file) {
+    Map<String, FuncallExpression> rules = new LinkedHashMap<>();
+    Map<String, FunctionStatement> functions = new LinkedHashMap<>();
+    Map<String, LoadedSymbol> loadedSymbols = new LinkedHashMap<>();
+    for (BuildElement child : file.findChildrenByClass(BuildElement.class)) {
+      if (child instanceof FuncallExpression) {
+        FuncallExpression rule = (FuncallExpression) child;
+        String name = rule.getNameArgumentValue();
+        if (name != null) {
+          rules.putIfAbsent(name, rule);
+        }
+      } else if (child instanceof FunctionStatement) {
+        FunctionStatement function = (FunctionStatement) child;
+        String name = function.getName();
+        if (name != null) {
+          functions.putIfAbsent(name, function);
+        }
+      } else if (child instanceof LoadStatement) {
+        for (LoadedSymbol symbol : ((LoadStatement) child).getImportedSymbolElements()) {
+          String name = symbol.getSymbolString();
+          if (name != null) {
+            loadedSymbols.putIfAbsent(name, symbol);
+          }
+        }
+      }
+    }
+    return new BuildFileSymbols(
+        ImmutableMap.copyOf(rules),
+        ImmutableMap.copyOf(functions),
+        ImmutableMap.copyOf(loadedSymbols));
+  }
+}
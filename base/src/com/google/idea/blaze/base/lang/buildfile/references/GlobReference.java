@@ -114,12 +114,13 @@ public class GlobReference extends PsiPolyVariantCachingReference {
     Project project = element.getProject();
     try {
       List<File> files =
-          UnixGlob.forPath(containingDirectory)
-              .addPatterns(includes)
-              .addExcludes(excludes)
-              .setExcludeDirectories(directoriesExcluded)
-              .setDirectoryFilter(directoryFilter(project, containingDirectory.getPath()))
-              .glob();
+          GlobResultCache.getInstance(project)
+              .glob(
+                  containingDirectory,
+                  includes,
+                  excludes,
+                  directoriesExcluded,
+                  directoryFilter(project, containingDirectory.getPath()));
 
       List<ResolveResult> results = Lists.newArrayListWithCapacity(files.size());
       for (File file : files) {
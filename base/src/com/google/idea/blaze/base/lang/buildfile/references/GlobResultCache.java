@@ -0,0 +1,255 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.lang.buildfile.references;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.idea.blaze.base.io.FileOperationProvider;
+import com.google.idea.blaze.base.lang.buildfile.globbing.UnixGlob;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.sync.SyncListener;
+import com.google.idea.blaze.base.sync.SyncMode;
+import com.google.idea.blaze.base.sync.SyncResult;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.PathUtil;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Caches the files matched by globs, per blaze package, so BUILD files with many globs don't walk
+ * the package directory each time one of them is resolved.
+ *
+ * <p>Globs read the file system directly rather than the VFS, which may not have caught up with
+ * changes on disk. So each result records the modification times of the directories traversed to
+ * find it, and is only reused if none of them has changed since, i.e. no entry was added, removed
+ * or renamed. Results are also dropped whenever the VFS reports a file or directory being created,
+ * deleted, moved or renamed under the package directory. Changes to file contents don't affect
+ * glob results, so are ignored. Everything is dropped after each sync, as the directory filter
+ * (which isn't part of the cache key) depends on the project's build system and BUILD file names.
+ *
+ * <p>Only the results of the most recently used {@link #MAX_CACHED_PACKAGES} packages are kept.
+ */
+final class GlobResultCache implements Disposable {
+
+  static GlobResultCache getInstance(Project project) {
+    return ServiceManager.getService(project, GlobResultCache.class);
+  }
+
+  private static final int MAX_CACHED_PACKAGES = 1000;
+
+  /**
+   * Results are only cached if every directory traversed was last modified at least this long ago,
+   * since a change within the file system's timestamp granularity may not change the time.
+   */
+  private static final long MODIFICATION_TIME_GRANULARITY_MILLIS = 2000;
+
+  /** Glob results, keyed by the system-independent path of the package directory. */
+  private final Map<String, Map<GlobKey, GlobResult>> results =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_PACKAGES)
+          .<String, Map<GlobKey, GlobResult>>build()
+          .asMap();
+
+  GlobResultCache(Project project) {
+    project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new Listener());
+  }
+
+  @Override
+  public void dispose() {
+    results.clear();
+  }
+
+  /**
+   * Returns the files under the package directory matched by the given glob, in sorted order.
+   *
+   * @param directoryFilter the directories to traverse. This is expected to be the same for all
+   *     globs in a project, so isn't part of the cache key.
+   */
+  ImmutableList<File> glob(
+      File packageDirectory,
+      List<String> includes,
+      List<String> excludes,
+      boolean excludeDirectories,
+      Predicate<File> directoryFilter)
+      throws IOException, InterruptedException {
+    GlobKey key = new GlobKey(includes, excludes, excludeDirectories);
+    // if the package is invalidated while globbing, the (possibly stale) result is stored in a map
+    // which is no longer reachable
+    Map<GlobKey, GlobResult> packageResults =
+        results.computeIfAbsent(
+            FileUtil.toSystemIndependentName(packageDirectory.getPath()),
+            p -> new ConcurrentHashMap<>());
+    FileOperationProvider fileOperations = FileOperationProvider.getInstance();
+    GlobResult cached = packageResults.get(key);
+    if (cached != null && cached.isUpToDate(fileOperations)) {
+      return cached.files;
+    }
+    // the time of each directory is read before the glob lists it, so later changes are noticed
+    Map<File, Long> directoryTimes = new ConcurrentHashMap<>();
+    directoryTimes.put(packageDirectory, fileOperations.getFileModifiedTime(packageDirectory));
+    ImmutableList<File> files =
+        ImmutableList.copyOf(
+            UnixGlob.forPath(packageDirectory)
+                .addPatterns(includes)
+                .addExcludes(excludes)
+                .setExcludeDirectories(excludeDirectories)
+                .setDirectoryFilter(
+                    dir -> {
+                      if (!directoryFilter.test(dir)) {
+                        return false;
+                      }
+                      directoryTimes.computeIfAbsent(dir, fileOperations::getFileModifiedTime);
+                      return true;
+                    })
+                .glob());
+    long now = System.currentTimeMillis();
+    if (directoryTimes.values().stream()
+        .allMatch(time -> now - time >= MODIFICATION_TIME_GRANULARITY_MILLIS)) {
+      packageResults.put(key, new GlobResult(files, directoryTimes));
+    } else {
+      packageResults.remove(key);
+    }
+    return files;
+  }
+
+  /**
+   * Drops the results of any package containing the given path, and if it's a directory, of any
+   * package under it.
+   */
+  private void invalidate(String path, boolean isDirectory) {
+    if (results.isEmpty()) {
+      return;
+    }
+    for (String dir = path; !dir.isEmpty(); dir = PathUtil.getParentPath(dir)) {
+      results.remove(dir);
+    }
+    if (isDirectory) {
+      results.keySet().removeIf(dir -> FileUtil.isAncestor(path, dir, true));
+    }
+  }
+
+  /** Drops all glob results after each sync. */
+  static class ClearAfterSync implements SyncListener {
+    @Override
+    public void afterSync(
+        Project project,
+        BlazeContext context,
+        SyncMode syncMode,
+        SyncResult syncResult,
+        ImmutableSet<Integer> buildIds) {
+      getInstance(project).results.clear();
+    }
+  }
+
+  private class Listener implements BulkFileListener {
+    @Override
+    public void after(List<? extends VFileEvent> events) {
+      for (VFileEvent event : events) {
+        if (event instanceof VFileContentChangeEvent) {
+          continue;
+        }
+        if (event instanceof VFilePropertyChangeEvent
+            && !VirtualFile.PROP_NAME.equals(
+                ((VFilePropertyChangeEvent) event).getPropertyName())) {
+          continue;
+        }
+        VirtualFile file = event.getFile();
+        boolean isDirectory =
+            event instanceof VFileCreateEvent
+                ? ((VFileCreateEvent) event).isDirectory()
+                : file != null && file.isDirectory();
+        invalidate(event.getPath(), isDirectory);
+        if (event instanceof VFileMoveEvent) {
+          VirtualFile oldParent = ((VFileMoveEvent) event).getOldParent();
+          invalidate(oldParent.getPath() + "/" + file.getName(), isDirectory);
+        } else if (event instanceof VFilePropertyChangeEvent && file.getParent() != null) {
+          Object oldName = ((VFilePropertyChangeEvent) event).getOldValue();
+          invalidate(file.getParent().getPath() + "/" + oldName, isDirectory);
+        }
+      }
+    }
+  }
+
+  /** The files matched by a glob, and the modification times of the directories it traversed. */
+  private static final class GlobResult {
+    private final ImmutableList<File> files;
+    private final ImmutableMap<File, Long> directoryTimes;
+
+    GlobResult(ImmutableList<File> files, Map<File, Long> directoryTimes) {
+      this.files = files;
+      this.directoryTimes = ImmutableMap.copyOf(directoryTimes);
+    }
+
+    /** Returns true if no traversed directory has been modified since the glob. */
+    boolean isUpToDate(FileOperationProvider fileOperations) {
+      for (Map.Entry<File, Long> entry : directoryTimes.entrySet()) {
+        if (fileOperations.getFileModifiedTime(entry.getKey()) != entry.getValue()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class GlobKey {
+    private final ImmutableList<String> includes;
+    private final ImmutableList<String> excludes;
+    private final boolean excludeDirectories;
+
+    GlobKey(List<String> includes, List<String> excludes, boolean excludeDirectories) {
+      this.includes = ImmutableList.copyOf(includes);
+      this.excludes = ImmutableList.copyOf(excludes);
+      this.excludeDirectories = excludeDirectories;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof GlobKey)) {
+        return false;
+      }
+      GlobKey other = (GlobKey) o;
+      return includes.equals(other.includes)
+          && excludes.equals(other.excludes)
+          && excludeDirectories == other.excludeDirectories;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(includes, excludes, excludeDirectories);
+    }
+  }
+}
@@ -16,12 +16,13 @@
 package com.google.idea.blaze.base.model;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.devtools.intellij.model.ProjectData;
 import com.google.idea.blaze.base.ideinfo.ProtoWrapper;
 import com.google.idea.blaze.base.io.VirtualFileSystemProvider;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.io.FileUtilRt;
 import com.intellij.openapi.vfs.StandardFileSystems;
@@ -67,10 +68,11 @@ public abstract class BlazeLibrary implements ProtoWrapper<ProjectData.BlazeLibr
     return Objects.equal(key, that.key);
   }
 
-  public abstract void modifyLibraryModel(
-      Project project,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      Library.ModifiableModel libraryModel);
+  /**
+   * Returns the URLs of this library's roots in IntelliJ's project model, in order, by root type.
+   */
+  public abstract ImmutableListMultimap<OrderRootType, String> getLibraryRoots(
+      Project project, ArtifactLocationDecoder artifactLocationDecoder);
 
   protected static String pathToUrl(File path) {
     String name = path.getName();
@@ -32,6 +32,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Objects;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -68,10 +70,16 @@ public final class BlazeProjectData implements ProtoWrapper<ProjectData.BlazePro
   @VisibleForTesting
   public static BlazeProjectData fromProto(
       BuildSystemName buildSystemName, ProjectData.BlazeProjectData proto) {
+    return fromProto(buildSystemName, proto, parseTargetData(proto));
+  }
+
+  static BlazeProjectData fromProto(
+      BuildSystemName buildSystemName,
+      ProjectData.BlazeProjectData proto,
+      ProjectTargetData targetData) {
     BlazeInfo blazeInfo = BlazeInfo.fromProto(buildSystemName, proto.getBlazeInfo());
     WorkspacePathResolver workspacePathResolver =
         WorkspacePathResolver.fromProto(proto.getWorkspacePathResolver());
-    ProjectTargetData targetData = parseTargetData(proto);
     return new BlazeProjectData(
         targetData,
         blazeInfo,
@@ -99,8 +107,13 @@ public final class BlazeProjectData implements ProtoWrapper<ProjectData.BlazePro
 
   @Override
   public ProjectData.BlazeProjectData toProto() {
+    return toProto(targetData.toProto());
+  }
+
+  /** Returns the proto form of this project data, with the given target data. */
+  ProjectData.BlazeProjectData toProto(ProjectData.TargetData targetData) {
     return ProjectData.BlazeProjectData.newBuilder()
-        .setTargetData(targetData.toProto())
+        .setTargetData(targetData)
         .setBlazeInfo(blazeInfo.toProto())
         .setBlazeVersionData(blazeVersionData.toProto())
         .setWorkspacePathResolver(workspacePathResolver.toProto())
@@ -145,18 +158,60 @@ public final class BlazeProjectData implements ProtoWrapper<ProjectData.BlazePro
     return syncState;
   }
 
+  /**
+   * Loads project data saved by {@link #saveToDisk}. Files in the indexed format only have their
+   * header and index read up front; target data is decoded lazily. Gzipped proto files written by
+   * older plugin versions are read in full.
+   */
   public static BlazeProjectData loadFromDisk(BuildSystemName buildSystemName, File file)
       throws IOException {
+    if (IndexedProjectDataFile.isIndexedFormat(file)) {
+      return IndexedProjectDataFile.read(buildSystemName, file);
+    }
     try (InputStream stream = new GZIPInputStream(new FileInputStream(file))) {
       return fromProto(buildSystemName, ProjectData.BlazeProjectData.parseFrom(stream));
     }
   }
 
+  /**
+   * Saves project data in the indexed format, falling back to a gzipped proto if the data is too
+   * large to be memory-mapped. The file is written to a temporary location first, so a failed save
+   * never leaves a truncated file behind.
+   */
   public void saveToDisk(File file) throws IOException {
-    ProjectData.BlazeProjectData proto = toProto();
-    try (OutputStream stream = new GZIPOutputStream(new FileOutputStream(file))) {
-      proto.writeTo(stream);
+    File tempFile = new File(file.getPath() + ".tmp");
+    ProjectData.BlazeProjectData header = toProto(targetData.toProtoWithoutTargetMap());
+    if (!IndexedProjectDataFile.write(tempFile, header, targetData.targetMap.map())) {
+      ProjectData.BlazeProjectData proto = toProto();
+      try (OutputStream stream = new GZIPOutputStream(new FileOutputStream(tempFile))) {
+        proto.writeTo(stream);
+      }
     }
+    Files.move(
+        tempFile.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Loads project data saved by {@link #saveToDisk}, then replays any changes recorded in the
+   * given journal by {@link #appendToJournal}.
+   */
+  public static BlazeProjectData loadFromDisk(
+      BuildSystemName buildSystemName, File file, File journalFile) throws IOException {
+    BlazeProjectData base = loadFromDisk(buildSystemName, file);
+    return ProjectDataJournal.replay(buildSystemName, file, journalFile, base);
+  }
+
+  /**
+   * Records the changes relative to {@code previous}, which must be the project data currently
+   * stored in {@code file} plus its journal. Returns false without writing anything if a full
+   * {@link #saveToDisk} is needed instead.
+   */
+  public boolean appendToJournal(File file, File journalFile, BlazeProjectData previous)
+      throws IOException {
+    return ProjectDataJournal.append(file, journalFile, previous, this);
   }
 
   @Override
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.model;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingOutputStream;
+import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.settings.BuildSystemName;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * An indexed, memory-mapped on-disk format for {@link BlazeProjectData}.
+ *
+ * <p>The file consists of a header (everything except the target map), followed by one record per
+ * target and an index from {@link TargetKey} to record position. Loading only parses the header and
+ * index; target records are decoded when first accessed.
+ *
+ * <pre>
+ *   int magic, int version, long snapshotId
+ *   int headerLength, header bytes (ProjectData.BlazeProjectData without target map)
+ *   target records (IntellijIdeInfo.TargetIdeInfo bytes)
+ *   int count, count * (int keyLength, key bytes, UTF kind, long offset, int length)
+ *   long indexOffset, int magic
+ * </pre>
+ *
+ * <p>Files are memory-mapped until all targets are decoded, so must never be replaced in place.
+ * Each save writes a new file instead, with a new random snapshot ID identifying its contents.
+ */
+final class IndexedProjectDataFile {
+
+  private static final int MAGIC = 0x425a5044; // "BZPD"
+  private static final int VERSION = 3;
+  private static final int SNAPSHOT_ID_OFFSET = 2 * Integer.BYTES;
+  private static final int HEADER_LENGTH_OFFSET = SNAPSHOT_ID_OFFSET + Long.BYTES;
+  private static final int HEADER_OFFSET = HEADER_LENGTH_OFFSET + Integer.BYTES;
+  private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES;
+
+  /** The largest file which can be mapped into a single buffer. */
+  @VisibleForTesting static long maxFileSize = Integer.MAX_VALUE;
+
+  private IndexedProjectDataFile() {}
+
+  /** Returns true if the file starts with this format's header, rather than e.g. gzip. */
+  static boolean isIndexedFormat(File file) throws IOException {
+    try (InputStream stream = new FileInputStream(file)) {
+      byte[] magic = new byte[Integer.BYTES];
+      return stream.read(magic) == magic.length && ByteBuffer.wrap(magic).getInt() == MAGIC;
+    }
+  }
+
+  /**
+   * Returns the snapshot ID of the given file, or null if it isn't a readable file in this format.
+   */
+  @Nullable
+  static Long readSnapshotId(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      return in.readLong();
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the project data to the given file, streaming target records one at a time. Returns
+   * false without writing a usable file as soon as the result grows too large to be memory-mapped.
+   */
+  static boolean write(
+      File file, ProjectData.BlazeProjectData header, Map<TargetKey, TargetIdeInfo> targets)
+      throws IOException {
+    if (header.getSerializedSize() > maxFileSize) {
+      return false;
+    }
+    // the counting stream sits above the buffer, so counts bytes as soon as they're written
+    try (CountingOutputStream counting =
+            new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        DataOutputStream out = new DataOutputStream(counting)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(ThreadLocalRandom.current().nextLong());
+      out.writeInt(header.getSerializedSize());
+      header.writeTo(out);
+
+      TargetKey[] keys = new TargetKey[targets.size()];
+      String[] kinds = new String[keys.length];
+      long[] offsets = new long[keys.length];
+      int[] lengths = new int[keys.length];
+      int i = 0;
+      for (Map.Entry<TargetKey, TargetIdeInfo> entry : targets.entrySet()) {
+        IntellijIdeInfo.TargetIdeInfo record = entry.getValue().toProto();
+        keys[i] = entry.getKey();
+        kinds[i] = record.getKindString();
+        offsets[i] = counting.getCount();
+        lengths[i] = record.getSerializedSize();
+        record.writeTo(out);
+        if (counting.getCount() > maxFileSize) {
+          return false;
+        }
+        i++;
+      }
+
+      long indexOffset = counting.getCount();
+      out.writeInt(keys.length);
+      for (i = 0; i < keys.length; i++) {
+        IntellijIdeInfo.TargetKey key = keys[i].toProto();
+        out.writeInt(key.getSerializedSize());
+        key.writeTo(out);
+        out.writeUTF(kinds[i]);
+        out.writeLong(offsets[i]);
+        out.writeInt(lengths[i]);
+      }
+      out.writeLong(indexOffset);
+      out.writeInt(MAGIC);
+      return counting.getCount() <= maxFileSize;
+    }
+  }
+
+  /** Reads the header and index of the given file. Target records are decoded lazily. */
+  static BlazeProjectData read(BuildSystemName buildSystemName, File file) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Project data file too large to map: " + file);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.limit() < HEADER_OFFSET + FOOTER_SIZE
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(buffer.limit() - Integer.BYTES) != MAGIC) {
+      throw new IOException("Corrupt project data file: " + file);
+    }
+    if (buffer.getInt(Integer.BYTES) != VERSION) {
+      throw new IOException("Unsupported project data file version: " + file);
+    }
+    try {
+      return read(buildSystemName, buffer);
+    } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt project data file: " + file, e);
+    }
+  }
+
+  private static BlazeProjectData read(BuildSystemName buildSystemName, MappedByteBuffer buffer)
+      throws IOException {
+    int headerLength = buffer.getInt(HEADER_LENGTH_OFFSET);
+    ProjectData.BlazeProjectData header =
+        ProjectData.BlazeProjectData.parseFrom(slice(buffer, HEADER_OFFSET, headerLength));
+
+    ByteBuffer index = buffer.duplicate();
+    long indexOffset = buffer.getLong(buffer.limit() - FOOTER_SIZE);
+    if (indexOffset < HEADER_OFFSET + headerLength
+        || indexOffset > buffer.limit() - FOOTER_SIZE - Integer.BYTES) {
+      throw new IOException("Invalid index offset " + indexOffset);
+    }
+    index.position((int) indexOffset);
+    index.limit(buffer.limit() - FOOTER_SIZE);
+    int count = index.getInt();
+    if (count < 0) {
+      throw new IOException("Invalid index size " + count);
+    }
+    ImmutableMap.Builder<TargetKey, Integer> keys = ImmutableMap.builder();
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      int keyLength = index.getInt();
+      TargetKey key =
+          TargetKey.fromProto(
+              IntellijIdeInfo.TargetKey.parseFrom(slice(index, index.position(), keyLength)));
+      index.position(index.position() + keyLength);
+      String kind = readUtf(index);
+      long offset = index.getLong();
+      offsets[i] = (int) offset;
+      lengths[i] = index.getInt();
+      if (offset < 0 || lengths[i] < 0 || offset + lengths[i] > indexOffset) {
+        throw new IOException("Invalid target record position for " + key);
+      }
+      // targets of an unrecognized kind are dropped on decoding, so leave them out of the index
+      if (Kind.fromRuleName(kind) != null || decodeRecord(buffer, offsets[i], lengths[i]) != null) {
+        keys.put(key, i);
+      }
+    }
+    if (index.hasRemaining()) {
+      throw new IOException("Unexpected data after index");
+    }
+
+    TargetMap targetMap = TargetMap.lazy(new MappedTargets(buffer, keys.build(), offsets, lengths));
+    return BlazeProjectData.fromProto(
+        buildSystemName, header, ProjectTargetData.fromProto(header.getTargetData(), targetMap));
+  }
+
+  /** Reads a string written by {@link DataOutputStream#writeUTF}. */
+  private static String readUtf(ByteBuffer buffer) {
+    int length = Short.toUnsignedInt(buffer.getShort());
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    // kind strings are plain ASCII, where modified UTF-8 is the same as standard UTF-8
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(position);
+    slice.limit(position + length);
+    return slice.slice();
+  }
+
+  @Nullable
+  private static TargetIdeInfo decodeRecord(ByteBuffer buffer, int offset, int length) {
+    try {
+      return TargetIdeInfo.fromProto(
+          IntellijIdeInfo.TargetIdeInfo.parseFrom(slice(buffer, offset, length)));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Corrupt target record in project data file", e);
+    }
+  }
+
+  /** Target records backed by a memory-mapped file, decoded and memoized on first access. */
+  private static final class MappedTargets implements TargetMap.LazyTargets {
+    private final ByteBuffer buffer;
+    private final ImmutableMap<TargetKey, Integer> keys;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final AtomicReferenceArray<TargetIdeInfo> decoded;
+
+    MappedTargets(
+        ByteBuffer buffer, ImmutableMap<TargetKey, Integer> keys, int[] offsets, int[] lengths) {
+      this.buffer = buffer;
+      this.keys = keys;
+      this.offsets = offsets;
+      this.lengths = lengths;
+      this.decoded = new AtomicReferenceArray<>(offsets.length);
+    }
+
+    @Nullable
+    @Override
+    public TargetIdeInfo get(TargetKey key) {
+      Integer i = keys.get(key);
+      return i != null ? decode(i) : null;
+    }
+
+    @Override
+    public boolean contains(TargetKey key) {
+      return keys.containsKey(key);
+    }
+
+    @Override
+    public ImmutableSet<TargetKey> keys() {
+      return keys.keySet();
+    }
+
+    @Override
+    public ImmutableMap<TargetKey, TargetIdeInfo> getAll() {
+      ImmutableMap.Builder<TargetKey, TargetIdeInfo> targets = ImmutableMap.builder();
+      keys.forEach(
+          (key, i) -> {
+            TargetIdeInfo target = decode(i);
+            if (target != null) {
+              targets.put(key, target);
+            }
+          });
+      return targets.build();
+    }
+
+    @Nullable
+    private TargetIdeInfo decode(int i) {
+      TargetIdeInfo target = decoded.get(i);
+      if (target != null) {
+        return target;
+      }
+      target = decodeRecord(buffer, offsets[i], lengths[i]);
+      if (target == null || decoded.compareAndSet(i, null, target)) {
+        return target;
+      }
+      return decoded.get(i);
+    }
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.model;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.settings.BuildSystemName;
+import com.google.idea.blaze.base.sync.aspects.BlazeIdeInterfaceState;
+import com.google.protobuf.Message;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+
+/**
+ * An append-only journal of {@link BlazeProjectData} changes, layered on top of a project data
+ * file in the indexed format.
+ *
+ * <p>The journal starts with the snapshot ID of the project data file it applies to, so a journal
+ * left over from a different save is ignored. Each entry is a length-delimited {@link
+ * ProjectData.BlazeProjectDataDelta}, holding the changed targets and only those header sections
+ * which changed. A truncated final entry (e.g. after a crash) is cut off on load, so later entries
+ * are appended after the last valid one.
+ */
+final class ProjectDataJournal {
+
+  private static final Logger logger = Logger.getInstance(ProjectDataJournal.class);
+
+  /**
+   * Above this fraction of changed targets, a delta is not worth it: a full save is both smaller
+   * and faster to load.
+   */
+  @VisibleForTesting static final double MAX_CHANGED_TARGET_FRACTION = 0.5;
+
+  private ProjectDataJournal() {}
+
+  /**
+   * Appends the changes between {@code previous} and {@code current} to the journal. Returns false
+   * without writing anything if a full save is required instead, e.g. because the journal doesn't
+   * apply to the current project data file.
+   */
+  static boolean append(
+      File dataFile, File journalFile, BlazeProjectData previous, BlazeProjectData current)
+      throws IOException {
+    Long snapshotId = dataFile.exists() ? IndexedProjectDataFile.readSnapshotId(dataFile) : null;
+    if (snapshotId == null) {
+      return false;
+    }
+    boolean newJournal = !journalFile.exists();
+    if (!newJournal && !snapshotId.equals(readSnapshotId(journalFile))) {
+      return false;
+    }
+    ProjectData.BlazeProjectDataDelta delta = diff(previous, current);
+    if (delta == null) {
+      return false;
+    }
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(journalFile, /* append= */ true)))) {
+      if (newJournal) {
+        out.writeLong(snapshotId);
+      }
+      delta.writeDelimitedTo(out);
+    }
+    return true;
+  }
+
+  /**
+   * Replays the journal on top of the given project data, read from {@code dataFile}. Returns the
+   * base data unchanged if there is no journal for that file.
+   */
+  static BlazeProjectData replay(
+      BuildSystemName buildSystemName, File dataFile, File journalFile, BlazeProjectData base)
+      throws IOException {
+    if (!journalFile.exists()) {
+      return base;
+    }
+    Long snapshotId = IndexedProjectDataFile.readSnapshotId(dataFile);
+    if (snapshotId == null || !snapshotId.equals(readSnapshotId(journalFile))) {
+      logger.info("Deleting stale project data journal " + journalFile);
+      Files.deleteIfExists(journalFile.toPath());
+      return base;
+    }
+    List<ProjectData.BlazeProjectDataDelta> deltas = new ArrayList<>();
+    long validLength = Long.BYTES;
+    try (CountingInputStream in =
+        new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+      ByteStreams.skipFully(in, Long.BYTES);
+      while (true) {
+        ProjectData.BlazeProjectDataDelta delta =
+            ProjectData.BlazeProjectDataDelta.parseDelimitedFrom(in);
+        if (delta == null) {
+          break;
+        }
+        deltas.add(delta);
+        validLength = in.getCount();
+      }
+    } catch (IOException e) {
+      // a partially-written final entry; everything before it is still valid
+      logger.warn("Dropping truncated project data journal entry from " + journalFile, e);
+      try (FileChannel channel =
+          FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(validLength);
+      }
+    }
+    return deltas.isEmpty() ? base : apply(buildSystemName, base, deltas);
+  }
+
+  /** Returns the snapshot ID of the data file the journal applies to, or null if unreadable. */
+  @Nullable
+  private static Long readSnapshotId(File journalFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(journalFile))) {
+      return in.readLong();
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the changes between {@code previous} and {@code current}, or null if a full save would
+   * be more efficient. Header sections are only included if they changed.
+   *
+   * <p>Only the targets which the sync recorded as changed are compared (see {@link
+   * TargetMap#derivedFrom}), so the targets of neither project data are decoded in full. If the
+   * changes aren't known, a full save is required.
+   */
+  @VisibleForTesting
+  @Nullable
+  static ProjectData.BlazeProjectDataDelta diff(
+      BlazeProjectData previous, BlazeProjectData current) {
+    BlazeIdeInterfaceState state = current.getTargetData().ideInterfaceState;
+    BlazeIdeInterfaceState previousState = previous.getTargetData().ideInterfaceState;
+    if ((state == null) != (previousState == null)) {
+      return null;
+    }
+    TargetMap targets = current.getTargetMap();
+    TargetMap previousTargets = previous.getTargetMap();
+    ImmutableSet<TargetKey> changedKeys = targets.getChangedKeys(previousTargets);
+    if (changedKeys == null) {
+      return null;
+    }
+    long maxChangedTargets = Math.round(targets.size() * MAX_CHANGED_TARGET_FRACTION);
+
+    ProjectData.BlazeProjectDataDelta.Builder delta =
+        ProjectData.BlazeProjectDataDelta.newBuilder()
+            .setRemoteOutputs(
+                current.getRemoteOutputs().diff(previous.getTargetData().remoteOutputs));
+    ProjectData.BlazeProjectData header = diffHeader(previous, current);
+    if (!header.equals(ProjectData.BlazeProjectData.getDefaultInstance())) {
+      delta.setHeader(header);
+    }
+    if (state != null) {
+      delta.setIdeInterfaceState(state.diff(previousState));
+    }
+    for (TargetKey key : changedKeys) {
+      TargetIdeInfo target = targets.get(key);
+      if (target != null) {
+        if (delta.getUpdatedTargetsCount() >= maxChangedTargets) {
+          return null;
+        }
+        delta.addUpdatedTargets(target.toProto());
+      } else if (previousTargets.contains(key)) {
+        delta.addRemovedTargets(key.toProto());
+      }
+    }
+    return delta.build();
+  }
+
+  /** Returns a header containing only the sections which differ between the two. */
+  private static ProjectData.BlazeProjectData diffHeader(
+      BlazeProjectData previous, BlazeProjectData current) {
+    ProjectData.BlazeProjectData.Builder header = ProjectData.BlazeProjectData.newBuilder();
+    setIfChanged(
+        header::setBlazeInfo, previous.getBlazeInfo().toProto(), current.getBlazeInfo().toProto());
+    setIfChanged(
+        header::setBlazeVersionData,
+        previous.getBlazeVersionData().toProto(),
+        current.getBlazeVersionData().toProto());
+    setIfChanged(
+        header::setWorkspacePathResolver,
+        previous.getWorkspacePathResolver().toProto(),
+        current.getWorkspacePathResolver().toProto());
+    setIfChanged(
+        header::setWorkspaceLanguageSettings,
+        previous.getWorkspaceLanguageSettings().toProto(),
+        current.getWorkspaceLanguageSettings().toProto());
+    setIfChanged(
+        header::setSyncState, previous.getSyncState().toProto(), current.getSyncState().toProto());
+    return header.build();
+  }
+
+  private static <P extends Message> void setIfChanged(Consumer<P> setter, P previous, P current) {
+    if (!current.equals(previous)) {
+      setter.accept(current);
+    }
+  }
+
+  private static BlazeProjectData apply(
+      BuildSystemName buildSystemName,
+      BlazeProjectData base,
+      List<ProjectData.BlazeProjectDataDelta> deltas) {
+    Map<TargetKey, IntellijIdeInfo.TargetIdeInfo> updated = new HashMap<>();
+    Set<TargetKey> removed = new HashSet<>();
+    BlazeIdeInterfaceState state = base.getTargetData().ideInterfaceState;
+    RemoteOutputArtifacts remoteOutputs = base.getRemoteOutputs();
+    ProjectData.BlazeProjectData.Builder header =
+        base.toProto(ProjectData.TargetData.getDefaultInstance()).toBuilder();
+    for (ProjectData.BlazeProjectDataDelta delta : deltas) {
+      mergeHeader(header, delta.getHeader());
+      for (IntellijIdeInfo.TargetIdeInfo target : delta.getUpdatedTargetsList()) {
+        TargetKey key = TargetKey.fromProto(target.getKey());
+        // targets of an unrecognized kind are dropped on decoding
+        if (Kind.fromProto(target) != null) {
+          removed.remove(key);
+          updated.put(key, target);
+        } else {
+          updated.remove(key);
+          removed.add(key);
+        }
+      }
+      for (IntellijIdeInfo.TargetKey proto : delta.getRemovedTargetsList()) {
+        TargetKey key = TargetKey.fromProto(proto);
+        updated.remove(key);
+        removed.add(key);
+      }
+      if (state != null && delta.hasIdeInterfaceState()) {
+        state = state.applyDelta(delta.getIdeInterfaceState());
+      }
+      remoteOutputs = remoteOutputs.applyDelta(delta.getRemoteOutputs());
+    }
+    TargetMap targetMap =
+        TargetMap.lazy(new JournaledTargets(base.getTargetMap(), updated, removed));
+    return BlazeProjectData.fromProto(
+        buildSystemName, header.build(), new ProjectTargetData(targetMap, state, remoteOutputs));
+  }
+
+  /** Overwrites the sections of {@code header} which are present in {@code changed}. */
+  private static void mergeHeader(
+      ProjectData.BlazeProjectData.Builder header, ProjectData.BlazeProjectData changed) {
+    if (changed.hasBlazeInfo()) {
+      header.setBlazeInfo(changed.getBlazeInfo());
+    }
+    if (changed.hasBlazeVersionData()) {
+      header.setBlazeVersionData(changed.getBlazeVersionData());
+    }
+    if (changed.hasWorkspacePathResolver()) {
+      header.setWorkspacePathResolver(changed.getWorkspacePathResolver());
+    }
+    if (changed.hasWorkspaceLanguageSettings()) {
+      header.setWorkspaceLanguageSettings(changed.getWorkspaceLanguageSettings());
+    }
+    if (changed.hasSyncState()) {
+      header.setSyncState(changed.getSyncState());
+    }
+  }
+
+  /** Targets from the journal, layered over those from the project data file. */
+  private static final class JournaledTargets implements TargetMap.LazyTargets {
+    private final TargetMap base;
+    private final Map<TargetKey, IntellijIdeInfo.TargetIdeInfo> updated;
+    private final Set<TargetKey> removed;
+    private final Map<TargetKey, TargetIdeInfo> decoded = new ConcurrentHashMap<>();
+    @Nullable private volatile ImmutableSet<TargetKey> keys;
+
+    JournaledTargets(
+        TargetMap base,
+        Map<TargetKey, IntellijIdeInfo.TargetIdeInfo> updated,
+        Set<TargetKey> removed) {
+      this.base = base;
+      this.updated = updated;
+      this.removed = removed;
+    }
+
+    @Nullable
+    @Override
+    public TargetIdeInfo get(TargetKey key) {
+      if (removed.contains(key)) {
+        return null;
+      }
+      IntellijIdeInfo.TargetIdeInfo proto = updated.get(key);
+      return proto != null ? decode(key, proto) : base.get(key);
+    }
+
+    @Override
+    public boolean contains(TargetKey key) {
+      return !removed.contains(key) && (updated.containsKey(key) || base.contains(key));
+    }
+
+    @Override
+    public ImmutableSet<TargetKey> keys() {
+      ImmutableSet<TargetKey> keys = this.keys;
+      if (keys == null) {
+        ImmutableSet.Builder<TargetKey> builder = ImmutableSet.builder();
+        for (TargetKey key : base.keySet()) {
+          if (!removed.contains(key)) {
+            builder.add(key);
+          }
+        }
+        keys = this.keys = builder.addAll(updated.keySet()).build();
+      }
+      return keys;
+    }
+
+    @Override
+    public ImmutableMap<TargetKey, TargetIdeInfo> getAll() {
+      ImmutableMap.Builder<TargetKey, TargetIdeInfo> targets = ImmutableMap.builder();
+      base.map().forEach(
+          (key, target) -> {
+            if (!removed.contains(key) && !updated.containsKey(key)) {
+              targets.put(key, target);
+            }
+          });
+      updated.forEach(
+          (key, proto) -> {
+            TargetIdeInfo target = decode(key, proto);
+            if (target != null) {
+              targets.put(key, target);
+            }
+          });
+      return targets.build();
+    }
+
+    @Nullable
+    private TargetIdeInfo decode(TargetKey key, IntellijIdeInfo.TargetIdeInfo proto) {
+      TargetIdeInfo target = decoded.get(key);
+      if (target != null) {
+        return target;
+      }
+      TargetIdeInfo newTarget = TargetIdeInfo.fromProto(proto);
+      return newTarget != null ? decoded.computeIfAbsent(key, k -> newTarget) : null;
+    }
+  }
+}
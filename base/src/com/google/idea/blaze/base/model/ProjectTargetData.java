@@ -45,7 +45,11 @@ public final class ProjectTargetData implements ProtoWrapper<ProjectData.TargetD
   }
 
   public static ProjectTargetData fromProto(ProjectData.TargetData proto) {
-    TargetMap targetMap = TargetMap.fromProto(proto.getTargetMap());
+    return fromProto(proto, TargetMap.fromProto(proto.getTargetMap()));
+  }
+
+  /** Parses everything except the target map, which is provided separately. */
+  static ProjectTargetData fromProto(ProjectData.TargetData proto, TargetMap targetMap) {
     BlazeIdeInterfaceState ideInterfaceState =
         proto.hasIdeInterfaceState()
             ? BlazeIdeInterfaceState.fromProto(proto.getIdeInterfaceState())
@@ -56,12 +60,19 @@ public final class ProjectTargetData implements ProtoWrapper<ProjectData.TargetD
 
   @Override
   public TargetData toProto() {
+    return toProtoBuilderWithoutTargetMap().setTargetMap(targetMap.toProto()).build();
+  }
+
+  /** Returns the proto form of everything except the target map, which is stored separately. */
+  TargetData toProtoWithoutTargetMap() {
+    return toProtoBuilderWithoutTargetMap().build();
+  }
+
+  private TargetData.Builder toProtoBuilderWithoutTargetMap() {
     ProjectData.TargetData.Builder builder =
-        ProjectData.TargetData.newBuilder()
-            .setTargetMap(targetMap.toProto())
-            .setRemoteOutputs(remoteOutputs.toProto());
+        ProjectData.TargetData.newBuilder().setRemoteOutputs(remoteOutputs.toProto());
     ProtoWrapper.unwrapAndSetIfNotNull(builder::setIdeInterfaceState, ideInterfaceState);
-    return builder.build();
+    return builder;
   }
 
   /**
@@ -78,6 +78,42 @@ public final class RemoteOutputArtifacts
     return new RemoteOutputArtifacts(map.build());
   }
 
+  /** Returns the changes which turn {@code previous} into this set of outputs. */
+  public ProjectData.RemoteOutputArtifactsDelta diff(RemoteOutputArtifacts previous) {
+    ProjectData.RemoteOutputArtifactsDelta.Builder delta =
+        ProjectData.RemoteOutputArtifactsDelta.newBuilder();
+    if (previous == this) {
+      return delta.build();
+    }
+    remoteOutputArtifacts.forEach(
+        (path, artifact) -> {
+          RemoteOutputArtifact old = previous.remoteOutputArtifacts.get(path);
+          // outputs carried over from the previous sync are the same instances
+          if (old == artifact) {
+            return;
+          }
+          ProjectData.OutputArtifact proto = artifact.toProto();
+          if (old == null || !proto.equals(old.toProto())) {
+            delta.addUpdatedArtifacts(proto);
+          }
+        });
+    previous.remoteOutputArtifacts.keySet().stream()
+        .filter(path -> !remoteOutputArtifacts.containsKey(path))
+        .forEach(delta::addRemovedArtifacts);
+    return delta.build();
+  }
+
+  /** Returns a new set of outputs with the given changes applied. */
+  public RemoteOutputArtifacts applyDelta(ProjectData.RemoteOutputArtifactsDelta delta) {
+    HashMap<String, RemoteOutputArtifact> map = new HashMap<>(remoteOutputArtifacts);
+    delta.getRemovedArtifactsList().forEach(map::remove);
+    delta.getUpdatedArtifactsList().stream()
+        .map(RemoteOutputArtifact::fromProto)
+        .filter(Objects::nonNull)
+        .forEach(a -> map.put(a.getRelativePath(), a));
+    return new RemoteOutputArtifacts(ImmutableMap.copyOf(map));
+  }
+
   /**
    * Merges this set of outputs with another set, returning a new {@link RemoteOutputArtifacts}
    * instance.
@@ -104,8 +104,8 @@ public class PendingWebTestContext extends TestContext implements PendingRunConf
       return ImmutableList.of();
     }
     TargetMap targetMap = projectData.getTargetMap();
-    return ReverseDependencyMap.get(project)
-        .get(TargetKey.forPlainTarget(wrappedTest.label))
+    return ReverseDependencyMap.getReverseDependencies(
+            project, TargetKey.forPlainTarget(wrappedTest.label))
         .stream()
         .map(targetMap::get)
         .filter(Objects::nonNull)
@@ -15,24 +15,20 @@
  */
 package com.google.idea.blaze.base.run.testmap;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
-import com.google.idea.blaze.base.model.BlazeProjectData;
-import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
-import com.google.idea.blaze.base.targetmaps.ReverseDependencyMap;
+import com.google.idea.blaze.base.targetmaps.DependencyGraphIndex;
+import com.google.idea.blaze.base.targetmaps.SourceToTargetIndex;
+import com.google.idea.blaze.base.targetmaps.TransitiveDependencyMap;
 import com.intellij.openapi.project.Project;
 import java.io.File;
 import java.util.Collection;
-import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -41,7 +37,7 @@ import java.util.function.Predicate;
 public class FilteredTargetMap {
 
   private final Project project;
-  private final Multimap<File, TargetKey> rootsMap;
+  private final SourceToTargetIndex sourceIndex;
   private final TargetMap targetMap;
   private final Predicate<TargetIdeInfo> filter;
 
@@ -51,7 +47,7 @@ public class FilteredTargetMap {
       TargetMap targetMap,
       Predicate<TargetIdeInfo> filter) {
     this.project = project;
-    this.rootsMap = createRootsMap(decoder, targetMap.targets());
+    this.sourceIndex = SourceToTargetIndex.get(project, decoder, targetMap);
     this.targetMap = targetMap;
     this.filter = filter;
   }
@@ -61,20 +57,19 @@ public class FilteredTargetMap {
   }
 
   public ImmutableSet<TargetIdeInfo> targetsForSourceFiles(Collection<File> sourceFiles) {
-    BlazeProjectData blazeProjectData =
-        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
-    if (blazeProjectData != null) {
-      return targetsForSourceFilesImpl(ReverseDependencyMap.get(project), sourceFiles);
+    DependencyGraphIndex index = TransitiveDependencyMap.getInstance(project).getGraphIndex();
+    if (index != null) {
+      return targetsForSourceFilesImpl(index, sourceFiles);
     }
     return ImmutableSet.of();
   }
 
   private ImmutableSet<TargetIdeInfo> targetsForSourceFilesImpl(
-      ImmutableMultimap<TargetKey, TargetKey> rdepsMap, Collection<File> sourceFiles) {
+      DependencyGraphIndex index, Collection<File> sourceFiles) {
     ImmutableSet.Builder<TargetIdeInfo> result = ImmutableSet.builder();
     Set<TargetKey> roots =
         sourceFiles.stream()
-            .flatMap(f -> rootsMap.get(f).stream())
+            .flatMap(f -> sourceIndex.getTargets(f).stream())
             .collect(ImmutableSet.toImmutableSet());
 
     Queue<TargetKey> todo = Queues.newArrayDeque();
@@ -90,20 +85,8 @@ public class FilteredTargetMap {
       if (filter.test(target)) {
         result.add(target);
       }
-      todo.addAll(rdepsMap.get(targetKey));
+      todo.addAll(index.getReverseDependencies(targetKey));
     }
     return result.build();
   }
-
-  private static Multimap<File, TargetKey> createRootsMap(
-      ArtifactLocationDecoder decoder, Collection<TargetIdeInfo> targets) {
-    Multimap<File, TargetKey> result = ArrayListMultimap.create();
-    for (TargetIdeInfo target : targets) {
-      target.getSources().stream()
-          .map(decoder::resolveSource)
-          .filter(Objects::nonNull)
-          .forEach(f -> result.put(f, target.getKey()));
-    }
-    return result;
-  }
 }
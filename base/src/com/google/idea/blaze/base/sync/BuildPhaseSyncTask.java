@@ -19,6 +19,7 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.idea.blaze.base.bazel.BuildSystem;
@@ -31,6 +32,7 @@ import com.google.idea.blaze.base.dependencies.TargetInfo;
 import com.google.idea.blaze.base.io.FileOperationProvider;
 import com.google.idea.blaze.base.logging.utils.BuildPhaseSyncStats;
 import com.google.idea.blaze.base.logging.utils.ShardStats.ShardingApproach;
+import com.google.idea.blaze.base.model.primitives.Label;
 import com.google.idea.blaze.base.model.primitives.TargetExpression;
 import com.google.idea.blaze.base.model.primitives.WorkspacePath;
 import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
@@ -66,8 +68,10 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.text.StringUtil;
 import java.io.File;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 
 /** Runs the 'blaze build' phase of sync. */
 final class BuildPhaseSyncTask {
@@ -198,6 +202,11 @@ final class BuildPhaseSyncTask {
       throw new SyncFailedException();
     }
     ShardedTargetList shardedTargets = shardedTargetsResult.shardedTargets;
+    WorkingSet workingSet = projectState.getWorkingSet();
+    if (workingSet != null) {
+      // build the targets the user is working on first
+      shardedTargets = shardedTargets.withPriorityTargets(isInWorkingSetPackage(workingSet));
+    }
 
     boolean parallel;
     SyncStrategy strategy = buildSystem.getSyncStrategy(project);
@@ -309,6 +318,28 @@ final class BuildPhaseSyncTask {
         .build();
   }
 
+  /**
+   * Returns a predicate matching targets in packages containing a file in the working set. Targets
+   * in the workspace root package aren't matched, since it contains every file.
+   */
+  private static Predicate<TargetExpression> isInWorkingSetPackage(WorkingSet workingSet) {
+    Set<String> directories = new HashSet<>();
+    Iterable<WorkspacePath> files =
+        Iterables.concat(workingSet.addedFiles, workingSet.modifiedFiles, workingSet.deletedFiles);
+    for (WorkspacePath file : files) {
+      for (WorkspacePath directory = file.getParent();
+          directory != null && !directory.isWorkspaceRoot();
+          directory = directory.getParent()) {
+        if (!directories.add(directory.relativePath())) {
+          break;
+        }
+      }
+    }
+    return target ->
+        target instanceof Label
+            && directories.contains(((Label) target).blazePackage().relativePath());
+  }
+
   private static final BoolExperiment queryWorkingSetTargets =
       new BoolExperiment("query.working.set.targets", true);
 
@@ -419,6 +450,7 @@ final class BuildPhaseSyncTask {
               invoker,
               projectViewSet,
               shardedTargets,
+              projectState.getWorkingSet(),
               projectState.getLanguageSettings(),
               ImmutableSet.of(OutputGroup.RESOLVE, OutputGroup.INFO),
               BlazeInvocationContext.SYNC_CONTEXT);
@@ -16,20 +16,43 @@
 package com.google.idea.blaze.base.sync;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.projectview.ProjectViewSet;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.settings.BlazeImportSettings;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
-/** Computes a cache on the project data. */
+/**
+ * Computes a cache on the project data.
+ *
+ * <p>Each key is computed at most once per sync generation, without blocking readers of other
+ * keys. The generation advances whenever a sync commits new project data. Values from earlier
+ * generations are only kept for keys read via {@link #getPossiblyStale}, which serves them while
+ * the new value is computed in the background; they're released once the new value is ready.
+ */
 public class SyncCache {
+  private static final Logger logger = Logger.getInstance(SyncCache.class);
+
   /** Computes a value based on the sync project data. */
   public interface SyncCacheComputable<T> {
     @Nullable
@@ -37,36 +60,245 @@ public class SyncCache {
   }
 
   private final Project project;
-  private final Map<Object, Object> cache = Maps.newHashMap();
+  private final Executor backgroundExecutor;
+  private final ConcurrentMap<Object, Entry> cache = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Object, Stats> stats = new ConcurrentHashMap<>();
+  /** Keys whose values may be served stale, and so are kept across generations. */
+  private final Set<Object> staleTolerantKeys = ConcurrentHashMap.newKeySet();
+  private final AtomicLong generation = new AtomicLong();
 
   public SyncCache(Project project) {
+    this(project, PooledThreadExecutor.INSTANCE);
+  }
+
+  @VisibleForTesting
+  public SyncCache(Project project, Executor backgroundExecutor) {
     this.project = project;
+    this.backgroundExecutor = backgroundExecutor;
   }
 
   public static SyncCache getInstance(Project project) {
     return ServiceManager.getService(project, SyncCache.class);
   }
 
-  /** Computes a value derived from the sync project data and caches it until the next sync. */
+  /**
+   * Computes a value derived from the sync project data and caches it until the next sync.
+   *
+   * <p>If another thread is already computing the value for this key, waits for its result rather
+   * than computing it again. If that computation is cancelled, computes the value itself.
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  public <T> T get(Object key, SyncCacheComputable<T> computable) {
+    while (true) {
+      Entry entry = getOrCreateEntry(key);
+      if (entry.claimComputation()) {
+        compute(key, entry, computable);
+        return (T) getResult(entry);
+      }
+      try {
+        T result = (T) getResult(entry);
+        statsFor(key).hits.increment();
+        return result;
+      } catch (ProcessCanceledException e) {
+        // another thread's computation was cancelled, and its entry reset; retry unless this
+        // thread has been cancelled too
+        ProgressManager.checkCanceled();
+      }
+    }
+  }
+
+  /**
+   * Like {@link #get}, but computes the value on a background thread if it isn't already cached
+   * for the current sync.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> ListenableFuture<T> getAsync(Object key, SyncCacheComputable<T> computable) {
+    Entry entry = getOrComputeInBackground(key, computable);
+    return (ListenableFuture<T>) Futures.nonCancellationPropagating(entry.future);
+  }
+
+  /**
+   * Returns the value for the current sync if it's available, and otherwise the value from an
+   * earlier sync (or null if there is none), without blocking. In the latter case the current value
+   * is computed in the background.
+   *
+   * <p>Only suitable for callers which can tolerate results that don't reflect the latest sync,
+   * e.g. code completion.
+   */
   @Nullable
   @SuppressWarnings("unchecked")
-  public synchronized <T> T get(Object key, SyncCacheComputable<T> computable) {
-    if (cache.containsKey(key)) {
-      return (T) cache.get(key);
+  public <T> T getPossiblyStale(Object key, SyncCacheComputable<T> computable) {
+    staleTolerantKeys.add(key);
+    Entry entry = getOrComputeInBackground(key, computable);
+    Entry previous = entry.previous;
+    if (!entry.hasValue() && previous != null) {
+      return (T) Futures.getUnchecked(previous.future);
     }
+    return entry.hasValue() ? (T) Futures.getUnchecked(entry.future) : null;
+  }
+
+  /** Returns hit, miss and compute-time statistics for each key, since the project was opened. */
+  public ImmutableMap<Object, CacheStats> getStats() {
+    ImmutableMap.Builder<Object, CacheStats> builder = ImmutableMap.builder();
+    stats.forEach((key, value) -> builder.put(key, value.snapshot()));
+    return builder.build();
+  }
+
+  @VisibleForTesting
+  public void clear() {
+    cache.clear();
+  }
+
+  /**
+   * Marks all cached values as stale. They'll be recomputed the next time they're requested. Only
+   * values which may be served stale are kept until then.
+   */
+  @VisibleForTesting
+  void invalidate() {
+    generation.incrementAndGet();
+    cache.keySet().retainAll(staleTolerantKeys);
+  }
+
+  /** Returns the entry for the current generation, creating it if necessary. */
+  private Entry getOrCreateEntry(Object key) {
+    long currentGeneration = generation.get();
+    Entry existing = cache.get(key);
+    if (existing == null || existing.generation != currentGeneration) {
+      existing =
+          cache.compute(
+              key,
+              (k, old) ->
+                  old != null && old.generation == currentGeneration
+                      ? old
+                      : new Entry(currentGeneration, lastComputed(old)));
+    }
+    return existing;
+  }
+
+  private Entry getOrComputeInBackground(Object key, SyncCacheComputable<?> computable) {
+    Entry entry = getOrCreateEntry(key);
+    if (entry.claimComputation()) {
+      backgroundExecutor.execute(() -> compute(key, entry, computable));
+    } else {
+      statsFor(key).hits.increment();
+    }
+    return entry;
+  }
+
+  private void compute(Object key, Entry entry, SyncCacheComputable<?> computable) {
     BlazeProjectData blazeProjectData =
         BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
     if (blazeProjectData == null) {
+      // not synced yet; don't cache anything
+      cache.remove(key, entry);
+      entry.set(null);
+      return;
+    }
+    Stats keyStats = statsFor(key);
+    keyStats.misses.increment();
+    long start = System.nanoTime();
+    try {
+      entry.set(computable.compute(project, blazeProjectData));
+      keyStats.recordCompute(System.nanoTime() - start, /* success= */ true);
+    } catch (ProcessCanceledException e) {
+      // not a result: leave the key uncomputed, keeping any stale value, and release waiters
+      cache.replace(key, entry, new Entry(entry.generation, entry.previous));
+      entry.setException(e);
+    } catch (RuntimeException | Error e) {
+      keyStats.recordCompute(System.nanoTime() - start, /* success= */ false);
+      // let the next caller retry
+      cache.remove(key, entry);
+      entry.setException(e);
+    }
+  }
+
+  @Nullable
+  private static Object getResult(Entry entry) {
+    try {
+      return Futures.getUnchecked(entry.future);
+    } catch (UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Nullable
+  private static Entry lastComputed(@Nullable Entry entry) {
+    if (entry == null) {
       return null;
     }
-    T value = computable.compute(project, blazeProjectData);
-    cache.put(key, value);
-    return value;
+    return entry.hasValue() ? entry : entry.previous;
   }
 
-  @VisibleForTesting
-  public synchronized void clear() {
-    cache.clear();
+  private Stats statsFor(Object key) {
+    return stats.computeIfAbsent(key, k -> new Stats());
+  }
+
+  /** The (possibly pending) value of a key for a single sync generation. */
+  private static final class Entry {
+    final long generation;
+    final SettableFuture<Object> future = SettableFuture.create();
+    private final AtomicLong computationClaimed = new AtomicLong();
+
+    /** The value from an earlier generation, if any. Dropped once this entry has a value. */
+    @Nullable volatile Entry previous;
+
+    Entry(long generation, @Nullable Entry previous) {
+      this.generation = generation;
+      this.previous = previous;
+    }
+
+    /** Returns true exactly once, for the thread which should compute this entry's value. */
+    boolean claimComputation() {
+      return computationClaimed.compareAndSet(0, 1);
+    }
+
+    boolean hasValue() {
+      if (!future.isDone()) {
+        return false;
+      }
+      try {
+        Futures.getDone(future);
+        return true;
+      } catch (Exception e) {
+        return false;
+      }
+    }
+
+    void set(@Nullable Object value) {
+      future.set(value);
+      previous = null;
+    }
+
+    void setException(Throwable t) {
+      future.setException(t);
+    }
+  }
+
+  private static final class Stats {
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder computeSuccesses = new LongAdder();
+    final LongAdder computeFailures = new LongAdder();
+    final LongAdder computeNanos = new LongAdder();
+
+    void recordCompute(long nanos, boolean success) {
+      computeNanos.add(nanos);
+      (success ? computeSuccesses : computeFailures).increment();
+    }
+
+    CacheStats snapshot() {
+      return new CacheStats(
+          hits.sum(),
+          misses.sum(),
+          computeSuccesses.sum(),
+          computeFailures.sum(),
+          computeNanos.sum(),
+          /* evictionCount= */ 0);
+    }
   }
 
   static class ClearSyncCache implements SyncListener {
@@ -81,7 +313,12 @@ public class SyncCache {
         SyncMode syncMode,
         SyncResult syncResult) {
       SyncCache syncCache = getInstance(project);
-      syncCache.clear();
+      if (logger.isDebugEnabled()) {
+        syncCache
+            .getStats()
+            .forEach((key, stats) -> logger.debug("SyncCache " + key + ": " + stats));
+      }
+      syncCache.invalidate();
     }
   }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.blaze.base.async.FutureUtil;
+import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.scope.scopes.TimingScope.EventType;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches and parses aspect output files in fixed-size batches, keeping a bounded number of
+ * batches in flight. Fetching of later batches overlaps with parsing of earlier ones, and parsed
+ * batches are handed to the consumer in input order, so merge results are the same as for a single
+ * batch.
+ */
+final class AspectOutputIngestionPipeline<T> {
+
+  /** Makes a batch of aspect output files available for reading. */
+  interface Fetcher {
+    ListenableFuture<?> fetch(List<OutputArtifact> batch);
+  }
+
+  /** Parses a single, already-fetched aspect output file. */
+  interface Parser<T> {
+    T parse(OutputArtifact file) throws Exception;
+  }
+
+  /** Receives parsed batches, in input order, on the calling thread. */
+  interface Consumer<T> {
+    void accept(List<T> batch);
+  }
+
+  /** The futures tracking each stage of a single batch. */
+  private static class Batch<T> {
+    final ListenableFuture<?> remoteFetch;
+    final ListenableFuture<?> localFetch;
+    final ListenableFuture<List<T>> parsed;
+
+    Batch(
+        ListenableFuture<?> remoteFetch,
+        ListenableFuture<?> localFetch,
+        ListenableFuture<List<T>> parsed) {
+      this.remoteFetch = remoteFetch;
+      this.localFetch = localFetch;
+      this.parsed = parsed;
+    }
+  }
+
+  private final ListeningExecutorService executor;
+  private final Fetcher remoteFetcher;
+  private final Fetcher localFetcher;
+  private final Parser<T> parser;
+  private final int batchSize;
+  private final int maxBatchesInFlight;
+
+  private final AtomicLong filesFetched = new AtomicLong();
+  private final AtomicLong fetchNanos = new AtomicLong();
+  private final AtomicLong filesParsed = new AtomicLong();
+  private final AtomicLong parseNanos = new AtomicLong();
+  private long mergeNanos;
+  private long wallNanos;
+
+  AspectOutputIngestionPipeline(
+      ListeningExecutorService executor,
+      Fetcher remoteFetcher,
+      Fetcher localFetcher,
+      Parser<T> parser,
+      int batchSize,
+      int maxBatchesInFlight) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Preconditions.checkArgument(maxBatchesInFlight > 0, "maxBatchesInFlight must be positive");
+    this.executor = executor;
+    this.remoteFetcher = remoteFetcher;
+    this.localFetcher = localFetcher;
+    this.parser = parser;
+    this.batchSize = batchSize;
+    this.maxBatchesInFlight = maxBatchesInFlight;
+  }
+
+  /**
+   * Runs the pipeline over the given files, blocking until every batch has been handed to the
+   * consumer.
+   *
+   * <p>Returns false if fetching or parsing failed (in which case the error is reported to the
+   * context) or the context was cancelled. Any batches still in flight are then cancelled.
+   */
+  boolean run(BlazeContext context, List<OutputArtifact> files, Consumer<T> consumer) {
+    long start = System.nanoTime();
+    ConcurrentLinkedDeque<Batch<T>> inFlight = new ConcurrentLinkedDeque<>();
+    context.addCancellationHandler(() -> cancel(inFlight));
+    Iterator<List<OutputArtifact>> batches = Lists.partition(files, batchSize).iterator();
+    try {
+      while (batches.hasNext() || !inFlight.isEmpty()) {
+        while (batches.hasNext() && inFlight.size() < maxBatchesInFlight) {
+          inFlight.add(startBatch(batches.next()));
+        }
+        if (context.isCancelled()) {
+          return false;
+        }
+        Batch<T> batch = inFlight.element();
+        if (!waitForFetch(context, batch.remoteFetch, "PrefetchRemoteAspectOutput")
+            || !waitForFetch(context, batch.localFetch, "FetchAspectOutput")) {
+          return false;
+        }
+        FutureUtil.FutureResult<List<T>> parsed =
+            FutureUtil.waitForFuture(context, ignoringCancellation(batch.parsed))
+                .onError("Failed to parse aspect output files")
+                .run();
+        if (!parsed.success() || context.isCancelled()) {
+          return false;
+        }
+        inFlight.remove();
+        long mergeStart = System.nanoTime();
+        consumer.accept(parsed.result());
+        mergeNanos += System.nanoTime() - mergeStart;
+      }
+      return true;
+    } finally {
+      cancel(inFlight);
+      wallNanos = System.nanoTime() - start;
+    }
+  }
+
+  private static boolean waitForFetch(
+      BlazeContext context, ListenableFuture<?> future, String timingCategory) {
+    return FutureUtil.waitForFuture(context, ignoringCancellation(future))
+            .timed(timingCategory, EventType.Prefetching)
+            .withProgressMessage("Reading IDE info result...")
+            .onError("Failed to fetch aspect output files")
+            .run()
+            .success()
+        && !context.isCancelled();
+  }
+
+  /**
+   * Batches are only cancelled along with the context, which is checked after waiting, so there's
+   * no need for the wait itself to fail.
+   */
+  private static <V> ListenableFuture<V> ignoringCancellation(ListenableFuture<V> future) {
+    return Futures.catching(
+        future, CancellationException.class, e -> null, MoreExecutors.directExecutor());
+  }
+
+  private static void cancel(Iterable<? extends Batch<?>> batches) {
+    // cancellation propagates to the fetch stages each batch was transformed from
+    batches.forEach(b -> b.parsed.cancel(true));
+  }
+
+  private Batch<T> startBatch(List<OutputArtifact> batch) {
+    long start = System.nanoTime();
+    ListenableFuture<?> remoteFetch = remoteFetcher.fetch(batch);
+    ListenableFuture<?> localFetch =
+        Futures.transformAsync(
+            remoteFetch, unused -> localFetcher.fetch(batch), MoreExecutors.directExecutor());
+    ListenableFuture<List<T>> parsed =
+        Futures.transformAsync(
+            localFetch,
+            unused -> {
+              fetchNanos.addAndGet(System.nanoTime() - start);
+              filesFetched.addAndGet(batch.size());
+              ImmutableList.Builder<ListenableFuture<T>> parsedFiles = ImmutableList.builder();
+              for (OutputArtifact file : batch) {
+                parsedFiles.add(executor.submit(() -> parse(file)));
+              }
+              return Futures.allAsList(parsedFiles.build());
+            },
+            MoreExecutors.directExecutor());
+    return new Batch<>(remoteFetch, localFetch, parsed);
+  }
+
+  private T parse(OutputArtifact file) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return parser.parse(file);
+    } finally {
+      parseNanos.addAndGet(System.nanoTime() - start);
+      filesParsed.incrementAndGet();
+    }
+  }
+
+  /** A one-line summary of per-stage throughput, suitable for the sync log. */
+  String getStatsSummary() {
+    return String.format(
+        "Aspect output ingestion: %s; %s; merge %dms; total %dms",
+        stageSummary("fetch", filesFetched.get(), fetchNanos.get()),
+        stageSummary("parse", filesParsed.get(), parseNanos.get()),
+        TimeUnit.NANOSECONDS.toMillis(mergeNanos),
+        TimeUnit.NANOSECONDS.toMillis(wallNanos));
+  }
+
+  /**
+   * Stage times are summed over batches (fetch) or files (parse), so they can exceed the wall
+   * time when the stages overlap.
+   */
+  private static String stageSummary(String stage, long files, long nanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    long filesPerSecond = nanos > 0 ? files * TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    return String.format("%s %d files in %dms (%d files/s)", stage, files, millis, filesPerSecond);
+  }
+}
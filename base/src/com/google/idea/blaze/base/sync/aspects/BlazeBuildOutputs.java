@@ -20,10 +20,13 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.idea.blaze.base.command.buildresult.BepArtifactData;
 import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
 import com.google.idea.blaze.base.command.buildresult.ParsedBepOutput;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
@@ -36,6 +39,14 @@ public class BlazeBuildOutputs {
     return new BlazeBuildOutputs(buildResult, ImmutableMap.of(), ImmutableList.of(), 0L);
   }
 
+  static BlazeBuildOutputs create(
+      BuildResult buildResult,
+      Map<String, BepArtifactData> artifacts,
+      ImmutableList<String> buildIds,
+      long bepBytesConsumed) {
+    return new BlazeBuildOutputs(buildResult, artifacts, buildIds, bepBytesConsumed);
+  }
+
   public static BlazeBuildOutputs fromParsedBepOutput(
       BuildResult result, ParsedBepOutput parsedOutput) {
     ImmutableList<String> id =
@@ -54,12 +65,31 @@ public class BlazeBuildOutputs {
   /** The artifacts transitively associated with each top-level target. */
   private final ImmutableSetMultimap<String, OutputArtifact> perTargetArtifacts;
 
+  /** The artifacts in {@link #artifacts} iteration order, indexed by {@link #perOutputGroup}. */
+  private final ImmutableList<OutputArtifact> artifactList;
+
+  /** The positions in {@link #artifactList} of the artifacts in each output group. */
+  private final ImmutableMap<String, BitSet> perOutputGroup;
+
+  /** The keys of aspect output files which were already fetched while building. */
+  final ImmutableSet<String> fetchedAspectOutputs;
+
   private BlazeBuildOutputs(
       BuildResult buildResult,
       Map<String, BepArtifactData> artifacts,
       ImmutableList<String> buildIds,
       long bepBytesConsumed) {
+    this(buildResult, artifacts, buildIds, bepBytesConsumed, ImmutableSet.of());
+  }
+
+  private BlazeBuildOutputs(
+      BuildResult buildResult,
+      Map<String, BepArtifactData> artifacts,
+      ImmutableList<String> buildIds,
+      long bepBytesConsumed,
+      ImmutableSet<String> fetchedAspectOutputs) {
     this.buildResult = buildResult;
+    this.fetchedAspectOutputs = fetchedAspectOutputs;
     this.artifacts = ImmutableMap.copyOf(artifacts);
     this.buildIds = buildIds;
     this.bepBytesConsumed = bepBytesConsumed;
@@ -67,15 +97,43 @@ public class BlazeBuildOutputs {
     ImmutableSetMultimap.Builder<String, OutputArtifact> perTarget = ImmutableSetMultimap.builder();
     artifacts.values().forEach(a -> a.topLevelTargets.forEach(t -> perTarget.put(t, a.artifact)));
     this.perTargetArtifacts = perTarget.build();
+
+    ImmutableList.Builder<OutputArtifact> artifactList = ImmutableList.builder();
+    Map<String, BitSet> perOutputGroup = new HashMap<>();
+    int index = 0;
+    for (BepArtifactData data : this.artifacts.values()) {
+      artifactList.add(data.artifact);
+      for (String outputGroup : data.outputGroups) {
+        perOutputGroup.computeIfAbsent(outputGroup, g -> new BitSet()).set(index);
+      }
+      index++;
+    }
+    this.artifactList = artifactList.build();
+    this.perOutputGroup = ImmutableMap.copyOf(perOutputGroup);
   }
 
   @VisibleForTesting
   public ImmutableList<OutputArtifact> getOutputGroupArtifacts(
       Predicate<String> outputGroupFilter) {
-    return artifacts.values().stream()
-        .filter(a -> a.outputGroups.stream().anyMatch(outputGroupFilter))
-        .map(a -> a.artifact)
-        .collect(toImmutableList());
+    BitSet matching = new BitSet();
+    perOutputGroup.forEach(
+        (outputGroup, indices) -> {
+          if (outputGroupFilter.test(outputGroup)) {
+            matching.or(indices);
+          }
+        });
+    return matching.stream().mapToObj(artifactList::get).collect(toImmutableList());
+  }
+
+  /** Returns the artifacts transitively associated with the given top-level target. */
+  public ImmutableSet<OutputArtifact> getTopLevelTargetArtifacts(String target) {
+    return perTargetArtifacts.get(target);
+  }
+
+  /** Returns a copy of these outputs, noting that the given aspect output files were fetched. */
+  BlazeBuildOutputs withFetchedAspectOutputs(ImmutableSet<String> fetchedAspectOutputs) {
+    return new BlazeBuildOutputs(
+        buildResult, artifacts, buildIds, bepBytesConsumed, fetchedAspectOutputs);
   }
 
   /** Merges this {@link BlazeBuildOutputs} with a newer set of outputs. */
@@ -29,6 +29,7 @@ import com.google.idea.blaze.base.sync.SyncProjectState;
 import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy.OutputGroup;
 import com.google.idea.blaze.base.sync.projectview.WorkspaceLanguageSettings;
 import com.google.idea.blaze.base.sync.sharding.ShardedTargetList;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.project.Project;
 import javax.annotation.Nullable;
@@ -58,6 +59,7 @@ public interface BlazeIdeInterface {
   /**
    * Invokes a blaze build for the given output groups.
    *
+   * @param workingSet the files changed relative to the VCS upstream, or null if unknown.
    * @param outputGroups Set of {@link OutputGroup} to be generated in the build.
    */
   BlazeBuildOutputs build(
@@ -68,6 +70,7 @@ public interface BlazeIdeInterface {
       BuildInvoker invoker,
       ProjectViewSet projectViewSet,
       ShardedTargetList shardedTargets,
+      @Nullable WorkingSet workingSet,
       WorkspaceLanguageSettings workspaceLanguageSettings,
       ImmutableSet<OutputGroup> outputGroups,
       BlazeInvocationContext blazeInvocationContext);
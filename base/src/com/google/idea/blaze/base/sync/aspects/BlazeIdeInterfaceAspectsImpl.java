@@ -30,6 +30,7 @@ import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
 import com.google.idea.blaze.base.async.FutureUtil;
 import com.google.idea.blaze.base.async.executor.BlazeExecutor;
@@ -43,6 +44,7 @@ import com.google.idea.blaze.base.command.buildresult.BlazeArtifact;
 import com.google.idea.blaze.base.command.buildresult.BlazeArtifact.LocalFileArtifact;
 import com.google.idea.blaze.base.command.buildresult.BuildResultHelper;
 import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
+import com.google.idea.blaze.base.command.buildresult.RemoteOutputArtifact;
 import com.google.idea.blaze.base.command.info.BlazeConfigurationHandler;
 import com.google.idea.blaze.base.console.BlazeConsoleExperimentManager;
 import com.google.idea.blaze.base.filecache.ArtifactState;
@@ -87,13 +89,17 @@ import com.google.idea.blaze.base.sync.SyncProjectState;
 import com.google.idea.blaze.base.sync.aspects.BuildResult.Status;
 import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy;
 import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy.OutputGroup;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
 import com.google.idea.blaze.base.sync.projectview.ImportRoots;
 import com.google.idea.blaze.base.sync.projectview.LanguageSupport;
 import com.google.idea.blaze.base.sync.projectview.WorkspaceLanguageSettings;
 import com.google.idea.blaze.base.sync.sharding.ShardedBuildProgressTracker;
 import com.google.idea.blaze.base.sync.sharding.ShardedTargetList;
+import com.google.idea.blaze.base.sync.sharding.TargetBuildCostHistory;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
 import com.google.idea.blaze.base.toolwindow.Task;
 import com.google.idea.common.experiments.BoolExperiment;
+import com.google.idea.common.experiments.IntExperiment;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
@@ -105,6 +111,7 @@ import java.io.File;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -113,8 +120,11 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import javax.annotation.Nullable;
@@ -128,6 +138,38 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
   private static final BoolExperiment noFakeStampExperiment =
       new BoolExperiment("blaze.sync.nofake.stamp.data", true);
 
+  /**
+   * If enabled, aspect output files are fetched and parsed in bounded batches, so that fetching
+   * overlaps with parsing, rather than fetching everything up front.
+   */
+  private static final BoolExperiment pipelinedIngestionExperiment =
+      new BoolExperiment("blaze.sync.pipelined.aspect.ingestion", true);
+
+  private static final IntExperiment pipelinedIngestionBatchSize =
+      new IntExperiment("blaze.sync.pipelined.aspect.ingestion.batch.size", 500);
+
+  private static final IntExperiment pipelinedIngestionMaxBatchesInFlight =
+      new IntExperiment("blaze.sync.pipelined.aspect.ingestion.max.batches.in.flight", 4);
+
+  /**
+   * If enabled, the outputs of each successfully built sync shard are kept until the whole build
+   * completes, so a sync which is cancelled or fails part way through can resume without rebuilding
+   * them.
+   */
+  private static final BoolExperiment resumeShardsExperiment =
+      new BoolExperiment("blaze.sync.resume.interrupted.shards", true);
+
+  /** Stored shard outputs older than this are rebuilt rather than reused. */
+  private static final IntExperiment resumeShardsMaxAgeMinutes =
+      new IntExperiment("blaze.sync.resume.interrupted.shards.max.age.minutes", 60);
+
+  /**
+   * If enabled, the changed aspect output files of each sync shard are fetched as soon as the shard
+   * is built, while the remaining shards build.
+   */
+  private static final BoolExperiment earlyAspectOutputFetchExperiment =
+      new BoolExperiment("blaze.sync.fetch.aspect.outputs.per.shard", true);
+
   @Override
   @Nullable
   public ProjectTargetData updateTargetData(
@@ -191,15 +233,7 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
     BlazeIdeInterfaceState prevState =
         oldProjectData != null ? oldProjectData.getTargetData().ideInterfaceState : null;
 
-    Predicate<String> ideInfoPredicate = AspectStrategy.ASPECT_OUTPUT_FILE_PREDICATE;
-    Collection<OutputArtifact> files =
-        buildResult
-            .getBuildResult()
-            .getOutputGroupArtifacts(group -> group.startsWith(OutputGroup.INFO.prefix))
-            .stream()
-            .filter(f -> ideInfoPredicate.test(f.getKey()))
-            .distinct()
-            .collect(toImmutableList());
+    Collection<OutputArtifact> files = getAspectOutputs(buildResult.getBuildResult());
 
     ArtifactsDiff diff;
     try {
@@ -222,36 +256,19 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                 "Total rules: %d, new/changed: %d, removed: %d",
                 targetCount, diff.getUpdatedOutputs().size(), removedCount)));
 
-    ListenableFuture<?> downloadArtifactsFuture =
-        RemoteArtifactPrefetcher.getInstance()
-            .downloadArtifacts(
-                /* projectName= */ project.getName(),
-                /* outputArtifacts= */ BlazeArtifact.getRemoteArtifacts(diff.getUpdatedOutputs()));
-    ListenableFuture<?> loadFilesInJvmFuture =
-        RemoteArtifactPrefetcher.getInstance()
-            .loadFilesInJvm(
-                /* outputArtifacts= */ BlazeArtifact.getRemoteArtifacts(diff.getUpdatedOutputs()));
-
-    if (!FutureUtil.waitForFuture(
-            context, Futures.allAsList(downloadArtifactsFuture, loadFilesInJvmFuture))
-        .timed("PrefetchRemoteAspectOutput", EventType.Prefetching)
-        .withProgressMessage("Reading IDE info result...")
-        .run()
-        .success()) {
-      return null;
-    }
-
-    ListenableFuture<?> fetchLocalFilesFuture =
-        PrefetchService.getInstance()
-            .prefetchFiles(
-                /* files= */ BlazeArtifact.getLocalFiles(diff.getUpdatedOutputs()),
-                /* refetchCachedFiles= */ true,
-                /* fetchFileTypes= */ false);
-    if (!FutureUtil.waitForFuture(context, fetchLocalFilesFuture)
-        .timed("FetchAspectOutput", EventType.Prefetching)
-        .withProgressMessage("Reading IDE info result...")
-        .run()
-        .success()) {
+    // skip the aspect output files which were already fetched while building
+    ImmutableSet<String> fetchedOutputs = buildResult.getBuildResult().fetchedAspectOutputs;
+    Function<List<OutputArtifact>, List<OutputArtifact>> unfetched =
+        outputs ->
+            fetchedOutputs.isEmpty()
+                ? outputs
+                : outputs.stream()
+                    .filter(f -> !fetchedOutputs.contains(f.getKey()))
+                    .collect(toImmutableList());
+
+    boolean pipelined = pipelinedIngestionExperiment.getValue();
+    if (!pipelined
+        && !prefetchAspectOutputs(project, context, unfetched.apply(diff.getUpdatedOutputs()))) {
       return null;
     }
 
@@ -273,7 +290,9 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
             projectState.getLanguageSettings(),
             importRoots,
             mergeWithOldState,
-            oldTargetMap);
+            oldTargetMap,
+            pipelined,
+            unfetched);
     if (state == null) {
       return null;
     }
@@ -291,6 +310,80 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
     return state;
   }
 
+  /** Returns the distinct aspect output files in the INFO output groups. */
+  private static ImmutableList<OutputArtifact> getAspectOutputs(BlazeBuildOutputs outputs) {
+    Predicate<String> ideInfoPredicate = AspectStrategy.ASPECT_OUTPUT_FILE_PREDICATE;
+    return outputs.getOutputGroupArtifacts(group -> group.startsWith(OutputGroup.INFO.prefix))
+        .stream()
+        .filter(f -> ideInfoPredicate.test(f.getKey()))
+        .distinct()
+        .collect(toImmutableList());
+  }
+
+  /** Downloads and prefetches all updated aspect output files, blocking until complete. */
+  private static boolean prefetchAspectOutputs(
+      Project project, BlazeContext context, Collection<OutputArtifact> updatedOutputs) {
+    ListenableFuture<?> downloadArtifactsFuture =
+        RemoteArtifactPrefetcher.getInstance()
+            .downloadArtifacts(
+                /* projectName= */ project.getName(),
+                /* outputArtifacts= */ BlazeArtifact.getRemoteArtifacts(updatedOutputs));
+    ListenableFuture<?> loadFilesInJvmFuture =
+        RemoteArtifactPrefetcher.getInstance()
+            .loadFilesInJvm(
+                /* outputArtifacts= */ BlazeArtifact.getRemoteArtifacts(updatedOutputs));
+
+    if (!FutureUtil.waitForFuture(
+            context, Futures.allAsList(downloadArtifactsFuture, loadFilesInJvmFuture))
+        .timed("PrefetchRemoteAspectOutput", EventType.Prefetching)
+        .withProgressMessage("Reading IDE info result...")
+        .run()
+        .success()) {
+      return false;
+    }
+
+    ListenableFuture<?> fetchLocalFilesFuture =
+        PrefetchService.getInstance()
+            .prefetchFiles(
+                /* files= */ BlazeArtifact.getLocalFiles(updatedOutputs),
+                /* refetchCachedFiles= */ true,
+                /* fetchFileTypes= */ false);
+    if (!FutureUtil.waitForFuture(context, fetchLocalFilesFuture)
+        .timed("FetchAspectOutput", EventType.Prefetching)
+        .withProgressMessage("Reading IDE info result...")
+        .run()
+        .success()) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns a future which completes once the remote files in the given batch of aspect output
+   * files have been downloaded.
+   */
+  private static ListenableFuture<?> fetchRemoteAspectOutputs(
+      Project project, List<OutputArtifact> batch) {
+    ImmutableList<RemoteOutputArtifact> remoteOutputs = BlazeArtifact.getRemoteArtifacts(batch);
+    return Futures.allAsList(
+        RemoteArtifactPrefetcher.getInstance()
+            .downloadArtifacts(/* projectName= */ project.getName(), remoteOutputs),
+        RemoteArtifactPrefetcher.getInstance().loadFilesInJvm(remoteOutputs));
+  }
+
+  /**
+   * Returns a future which completes once the local files in the given batch of aspect output
+   * files have been prefetched.
+   */
+  private static ListenableFuture<?> fetchLocalAspectOutputs(List<OutputArtifact> batch) {
+    return PrefetchService.getInstance()
+        .prefetchFiles(
+            /* files= */ BlazeArtifact.getLocalFiles(batch),
+            /* refetchCachedFiles= */ true,
+            /* fetchFileTypes= */ false);
+  }
+
   @Nullable
   private static TargetMapAndInterfaceState updateState(
       Project project,
@@ -302,7 +395,9 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       WorkspaceLanguageSettings languageSettings,
       ImportRoots importRoots,
       boolean mergeWithOldState,
-      @Nullable TargetMap oldTargetMap) {
+      @Nullable TargetMap oldTargetMap,
+      boolean pipelined,
+      Function<List<OutputArtifact>, List<OutputArtifact>> unfetched) {
     AspectStrategy aspectStrategy = AspectStrategy.getInstance(versionData);
     Result<TargetMapAndInterfaceState> result =
         Scope.push(
@@ -326,7 +421,10 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
               state.ideInfoFileState = ImmutableMap.copyOf(nextFileState);
 
               Map<TargetKey, TargetIdeInfo> targetMap = Maps.newHashMap();
-              if (prevState != null && oldTargetMap != null) {
+              // the keys of targets added, changed or removed relative to the old target map
+              Set<TargetKey> changedKeys = new HashSet<>();
+              boolean derivedFromOldTargetMap = prevState != null && oldTargetMap != null;
+              if (derivedFromOldTargetMap) {
                 targetMap.putAll(oldTargetMap.map());
                 state.ideInfoToTargetKey.putAll(prevState.ideInfoFileToTargetKey);
               }
@@ -337,6 +435,7 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                   TargetKey key = state.ideInfoToTargetKey.remove(removed.getKey());
                   if (key != null) {
                     targetMap.remove(key);
+                    changedKeys.add(key);
                   }
                 }
               }
@@ -346,52 +445,73 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
 
               ListeningExecutorService executor = BlazeExecutor.getInstance().getExecutor();
 
-              // Read protos from any new files
-              List<ListenableFuture<TargetFilePair>> futures = Lists.newArrayList();
-              for (OutputArtifact file : fileState.getUpdatedOutputs()) {
-                futures.add(
-                    executor.submit(
-                        () -> {
-                          totalSizeLoaded.addAndGet(file.getLength());
-                          IntellijIdeInfo.TargetIdeInfo message =
-                              aspectStrategy.readAspectFile(file);
-                          TargetIdeInfo target =
-                              protoToTarget(
-                                  languageSettings,
-                                  importRoots,
-                                  message,
-                                  ignoredLanguages,
-                                  syncTime);
-                          return new TargetFilePair(file, target);
-                        }));
-              }
+              AspectOutputIngestionPipeline.Parser<TargetFilePair> parser =
+                  file -> {
+                    totalSizeLoaded.addAndGet(file.getLength());
+                    IntellijIdeInfo.TargetIdeInfo message = aspectStrategy.readAspectFile(file);
+                    TargetIdeInfo target =
+                        protoToTarget(
+                            languageSettings, importRoots, message, ignoredLanguages, syncTime);
+                    return new TargetFilePair(file, target);
+                  };
 
               Set<TargetKey> newTargets = new HashSet<>();
               Set<String> configurations = new LinkedHashSet<>();
               configurations.add(configHandler.defaultConfigurationPathComponent);
 
               // Update state with result from proto files
-              int duplicateTargetLabels = 0;
-              try {
-                for (TargetFilePair targetFilePair : Futures.allAsList(futures).get()) {
-                  if (targetFilePair.target != null) {
-                    OutputArtifact file = targetFilePair.file;
-                    String config = file.getConfigurationMnemonic();
-                    configurations.add(config);
-                    TargetKey key = targetFilePair.target.getKey();
-                    if (targetMap.putIfAbsent(key, targetFilePair.target) == null) {
-                      state.ideInfoToTargetKey.forcePut(file.getKey(), key);
-                    } else {
-                      if (!newTargets.add(key)) {
-                        duplicateTargetLabels++;
+              AtomicInteger duplicateTargetLabels = new AtomicInteger(0);
+              AspectOutputIngestionPipeline.Consumer<TargetFilePair> merger =
+                  targetFilePairs -> {
+                    for (TargetFilePair targetFilePair : targetFilePairs) {
+                      if (targetFilePair.target == null) {
+                        continue;
                       }
-                      // prioritize the default configuration over build order
-                      if (Objects.equals(config, configHandler.defaultConfigurationPathComponent)) {
-                        targetMap.put(key, targetFilePair.target);
+                      OutputArtifact file = targetFilePair.file;
+                      String config = file.getConfigurationMnemonic();
+                      configurations.add(config);
+                      TargetKey key = targetFilePair.target.getKey();
+                      if (targetMap.putIfAbsent(key, targetFilePair.target) == null) {
                         state.ideInfoToTargetKey.forcePut(file.getKey(), key);
+                        changedKeys.add(key);
+                      } else {
+                        if (!newTargets.add(key)) {
+                          duplicateTargetLabels.incrementAndGet();
+                        }
+                        // prioritize the default configuration over build order
+                        if (Objects.equals(
+                            config, configHandler.defaultConfigurationPathComponent)) {
+                          targetMap.put(key, targetFilePair.target);
+                          state.ideInfoToTargetKey.forcePut(file.getKey(), key);
+                          changedKeys.add(key);
+                        }
                       }
                     }
+                  };
+
+              // Read protos from any new files
+              try {
+                if (pipelined) {
+                  AspectOutputIngestionPipeline<TargetFilePair> pipeline =
+                      new AspectOutputIngestionPipeline<>(
+                          executor,
+                          batch -> fetchRemoteAspectOutputs(project, unfetched.apply(batch)),
+                          batch -> fetchLocalAspectOutputs(unfetched.apply(batch)),
+                          parser,
+                          pipelinedIngestionBatchSize.getValue(),
+                          pipelinedIngestionMaxBatchesInFlight.getValue());
+                  boolean success = pipeline.run(context, fileState.getUpdatedOutputs(), merger);
+                  context.output(PrintOutput.log(pipeline.getStatsSummary()));
+                  if (!success) {
+                    // failures have already been reported to the context
+                    return Result.error(null);
                   }
+                } else {
+                  List<ListenableFuture<TargetFilePair>> futures = Lists.newArrayList();
+                  for (OutputArtifact file : fileState.getUpdatedOutputs()) {
+                    futures.add(executor.submit(() -> parser.parse(file)));
+                  }
+                  merger.accept(Futures.allAsList(futures).get());
                 }
               } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -405,15 +525,15 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                       String.format(
                           "Loaded %d aspect files, total size %dkB",
                           fileState.getUpdatedOutputs().size(), totalSizeLoaded.get() / 1024)));
-              if (duplicateTargetLabels > 0) {
+              if (duplicateTargetLabels.get() > 0) {
                 context.output(
                     new PerformanceWarning(
                         String.format(
                             "There were %d duplicate rules, built with the following "
                                 + "configurations: %s.\nYour IDE sync is slowed down by ~%d%%.",
-                            duplicateTargetLabels,
+                            duplicateTargetLabels.get(),
                             configurations,
-                            (100 * duplicateTargetLabels / targetMap.size()))));
+                            (100 * duplicateTargetLabels.get() / targetMap.size()))));
               }
 
               // remove previously synced targets which are now unsupported
@@ -424,6 +544,7 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                         languageSettings, importRoots, target, ignoredLanguages)) {
                   state.ideInfoToTargetKey.inverse().remove(key);
                   targetMap.remove(key);
+                  changedKeys.add(key);
                 }
               }
 
@@ -432,7 +553,11 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                 TargetKey targetKey = state.ideInfoToTargetKey.get(artifactKey);
                 TargetIdeInfo target = targetKey != null ? targetMap.get(targetKey) : null;
                 if (target != null) {
-                  targetMap.put(targetKey, target.updateSyncTime(syncTime));
+                  TargetIdeInfo updated = target.updateSyncTime(syncTime);
+                  if (updated != target) {
+                    targetMap.put(targetKey, updated);
+                    changedKeys.add(targetKey);
+                  }
                 }
               }
 
@@ -441,9 +566,14 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                       languageSettings.getWorkspaceType()));
               warnIgnoredLanguages(project, context, ignoredLanguages);
 
-              return Result.of(
-                  new TargetMapAndInterfaceState(
-                      new TargetMap(ImmutableMap.copyOf(targetMap)), state.build()));
+              TargetMap newTargetMap =
+                  derivedFromOldTargetMap
+                      ? TargetMap.derivedFrom(
+                          oldTargetMap,
+                          ImmutableMap.copyOf(targetMap),
+                          ImmutableSet.copyOf(changedKeys))
+                      : new TargetMap(ImmutableMap.copyOf(targetMap));
+              return Result.of(new TargetMapAndInterfaceState(newTargetMap, state.build()));
             });
 
     if (result.error != null) {
@@ -570,6 +700,7 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
       BuildInvoker invoker,
       ProjectViewSet projectViewSet,
       ShardedTargetList shardedTargets,
+      @Nullable WorkingSet workingSet,
       WorkspaceLanguageSettings workspaceLanguageSettings,
       ImmutableSet<OutputGroup> outputGroups,
       BlazeInvocationContext blazeInvocationContext) {
@@ -606,11 +737,46 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
     List<String> additionalBlazeFlags =
         BlazeFlags.blazeFlags(
             project, projectViewSet, BlazeCommandName.BUILD, context, blazeInvocationContext);
-    Function<List<? extends TargetExpression>, BuildResult> invocation =
+    ShardResultStore resultStore =
+        isSync && resumeShardsExperiment.getValue()
+            ? ShardResultStore.create(
+                project,
+                workspaceRoot,
+                getBuildConfiguration(
+                    invoker,
+                    projectViewSet,
+                    workspaceLanguageSettings.getActiveLanguages(),
+                    aspectStrategy,
+                    outputGroups,
+                    additionalBlazeFlags),
+                workingSet,
+                resumeShardsMaxAgeMinutes.getValue())
+            : null;
+    // the stored outputs of an interrupted build are only found if its shards are built again, so
+    // a resumed build neither updates the build costs the targets are sharded by, nor splits shards
+    boolean resuming = resultStore != null && resultStore.hasStoredOutputs();
+    TargetBuildCostHistory costHistory =
+        isSync && !resuming ? TargetBuildCostHistory.load(project) : null;
+    Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation =
         targets ->
             Scope.push(
                 context,
                 (childContext) -> {
+                  ShardResultStore.RestoredShard restored =
+                      resultStore != null ? resultStore.restore(targets) : null;
+                  List<? extends TargetExpression> remainingTargets = targets;
+                  if (restored != null && restored.outputs != null) {
+                    childContext.output(
+                        PrintOutput.log(
+                            String.format(
+                                "Reusing the outputs of a previous build of %s of %s targets",
+                                targets.size() - restored.remainingTargets.size(),
+                                targets.size())));
+                    if (restored.remainingTargets.isEmpty()) {
+                      return restored.outputs;
+                    }
+                    remainingTargets = restored.remainingTargets;
+                  }
                   Task task =
                       createTask(
                           project,
@@ -623,6 +789,7 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                   setupToolWindow(project, childContext, workspaceRoot, task);
                   progressTracker.onBuildStarted(context);
 
+                  long startTimeMillis = System.currentTimeMillis();
                   BlazeBuildOutputs result =
                       runBuildForTargets(
                           project,
@@ -631,29 +798,167 @@ public class BlazeIdeInterfaceAspectsImpl implements BlazeIdeInterface {
                           invoker,
                           projectViewSet,
                           workspaceLanguageSettings.getActiveLanguages(),
-                          targets,
+                          remainingTargets,
                           aspectStrategy,
                           outputGroups,
                           additionalBlazeFlags);
 
                   progressTracker.onBuildCompleted(context); // TODO(b/216104482) track failures
                   printShardFinishedSummary(context, task.getName(), result);
-                  if (!result.buildResult.outOfMemory()) {
-                    synchronized (combinedResult) {
-                      combinedResult.set(
-                          combinedResult.isNull()
-                              ? result
-                              : combinedResult.get().updateOutputs(result));
-                    }
+                  if (costHistory != null
+                      && result.buildResult.status != Status.FATAL_ERROR
+                      && !result.buildResult.outOfMemory()) {
+                    costHistory.recordShard(
+                        targets, result, System.currentTimeMillis() - startTimeMillis);
+                  }
+                  if (restored != null && restored.outputs != null) {
+                    result = restored.outputs.updateOutputs(result);
+                  }
+                  if (resultStore != null) {
+                    resultStore.put(targets, result);
                   }
-                  return result.buildResult;
+                  return result;
                 });
+
+    // fetch the aspect outputs of each shard while the remaining shards build, rather than waiting
+    // for the whole build to finish
+    ImmutableMap<String, ArtifactState> previousAspectOutputs =
+        isSync && earlyAspectOutputFetchExperiment.getValue()
+            ? getPreviousAspectOutputState(project)
+            : null;
+    List<ListenableFuture<ImmutableSet<String>>> aspectOutputFetches =
+        Collections.synchronizedList(new ArrayList<>());
+    Consumer<BlazeBuildOutputs> shardCompleted =
+        result -> {
+          if (result.buildResult.outOfMemory()) {
+            return;
+          }
+          synchronized (combinedResult) {
+            combinedResult.set(
+                combinedResult.isNull() ? result : combinedResult.get().updateOutputs(result));
+          }
+          if (previousAspectOutputs != null && result.buildResult.status != Status.FATAL_ERROR) {
+            aspectOutputFetches.add(
+                fetchUpdatedAspectOutputs(project, result, previousAspectOutputs));
+          }
+        };
     BuildResult buildResult =
-        shardedTargets.runShardedCommand(project, context, progressMessage, invocation, invoker);
+        (resuming ? shardedTargets.withoutSplitting() : shardedTargets)
+            .runShardedCommand(
+                project, context, progressMessage, invocation, shardCompleted, invoker);
+    // saved only once the build completes, so an interrupted build is resumed with the same shards
+    if (costHistory != null
+        && buildResult.status != Status.FATAL_ERROR
+        && !context.isCancelled()) {
+      costHistory.completeBuild();
+      costHistory.save();
+    }
+    if (resultStore != null && buildResult.status != Status.FATAL_ERROR && !context.isCancelled()) {
+      // the build finished, so there's nothing left to resume
+      resultStore.clear();
+    }
+    if (context.isCancelled()) {
+      aspectOutputFetches.forEach(f -> f.cancel(true));
+    }
+    ImmutableSet<String> fetchedAspectOutputs =
+        waitForAspectOutputFetches(context, aspectOutputFetches);
     if (combinedResult.isNull() || buildResult.status == Status.FATAL_ERROR) {
       return BlazeBuildOutputs.noOutputs(buildResult);
     }
-    return combinedResult.get();
+    return combinedResult.get().withFetchedAspectOutputs(fetchedAspectOutputs);
+  }
+
+  /**
+   * Returns everything other than the targets which affects the outputs of a build shard, so the
+   * stored outputs of a shard are only reused by an identical build.
+   */
+  private static String getBuildConfiguration(
+      BuildInvoker invoker,
+      ProjectViewSet projectViewSet,
+      ImmutableSet<LanguageClass> activeLanguages,
+      AspectStrategy aspectStrategy,
+      ImmutableSet<OutputGroup> outputGroups,
+      List<String> additionalBlazeFlags) {
+    return Joiner.on('\n')
+        .join(
+            invoker.getType(),
+            invoker.getBinaryPath(),
+            aspectStrategy.getName(),
+            Ordering.natural().sortedCopy(outputGroups),
+            Ordering.natural().sortedCopy(activeLanguages),
+            projectViewSet.getScalarValue(AutomaticallyDeriveTargetsSection.KEY).orElse(false),
+            Joiner.on(' ').join(additionalBlazeFlags));
+  }
+
+  /** Returns the aspect output file state of the previous sync, or an empty map if there's none. */
+  private static ImmutableMap<String, ArtifactState> getPreviousAspectOutputState(
+      Project project) {
+    BlazeProjectData projectData =
+        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+    BlazeIdeInterfaceState state =
+        projectData != null ? projectData.getTargetData().ideInterfaceState : null;
+    return state != null ? state.ideInfoFileState : ImmutableMap.of();
+  }
+
+  /**
+   * Starts fetching the aspect output files of a single shard which changed since the previous
+   * sync, returning the keys of the fetched files.
+   */
+  private static ListenableFuture<ImmutableSet<String>> fetchUpdatedAspectOutputs(
+      Project project,
+      BlazeBuildOutputs shardOutputs,
+      ImmutableMap<String, ArtifactState> previousState) {
+    ImmutableList<OutputArtifact> files = getAspectOutputs(shardOutputs);
+    List<OutputArtifact> updated;
+    try {
+      updated = ArtifactsDiff.diffArtifacts(previousState, files).getUpdatedOutputs();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Futures.immediateFuture(ImmutableSet.of());
+    } catch (ExecutionException e) {
+      logger.warn("Failed to diff aspect output files", e);
+      return Futures.immediateFuture(ImmutableSet.of());
+    }
+    if (updated.isEmpty()) {
+      return Futures.immediateFuture(ImmutableSet.of());
+    }
+    return Futures.transform(
+        fetchAspectOutputs(project, updated),
+        unused -> updated.stream().map(OutputArtifact::getKey).collect(toImmutableSet()),
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Waits for the aspect output files fetched while building, returning the keys of those which
+   * were fetched successfully. Stops waiting if the sync is cancelled.
+   */
+  private static ImmutableSet<String> waitForAspectOutputFetches(
+      BlazeContext context, List<ListenableFuture<ImmutableSet<String>>> fetches) {
+    if (fetches.isEmpty()) {
+      return ImmutableSet.of();
+    }
+    ListenableFuture<List<ImmutableSet<String>>> allFetches = Futures.successfulAsList(fetches);
+    context.addCancellationHandler(() -> allFetches.cancel(true));
+    List<ImmutableSet<String>> results =
+        FutureUtil.waitForFuture(
+                context,
+                Futures.catching(
+                    allFetches,
+                    CancellationException.class,
+                    e -> null,
+                    MoreExecutors.directExecutor()))
+            .withProgressMessage("Fetching aspect output files...")
+            .onError("Failed to fetch aspect output files")
+            .run()
+            .result();
+    if (results == null) {
+      fetches.forEach(f -> f.cancel(true));
+      return ImmutableSet.of();
+    }
+    return results.stream()
+        .filter(Objects::nonNull)
+        .flatMap(Set::stream)
+        .collect(toImmutableSet());
   }
 
   /* Prints summary only for failed shards */
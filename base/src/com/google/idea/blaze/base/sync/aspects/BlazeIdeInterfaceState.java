@@ -27,6 +27,7 @@ import com.google.idea.blaze.base.filecache.ArtifactState;
 import com.google.idea.blaze.base.filecache.ArtifactStateProtoConverter;
 import com.google.idea.blaze.base.ideinfo.ProtoWrapper;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.function.Predicate;
@@ -81,6 +82,61 @@ public final class BlazeIdeInterfaceState
     return proto.build();
   }
 
+  /**
+   * Returns the changes which turn {@code previous} into this state. {@link ArtifactState}s are
+   * compared by their serialized form, since their equality only considers artifact keys.
+   */
+  public ProjectData.BlazeIdeInterfaceStateDelta diff(BlazeIdeInterfaceState previous) {
+    ProjectData.BlazeIdeInterfaceStateDelta.Builder delta =
+        ProjectData.BlazeIdeInterfaceStateDelta.newBuilder();
+    if (previous == this) {
+      return delta.build();
+    }
+    ideInfoFileToTargetKey.forEach(
+        (file, key) -> {
+          if (!key.equals(previous.ideInfoFileToTargetKey.get(file))) {
+            delta.putUpdatedFileToTarget(file, key.toProto());
+          }
+        });
+    previous.ideInfoFileToTargetKey.keySet().stream()
+        .filter(file -> !ideInfoFileToTargetKey.containsKey(file))
+        .forEach(delta::addRemovedFileToTarget);
+    ideInfoFileState.forEach(
+        (file, state) -> {
+          ArtifactState old = previous.ideInfoFileState.get(file);
+          // states carried over from the previous sync are the same instances
+          if (old == state) {
+            return;
+          }
+          LocalFileOrOutputArtifact proto = state.serializeToProto();
+          if (old == null || !proto.equals(old.serializeToProto())) {
+            delta.addUpdatedIdeInfoFiles(proto);
+          }
+        });
+    previous.ideInfoFileState.keySet().stream()
+        .filter(file -> !ideInfoFileState.containsKey(file))
+        .forEach(delta::addRemovedIdeInfoFiles);
+    return delta.build();
+  }
+
+  /** Returns a new state with the given changes applied. */
+  public BlazeIdeInterfaceState applyDelta(ProjectData.BlazeIdeInterfaceStateDelta delta) {
+    Map<String, ArtifactState> fileState = new HashMap<>(ideInfoFileState);
+    delta.getRemovedIdeInfoFilesList().forEach(fileState::remove);
+    for (LocalFileOrOutputArtifact output : delta.getUpdatedIdeInfoFilesList()) {
+      ArtifactState state = ArtifactStateProtoConverter.fromProto(output);
+      if (state != null) {
+        fileState.put(state.getKey(), state);
+      }
+    }
+    BiMap<String, TargetKey> fileToTargetKey = HashBiMap.create(ideInfoFileToTargetKey);
+    delta.getRemovedFileToTargetList().forEach(fileToTargetKey::remove);
+    delta
+        .getUpdatedFileToTargetMap()
+        .forEach((file, key) -> fileToTargetKey.forcePut(file, TargetKey.fromProto(key)));
+    return new BlazeIdeInterfaceState(fileState, fileToTargetKey);
+  }
+
   public BlazeIdeInterfaceState filter(Predicate<TargetKey> targetsToKeep) {
     BiMap<String, TargetKey> filteredBiMap =
         Maps.filterValues(ideInfoFileToTargetKey, targetsToKeep::test);
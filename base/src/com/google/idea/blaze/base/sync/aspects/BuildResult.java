@@ -15,6 +15,7 @@
  */
 package com.google.idea.blaze.base.sync.aspects;
 
+import com.google.common.collect.ImmutableSet;
 import java.util.Objects;
 
 /** The result of a blaze operation */
@@ -24,6 +25,9 @@ public class BuildResult {
   private static final int BUILD_ERROR_EXIT_CODE = 1;
   // blaze server out-of-memory exit code
   private static final int OOM_EXIT_CODE = 33;
+  // failures talking to remote execution, the build event service or the remote cache, which may
+  // succeed if the build is retried
+  private static final ImmutableSet<Integer> TRANSIENT_EXIT_CODES = ImmutableSet.of(34, 38, 39);
 
   /** The status of a blaze operation */
   public enum Status {
@@ -71,6 +75,11 @@ public class BuildResult {
     return exitCode == OOM_EXIT_CODE;
   }
 
+  /** Whether the failure was caused by a remote service, so retrying the build may succeed. */
+  public boolean isTransientFailure() {
+    return TRANSIENT_EXIT_CODES.contains(exitCode);
+  }
+
   private static int combineExitCode(int first, int second) {
     if (first == OOM_EXIT_CODE || second == OOM_EXIT_CODE) {
       // OOM errors treated specially, so preserve them.
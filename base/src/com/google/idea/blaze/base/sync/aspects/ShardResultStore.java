@@ -0,0 +1,417 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.command.buildresult.BepArtifactData;
+import com.google.idea.blaze.base.command.buildresult.LocalFileOutputArtifact;
+import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
+import com.google.idea.blaze.base.command.buildresult.RemoteOutputArtifact;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.model.primitives.WildcardTargetPattern;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.settings.Blaze;
+import com.google.idea.blaze.base.sync.data.VersionedCacheFile;
+import com.google.idea.blaze.base.sync.sharding.ShardedTargetList;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+
+/**
+ * The outputs of successfully built sync shards, persisted in the project cache directory until
+ * the whole build completes, so an interrupted sync can resume without rebuilding them.
+ *
+ * <p>Each shard is stored in its own file, named by a hash of the shard's targets, the build
+ * configuration and the state of the workspace: the locally modified files, and the BUILD files of
+ * the packages the shard's targets are in (for recursive wildcard patterns, only the base
+ * package). Changing any of these means the shard is built again. Results older than the maximum
+ * age are ignored, so a resumed sync doesn't pick up outputs which are likely to be out of date
+ * for other reasons, e.g. upstream changes pulled into the workspace.
+ *
+ * <p>Shards may have been split in halves for idle workers, so the outputs of a shard are looked
+ * up by splitting it the same way, until every piece is either found or can't be split further.
+ */
+final class ShardResultStore {
+  private static final Logger logger = Logger.getInstance(ShardResultStore.class);
+
+  private static final String DIRECTORY_NAME = "sync_shards";
+  private static final int MAGIC = 0x425a5352; // "BZSR"
+  private static final int VERSION = 1;
+
+  private static final byte LOCAL_ARTIFACT = 0;
+  private static final byte REMOTE_ARTIFACT = 1;
+
+  @Nullable private final File directory;
+  private final WorkspaceRoot workspaceRoot;
+  private final ImmutableList<String> buildFileNames;
+  private final String configuration;
+  private final long maxAgeMillis;
+  /** The names of the stored files, so looking up the pieces of a shard doesn't hit the disk. */
+  private final Set<String> storedFileNames = ConcurrentHashMap.newKeySet();
+
+  @VisibleForTesting
+  ShardResultStore(
+      @Nullable File directory,
+      WorkspaceRoot workspaceRoot,
+      ImmutableList<String> buildFileNames,
+      String configuration,
+      long maxAgeMillis) {
+    this.directory = directory;
+    this.workspaceRoot = workspaceRoot;
+    this.buildFileNames = buildFileNames;
+    this.configuration = configuration;
+    this.maxAgeMillis = maxAgeMillis;
+    // ignore temporary files left behind by an interrupted write
+    String[] names =
+        directory != null ? directory.list((dir, name) -> name.endsWith(".dat")) : null;
+    if (names != null) {
+      storedFileNames.addAll(Arrays.asList(names));
+    }
+  }
+
+  /**
+   * Returns the store for the given project and build configuration. Nothing is stored if the
+   * working set is unknown, since local changes couldn't then be detected.
+   *
+   * @param configuration identifies everything other than the targets and workspace state which
+   *     affects the outputs of a shard, e.g. the build flags and requested output groups
+   * @param workingSet the files changed relative to the VCS upstream
+   */
+  static ShardResultStore create(
+      Project project,
+      WorkspaceRoot workspaceRoot,
+      String configuration,
+      @Nullable WorkingSet workingSet,
+      int maxAgeMinutes) {
+    return new ShardResultStore(
+        workingSet != null ? VersionedCacheFile.getProjectCacheFile(project, DIRECTORY_NAME) : null,
+        workspaceRoot,
+        Blaze.getBuildSystemProvider(project).possibleBuildFileNames(),
+        workingSet != null
+            ? configuration + '\n' + getWorkingSetState(workspaceRoot, workingSet)
+            : configuration,
+        TimeUnit.MINUTES.toMillis(maxAgeMinutes));
+  }
+
+  /**
+   * Returns a digest of the locally changed files, including the current size and modification
+   * time of those which still exist, so stored outputs aren't reused once the user edits a file.
+   */
+  @VisibleForTesting
+  static String getWorkingSetState(WorkspaceRoot workspaceRoot, WorkingSet workingSet) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    Stream.concat(workingSet.addedFiles.stream(), workingSet.modifiedFiles.stream())
+        .sorted(Comparator.comparing(WorkspacePath::relativePath))
+        .forEach(
+            path -> {
+              File file = workspaceRoot.fileForPath(path);
+              putString(hasher, path.relativePath())
+                  .putLong(file.length())
+                  .putLong(file.lastModified());
+            });
+    workingSet.deletedFiles.stream()
+        .map(WorkspacePath::relativePath)
+        .sorted()
+        .forEach(path -> putString(hasher, "-" + path));
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns true if there are stored outputs, i.e. the previous build was interrupted and this one
+   * may resume it.
+   */
+  boolean hasStoredOutputs() {
+    return !storedFileNames.isEmpty();
+  }
+
+  /** The stored outputs of a shard, or of pieces of it, and the targets which weren't stored. */
+  static final class RestoredShard {
+    /** The combined outputs of every stored piece of the shard, or null if none are stored. */
+    @Nullable final BlazeBuildOutputs outputs;
+    final ImmutableList<TargetExpression> remainingTargets;
+
+    private RestoredShard(
+        @Nullable BlazeBuildOutputs outputs, ImmutableList<TargetExpression> remainingTargets) {
+      this.outputs = outputs;
+      this.remainingTargets = remainingTargets;
+    }
+  }
+
+  /** Returns the stored outputs of previous builds of the given shard, or of pieces of it. */
+  RestoredShard restore(List<? extends TargetExpression> shard) {
+    if (directory == null || storedFileNames.isEmpty()) {
+      return new RestoredShard(null, ImmutableList.copyOf(shard));
+    }
+    List<HashCode> targetDigests = getTargetDigests(shard);
+    List<BlazeBuildOutputs> restored = new ArrayList<>();
+    ImmutableList.Builder<TargetExpression> remaining = ImmutableList.builder();
+    restore(shard, targetDigests, restored, remaining);
+    return new RestoredShard(
+        restored.stream().reduce(BlazeBuildOutputs::updateOutputs).orElse(null),
+        remaining.build());
+  }
+
+  private void restore(
+      List<? extends TargetExpression> targets,
+      List<HashCode> targetDigests,
+      List<BlazeBuildOutputs> restored,
+      ImmutableList.Builder<TargetExpression> remaining) {
+    BlazeBuildOutputs outputs = get(getFile(targetDigests));
+    if (outputs != null) {
+      restored.add(outputs);
+      return;
+    }
+    // excluded targets only apply to the targets preceding them, so such shards are never split
+    if (targets.size() < 2 || targets.stream().anyMatch(TargetExpression::isExcluded)) {
+      remaining.addAll(targets);
+      return;
+    }
+    int middle = ShardedTargetList.splitPoint(targets);
+    restore(targets.subList(0, middle), targetDigests.subList(0, middle), restored, remaining);
+    restore(
+        targets.subList(middle, targets.size()),
+        targetDigests.subList(middle, targets.size()),
+        restored,
+        remaining);
+  }
+
+  @Nullable
+  private BlazeBuildOutputs get(File file) {
+    if (!storedFileNames.contains(file.getName())) {
+      return null;
+    }
+    if (System.currentTimeMillis() - file.lastModified() > maxAgeMillis) {
+      delete(file);
+      return null;
+    }
+    try {
+      BlazeBuildOutputs outputs = read(file);
+      if (outputs == null) {
+        delete(file);
+      }
+      return outputs;
+    } catch (IOException e) {
+      logger.warn("Ignoring unreadable shard result " + file, e);
+      delete(file);
+      return null;
+    }
+  }
+
+  private void delete(File file) {
+    storedFileNames.remove(file.getName());
+    file.delete();
+  }
+
+  /**
+   * Stores the outputs of a successfully built shard, unless they include an artifact which can't
+   * be stored.
+   */
+  void put(List<? extends TargetExpression> shard, BlazeBuildOutputs outputs) {
+    if (directory == null
+        || outputs.buildResult.status != BuildResult.Status.SUCCESS
+        || !outputs.artifacts.values().stream().allMatch(data -> canWrite(data.artifact))) {
+      return;
+    }
+    File file = getFile(getTargetDigests(shard));
+    try {
+      write(file, outputs);
+      storedFileNames.add(file.getName());
+    } catch (IOException e) {
+      logger.warn("Could not save shard result " + file, e);
+    }
+  }
+
+  /** Deletes all stored shard outputs, once they're no longer needed to resume a build. */
+  void clear() {
+    storedFileNames.clear();
+    File[] files = directory != null ? directory.listFiles() : null;
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  /** Returns the file for a shard, given the digest of each of its targets. */
+  private File getFile(List<HashCode> targetDigests) {
+    // excluded targets only apply to the targets preceding them, so order is significant
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(configuration, StandardCharsets.UTF_8);
+    for (HashCode digest : targetDigests) {
+      hasher.putBytes(digest.asBytes());
+    }
+    return new File(directory, hasher.hash() + ".dat");
+  }
+
+  private List<HashCode> getTargetDigests(List<? extends TargetExpression> shard) {
+    List<HashCode> targetDigests = new ArrayList<>(shard.size());
+    for (TargetExpression target : shard) {
+      targetDigests.add(getTargetDigest(target));
+    }
+    return targetDigests;
+  }
+
+  /** Returns a digest of the target and the state of the BUILD files of its package. */
+  private HashCode getTargetDigest(TargetExpression target) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    putString(hasher, target.toString());
+    WorkspacePath blazePackage = getPackage(target);
+    if (blazePackage != null) {
+      File packageDirectory = workspaceRoot.fileForPath(blazePackage);
+      for (String name : buildFileNames) {
+        File buildFile = new File(packageDirectory, name);
+        hasher.putLong(buildFile.length()).putLong(buildFile.lastModified());
+      }
+    }
+    return hasher.hash();
+  }
+
+  private static Hasher putString(Hasher hasher, String string) {
+    return hasher.putInt(string.length()).putString(string, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the package whose BUILD file defines the given target, or the base package of a
+   * wildcard pattern. Returns null for targets in external workspaces.
+   */
+  @Nullable
+  private static WorkspacePath getPackage(TargetExpression target) {
+    if (target instanceof Label) {
+      Label label = (Label) target;
+      return label.isExternal() ? null : label.blazePackage();
+    }
+    WildcardTargetPattern pattern = WildcardTargetPattern.fromExpression(target);
+    return pattern != null ? pattern.getBasePackage() : null;
+  }
+
+  /** Returns the outputs stored in the given file, or null if it's in an older format. */
+  @Nullable
+  private static BlazeBuildOutputs read(File file) throws IOException {
+    return new VersionedCacheFile(file, MAGIC, VERSION).read(ShardResultStore::readOutputs);
+  }
+
+  private static BlazeBuildOutputs readOutputs(DataInputStream in) throws IOException {
+    BuildResult buildResult = BuildResult.fromExitCode(in.readInt());
+    long bepBytesConsumed = in.readLong();
+    ImmutableList<String> buildIds = ImmutableList.copyOf(readStrings(in));
+    int count = in.readInt();
+    Map<String, BepArtifactData> artifacts = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      OutputArtifact artifact = readArtifact(in);
+      List<String> outputGroups = readStrings(in);
+      List<String> topLevelTargets = readStrings(in);
+      if (artifact == null) {
+        throw new IOException("Unreadable output artifact");
+      }
+      artifacts.put(
+          artifact.getKey(), new BepArtifactData(artifact, outputGroups, topLevelTargets));
+    }
+    return BlazeBuildOutputs.create(buildResult, artifacts, buildIds, bepBytesConsumed);
+  }
+
+  /** Writes the given outputs, all of whose artifacts must be {@link #canWrite writable}. */
+  private static void write(File file, BlazeBuildOutputs outputs) throws IOException {
+    new VersionedCacheFile(file, MAGIC, VERSION)
+        .write(
+            out -> {
+              out.writeInt(outputs.buildResult.exitCode);
+              out.writeLong(outputs.bepBytesConsumed);
+              writeStrings(out, outputs.buildIds);
+              out.writeInt(outputs.artifacts.size());
+              for (BepArtifactData data : outputs.artifacts.values()) {
+                writeArtifact(out, data.artifact);
+                writeStrings(out, data.outputGroups);
+                writeStrings(out, data.topLevelTargets);
+              }
+            });
+  }
+
+  private static boolean canWrite(OutputArtifact artifact) {
+    return artifact instanceof LocalFileOutputArtifact || artifact instanceof RemoteOutputArtifact;
+  }
+
+  private static void writeArtifact(DataOutputStream out, OutputArtifact artifact)
+      throws IOException {
+    if (artifact instanceof LocalFileOutputArtifact) {
+      out.writeByte(LOCAL_ARTIFACT);
+      out.writeUTF(((LocalFileOutputArtifact) artifact).getFile().getPath());
+      out.writeUTF(artifact.getRelativePath());
+      out.writeUTF(artifact.getConfigurationMnemonic());
+      return;
+    }
+    byte[] proto = ((RemoteOutputArtifact) artifact).toProto().toByteArray();
+    out.writeByte(REMOTE_ARTIFACT);
+    out.writeInt(proto.length);
+    out.write(proto);
+  }
+
+  @Nullable
+  private static OutputArtifact readArtifact(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case LOCAL_ARTIFACT:
+        return new LocalFileOutputArtifact(new File(in.readUTF()), in.readUTF(), in.readUTF());
+      case REMOTE_ARTIFACT:
+        byte[] proto = new byte[in.readInt()];
+        in.readFully(proto);
+        return RemoteOutputArtifact.fromProto(ProjectData.OutputArtifact.parseFrom(proto));
+      default:
+        throw new IOException("Unknown artifact type " + type);
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, Collection<String> strings)
+      throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      out.writeUTF(string);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<String> strings = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(in.readUTF());
+    }
+    return strings;
+  }
+}
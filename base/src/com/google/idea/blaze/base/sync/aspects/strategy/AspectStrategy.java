@@ -26,13 +26,15 @@ import com.google.common.collect.ImmutableSet;
 import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
 import com.google.idea.blaze.base.command.BlazeCommand;
 import com.google.idea.blaze.base.command.buildresult.BlazeArtifact;
+import com.google.idea.blaze.base.command.buildresult.BlazeArtifact.LocalFileArtifact;
+import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
 import com.google.idea.blaze.base.model.BlazeVersionData;
 import com.google.idea.blaze.base.model.primitives.LanguageClass;
 import com.google.idea.common.experiments.BoolExperiment;
 import com.google.repackaged.bazel.protobuf.TextFormat;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
@@ -44,8 +46,22 @@ import javax.annotation.Nullable;
 /** Aspect strategy for Skylark. */
 public abstract class AspectStrategy {
 
+  /** The suffix of aspect output files containing a binary-encoded {@code TargetIdeInfo}. */
+  public static final String BINARY_ASPECT_OUTPUT_SUFFIX = ".intellij-info.pb";
+
   public static final Predicate<String> ASPECT_OUTPUT_FILE_PREDICATE =
-      str -> str.endsWith(".intellij-info.txt");
+      str -> str.endsWith(".intellij-info.txt") || str.endsWith(BINARY_ASPECT_OUTPUT_SUFFIX);
+
+  private static final TextFormat.Parser textFormatParser =
+      TextFormat.Parser.newBuilder().setAllowUnknownFields(true).build();
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  /** Buffers grown beyond this size for an unusually large file aren't kept. */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  /** Per-thread buffer aspect files are read into, as they're parsed on many threads at once. */
+  private static final ThreadLocal<byte[]> readBuffer =
+      ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
 
   /** A Blaze output group created by the aspect. */
   public enum OutputGroup {
@@ -160,13 +176,41 @@ public abstract class AspectStrategy {
         .collect(ImmutableList.toImmutableList());
   }
 
+  /**
+   * Reads an aspect output file. Binary-encoded files are recognized by {@link
+   * #BINARY_ASPECT_OUTPUT_SUFFIX}; anything else is parsed as text format.
+   */
   public final IntellijIdeInfo.TargetIdeInfo readAspectFile(BlazeArtifact file) throws IOException {
+    byte[] buffer = readBuffer.get();
+    int length = 0;
     try (InputStream inputStream = file.getInputStream()) {
-      IntellijIdeInfo.TargetIdeInfo.Builder builder = IntellijIdeInfo.TargetIdeInfo.newBuilder();
-      TextFormat.Parser parser = TextFormat.Parser.newBuilder().setAllowUnknownFields(true).build();
-      parser.merge(new InputStreamReader(inputStream, UTF_8), builder);
-      return builder.build();
+      int read;
+      while ((read = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+        length += read;
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+      }
+    }
+    if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+      readBuffer.set(buffer);
+    }
+    if (isBinaryAspectFile(file)) {
+      return IntellijIdeInfo.TargetIdeInfo.parser().parseFrom(buffer, 0, length);
+    }
+    IntellijIdeInfo.TargetIdeInfo.Builder builder = IntellijIdeInfo.TargetIdeInfo.newBuilder();
+    textFormatParser.merge(new String(buffer, 0, length, UTF_8), builder);
+    return builder.build();
+  }
+
+  private static boolean isBinaryAspectFile(BlazeArtifact file) {
+    if (file instanceof OutputArtifact) {
+      return ((OutputArtifact) file).getRelativePath().endsWith(BINARY_ASPECT_OUTPUT_SUFFIX);
+    }
+    if (file instanceof LocalFileArtifact) {
+      return ((LocalFileArtifact) file).getFile().getName().endsWith(BINARY_ASPECT_OUTPUT_SUFFIX);
     }
+    return false;
   }
 
   @Nullable
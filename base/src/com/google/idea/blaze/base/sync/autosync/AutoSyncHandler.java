@@ -15,9 +15,12 @@
  */
 package com.google.idea.blaze.base.sync.autosync;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.idea.blaze.base.logging.EventLoggingService;
 import com.google.idea.blaze.base.model.primitives.TargetExpression;
@@ -28,8 +31,11 @@ import com.google.idea.blaze.base.sync.BlazeSyncManager;
 import com.google.idea.blaze.base.sync.BlazeSyncParams;
 import com.google.idea.blaze.base.sync.SyncListener;
 import com.google.idea.blaze.base.sync.SyncMode;
+import com.google.idea.blaze.base.sync.SyncResult;
+import com.google.idea.blaze.base.sync.autosync.AutoSyncProvider.ChangeKind;
 import com.google.idea.blaze.base.sync.status.BlazeSyncStatus;
 import com.google.idea.common.experiments.BoolExperiment;
+import com.google.idea.common.experiments.IntExperiment;
 import com.intellij.openapi.components.ProjectComponent;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
@@ -45,8 +51,14 @@ import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.openapi.vfs.VirtualFileMoveEvent;
 import com.intellij.openapi.vfs.VirtualFilePropertyEvent;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
@@ -59,9 +71,30 @@ public class AutoSyncHandler implements ProjectComponent {
   private static final BoolExperiment autoSyncEnabled =
       new BoolExperiment("blaze.auto.sync.enabled", true);
 
+  /**
+   * Partial auto-syncs of more targets than this are replaced by an incremental sync of the whole
+   * project. Non-positive values disable this.
+   */
+  private static final IntExperiment maxPartialSyncTargets =
+      new IntExperiment("blaze.auto.sync.max.partial.sync.targets", 50);
+
   /** Auto-syncs will only be run when there are no relevant file events for this length of time. */
   private static final Duration AUTO_SYNC_DELAY = Duration.ofSeconds(5);
 
+  /** The longest we'll wait for file events to stop, when they're arriving rapidly. */
+  private static final Duration MAX_AUTO_SYNC_DELAY = Duration.ofSeconds(30);
+
+  /**
+   * VCS-triggered syncs wait for this long without further VCS changes, so an operation moving the
+   * base commit several times in quick succession (e.g. a rebase) results in a single sync.
+   */
+  private static final Duration VCS_AUTO_SYNC_DELAY = Duration.ofSeconds(15);
+
+  /** Bounds on how long to wait for an in-progress sync before trying to auto-sync again. */
+  private static final Duration MIN_RETRY_DELAY = Duration.ofSeconds(10);
+
+  private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(2);
+
   /** We ignore all events for this duration after starting a project-wide sync. */
   private static final Duration THROTTLE_AFTER_FULL_SYNC = Duration.ofSeconds(5);
 
@@ -70,7 +103,7 @@ public class AutoSyncHandler implements ProjectComponent {
   }
 
   private final PendingChangesHandler<VirtualFile> pendingChangesHandler =
-      new PendingChangesHandler<VirtualFile>(AUTO_SYNC_DELAY) {
+      new PendingChangesHandler<VirtualFile>(AUTO_SYNC_DELAY, MAX_AUTO_SYNC_DELAY) {
         @Override
         boolean runTask(ImmutableSet<VirtualFile> changes) {
           // TODO(b/226553780) update for go/rabbit-decide-automatically
@@ -81,10 +114,42 @@ public class AutoSyncHandler implements ProjectComponent {
           queueAutomaticSync(changes);
           return true;
         }
+
+        @Override
+        Duration adjustQuietPeriod(ImmutableSet<VirtualFile> changes, Duration quietPeriod) {
+          return getQuietPeriod(getChangeKinds(changes), quietPeriod);
+        }
+
+        @Override
+        Duration getRetryDelay() {
+          Instant start = currentSyncStart;
+          SyncMode mode = currentSyncMode;
+          if (start == null || mode == null) {
+            return MIN_RETRY_DELAY;
+          }
+          return AutoSyncHandler.getRetryDelay(
+              Duration.between(start, Instant.now()), previousSyncDurations.get(mode));
+        }
+      };
+
+  private final PendingChangesHandler<String> pendingVcsSyncs =
+      new PendingChangesHandler<String>(VCS_AUTO_SYNC_DELAY, VCS_AUTO_SYNC_DELAY) {
+        @Override
+        boolean runTask(ImmutableSet<String> reasons) {
+          queueVcsSync(reasons);
+          return true;
+        }
       };
 
   private final Project project;
 
+  /** The duration of the most recent sync of each mode, used to estimate when a sync will end. */
+  private final Map<SyncMode, Duration> previousSyncDurations =
+      Collections.synchronizedMap(new EnumMap<>(SyncMode.class));
+
+  @Nullable private volatile Instant currentSyncStart;
+  @Nullable private volatile SyncMode currentSyncMode;
+
   protected AutoSyncHandler(Project project) {
     this.project = project;
     if (!Blaze.isBlazeProject(project)) {
@@ -101,13 +166,19 @@ public class AutoSyncHandler implements ProjectComponent {
   }
 
   /**
-   * Kicks off an automatic incremental sync, clearing the auto-sync queue.
+   * Queues an automatic incremental sync in response to a VCS operation. The sync is run once no
+   * further VCS operations have been reported for a while, clearing the auto-sync queue.
    *
    * <p>TODO(brendandouglas): move to a Topic-based push model.
    */
   public void queueIncrementalSync(String reason) {
+    pendingVcsSyncs.queueChange(reason);
+  }
+
+  private void queueVcsSync(ImmutableSet<String> reasons) {
     pendingChangesHandler.clearQueue();
 
+    String reason = reasons.size() == 1 ? reasons.iterator().next() : "Combined";
     BlazeSyncParams params =
         BlazeSyncParams.builder()
             .setTitle(AutoSyncProvider.AUTO_SYNC_TITLE)
@@ -117,7 +188,7 @@ public class AutoSyncHandler implements ProjectComponent {
             .setAddWorkingSet(BlazeUserSettings.getInstance().getExpandSyncToWorkingSet())
             .setBackgroundSync(true)
             .build();
-    queueSync(params);
+    queueSync(params, EnumSet.of(ChangeKind.VCS));
   }
 
   private void handleFileChange(VirtualFile file) {
@@ -144,25 +215,58 @@ public class AutoSyncHandler implements ProjectComponent {
       return;
     }
     BlazeSyncParams autoSyncParams = null;
+    Set<ChangeKind> changeKinds = EnumSet.noneOf(ChangeKind.class);
     for (AutoSyncProvider provider : AutoSyncProvider.EP_NAME.getExtensions()) {
       for (VirtualFile file : changedFiles) {
-        autoSyncParams = combineSyncParams(autoSyncParams, getSyncParams(provider, file));
+        BlazeSyncParams params = getSyncParams(provider, file);
+        if (params != null) {
+          changeKinds.add(provider.getChangeKind());
+          autoSyncParams = combineSyncParams(autoSyncParams, params);
+        }
       }
     }
     autoSyncParams = filterTargets(autoSyncParams);
     if (autoSyncParams != null) {
-      queueSync(autoSyncParams);
+      queueSync(
+          promoteLargePartialSync(
+              autoSyncParams,
+              maxPartialSyncTargets.getValue(),
+              BlazeUserSettings.getInstance().getExpandSyncToWorkingSet()),
+          changeKinds);
+    }
+  }
+
+  private Set<ChangeKind> getChangeKinds(Collection<VirtualFile> changedFiles) {
+    Set<ChangeKind> changeKinds = EnumSet.noneOf(ChangeKind.class);
+    for (AutoSyncProvider provider : AutoSyncProvider.EP_NAME.getExtensions()) {
+      if (changedFiles.stream().anyMatch(file -> provider.isSyncSensitiveFile(project, file))) {
+        changeKinds.add(provider.getChangeKind());
+      }
     }
+    return changeKinds;
   }
 
-  /** Filters a list of targets to be synced, for example removing currently-syncing targets. */
+  /**
+   * Returns how long to wait after the last file change before auto-syncing. A project view change
+   * triggers a project-wide sync, which covers any other pending changes, so it's synced without
+   * waiting for more.
+   */
+  @VisibleForTesting
+  static Duration getQuietPeriod(Set<ChangeKind> changeKinds, Duration quietPeriod) {
+    return changeKinds.contains(ChangeKind.PROJECT_VIEW) ? Duration.ZERO : quietPeriod;
+  }
+
+  /**
+   * Filters a list of targets to be synced, removing currently-syncing targets and targets already
+   * covered by a wildcard pattern.
+   */
   @Nullable
   private BlazeSyncParams filterTargets(@Nullable BlazeSyncParams params) {
     if (params == null || params.syncMode() != SyncMode.PARTIAL) {
       return params;
     }
     ImmutableSet<TargetExpression> targets =
-        params.targetExpressions().stream()
+        removeCoveredTargets(params.targetExpressions()).stream()
             .filter(t -> !ignoreTarget(project, t))
             .collect(toImmutableSet());
     if (targets.isEmpty()) {
@@ -176,21 +280,112 @@ public class AutoSyncHandler implements ProjectComponent {
     return ProjectTargetManager.getInstance(project).syncInProgress(target);
   }
 
-  private void queueSync(BlazeSyncParams syncParams) {
+  /**
+   * Removes targets matched by a wildcard pattern in the same list: everything below a recursive
+   * pattern (e.g. //foo/...), and individual rules in a package covered by a package wildcard (e.g.
+   * //foo:all).
+   */
+  @VisibleForTesting
+  static ImmutableSet<TargetExpression> removeCoveredTargets(Collection<TargetExpression> targets) {
+    if (targets.stream().anyMatch(TargetExpression::isExcluded)) {
+      // excluded targets only apply to the targets preceding them, so leave the list untouched
+      return ImmutableSet.copyOf(targets);
+    }
+    ImmutableList<String> wildcards =
+        targets.stream()
+            .map(TargetExpression::toString)
+            .filter(t -> t.endsWith("/...") || getPackageWildcardBase(t) != null)
+            .collect(toImmutableList());
+    if (wildcards.isEmpty()) {
+      return ImmutableSet.copyOf(targets);
+    }
+    return targets.stream()
+        .filter(t -> wildcards.stream().noneMatch(w -> covers(w, t.toString())))
+        .collect(toImmutableSet());
+  }
+
+  private static boolean covers(String wildcard, String target) {
+    if (wildcard.equals(target)) {
+      return false;
+    }
+    if (wildcard.endsWith("/...")) {
+      String pkg = wildcard.substring(0, wildcard.length() - "/...".length());
+      return target.startsWith(pkg + "/") || target.startsWith(pkg + ":");
+    }
+    // a single-package wildcard only covers individual rules in that package
+    String pkg = getPackageWildcardBase(wildcard);
+    return pkg != null && target.startsWith(pkg + ":") && getPackageWildcardBase(target) == null;
+  }
+
+  /**
+   * If the target pattern matches all targets in a package (e.g. //foo:all), returns the package
+   * part of the pattern, otherwise returns null.
+   */
+  @Nullable
+  private static String getPackageWildcardBase(String target) {
+    for (String suffix : ImmutableList.of(":all", ":*", ":all-targets")) {
+      if (target.endsWith(suffix)) {
+        return target.substring(0, target.length() - suffix.length());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Replaces a partial sync of more than the given number of targets with a single incremental
+   * sync of the whole project, which is cheaper than building a large, scattered set of targets in
+   * isolation.
+   */
+  @VisibleForTesting
+  static BlazeSyncParams promoteLargePartialSync(
+      BlazeSyncParams params, int maxPartialSyncTargets, boolean addWorkingSet) {
+    if (params.syncMode() != SyncMode.PARTIAL
+        || maxPartialSyncTargets <= 0
+        || params.targetExpressions().size() <= maxPartialSyncTargets) {
+      return params;
+    }
+    return BlazeSyncParams.builder()
+        .setTitle(AutoSyncProvider.AUTO_SYNC_TITLE)
+        .setSyncMode(SyncMode.INCREMENTAL)
+        .setSyncOrigin(params.syncOrigin())
+        .setAddProjectViewTargets(true)
+        .setAddWorkingSet(addWorkingSet)
+        .setBackgroundSync(true)
+        .build();
+  }
+
+  /**
+   * Returns how long to wait before retrying an auto-sync blocked by an in-progress sync, based on
+   * how long the previous sync of the same mode took.
+   */
+  @VisibleForTesting
+  static Duration getRetryDelay(Duration elapsed, @Nullable Duration previousSyncDuration) {
+    if (previousSyncDuration == null) {
+      return MIN_RETRY_DELAY;
+    }
+    Duration remaining = previousSyncDuration.minus(elapsed);
+    if (remaining.compareTo(MIN_RETRY_DELAY) < 0) {
+      return MIN_RETRY_DELAY;
+    }
+    return remaining.compareTo(MAX_RETRY_DELAY) > 0 ? MAX_RETRY_DELAY : remaining;
+  }
+
+  private void queueSync(BlazeSyncParams syncParams, Set<ChangeKind> changeKinds) {
     // all auto-syncs must have the 'backgroundSync' flag
     syncParams = syncParams.toBuilder().setBackgroundSync(true).build();
-    logSync(syncParams);
+    logSync(syncParams, changeKinds);
     BlazeSyncManager.getInstance(project).requestProjectSync(syncParams);
   }
 
-  private void logSync(BlazeSyncParams syncParams) {
+  private void logSync(BlazeSyncParams syncParams, Set<ChangeKind> changeKinds) {
     Map<String, String> data = new HashMap<>();
     data.put("syncMode", syncParams.syncMode().toString());
+    data.put("changeKinds", Joiner.on(',').join(changeKinds));
     if (syncParams.syncMode() == SyncMode.PARTIAL) {
       data.put("targets", Joiner.on(',').join(syncParams.targetExpressions()));
     }
     EventLoggingService.getInstance().logEvent(getClass(), "auto-sync", data);
-    logger.info("Automatic sync queued: " + syncParams.syncMode());
+    logger.info("Automatic sync queued: " + syncParams.syncMode() + " " + changeKinds);
   }
 
   @Nullable
@@ -245,12 +440,30 @@ public class AutoSyncHandler implements ProjectComponent {
   static class Listener implements SyncListener {
     @Override
     public void onSyncStart(Project project, BlazeContext context, SyncMode syncMode) {
+      AutoSyncHandler handler = AutoSyncHandler.getInstance(project);
+      handler.currentSyncStart = Instant.now();
+      handler.currentSyncMode = syncMode;
       // cancel any pending auto-syncs if we're doing a project-wide sync
       if (syncMode == SyncMode.INCREMENTAL || syncMode == SyncMode.FULL) {
-        AutoSyncHandler.getInstance(project)
-            .pendingChangesHandler
-            .clearQueueAndIgnoreChangesForDuration(THROTTLE_AFTER_FULL_SYNC);
+        handler.pendingChangesHandler.clearQueueAndIgnoreChangesForDuration(
+            THROTTLE_AFTER_FULL_SYNC);
+      }
+    }
+
+    @Override
+    public void afterSync(
+        Project project,
+        BlazeContext context,
+        SyncMode syncMode,
+        SyncResult syncResult,
+        ImmutableSet<Integer> buildIds) {
+      AutoSyncHandler handler = AutoSyncHandler.getInstance(project);
+      Instant start = handler.currentSyncStart;
+      if (start != null && syncResult.successful()) {
+        handler.previousSyncDurations.put(syncMode, Duration.between(start, Instant.now()));
       }
+      handler.currentSyncStart = null;
+      handler.currentSyncMode = null;
     }
   }
 
@@ -34,6 +34,20 @@ public interface AutoSyncProvider {
 
   String AUTO_SYNC_REASON = "AutoSync";
 
+  /** The kinds of change which can trigger an automatic sync. */
+  enum ChangeKind {
+    BUILD_FILE,
+    PROJECT_VIEW,
+    PROTO,
+    VCS,
+    OTHER,
+  }
+
+  /** The kind of change detected by this provider, used when batching automatic syncs. */
+  default ChangeKind getChangeKind() {
+    return ChangeKind.OTHER;
+  }
+
   /**
    * Returns true if changes to this file are expected to impact the results of a project sync.
    *
@@ -29,6 +29,11 @@ import javax.annotation.Nullable;
 
 class BuildFileAutoSyncProvider implements AutoSyncProvider {
 
+  @Override
+  public ChangeKind getChangeKind() {
+    return ChangeKind.BUILD_FILE;
+  }
+
   @Override
   public boolean isSyncSensitiveFile(Project project, VirtualFile file) {
     // we'll just assume any BUILD file being modified is in the project
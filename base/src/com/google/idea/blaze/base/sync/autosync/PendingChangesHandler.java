@@ -15,6 +15,7 @@
  */
 package com.google.idea.blaze.base.sync.autosync;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 import java.time.Duration;
 import java.time.Instant;
@@ -24,6 +25,7 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tracks pending changes, and kicks off a task when no new changes have arrived in a given period
@@ -31,6 +33,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * <p>Use case: batching many changes arriving in a short period of time, then running a single task
  * over the full set of changes.
+ *
+ * <p>The quiet period grows with the rate at which changes arrive, so a large burst of changes
+ * (e.g. from a refactoring touching many files) is handled by a single task rather than several.
  */
 abstract class PendingChangesHandler<V> {
 
@@ -40,17 +45,22 @@ abstract class PendingChangesHandler<V> {
 
   private final Timer timer = new Timer("pendingChangesTimer", /* isDaemon= */ true);
   private final Duration delayDuration;
+  private final Duration maxDelayDuration;
   private final AtomicBoolean isTaskPending = new AtomicBoolean(false);
+  private final AtomicInteger burstChangeCount = new AtomicInteger();
 
+  private volatile Instant burstStartTime;
   private volatile Instant lastChangeTime;
   private volatile boolean ignoreChanges;
 
   /**
    * @param delayDuration when no new changes have arrived for approximately this period of time the
    *     batched task is executed
+   * @param maxDelayDuration the upper bound of the quiet period when changes arrive rapidly
    */
-  PendingChangesHandler(Duration delayDuration) {
+  PendingChangesHandler(Duration delayDuration, Duration maxDelayDuration) {
     this.delayDuration = delayDuration;
+    this.maxDelayDuration = maxDelayDuration;
   }
 
   /**
@@ -59,16 +69,34 @@ abstract class PendingChangesHandler<V> {
    */
   abstract boolean runTask(ImmutableSet<V> changes);
 
+  /**
+   * Returns how long to wait after the last change before running the task, given the pending
+   * changes and the quiet period derived from the rate at which they arrived.
+   */
+  Duration adjustQuietPeriod(ImmutableSet<V> pendingChanges, Duration quietPeriod) {
+    return quietPeriod;
+  }
+
+  /** How long to wait before retrying a task which couldn't be run. */
+  Duration getRetryDelay() {
+    return RETRY_DELAY;
+  }
+
   void queueChange(V item) {
     if (ignoreChanges) {
       return;
     }
     pendingItems.add(item);
-    lastChangeTime = Instant.now();
+    Instant now = Instant.now();
+    lastChangeTime = now;
     // to minimize synchronization overhead, we don't explicitly cancel any existing task on each
     // change, but delay this until the pending task would otherwise run.
     if (isTaskPending.compareAndSet(false, true)) {
-      queueTask(delayDuration);
+      burstStartTime = now;
+      burstChangeCount.set(1);
+      queueTask(adjustQuietPeriod(ImmutableSet.of(item), delayDuration));
+    } else {
+      burstChangeCount.incrementAndGet();
     }
   }
 
@@ -108,22 +136,67 @@ abstract class PendingChangesHandler<V> {
    * another task.
    */
   private void timerComplete() {
+    Duration quietPeriod =
+        adjustQuietPeriod(
+            copyPendingItems(),
+            getQuietPeriod(
+                delayDuration,
+                maxDelayDuration,
+                burstChangeCount.get(),
+                Duration.between(burstStartTime, lastChangeTime)));
     Duration timeSinceLastEvent = Duration.between(lastChangeTime, Instant.now());
-    Duration timeToWait = delayDuration.minus(timeSinceLastEvent);
+    Duration timeToWait = quietPeriod.minus(timeSinceLastEvent);
     if (!timeToWait.isNegative()) {
       // kick off another task and abort this one
       queueTask(timeToWait);
       return;
     }
     ImmutableSet<V> items = retrieveAndClearPendingItems();
-    if (items.isEmpty()) {
-      return;
-    }
-    if (runTask(items)) {
-      isTaskPending.set(false);
+    if (items.isEmpty() || runTask(items)) {
+      taskComplete();
     } else {
       pendingItems.addAll(items);
-      queueTask(RETRY_DELAY);
+      queueTask(getRetryDelay());
+    }
+  }
+
+  /**
+   * Allows the next change to schedule a new task, first checking for changes which arrived while
+   * this task was still pending (and so didn't schedule one themselves).
+   */
+  private void taskComplete() {
+    isTaskPending.set(false);
+    if (!pendingItems.isEmpty() && isTaskPending.compareAndSet(false, true)) {
+      burstStartTime = lastChangeTime;
+      burstChangeCount.set(pendingItems.size());
+      queueTask(adjustQuietPeriod(copyPendingItems(), delayDuration));
+    }
+  }
+
+  /**
+   * Returns how long to wait after the last change before running the task. This is the base delay
+   * while changes arrive at most once per second (averaged over at least the base delay), growing
+   * by another base delay each time the rate of changes doubles, up to the maximum delay.
+   */
+  @VisibleForTesting
+  static Duration getQuietPeriod(
+      Duration baseDelay, Duration maxDelay, int changeCount, Duration burstDuration) {
+    if (maxDelay.compareTo(baseDelay) <= 0) {
+      return baseDelay;
+    }
+    long windowMillis = Math.max(burstDuration.toMillis(), baseDelay.toMillis());
+    double changesPerSecond = changeCount * 1000d / Math.max(windowMillis, 1);
+    if (changesPerSecond <= 1) {
+      return baseDelay;
+    }
+    double factor = 1 + Math.log(changesPerSecond) / Math.log(2);
+    long delayMillis = (long) (baseDelay.toMillis() * factor);
+    return Duration.ofMillis(Math.min(delayMillis, maxDelay.toMillis()));
+  }
+
+  private ImmutableSet<V> copyPendingItems() {
+    synchronized (pendingItems) {
+      return ImmutableSet.copyOf(pendingItems);
     }
   }
 
@@ -27,6 +27,11 @@ import javax.annotation.Nullable;
 
 class ProjectViewAutoSyncProvider implements AutoSyncProvider {
 
+  @Override
+  public ChangeKind getChangeKind() {
+    return ChangeKind.PROJECT_VIEW;
+  }
+
   @Override
   public boolean isSyncSensitiveFile(Project project, VirtualFile file) {
     return isProjectViewFileForProject(project, file);
@@ -17,7 +17,6 @@ package com.google.idea.blaze.base.sync.autosync;
 
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
@@ -27,8 +26,9 @@ import com.google.idea.blaze.base.model.primitives.TargetExpression;
 import com.google.idea.blaze.base.sync.BlazeSyncParams;
 import com.google.idea.blaze.base.sync.SyncMode;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
-import com.google.idea.blaze.base.targetmaps.ReverseDependencyMap;
+import com.google.idea.blaze.base.targetmaps.DependencyGraphIndex;
 import com.google.idea.blaze.base.targetmaps.SourceToTargetMap;
+import com.google.idea.blaze.base.targetmaps.TransitiveDependencyMap;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import java.io.File;
@@ -41,6 +41,11 @@ import javax.annotation.Nullable;
 /** Auto-sync support on changes to proto files in the project. */
 class ProtoAutoSyncProvider implements AutoSyncProvider {
 
+  @Override
+  public ChangeKind getChangeKind() {
+    return ChangeKind.PROTO;
+  }
+
   @Override
   public boolean isSyncSensitiveFile(Project project, VirtualFile file) {
     return isProtoFile(file) && !getTargetsForSourceFile(project, file).isEmpty();
@@ -92,11 +97,13 @@ class ProtoAutoSyncProvider implements AutoSyncProvider {
     if (target.isPlainTarget()) {
       return ImmutableList.of(target.getLabel());
     }
+    DependencyGraphIndex index = TransitiveDependencyMap.getInstance(project).getGraphIndex();
+    if (index == null) {
+      return ImmutableList.of();
+    }
     ImmutableList.Builder<Label> output = new ImmutableList.Builder<>();
     Queue<TargetKey> todo = Queues.newArrayDeque();
-    ImmutableMultimap<TargetKey, TargetKey> reverseDependencyMap =
-        ReverseDependencyMap.get(project);
-    todo.addAll(reverseDependencyMap.get(target));
+    todo.addAll(index.getReverseDependencies(target));
     Set<TargetKey> seen = Sets.newHashSet();
     while (!todo.isEmpty()) {
       TargetKey targetKey = todo.remove();
@@ -106,7 +113,7 @@ class ProtoAutoSyncProvider implements AutoSyncProvider {
       if (targetKey.isPlainTarget()) {
         output.add(targetKey.getLabel());
       } else {
-        todo.addAll(reverseDependencyMap.get(targetKey));
+        todo.addAll(index.getReverseDependencies(targetKey));
       }
     }
     return output.build();
@@ -66,6 +66,11 @@ public class BlazeDataStorage {
     return new File(PathManager.getSystemPath(), "blaze/projects").getAbsoluteFile();
   }
 
+  /** The directory holding build outputs shared between all projects. */
+  public static File getSharedArtifactStoreDir() {
+    return new File(PathManager.getSystemPath(), "blaze/artifact_store").getAbsoluteFile();
+  }
+
   /**
    * Configuration which includes the plugin's own project-specific data directory (used for
    * artifacts related to IntelliJ's project setup - module configurations, locally cached jars,
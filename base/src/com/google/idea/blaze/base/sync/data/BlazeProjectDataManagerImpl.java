@@ -23,6 +23,7 @@ import com.google.idea.blaze.base.io.FileOperationProvider;
 import com.google.idea.blaze.base.logging.EventLoggingService;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.settings.BlazeImportSettings;
+import com.google.idea.common.experiments.IntExperiment;
 import com.google.idea.common.util.ConcurrencyUtil;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
@@ -32,7 +33,10 @@ import com.intellij.openapi.util.Disposer;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 /** Stores a cache of blaze project data and issues any side effects when that data is updated. */
@@ -41,12 +45,31 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
   private static final Logger logger =
       Logger.getInstance(BlazeProjectDataManagerImpl.class.getName());
 
+  /** Once the journal grows beyond this size, it's compacted into the main cache file. */
+  private static final IntExperiment journalCompactionThresholdBytes =
+      new IntExperiment("blaze.project.data.journal.compaction.threshold.bytes", 64 * 1024 * 1024);
+
+  /**
+   * Cache files are memory-mapped while in use, so each full save writes a new generation rather
+   * than replacing the previous file.
+   */
+  private static final Pattern CACHE_FILE_PATTERN = Pattern.compile("cache\\.(\\d+)\\.dat");
+
   private final Project project;
   // a per-project single-threaded executor to write project data to disk
   private final ListeningExecutorService writeDataExecutor;
 
   @Nullable private volatile BlazeProjectData projectData;
 
+  /**
+   * The project data currently stored on disk (cache file plus journal), or null if unknown. Only
+   * accessed while holding this object's lock.
+   */
+  @Nullable private BlazeProjectData savedProjectData;
+
+  /** The cache file {@link #savedProjectData} is stored in. Guarded by this object's lock. */
+  @Nullable private File savedFile;
+
   public static BlazeProjectDataManagerImpl getImpl(Project project) {
     return (BlazeProjectDataManagerImpl) BlazeProjectDataManager.getInstance(project);
   }
@@ -81,8 +104,18 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
   @Nullable
   private synchronized BlazeProjectData loadProject(BlazeImportSettings importSettings) {
     try {
-      File file = getCacheFile(project, importSettings);
-      projectData = BlazeProjectData.loadFromDisk(importSettings.getBuildSystem(), file);
+      File file = getLatestCacheFile(project, importSettings);
+      if (file != null) {
+        projectData =
+            BlazeProjectData.loadFromDisk(
+                importSettings.getBuildSystem(), file, getJournalFile(project, importSettings));
+      } else {
+        projectData =
+            BlazeProjectData.loadFromDisk(
+                importSettings.getBuildSystem(), getLegacyCacheFile(project, importSettings));
+      }
+      savedProjectData = projectData;
+      savedFile = file;
       return projectData;
     } catch (Throwable e) {
       if (!(e instanceof FileNotFoundException)) {
@@ -103,11 +136,19 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
         .submitTask(
             (ProgressIndicator indicator) -> {
               try {
-                File file = getCacheFile(project, importSettings);
+                File journalFile = getJournalFile(project, importSettings);
+                boolean journaled;
+                File file;
                 synchronized (this) {
-                  projectData.saveToDisk(file);
+                  journaled = saveToDisk(importSettings, projectData, journalFile);
+                  file = savedFile;
                 }
                 logFileSize(projectData, file);
+                Files.deleteIfExists(getLegacyCacheFile(project, importSettings).toPath());
+                if (journaled
+                    && journalFile.length() > journalCompactionThresholdBytes.getValue()) {
+                  compactJournal(importSettings);
+                }
 
               } catch (Throwable e) {
                 logger.error(serializationErrorMessage(e), e);
@@ -115,6 +156,93 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
             });
   }
 
+  /**
+   * Saves the project data, appending only the changes since the last save to the journal where
+   * possible. Returns true if the journal was used. Must be called while holding this object's
+   * lock.
+   */
+  private boolean saveToDisk(
+      BlazeImportSettings importSettings, BlazeProjectData projectData, File journalFile)
+      throws IOException {
+    BlazeProjectData previous = savedProjectData;
+    File file = savedFile;
+    savedProjectData = null;
+    boolean journaled =
+        previous != null
+            && file != null
+            && projectData.appendToJournal(file, journalFile, previous);
+    if (!journaled) {
+      saveNewGeneration(importSettings, projectData, journalFile);
+    }
+    savedProjectData = projectData;
+    return journaled;
+  }
+
+  /**
+   * Writes the project data in full to a new cache file, then removes the journal and any older
+   * cache files. Must be called while holding this object's lock.
+   */
+  private void saveNewGeneration(
+      BlazeImportSettings importSettings, BlazeProjectData projectData, File journalFile)
+      throws IOException {
+    File cacheDir = BlazeDataStorage.getProjectCacheDir(project, importSettings);
+    File latest = getLatestCacheFile(project, importSettings);
+    File file =
+        new File(
+            cacheDir,
+            String.format("cache.%d.dat", latest != null ? getGeneration(latest) + 1 : 0));
+    savedFile = null;
+    projectData.saveToDisk(file);
+    Files.deleteIfExists(journalFile.toPath());
+    savedFile = file;
+    deleteOldGenerations(cacheDir, file);
+  }
+
+  /**
+   * Deletes cache files older than the given one. Deletion fails on some platforms while a file is
+   * still mapped, in which case it's retried after the next save.
+   */
+  private static void deleteOldGenerations(File cacheDir, File current) {
+    File[] files = cacheDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long generation = getGeneration(current);
+    for (File file : files) {
+      long fileGeneration = getGeneration(file);
+      if (fileGeneration >= 0 && fileGeneration < generation) {
+        try {
+          Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+          logger.info("Could not delete old cache file " + file + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /** Rewrites the main cache file with the latest saved data, in the background. */
+  private void compactJournal(BlazeImportSettings importSettings) {
+    ProgressiveTaskWithProgressIndicator.builder(project, "Compacting sync data...")
+        .setExecutor(writeDataExecutor)
+        .submitTask(
+            (ProgressIndicator indicator) -> {
+              try {
+                File journalFile = getJournalFile(project, importSettings);
+                synchronized (this) {
+                  BlazeProjectData latest = savedProjectData;
+                  if (latest == null || !journalFile.exists()) {
+                    return;
+                  }
+                  savedProjectData = null;
+                  saveNewGeneration(importSettings, latest, journalFile);
+                  savedProjectData = latest;
+                }
+              } catch (Throwable e) {
+                logger.error(serializationErrorMessage(e), e);
+              }
+            });
+  }
+
   private static void logFileSize(BlazeProjectData projectData, File cacheFile) {
     ImmutableMap.Builder<String, String> data = ImmutableMap.builder();
     data.put("size", Long.toString(FileOperationProvider.getInstance().getFileSize(cacheFile)));
@@ -134,7 +262,43 @@ public class BlazeProjectDataManagerImpl implements BlazeProjectDataManager {
     return message + " Please resync project.";
   }
 
-  private static File getCacheFile(Project project, BlazeImportSettings importSettings) {
+  /** Returns the most recently written cache file, or null if there is none. */
+  @Nullable
+  private static File getLatestCacheFile(Project project, BlazeImportSettings importSettings) {
+    File[] files = BlazeDataStorage.getProjectCacheDir(project, importSettings).listFiles();
+    if (files == null) {
+      return null;
+    }
+    File latest = null;
+    for (File file : files) {
+      long generation = getGeneration(file);
+      if (generation >= 0 && (latest == null || generation > getGeneration(latest))) {
+        latest = file;
+      }
+    }
+    return latest;
+  }
+
+  /** Returns the generation of the given cache file, or -1 if it isn't one. */
+  private static long getGeneration(File file) {
+    Matcher matcher = CACHE_FILE_PATTERN.matcher(file.getName());
+    if (!matcher.matches()) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(matcher.group(1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Changes since the cache file was last written in full. */
+  private static File getJournalFile(Project project, BlazeImportSettings importSettings) {
+    return new File(BlazeDataStorage.getProjectCacheDir(project, importSettings), "cache.journal");
+  }
+
+  /** The gzipped proto cache file written by older plugin versions. */
+  private static File getLegacyCacheFile(Project project, BlazeImportSettings importSettings) {
     return new File(BlazeDataStorage.getProjectCacheDir(project, importSettings), "cache.dat.gz");
   }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.data;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * A map from path to a value derived from that file or directory, validated by its modification
+ * time and size, and persisted in the project cache directory between syncs.
+ *
+ * <p>Only entries which were looked up or added since loading are saved, so entries for deleted or
+ * no-longer-used paths are dropped.
+ */
+public final class StampedEntryCache<V> {
+  private static final Logger logger = Logger.getInstance(StampedEntryCache.class);
+
+  /** Serializes cached values. */
+  public interface ValueCodec<V> {
+    void write(DataOutputStream out, V value) throws IOException;
+
+    V read(DataInputStream in) throws IOException;
+  }
+
+  @Nullable private final File cacheFile;
+  private final int magic;
+  private final int version;
+  private final ValueCodec<V> codec;
+  private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+  private volatile boolean modified;
+
+  /** Creates an empty cache, which is only saved if {@code cacheFile} is non-null. */
+  public StampedEntryCache(
+      @Nullable File cacheFile, int magic, int version, ValueCodec<V> codec) {
+    this.cacheFile = cacheFile;
+    this.magic = magic;
+    this.version = version;
+    this.codec = codec;
+  }
+
+  /** Loads the cache stored in the given file of the project's cache directory, if any. */
+  public static <V> StampedEntryCache<V> load(
+      Project project, String fileName, int magic, int version, ValueCodec<V> codec) {
+    StampedEntryCache<V> cache =
+        new StampedEntryCache<>(
+            VersionedCacheFile.getProjectCacheFile(project, fileName), magic, version, codec);
+    if (cache.cacheFile != null) {
+      try {
+        cache.read(cache.cacheFile);
+      } catch (IOException e) {
+        logger.warn("Ignoring unreadable cache " + cache.cacheFile, e);
+        cache.entries.clear();
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the cached value for the given path, or null if there is none or the path has been
+   * modified since it was cached.
+   */
+  @Nullable
+  public V get(String path, long modifiedTime, long size) {
+    Entry<V> entry = entries.get(path);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.modifiedTime != modifiedTime || entry.size != size) {
+      entries.remove(path, entry);
+      modified = true;
+      return null;
+    }
+    // using a loaded entry doesn't change the file, unless unused entries are pruned on save
+    entry.used = true;
+    return entry.value;
+  }
+
+  public void put(String path, long modifiedTime, long size, V value) {
+    Entry<V> entry = new Entry<>(modifiedTime, size, value);
+    entry.used = true;
+    entries.put(path, entry);
+    modified = true;
+  }
+
+  /**
+   * Writes the used entries back to the cache file, if anything was added or invalidated since
+   * loading, or there are unused entries to prune.
+   */
+  public void save() {
+    if (cacheFile == null || !(modified || hasUnusedEntries())) {
+      return;
+    }
+    try {
+      write(cacheFile);
+      modified = false;
+    } catch (IOException e) {
+      logger.warn("Could not save cache " + cacheFile, e);
+    }
+  }
+
+  private boolean hasUnusedEntries() {
+    return entries.values().stream().anyMatch(entry -> !entry.used);
+  }
+
+  @VisibleForTesting
+  public void read(File file) throws IOException {
+    new VersionedCacheFile(file, magic, version)
+        .read(
+            in -> {
+              int count = in.readInt();
+              for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long modifiedTime = in.readLong();
+                long size = in.readLong();
+                entries.put(path, new Entry<>(modifiedTime, size, codec.read(in)));
+              }
+              return null;
+            });
+  }
+
+  @VisibleForTesting
+  public void write(File file) throws IOException {
+    Map<String, Entry<V>> used = new HashMap<>();
+    entries.forEach(
+        (path, entry) -> {
+          if (entry.used) {
+            used.put(path, entry);
+          }
+        });
+    new VersionedCacheFile(file, magic, version)
+        .write(
+            out -> {
+              out.writeInt(used.size());
+              for (Map.Entry<String, Entry<V>> e : used.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().modifiedTime);
+                out.writeLong(e.getValue().size);
+                codec.write(out, e.getValue().value);
+              }
+            });
+  }
+
+  private static class Entry<V> {
+    final long modifiedTime;
+    final long size;
+    final V value;
+    volatile boolean used;
+
+    Entry(long modifiedTime, long size, V value) {
+      this.modifiedTime = modifiedTime;
+      this.size = size;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.data;
+
+import com.google.idea.blaze.base.settings.BlazeImportSettings;
+import com.google.idea.blaze.base.settings.BlazeImportSettingsManager;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import javax.annotation.Nullable;
+
+/**
+ * A cache file in a private binary format, starting with a magic number and format version.
+ *
+ * <p>Files written with a different magic number or version are ignored. Writes go to a uniquely
+ * named temporary file in the same directory, which is then atomically moved into place, so
+ * readers never see a partially written file.
+ */
+public final class VersionedCacheFile {
+
+  /** Reads the contents following the header. */
+  public interface Reader<T> {
+    T read(DataInputStream in) throws IOException;
+  }
+
+  /** Writes the contents following the header. */
+  public interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private final File file;
+  private final int magic;
+  private final int version;
+
+  public VersionedCacheFile(File file, int magic, int version) {
+    this.file = file;
+    this.magic = magic;
+    this.version = version;
+  }
+
+  /**
+   * Returns the file with the given name in the project's cache directory, or null if the project
+   * has no cache directory (e.g. in unit tests), in which case nothing should be persisted.
+   */
+  @Nullable
+  public static File getProjectCacheFile(Project project, String name) {
+    if (ApplicationManager.getApplication().isUnitTestMode()) {
+      return null;
+    }
+    BlazeImportSettings importSettings =
+        BlazeImportSettingsManager.getInstance(project).getImportSettings();
+    if (importSettings == null) {
+      return null;
+    }
+    return new File(BlazeDataStorage.getProjectCacheDir(project, importSettings), name);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Reads the file, returning null if it doesn't exist or was written with a different magic
+   * number or version.
+   */
+  @Nullable
+  public <T> T read(Reader<T> reader) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != magic || in.readInt() != version) {
+        return null;
+      }
+      return reader.read(in);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  /** Replaces the file's contents, creating its parent directory if necessary. */
+  public void write(Writer writer) throws IOException {
+    Files.createDirectories(file.toPath().getParent());
+    // a unique temporary file, so concurrent writers (e.g. two IDE instances) don't interleave
+    File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        out.writeInt(magic);
+        out.writeInt(version);
+        writer.write(out);
+      }
+      Files.move(
+          tempFile.toPath(),
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+}
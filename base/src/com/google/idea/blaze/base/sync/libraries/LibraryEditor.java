@@ -15,9 +15,15 @@
  */
 package com.google.idea.blaze.base.sync.libraries;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.EnumMultiset;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.idea.blaze.base.model.BlazeLibrary;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.model.LibraryKey;
@@ -26,6 +32,7 @@ import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
 import com.google.idea.blaze.base.sync.BlazeSyncPlugin;
 import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import com.google.idea.common.experiments.BoolExperiment;
 import com.google.idea.sdkcompat.general.BaseSdkCompat;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.externalSystem.service.project.IdeModifiableModelsProvider;
@@ -36,10 +43,12 @@ import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.roots.libraries.Library;
 import com.intellij.openapi.roots.libraries.LibraryTable;
 import com.intellij.openapi.roots.libraries.LibraryTablesRegistrar;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -47,6 +56,24 @@ import java.util.stream.Collectors;
 public class LibraryEditor {
   private static final Logger logger = Logger.getInstance(LibraryEditor.class);
 
+  /**
+   * If true, existing libraries are only modified if their roots have changed. Otherwise all
+   * libraries are rebuilt on every sync.
+   */
+  private static final BoolExperiment diffLibraryRoots =
+      new BoolExperiment("blaze.sync.diff.library.roots", true);
+
+  /** The root types managed by blaze, which are replaced whenever a library is updated. */
+  private static final ImmutableSet<OrderRootType> MANAGED_ROOT_TYPES =
+      ImmutableSet.of(OrderRootType.CLASSES, OrderRootType.SOURCES);
+
+  /** The outcome of updating a single library. */
+  public enum LibraryUpdate {
+    CREATED,
+    MODIFIED,
+    UNCHANGED,
+  }
+
   public static void updateProjectLibraries(
       Project project,
       BlazeContext context,
@@ -64,10 +91,13 @@ public class LibraryEditor {
     }
     context.output(PrintOutput.log(String.format("Workspace has %d libraries", libraries.size())));
 
+    Multiset<LibraryUpdate> updates = EnumMultiset.create(LibraryUpdate.class);
+    int removed = 0;
     try {
       for (BlazeLibrary library : libraries) {
-        updateLibrary(
-            project, blazeProjectData.getArtifactLocationDecoder(), modelsProvider, library);
+        updates.add(
+            updateLibrary(
+                project, blazeProjectData.getArtifactLocationDecoder(), modelsProvider, library));
       }
 
       // Garbage collect unused libraries
@@ -94,6 +124,7 @@ public class LibraryEditor {
           if (!gcRetentionFilter.test(library)) {
             if (library != null) {
               modelsProvider.removeLibrary(library);
+              removed++;
             }
           }
         }
@@ -101,10 +132,19 @@ public class LibraryEditor {
     } finally {
       modelsProvider.commit();
     }
+    context.output(
+        PrintOutput.log(
+            String.format(
+                "Libraries: %d created, %d modified, %d removed, %d unchanged",
+                updates.count(LibraryUpdate.CREATED),
+                updates.count(LibraryUpdate.MODIFIED),
+                removed,
+                updates.count(LibraryUpdate.UNCHANGED))));
   }
 
   /**
-   * Updates the library in IntelliJ's project model.
+   * Updates the library in IntelliJ's project model. An existing library is left untouched if it
+   * already has the expected roots.
    *
    * <p>Note: Callers of this method must invoke {@link IdeModifiableModelsProvider#commit()} on the
    * passed {@link IdeModifiableModelsProvider} for any changes to take effect. Be aware that {@code
@@ -115,29 +155,51 @@ public class LibraryEditor {
    * @param modelsProvider a modifier for IntelliJ's project model which supports quick application
    *     of massive modifications to the project model
    * @param blazeLibrary the library which should be updated in the project context
+   * @return whether the library was created, modified or left unchanged
    */
-  public static void updateLibrary(
+  @CanIgnoreReturnValue
+  public static LibraryUpdate updateLibrary(
       Project project,
       ArtifactLocationDecoder artifactLocationDecoder,
       IdeModifiableModelsProvider modelsProvider,
       BlazeLibrary blazeLibrary) {
     String libraryName = blazeLibrary.key.getIntelliJLibraryName();
+    ImmutableListMultimap<OrderRootType, String> roots =
+        blazeLibrary.getLibraryRoots(project, artifactLocationDecoder);
 
     Library library = modelsProvider.getLibraryByName(libraryName);
     boolean libraryExists = library != null;
     if (!libraryExists) {
       library = modelsProvider.createLibrary(libraryName);
+    } else if (diffLibraryRoots.getValue() && hasRoots(library::getUrls, roots)) {
+      return LibraryUpdate.UNCHANGED;
     }
     Library.ModifiableModel libraryModel = modelsProvider.getModifiableLibraryModel(library);
     if (libraryExists) {
-      for (String url : libraryModel.getUrls(OrderRootType.CLASSES)) {
-        libraryModel.removeRoot(url, OrderRootType.CLASSES);
+      for (OrderRootType type : Sets.union(MANAGED_ROOT_TYPES, roots.keySet())) {
+        for (String url : libraryModel.getUrls(type)) {
+          libraryModel.removeRoot(url, type);
+        }
       }
-      for (String url : libraryModel.getUrls(OrderRootType.SOURCES)) {
-        libraryModel.removeRoot(url, OrderRootType.SOURCES);
+    }
+    roots.forEach((type, url) -> libraryModel.addRoot(url, type));
+    return libraryExists ? LibraryUpdate.MODIFIED : LibraryUpdate.CREATED;
+  }
+
+  /**
+   * Returns true if a library's current roots, given by {@code currentUrls}, are exactly the
+   * expected roots, in the same order.
+   */
+  @VisibleForTesting
+  static boolean hasRoots(
+      Function<OrderRootType, String[]> currentUrls,
+      ImmutableListMultimap<OrderRootType, String> roots) {
+    for (OrderRootType type : Sets.union(MANAGED_ROOT_TYPES, roots.keySet())) {
+      if (!Arrays.asList(currentUrls.apply(type)).equals(roots.get(type))) {
+        return false;
       }
     }
-    blazeLibrary.modifyLibraryModel(project, artifactLocationDecoder, libraryModel);
+    return true;
   }
 
   /**
@@ -18,12 +18,14 @@ package com.google.idea.blaze.base.sync.projectstructure;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.idea.blaze.base.io.FileOperationProvider;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.PrintOutput;
 import com.google.idea.blaze.base.settings.BlazeImportSettings;
 import com.google.idea.blaze.base.sync.BlazeSyncPlugin;
 import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
+import com.google.idea.common.experiments.BoolExperiment;
 import com.google.idea.sdkcompat.general.BaseSdkCompat;
 import com.intellij.ide.highlighter.ModuleFileType;
 import com.intellij.openapi.application.ApplicationManager;
@@ -36,6 +38,7 @@ import com.intellij.openapi.module.ModuleType;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CompilerModuleExtension;
 import com.intellij.openapi.roots.ModifiableRootModel;
+import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.roots.impl.ModifiableModelCommitter;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -43,6 +46,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /** Module editor implementation. */
@@ -51,11 +55,19 @@ public class ModuleEditorImpl implements BlazeSyncPlugin.ModuleEditor {
   private static final String EXTERNAL_SYSTEM_ID_KEY = "external.system.id";
   private static final String EXTERNAL_SYSTEM_ID_VALUE = "Blaze";
 
+  /**
+   * If true, modules whose structure is unchanged aren't committed, so a sync which doesn't change
+   * the project structure doesn't trigger a roots change.
+   */
+  private static final BoolExperiment skipUnchangedModules =
+      new BoolExperiment("blaze.sync.skip.unchanged.modules", true);
+
   private final Project project;
   private final IdeModifiableModelsProvider modelsProvider;
   private final ModifiableModuleModel moduleModel;
   private final File imlDirectory;
   @VisibleForTesting public Map<String, ModifiableRootModel> modules = Maps.newHashMap();
+  private final Set<String> newModules = Sets.newHashSet();
 
   public ModuleEditorImpl(Project project, BlazeImportSettings importSettings) {
     this.project = project;
@@ -78,6 +90,7 @@ public class ModuleEditorImpl implements BlazeSyncPlugin.ModuleEditor {
       removeImlFile(imlFile);
       module = moduleModel.newModule(imlFile.getPath(), moduleType.getId());
       module.setOption(EXTERNAL_SYSTEM_ID_KEY, EXTERNAL_SYSTEM_ID_VALUE);
+      newModules.add(module.getName());
     }
     // setOption(..) can be slow on existing modules when the new project model is used. From
     // 2021.2.1 on, setOption(..) will first check whether the option already has the passed value
@@ -142,7 +155,30 @@ public class ModuleEditorImpl implements BlazeSyncPlugin.ModuleEditor {
 
   @Override
   public void commit() {
-    ModifiableModelCommitter.multiCommit(modules.values(), moduleModel);
+    if (!skipUnchangedModules.getValue()) {
+      ModifiableModelCommitter.multiCommit(modules.values(), moduleModel);
+      return;
+    }
+    // The modules are rebuilt from scratch on every sync. Only commit those which actually changed,
+    // as every commit triggers a roots change.
+    List<ModifiableRootModel> changedModules = Lists.newArrayList();
+    for (ModifiableRootModel modifiableModel : modules.values()) {
+      Module module = modifiableModel.getModule();
+      if (newModules.contains(module.getName())
+          || !RootModelComparator.isEquivalent(
+              ModuleRootManager.getInstance(module), modifiableModel)) {
+        changedModules.add(modifiableModel);
+      } else {
+        modifiableModel.dispose();
+      }
+    }
+    logger.info(
+        String.format("Committing %d of %d modules", changedModules.size(), modules.size()));
+    if (changedModules.isEmpty() && !moduleModel.isChanged()) {
+      moduleModel.dispose();
+      return;
+    }
+    ModifiableModelCommitter.multiCommit(changedModules, moduleModel);
   }
 
   private File getImlDirectory(BlazeImportSettings importSettings) {
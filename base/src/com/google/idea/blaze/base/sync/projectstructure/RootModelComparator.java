@@ -0,0 +1,164 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.projectstructure;
+
+import com.intellij.openapi.roots.ContentEntry;
+import com.intellij.openapi.roots.ExportableOrderEntry;
+import com.intellij.openapi.roots.JdkOrderEntry;
+import com.intellij.openapi.roots.LibraryOrderEntry;
+import com.intellij.openapi.roots.ModuleExtension;
+import com.intellij.openapi.roots.ModuleOrderEntry;
+import com.intellij.openapi.roots.ModuleRootModel;
+import com.intellij.openapi.roots.OrderEntry;
+import com.intellij.openapi.roots.SourceFolder;
+import com.intellij.openapi.roots.impl.ModuleRootManagerEx;
+import java.util.Objects;
+import org.jetbrains.jps.model.JpsDummyElement;
+import org.jetbrains.jps.model.JpsElement;
+import org.jetbrains.jps.model.java.JavaResourceRootProperties;
+import org.jetbrains.jps.model.java.JavaSourceRootProperties;
+
+/**
+ * Compares the structure of two module root models: content entries, source and exclude folders
+ * (including their root properties), order entries, SDK and module extensions (e.g. compiler
+ * output and language level settings).
+ *
+ * <p>Used to skip committing modules which a sync rebuilt without changing, since every commit
+ * triggers a roots change and re-indexing of the affected roots. Anything the comparator doesn't
+ * know how to compare is treated as changed, so the module is committed.
+ */
+final class RootModelComparator {
+
+  private RootModelComparator() {}
+
+  /**
+   * Returns true if the two models have the same structure.
+   *
+   * @param modified a modifiable model of the same module as {@code committed}. Its module
+   *     extensions are compared with those of the committed model they were copied from.
+   */
+  static boolean isEquivalent(ModuleRootModel committed, ModuleRootModel modified) {
+    return committed.isSdkInherited() == modified.isSdkInherited()
+        && Objects.equals(committed.getSdkName(), modified.getSdkName())
+        && contentEntriesEquivalent(committed.getContentEntries(), modified.getContentEntries())
+        && orderEntriesEquivalent(committed.getOrderEntries(), modified.getOrderEntries())
+        && !moduleExtensionsChanged(modified);
+  }
+
+  private static boolean contentEntriesEquivalent(ContentEntry[] a, ContentEntry[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; i++) {
+      if (!a[i].getUrl().equals(b[i].getUrl())
+          || !a[i].getExcludeFolderUrls().equals(b[i].getExcludeFolderUrls())
+          || !a[i].getExcludePatterns().equals(b[i].getExcludePatterns())
+          || !sourceFoldersEquivalent(a[i].getSourceFolders(), b[i].getSourceFolders())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean sourceFoldersEquivalent(SourceFolder[] a, SourceFolder[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; i++) {
+      if (!a[i].getUrl().equals(b[i].getUrl())
+          || !a[i].getRootType().equals(b[i].getRootType())
+          || !rootPropertiesEquivalent(
+              a[i].getJpsElement().getProperties(), b[i].getJpsElement().getProperties())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean rootPropertiesEquivalent(JpsElement a, JpsElement b) {
+    if (a.getClass() != b.getClass()) {
+      return false;
+    }
+    if (a instanceof JavaSourceRootProperties) {
+      JavaSourceRootProperties sourceA = (JavaSourceRootProperties) a;
+      JavaSourceRootProperties sourceB = (JavaSourceRootProperties) b;
+      return sourceA.getPackagePrefix().equals(sourceB.getPackagePrefix())
+          && sourceA.isForGeneratedSources() == sourceB.isForGeneratedSources();
+    }
+    if (a instanceof JavaResourceRootProperties) {
+      JavaResourceRootProperties resourceA = (JavaResourceRootProperties) a;
+      JavaResourceRootProperties resourceB = (JavaResourceRootProperties) b;
+      return resourceA.getRelativeOutputPath().equals(resourceB.getRelativeOutputPath())
+          && resourceA.isForGeneratedSources() == resourceB.isForGeneratedSources();
+    }
+    // unknown properties can't be compared
+    return a instanceof JpsDummyElement;
+  }
+
+  private static boolean orderEntriesEquivalent(OrderEntry[] a, OrderEntry[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; i++) {
+      if (!orderEntryEquivalent(a[i], b[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean orderEntryEquivalent(OrderEntry a, OrderEntry b) {
+    if (a.getClass() != b.getClass() || !a.getPresentableName().equals(b.getPresentableName())) {
+      return false;
+    }
+    if (a instanceof ExportableOrderEntry) {
+      ExportableOrderEntry exportableA = (ExportableOrderEntry) a;
+      ExportableOrderEntry exportableB = (ExportableOrderEntry) b;
+      if (exportableA.isExported() != exportableB.isExported()
+          || exportableA.getScope() != exportableB.getScope()) {
+        return false;
+      }
+    }
+    if (a instanceof LibraryOrderEntry) {
+      LibraryOrderEntry libraryA = (LibraryOrderEntry) a;
+      LibraryOrderEntry libraryB = (LibraryOrderEntry) b;
+      return Objects.equals(libraryA.getLibraryName(), libraryB.getLibraryName())
+          && libraryA.getLibraryLevel().equals(libraryB.getLibraryLevel());
+    }
+    if (a instanceof ModuleOrderEntry) {
+      return ((ModuleOrderEntry) a).getModuleName().equals(((ModuleOrderEntry) b).getModuleName());
+    }
+    if (a instanceof JdkOrderEntry) {
+      return Objects.equals(((JdkOrderEntry) a).getJdkName(), ((JdkOrderEntry) b).getJdkName());
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if any module extension of the modifiable model differs from the committed one it
+   * was copied from.
+   */
+  private static boolean moduleExtensionsChanged(ModuleRootModel modified) {
+    for (ModuleExtension extension :
+        ModuleRootManagerEx.MODULE_EXTENSION_NAME.getExtensions(modified.getModule())) {
+      ModuleExtension modifiedExtension = modified.getModuleExtension(extension.getClass());
+      if (modifiedExtension != null && modifiedExtension.isChanged()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
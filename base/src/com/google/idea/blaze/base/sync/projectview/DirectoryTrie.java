@@ -0,0 +1,88 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.projectview;
+
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import java.util.Collection;
+import javax.annotation.Nullable;
+
+/**
+ * The included and excluded directories of a project, stored as a trie of path segments.
+ *
+ * <p>Lookups walk a relative path one segment at a time without allocating, so their cost depends
+ * on the depth of the path rather than on the number of directories.
+ */
+final class DirectoryTrie {
+
+  private final PathSegmentNode<Directory> root = new PathSegmentNode<>();
+
+  DirectoryTrie(
+      Collection<WorkspacePath> rootDirectories, Collection<WorkspacePath> excludeDirectories) {
+    for (WorkspacePath rootDirectory : rootDirectories) {
+      Directory directory = getOrAdd(rootDirectory);
+      if (directory.rootDirectory == null) {
+        directory.rootDirectory = rootDirectory;
+      }
+    }
+    for (WorkspacePath excludeDirectory : excludeDirectories) {
+      getOrAdd(excludeDirectory).excluded = true;
+    }
+  }
+
+  private Directory getOrAdd(WorkspacePath path) {
+    PathSegmentNode<Directory> node = root.getOrAddDescendant(path.relativePath());
+    if (node.value == null) {
+      node.value = new Directory();
+    }
+    return node.value;
+  }
+
+  /**
+   * Returns the outermost root directory containing the given workspace-relative path, or null if
+   * the path isn't under any root directory or is under an excluded directory.
+   */
+  @Nullable
+  WorkspacePath findRootDirectory(String relativePath) {
+    PathSegmentNode<Directory> node = root;
+    WorkspacePath result = null;
+    int start = 0;
+    while (true) {
+      Directory directory = node.value;
+      if (directory != null) {
+        if (directory.excluded) {
+          return null;
+        }
+        if (result == null) {
+          result = directory.rootDirectory;
+        }
+      }
+      if (start >= relativePath.length()) {
+        return result;
+      }
+      int end = PathSegmentNode.segmentEnd(relativePath, start, relativePath.length());
+      node = node.getChild(relativePath, start, end);
+      if (node == null) {
+        return result;
+      }
+      start = end + 1;
+    }
+  }
+
+  private static final class Directory {
+    @Nullable WorkspacePath rootDirectory;
+    boolean excluded;
+  }
+}
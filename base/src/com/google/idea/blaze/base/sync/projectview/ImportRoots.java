@@ -37,8 +37,6 @@ import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
 import com.google.idea.blaze.base.util.WorkspacePathUtil;
 import com.google.idea.common.experiments.BoolExperiment;
 import com.intellij.openapi.project.Project;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Set;
 import javax.annotation.Nullable;
@@ -199,36 +197,35 @@ public final class ImportRoots {
     return projectDirectories.containsWorkspacePath(workspacePath);
   }
 
+  /**
+   * Returns the root directory containing the given workspace-relative path, or null if the path
+   * isn't under any root directory or is excluded.
+   */
+  @Nullable
+  public WorkspacePath findRootDirectory(String relativePath) {
+    return projectDirectories.findRootDirectory(relativePath);
+  }
+
   static class ProjectDirectoriesHelper {
     private final ImmutableSet<WorkspacePath> rootDirectories;
     private final ImmutableSet<WorkspacePath> excludeDirectories;
+    private final DirectoryTrie trie;
 
     @VisibleForTesting
     ProjectDirectoriesHelper(
         Collection<WorkspacePath> rootDirectories, Collection<WorkspacePath> excludeDirectories) {
       this.rootDirectories = ImmutableSet.copyOf(rootDirectories);
       this.excludeDirectories = ImmutableSet.copyOf(excludeDirectories);
+      this.trie = new DirectoryTrie(this.rootDirectories, this.excludeDirectories);
     }
 
     boolean containsWorkspacePath(WorkspacePath workspacePath) {
-      boolean included = false;
-      boolean excluded = false;
-      for (WorkspacePath rootDirectory : rootDirectories) {
-        included = included || isSubdirectory(rootDirectory, workspacePath);
-      }
-      for (WorkspacePath excludeDirectory : excludeDirectories) {
-        excluded = excluded || isSubdirectory(excludeDirectory, workspacePath);
-      }
-      return included && !excluded;
+      return findRootDirectory(workspacePath.relativePath()) != null;
     }
 
-    private static boolean isSubdirectory(WorkspacePath ancestor, WorkspacePath descendant) {
-      if (ancestor.isWorkspaceRoot()) {
-        return true;
-      }
-      Path ancestorPath = FileSystems.getDefault().getPath(ancestor.relativePath());
-      Path descendantPath = FileSystems.getDefault().getPath(descendant.relativePath());
-      return descendantPath.startsWith(ancestorPath);
+    @Nullable
+    WorkspacePath findRootDirectory(String relativePath) {
+      return trie.findRootDirectory(relativePath);
     }
   }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.projectview;
+
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * A node in a trie of workspace-relative paths, with one edge per path segment.
+ *
+ * <p>Children are looked up by a range of a path string, so walking a path doesn't allocate.
+ */
+final class PathSegmentNode<T> {
+  private static final String[] NO_NAMES = new String[0];
+  private static final PathSegmentNode<?>[] NO_CHILDREN = new PathSegmentNode<?>[0];
+
+  /** Child segment names, sorted. */
+  private String[] names = NO_NAMES;
+
+  @SuppressWarnings("unchecked")
+  private PathSegmentNode<T>[] children = (PathSegmentNode<T>[]) NO_CHILDREN;
+
+  @Nullable T value;
+
+  /** Returns the node for the given relative path, adding any missing nodes. */
+  PathSegmentNode<T> getOrAddDescendant(String relativePath) {
+    PathSegmentNode<T> node = this;
+    if (relativePath.isEmpty()) {
+      return node;
+    }
+    for (String segment : relativePath.split("/")) {
+      int index = Arrays.binarySearch(node.names, segment);
+      if (index < 0) {
+        index = -index - 1;
+        node.names = insert(node.names, index, segment);
+        node.children = insert(node.children, index, new PathSegmentNode<>());
+      }
+      node = node.children[index];
+    }
+    return node;
+  }
+
+  /** Returns the child for the segment {@code path[start, end)}, or null if there is none. */
+  @Nullable
+  PathSegmentNode<T> getChild(String path, int start, int end) {
+    int low = 0;
+    int high = names.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int comparison = compare(names[mid], path, start, end);
+      if (comparison < 0) {
+        low = mid + 1;
+      } else if (comparison > 0) {
+        high = mid - 1;
+      } else {
+        return children[mid];
+      }
+    }
+    return null;
+  }
+
+  /** Returns the end of the path segment starting at {@code start}, up to {@code limit}. */
+  static int segmentEnd(String path, int start, int limit) {
+    int end = path.indexOf('/', start);
+    return end == -1 || end > limit ? limit : end;
+  }
+
+  /** Compares a name with a path segment, consistent with {@link String#compareTo}. */
+  private static int compare(String name, String path, int start, int end) {
+    int length = end - start;
+    int common = Math.min(name.length(), length);
+    for (int i = 0; i < common; i++) {
+      int difference = name.charAt(i) - path.charAt(start + i);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return name.length() - length;
+  }
+
+  private static <E> E[] insert(E[] array, int index, E element) {
+    E[] result = Arrays.copyOf(array, array.length + 1);
+    System.arraycopy(array, index, result, index + 1, array.length - index);
+    result[index] = element;
+    return result;
+  }
+}
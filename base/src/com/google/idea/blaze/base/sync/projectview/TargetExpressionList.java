@@ -24,7 +24,11 @@ import com.google.idea.blaze.base.model.primitives.WildcardTargetPattern;
 import com.google.idea.blaze.base.model.primitives.WorkspacePath;
 import com.google.idea.blaze.base.sync.projectview.ImportRoots.ProjectDirectoriesHelper;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
@@ -34,6 +38,8 @@ import javax.annotation.Nullable;
  */
 public final class TargetExpressionList {
 
+  private static final int NO_PATTERN = Integer.MAX_VALUE;
+
   public static TargetExpressionList create(List<TargetExpression> targets) {
     return new TargetExpressionList(
         targets.stream().map(TargetData::new).collect(toImmutableList()), null);
@@ -54,24 +60,62 @@ public final class TargetExpressionList {
   /** Non-null if we're auto-including targets derived from the project directories. */
   @Nullable private final ProjectDirectoriesHelper directories;
 
+  /** Whether each of {@link #reversedTargets} is excluded. */
+  private final boolean[] excluded;
+
+  /** The wildcard patterns in {@link #reversedTargets}, keyed by base package. */
+  private final PathSegmentNode<PackagePatterns> packagePatterns = new PathSegmentNode<>();
+
+  /** The index in {@link #reversedTargets} of the first expression equal to each target. */
+  private final Map<TargetExpression, Integer> explicitTargets = new HashMap<>();
+
+  private final Set<WorkspacePath> packagesWithIncludedTargets = new HashSet<>();
+
   private TargetExpressionList(
       ImmutableList<TargetData> projectTargets, @Nullable ProjectDirectoriesHelper directories) {
     // reverse list, removing trivially-excluded targets
-    List<TargetData> excluded = new ArrayList<>();
+    List<TargetData> excludedTargets = new ArrayList<>();
     ImmutableList.Builder<TargetData> builder = ImmutableList.builder();
     for (TargetData target : projectTargets.reverse()) {
       if (target.isExcluded()) {
-        excluded.add(target);
+        excludedTargets.add(target);
         builder.add(target);
         continue;
       }
-      boolean drop = excluded.stream().anyMatch(excl -> excl.coversTargetData(target));
+      boolean drop = excludedTargets.stream().anyMatch(excl -> excl.coversTargetData(target));
       if (!drop) {
         builder.add(target);
       }
     }
     this.reversedTargets = builder.build();
     this.directories = directories;
+
+    // compile the patterns, so the first pattern matching a package or target can be found
+    // without iterating over all of them
+    excluded = new boolean[reversedTargets.size()];
+    for (int i = 0; i < reversedTargets.size(); i++) {
+      TargetData target = reversedTargets.get(i);
+      excluded[i] = target.isExcluded();
+      if (target.wildcardPattern != null) {
+        PathSegmentNode<PackagePatterns> node =
+            packagePatterns.getOrAddDescendant(
+                target.wildcardPattern.getBasePackage().relativePath());
+        if (node.value == null) {
+          node.value = new PackagePatterns();
+        }
+        if (target.wildcardPattern.isRecursive()) {
+          node.value.recursive = Math.min(node.value.recursive, i);
+        } else {
+          node.value.nonRecursive = Math.min(node.value.nonRecursive, i);
+        }
+      }
+      if (target.unexcludedExpression != null) {
+        explicitTargets.putIfAbsent(target.unexcludedExpression, i);
+      }
+      if (!target.isExcluded() && target.unexcludedExpression instanceof Label) {
+        packagesWithIncludedTargets.add(((Label) target.unexcludedExpression).blazePackage());
+      }
+    }
   }
 
   /** Returns the original list of targets with trivially-excluded targets removed. */
@@ -83,11 +127,10 @@ public final class TargetExpressionList {
 
   /** Returns true if the entire package is covered by the target expressions. */
   public boolean includesPackage(WorkspacePath packagePath) {
-    // the last target expression to cover this label overrides all previous expressions
-    for (TargetData target : reversedTargets) {
-      if (target.coversPackage(packagePath)) {
-        return !target.isExcluded();
-      }
+    String path = packagePath.relativePath();
+    int index = findPackagePattern(path, 0, path.length());
+    if (index != NO_PATTERN) {
+      return !excluded[index];
     }
     return directories != null && directories.containsWorkspacePath(packagePath);
   }
@@ -95,34 +138,65 @@ public final class TargetExpressionList {
   /** Returns true if any target in the package is covered by these target expressions. */
   public boolean includesAnyTargetInPackage(WorkspacePath packagePath) {
     // first check if the entire package is included/excluded
-    for (TargetData target : reversedTargets) {
-      if (target.coversPackage(packagePath)) {
-        return !target.isExcluded();
-      }
+    String path = packagePath.relativePath();
+    int index = findPackagePattern(path, 0, path.length());
+    if (index != NO_PATTERN) {
+      return !excluded[index];
     }
     if (directories != null && directories.containsWorkspacePath(packagePath)) {
       return true;
     }
     // fall back to looking for any unexcluded expression including a target in this package
-    for (TargetData target : reversedTargets) {
-      if (!target.isExcluded() && target.inPackage(packagePath)) {
-        return true;
-      }
-    }
-    return false;
+    return packagesWithIncludedTargets.contains(packagePath);
   }
 
   /** Returns true if the individual target is covered by this list. */
   public boolean includesTarget(Label label) {
-    // the last target expression to cover this label overrides all previous expressions
-    for (TargetData target : reversedTargets) {
-      if (target.coversTarget(label)) {
-        return !target.isExcluded();
-      }
+    String labelString = label.toString();
+    int index =
+        findPackagePattern(
+            labelString, labelString.indexOf("//") + "//".length(), labelString.lastIndexOf(':'));
+    Integer explicitIndex = explicitTargets.get(label);
+    if (explicitIndex != null && explicitIndex < index) {
+      index = explicitIndex;
+    }
+    if (index != NO_PATTERN) {
+      return !excluded[index];
     }
     return directories != null && directories.containsWorkspacePath(label.blazePackage());
   }
 
+  /**
+   * Returns the index in {@link #reversedTargets} of the first wildcard pattern covering the
+   * package {@code path[start, end)}, or {@link #NO_PATTERN} if none do.
+   */
+  private int findPackagePattern(String path, int start, int end) {
+    PathSegmentNode<PackagePatterns> node = packagePatterns;
+    int result = NO_PATTERN;
+    int position = start;
+    while (true) {
+      PackagePatterns patterns = node.value;
+      if (patterns != null) {
+        result = Math.min(result, patterns.recursive);
+      }
+      if (position >= end) {
+        return patterns != null ? Math.min(result, patterns.nonRecursive) : result;
+      }
+      int segmentEnd = PathSegmentNode.segmentEnd(path, position, end);
+      node = node.getChild(path, position, segmentEnd);
+      if (node == null) {
+        return result;
+      }
+      position = segmentEnd + 1;
+    }
+  }
+
+  /** The first wildcard patterns based at a package, by index in {@link #reversedTargets}. */
+  private static class PackagePatterns {
+    int recursive = NO_PATTERN;
+    int nonRecursive = NO_PATTERN;
+  }
+
   /** A single {@link TargetExpression} and associated information. */
   private static class TargetData {
     private final TargetExpression originalExpression;
@@ -164,13 +238,5 @@ public final class TargetExpressionList {
               && wildcardPattern.coversPackage(data.wildcardPattern.getBasePackage())
           : wildcardPattern.coversPackage(data.wildcardPattern.getBasePackage());
     }
-
-    boolean inPackage(WorkspacePath path) {
-      if (coversPackage(path)) {
-        return true;
-      }
-      return unexcludedExpression instanceof Label
-          && ((Label) unexcludedExpression).blazePackage().equals(path);
-    }
   }
 }
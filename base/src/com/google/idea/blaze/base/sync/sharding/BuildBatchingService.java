@@ -20,6 +20,7 @@ import com.google.idea.blaze.base.bazel.BuildSystem.SyncStrategy;
 import com.google.idea.blaze.base.logging.utils.ShardStats.ShardingApproach;
 import com.google.idea.blaze.base.model.primitives.Label;
 import com.intellij.openapi.extensions.ExtensionPointName;
+import com.intellij.openapi.project.Project;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.Set;
@@ -50,6 +51,19 @@ public interface BuildBatchingService {
   ImmutableList<ImmutableList<Label>> calculateTargetBatches(
       Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize);
 
+  /**
+   * Given a list of individual, un-excluded blaze targets (no wildcard target patterns), returns a
+   * list of target batches for the given project.
+   *
+   * <p>Implementations which use state from previous syncs can override this. By default it ignores
+   * the project.
+   */
+  @Nullable
+  default ImmutableList<ImmutableList<Label>> calculateTargetBatches(
+      Project project, Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize) {
+    return calculateTargetBatches(targets, syncStrategy, suggestedShardSize);
+  }
+
   ShardingApproach getShardingApproach();
 
   /**
@@ -60,9 +74,9 @@ public interface BuildBatchingService {
    * else falling back to returning a single batch.
    */
   static ShardedTargetList batchTargets(
-      Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize) {
+      Project project, Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize) {
     return Arrays.stream(EP_NAME.getExtensions())
-        .map(s -> s.getShardedTargetList(targets, syncStrategy, suggestedShardSize))
+        .map(s -> s.getShardedTargetList(project, targets, syncStrategy, suggestedShardSize))
         .filter(Objects::nonNull)
         .findFirst()
         .orElse(
@@ -80,9 +94,9 @@ public interface BuildBatchingService {
    */
   @Nullable
   default ShardedTargetList getShardedTargetList(
-      Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize) {
+      Project project, Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize) {
     ImmutableList<ImmutableList<Label>> targetBatches =
-        calculateTargetBatches(targets, syncStrategy, suggestedShardSize);
+        calculateTargetBatches(project, targets, syncStrategy, suggestedShardSize);
     return targetBatches == null
         ? null
         : new ShardedTargetList(targetBatches, getShardingApproach(), suggestedShardSize);
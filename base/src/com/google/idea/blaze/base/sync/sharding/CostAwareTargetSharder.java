@@ -0,0 +1,174 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.idea.blaze.base.sync.sharding.LexicographicTargetSharder.maximumRemoteShardSize;
+import static com.google.idea.blaze.base.sync.sharding.LexicographicTargetSharder.minimumRemoteShardSize;
+import static com.google.idea.blaze.base.sync.sharding.LexicographicTargetSharder.parallelThreshold;
+import static com.google.idea.blaze.base.sync.sharding.ShardedTargetList.remoteConcurrentSyncs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.idea.blaze.base.bazel.BuildSystem.SyncStrategy;
+import com.google.idea.blaze.base.logging.utils.ShardStats.ShardingApproach;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.common.experiments.BoolExperiment;
+import com.intellij.openapi.project.Project;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * Balances remote build shards by the build cost of their targets in previous syncs, keeping the
+ * targets of a package together where possible.
+ *
+ * <p>Returns null (deferring to {@link LexicographicTargetSharder}) when building serially, or
+ * when too few of the targets have a recorded cost.
+ */
+public class CostAwareTargetSharder implements BuildBatchingService {
+
+  private static final BoolExperiment enabled =
+      new BoolExperiment("cost.aware.sharder.enabled", true);
+
+  /** The fraction of targets needing a recorded cost before shards are balanced by cost. */
+  @VisibleForTesting static final double MINIMUM_HISTORY_COVERAGE = 0.5;
+
+  @Nullable
+  @Override
+  public ImmutableList<ImmutableList<Label>> calculateTargetBatches(
+      Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize) {
+    // there's no cost history without a project
+    return null;
+  }
+
+  @Nullable
+  @Override
+  public ImmutableList<ImmutableList<Label>> calculateTargetBatches(
+      Project project, Set<Label> targets, SyncStrategy syncStrategy, int suggestedShardSize) {
+    if (!enabled.getValue() || syncStrategy == SyncStrategy.SERIAL || targets.isEmpty()) {
+      return null;
+    }
+    TargetBuildCostHistory history = TargetBuildCostHistory.load(project);
+    Map<Label, Double> costs = new HashMap<>();
+    for (Label target : targets) {
+      Double cost = history.getBuildMillis(target);
+      if (cost != null) {
+        costs.put(target, cost);
+      }
+    }
+    if (costs.size() < targets.size() * MINIMUM_HISTORY_COVERAGE) {
+      return null;
+    }
+    int shardSize =
+        LexicographicTargetSharder.computeParallelShardSize(
+            targets.size(),
+            parallelThreshold.getValue(),
+            remoteConcurrentSyncs.getValue(),
+            minimumRemoteShardSize.getValue(),
+            maximumRemoteShardSize.getValue(),
+            suggestedShardSize);
+    int shardCount = (targets.size() + shardSize - 1) / shardSize;
+    // shards may grow past the computed size to balance costs, but no larger than the limits the
+    // computed size is clamped to
+    int maxShardSize =
+        Math.max(shardSize, Math.min(suggestedShardSize, maximumRemoteShardSize.getValue()));
+    return balanceShards(targets, costs, shardCount, maxShardSize);
+  }
+
+  /**
+   * Partitions targets into at least {@code shardCount} shards of at most {@code maxShardSize}
+   * targets, with roughly equal total cost.
+   *
+   * <p>Targets are grouped by package, then the most expensive groups are greedily assigned to the
+   * cheapest shard with room for them. Targets without a recorded cost are assumed to cost the
+   * average of those with one. Shards are returned in decreasing order of cost, so the slowest
+   * shards start first.
+   */
+  @VisibleForTesting
+  static ImmutableList<ImmutableList<Label>> balanceShards(
+      Set<Label> targets, Map<Label, Double> costs, int shardCount, int maxShardSize) {
+    double defaultCost =
+        costs.values().stream().mapToDouble(Double::doubleValue).average().orElse(1.0);
+
+    Map<String, List<Label>> packages = new TreeMap<>();
+    for (Label target : targets) {
+      packages
+          .computeIfAbsent(target.blazePackage().relativePath(), p -> new ArrayList<>())
+          .add(target);
+    }
+    List<Group> groups = new ArrayList<>();
+    for (List<Label> packageTargets : packages.values()) {
+      packageTargets.sort(Comparator.comparing(Label::toString));
+      for (List<Label> chunk : Lists.partition(packageTargets, maxShardSize)) {
+        double cost = chunk.stream().mapToDouble(t -> costs.getOrDefault(t, defaultCost)).sum();
+        groups.add(new Group(chunk, cost));
+      }
+    }
+    groups.sort(Comparator.comparingDouble((Group g) -> g.cost).reversed());
+
+    List<Shard> shards = new ArrayList<>();
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new Shard());
+    }
+    for (Group group : groups) {
+      Shard cheapest = null;
+      for (Shard shard : shards) {
+        if (shard.targets.size() + group.targets.size() <= maxShardSize
+            && (cheapest == null || shard.cost < cheapest.cost)) {
+          cheapest = shard;
+        }
+      }
+      if (cheapest == null) {
+        cheapest = new Shard();
+        shards.add(cheapest);
+      }
+      cheapest.targets.addAll(group.targets);
+      cheapest.cost += group.cost;
+    }
+    return shards.stream()
+        .filter(s -> !s.targets.isEmpty())
+        .sorted(Comparator.comparingDouble((Shard s) -> s.cost).reversed())
+        .map(s -> ImmutableList.sortedCopyOf(Comparator.comparing(Label::toString), s.targets))
+        .collect(toImmutableList());
+  }
+
+  @Override
+  public ShardingApproach getShardingApproach() {
+    return ShardingApproach.COST_AWARE_TARGET_SHARDER;
+  }
+
+  private static class Group {
+    final List<Label> targets;
+    final double cost;
+
+    Group(List<Label> targets, double cost) {
+      this.targets = targets;
+      this.cost = cost;
+    }
+  }
+
+  private static class Shard {
+    final List<Label> targets = new ArrayList<>();
+    double cost;
+  }
+}
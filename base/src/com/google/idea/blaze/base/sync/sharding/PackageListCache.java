@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.sync.data.StampedEntryCache;
+import com.intellij.openapi.project.Project;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * The listings of workspace directories seen while expanding wildcard target patterns, validated
+ * by the directory's modification time and persisted in the project cache directory between
+ * syncs.
+ *
+ * <p>A directory's modification time changes whenever an entry is added, removed or renamed, so a
+ * cached listing stays valid until the set of child directories or BUILD files changes.
+ */
+final class PackageListCache {
+  private static final String FILE_NAME = "package_listings.dat";
+  private static final int MAGIC = 0x425a504c; // "BZPL"
+  private static final int VERSION = 2;
+
+  /** A directory listing: whether the directory contains a BUILD file, and its subdirectories. */
+  static final class Listing {
+    final boolean hasBuildFile;
+    final ImmutableList<String> subdirectories;
+
+    Listing(boolean hasBuildFile, ImmutableList<String> subdirectories) {
+      this.hasBuildFile = hasBuildFile;
+      this.subdirectories = subdirectories;
+    }
+  }
+
+  private static final StampedEntryCache.ValueCodec<Listing> CODEC =
+      new StampedEntryCache.ValueCodec<Listing>() {
+        @Override
+        public void write(DataOutputStream out, Listing listing) throws IOException {
+          out.writeBoolean(listing.hasBuildFile);
+          out.writeInt(listing.subdirectories.size());
+          for (String subdirectory : listing.subdirectories) {
+            out.writeUTF(subdirectory);
+          }
+        }
+
+        @Override
+        public Listing read(DataInputStream in) throws IOException {
+          boolean hasBuildFile = in.readBoolean();
+          int subdirectoryCount = in.readInt();
+          ImmutableList.Builder<String> subdirectories = ImmutableList.builder();
+          for (int i = 0; i < subdirectoryCount; i++) {
+            subdirectories.add(in.readUTF());
+          }
+          return new Listing(hasBuildFile, subdirectories.build());
+        }
+      };
+
+  private final StampedEntryCache<Listing> cache;
+
+  @VisibleForTesting
+  PackageListCache(@Nullable File cacheFile) {
+    this(new StampedEntryCache<>(cacheFile, MAGIC, VERSION, CODEC));
+  }
+
+  private PackageListCache(StampedEntryCache<Listing> cache) {
+    this.cache = cache;
+  }
+
+  /** Loads the cache for the given project. */
+  static PackageListCache load(Project project) {
+    return new PackageListCache(StampedEntryCache.load(project, FILE_NAME, MAGIC, VERSION, CODEC));
+  }
+
+  /**
+   * Returns the cached listing of the given workspace-relative directory, or null if there is none
+   * or the directory has been modified since it was cached.
+   */
+  @Nullable
+  Listing get(String relativePath, long modifiedTime) {
+    // a directory's size doesn't reliably reflect its contents, so only its modification time is
+    // checked
+    return cache.get(relativePath, modifiedTime, /* size= */ 0);
+  }
+
+  void put(String relativePath, long modifiedTime, Listing listing) {
+    cache.put(relativePath, modifiedTime, /* size= */ 0, listing);
+  }
+
+  /** Writes the used entries back to the cache file, if they changed since loading. */
+  void save() {
+    cache.save();
+  }
+
+  @VisibleForTesting
+  void read(File file) throws IOException {
+    cache.read(file);
+  }
+
+  @VisibleForTesting
+  void write(File file) throws IOException {
+    cache.write(file);
+  }
+}
@@ -15,11 +15,13 @@
  */
 package com.google.idea.blaze.base.sync.sharding;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.base.async.FutureUtil;
 import com.google.idea.blaze.base.async.FutureUtil.FutureResult;
 import com.google.idea.blaze.base.bazel.BuildSystemProvider;
@@ -30,17 +32,23 @@ import com.google.idea.blaze.base.model.primitives.WorkspacePath;
 import com.google.idea.blaze.base.prefetch.FetchExecutor;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.scopes.TimingScope.EventType;
+import com.google.idea.blaze.base.sync.sharding.PackageListCache.Listing;
 import com.google.idea.blaze.base.sync.workspace.WorkspacePathResolver;
 import com.google.idea.blaze.base.util.WorkspacePathUtil;
+import com.google.idea.common.experiments.BoolExperiment;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -50,20 +58,46 @@ import javax.annotation.Nullable;
  */
 class PackageLister {
 
+  private static final BoolExperiment parallelTraversal =
+      new BoolExperiment("blaze.sync.parallel.package.traversal", true);
+
+  private static final int MAX_TRAVERSAL_THREADS = 32;
+
+  private static final ForkJoinPool TRAVERSAL_POOL =
+      new ForkJoinPool(
+          Math.min(MAX_TRAVERSAL_THREADS, 2 * Runtime.getRuntime().availableProcessors()));
+
+  /** The coarsest file system modification time granularity we expect to encounter. */
+  private static final long MODIFIED_TIME_GRANULARITY_MILLIS = 2000;
+
   private PackageLister() {}
 
-  /** The set of blaze packages to prefetch prior to traversing the directory tree. */
+  /**
+   * The set of blaze packages to prefetch prior to traversing the directory tree.
+   *
+   * <p>{@code wildcardPatterns} are in project view order, including excluded patterns. As with
+   * {@link #expandPackageTargets}, an included pattern's base package is skipped only if a later
+   * recursive exclude covers it.
+   */
   static Set<File> getDirectoriesToPrefetch(
-      WorkspacePathResolver pathResolver,
-      Collection<WildcardTargetPattern> includes,
-      Predicate<WorkspacePath> excluded) {
+      WorkspacePathResolver pathResolver, List<WildcardTargetPattern> wildcardPatterns) {
     Set<WorkspacePath> prefetchPaths = new HashSet<>();
-    for (WildcardTargetPattern pattern : includes) {
-      WorkspacePath workspacePath = pattern.getBasePackage();
-      if (excluded.test(workspacePath)) {
+    for (int i = 0; i < wildcardPatterns.size(); i++) {
+      WildcardTargetPattern pattern = wildcardPatterns.get(i);
+      if (pattern.isExcluded()) {
         continue;
       }
-      prefetchPaths.add(workspacePath);
+      WorkspacePath workspacePath = pattern.getBasePackage();
+      boolean excluded =
+          wildcardPatterns.subList(i + 1, wildcardPatterns.size()).stream()
+              .anyMatch(
+                  later ->
+                      later.isExcluded()
+                          && later.isRecursive()
+                          && later.coversPackage(workspacePath));
+      if (!excluded) {
+        prefetchPaths.add(workspacePath);
+      }
     }
     return WorkspacePathUtil.calculateMinimalWorkspacePaths(prefetchPaths)
         .stream()
@@ -75,6 +109,9 @@ class PackageLister {
    * Expands all-in-package-recursive wildcard targets into all-in-single-package targets by
    * traversing the file system, looking for child blaze packages.
    *
+   * <p>{@code wildcardPatterns} are in project view order, including excluded patterns. Subtrees
+   * which are ignored, or excluded by a later recursive pattern, aren't traversed.
+   *
    * <p>Returns null if directory traversal failed or was cancelled.
    */
   @Nullable
@@ -82,43 +119,203 @@ class PackageLister {
       BuildSystemProvider provider,
       BlazeContext context,
       WorkspacePathResolver pathResolver,
-      Collection<WildcardTargetPattern> wildcardPatterns) {
+      List<WildcardTargetPattern> wildcardPatterns,
+      Collection<WorkspacePath> ignoredPaths,
+      PackageListCache cache) {
+    boolean parallel = parallelTraversal.getValue();
+    AtomicBoolean cancelled = new AtomicBoolean();
+    long cacheableBefore = System.currentTimeMillis() - MODIFIED_TIME_GRANULARITY_MILLIS;
     List<ListenableFuture<Entry<TargetExpression, List<TargetExpression>>>> futures =
         Lists.newArrayList();
-    for (WildcardTargetPattern pattern : wildcardPatterns) {
-      if (!pattern.isRecursive() || pattern.toString().startsWith("-")) {
+    Set<TargetExpression> seen = new HashSet<>();
+    for (int i = wildcardPatterns.size() - 1; i >= 0; i--) {
+      WildcardTargetPattern pattern = wildcardPatterns.get(i);
+      // duplicate patterns share a single expansion, which is only pruned by the patterns after
+      // the last duplicate
+      if (!pattern.isRecursive()
+          || pattern.toString().startsWith("-")
+          || !seen.add(pattern.originalPattern)) {
         continue;
       }
       File dir = pathResolver.resolveToFile(pattern.getBasePackage());
       if (!FileOperationProvider.getInstance().isDirectory(dir)) {
         continue;
       }
+      if (!parallel) {
+        futures.add(
+            FetchExecutor.EXECUTOR.submit(
+                () -> {
+                  List<TargetExpression> expandedTargets = new ArrayList<>();
+                  traversePackageRecursively(provider, pathResolver, dir, expandedTargets);
+                  return Maps.immutableEntry(pattern.originalPattern, expandedTargets);
+                }));
+        continue;
+      }
+      Set<String> prunedPaths = new HashSet<>();
+      ignoredPaths.forEach(path -> prunedPaths.add(path.relativePath()));
+      for (WildcardTargetPattern later : wildcardPatterns.subList(i + 1, wildcardPatterns.size())) {
+        if (later.isExcluded() && later.isRecursive()) {
+          prunedPaths.add(later.getBasePackage().relativePath());
+        }
+      }
+      Traversal traversal =
+          new Traversal(provider, pathResolver, cache, prunedPaths, cacheableBefore, cancelled);
+      String basePath = pattern.getBasePackage().relativePath();
       futures.add(
           FetchExecutor.EXECUTOR.submit(
               () -> {
-                List<TargetExpression> expandedTargets = new ArrayList<>();
-                traversePackageRecursively(provider, pathResolver, dir, expandedTargets);
-                return Maps.immutableEntry(pattern.originalPattern, expandedTargets);
+                if (!traversal.isUnderPrunedPath(basePath)) {
+                  TRAVERSAL_POOL.invoke(new ScanDirectory(traversal, basePath));
+                }
+                return Maps.immutableEntry(pattern.originalPattern, traversal.getPackages());
               }));
     }
     if (futures.isEmpty()) {
       return ImmutableMap.of();
     }
+    ListenableFuture<List<Entry<TargetExpression, List<TargetExpression>>>> future =
+        Futures.allAsList(futures);
+    future.addListener(
+        () -> {
+          if (future.isCancelled()) {
+            cancelled.set(true);
+          }
+        },
+        MoreExecutors.directExecutor());
     FutureResult<List<Entry<TargetExpression, List<TargetExpression>>>> result =
-        FutureUtil.waitForFuture(context, Futures.allAsList(futures))
+        FutureUtil.waitForFuture(context, future)
             .withProgressMessage("Expanding wildcard target patterns...")
             .timed("ExpandWildcardTargets", EventType.Other)
             .onError("Expanding wildcard target patterns failed")
             .run();
     if (!result.success()) {
+      cancelled.set(true);
       return null;
     }
+    if (parallel) {
+      cache.save();
+    }
     return result
         .result()
         .stream()
         .collect(Collectors.toMap(Entry::getKey, Entry::getValue, (x, y) -> x));
   }
 
+  /** The state shared by the directory scans expanding a single wildcard pattern. */
+  private static final class Traversal {
+    private final BuildSystemProvider provider;
+    private final WorkspacePathResolver pathResolver;
+    private final FileOperationProvider fileOperationProvider = FileOperationProvider.getInstance();
+    private final PackageListCache cache;
+    private final Set<String> prunedPaths;
+    private final long cacheableBefore;
+    private final AtomicBoolean cancelled;
+    private final Set<String> packages = ConcurrentHashMap.newKeySet();
+
+    Traversal(
+        BuildSystemProvider provider,
+        WorkspacePathResolver pathResolver,
+        PackageListCache cache,
+        Set<String> prunedPaths,
+        long cacheableBefore,
+        AtomicBoolean cancelled) {
+      this.provider = provider;
+      this.pathResolver = pathResolver;
+      this.cache = cache;
+      this.prunedPaths = prunedPaths;
+      this.cacheableBefore = cacheableBefore;
+      this.cancelled = cancelled;
+    }
+
+    boolean isUnderPrunedPath(String relativePath) {
+      String path = relativePath;
+      while (true) {
+        if (prunedPaths.contains(path)) {
+          return true;
+        }
+        if (path.isEmpty()) {
+          return false;
+        }
+        int separator = path.lastIndexOf('/');
+        path = separator == -1 ? "" : path.substring(0, separator);
+      }
+    }
+
+    /** Returns the listing of the given workspace directory, or null if it can't be read. */
+    @Nullable
+    Listing list(String relativePath) {
+      File dir = pathResolver.resolveToFile(relativePath);
+      // zero if the directory doesn't exist or can't be read
+      long modifiedTime = fileOperationProvider.getFileModifiedTime(dir);
+      Listing listing = modifiedTime != 0 ? cache.get(relativePath, modifiedTime) : null;
+      if (listing != null) {
+        return listing;
+      }
+      File[] children = fileOperationProvider.listFiles(dir);
+      if (children == null) {
+        return null;
+      }
+      boolean hasBuildFile = false;
+      List<String> subdirectories = new ArrayList<>();
+      for (File child : children) {
+        String name = child.getName();
+        if (fileOperationProvider.isDirectory(child)) {
+          subdirectories.add(name);
+        } else if (provider.isBuildFile(name) && fileOperationProvider.isFile(child)) {
+          hasBuildFile = true;
+        }
+      }
+      Collections.sort(subdirectories);
+      listing = new Listing(hasBuildFile, ImmutableList.copyOf(subdirectories));
+      // a directory modified this recently could be modified again without its modification time
+      // changing
+      if (modifiedTime != 0 && modifiedTime < cacheableBefore) {
+        cache.put(relativePath, modifiedTime, listing);
+      }
+      return listing;
+    }
+
+    List<TargetExpression> getPackages() {
+      return packages.stream()
+          .sorted()
+          .map(path -> TargetExpression.allFromPackageNonRecursive(new WorkspacePath(path)))
+          .collect(Collectors.toList());
+    }
+  }
+
+  /** Finds the packages under a directory, scanning subdirectories in parallel. */
+  private static final class ScanDirectory extends RecursiveAction {
+    private final Traversal traversal;
+    private final String relativePath;
+
+    ScanDirectory(Traversal traversal, String relativePath) {
+      this.traversal = traversal;
+      this.relativePath = relativePath;
+    }
+
+    @Override
+    protected void compute() {
+      if (traversal.cancelled.get()) {
+        return;
+      }
+      Listing listing = traversal.list(relativePath);
+      if (listing == null) {
+        return;
+      }
+      if (listing.hasBuildFile) {
+        traversal.packages.add(relativePath);
+      }
+      List<ScanDirectory> subdirectories = new ArrayList<>(listing.subdirectories.size());
+      for (String name : listing.subdirectories) {
+        String childPath = relativePath.isEmpty() ? name : relativePath + "/" + name;
+        if (!traversal.prunedPaths.contains(childPath)) {
+          subdirectories.add(new ScanDirectory(traversal, childPath));
+        }
+      }
+      invokeAll(subdirectories);
+    }
+  }
+
   private static void traversePackageRecursively(
       BuildSystemProvider provider,
       WorkspacePathResolver pathResolver,
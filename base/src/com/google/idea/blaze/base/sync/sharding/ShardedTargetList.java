@@ -19,11 +19,12 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.idea.blaze.base.async.FutureUtil;
 import com.google.idea.blaze.base.bazel.BuildSystem.BuildInvoker;
 import com.google.idea.blaze.base.logging.utils.ShardStats;
@@ -33,35 +34,109 @@ import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
 import com.google.idea.blaze.base.scope.output.StatusOutput;
 import com.google.idea.blaze.base.settings.Blaze;
+import com.google.idea.blaze.base.sync.aspects.BlazeBuildOutputs;
 import com.google.idea.blaze.base.sync.aspects.BuildResult;
+import com.google.idea.common.experiments.BoolExperiment;
 import com.google.idea.common.experiments.IntExperiment;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
 import com.intellij.util.concurrency.AppExecutorUtil;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 /** Partitioned list of blaze targets. */
 public class ShardedTargetList {
+  private static final Logger logger = Logger.getInstance(ShardedTargetList.class);
 
   /** Number of concurrent syncs which can be run in parallel remotely. */
   public static final IntExperiment remoteConcurrentSyncs =
       new IntExperiment("number.concurrent.remote.syncs.2", 10);
 
+  /**
+   * Whether pending shards are split when a worker becomes idle and there are fewer pending shards
+   * than workers. Shards aren't split into pieces smaller than the minimum remote shard size.
+   */
+  private static final BoolExperiment splitShardsForIdleWorkers =
+      new BoolExperiment("sharded.build.split.shards.for.idle.workers", true);
+
+  /** The number of times a shard is rebuilt after failing with a transient error. */
+  private static final IntExperiment maxTransientRetries =
+      new IntExperiment("sharded.build.max.transient.retries", 2);
+
+  /** The delay before rebuilding a shard which failed with a transient error, doubled per retry. */
+  private static final IntExperiment transientRetryDelayMillis =
+      new IntExperiment("sharded.build.transient.retry.delay.millis", 5000);
+
   @VisibleForTesting
   final ImmutableList<? extends ImmutableList<? extends TargetExpression>> shardedTargets;
 
   final ShardStats shardStats;
 
+  private final Predicate<? super TargetExpression> isPriorityTarget;
+
+  private final boolean allowSplitting;
+
   public ShardedTargetList(
       ImmutableList<? extends ImmutableList<? extends TargetExpression>> shardedTargets,
       ShardingApproach shardingApproach,
       int suggestedSize) {
-    this.shardedTargets = shardedTargets;
-    this.shardStats =
+    this(
+        shardedTargets,
         ShardStats.create(
             suggestedSize,
             shardedTargets.stream().map(List::size).collect(toImmutableList()),
-            shardingApproach);
+            shardingApproach),
+        target -> false,
+        /* allowSplitting= */ true);
+  }
+
+  private ShardedTargetList(
+      ImmutableList<? extends ImmutableList<? extends TargetExpression>> shardedTargets,
+      ShardStats shardStats,
+      Predicate<? super TargetExpression> isPriorityTarget,
+      boolean allowSplitting) {
+    this.shardedTargets = shardedTargets;
+    this.shardStats = shardStats;
+    this.isPriorityTarget = isPriorityTarget;
+    this.allowSplitting = allowSplitting;
+  }
+
+  /**
+   * Returns a copy of this list which builds the shards with the most matching targets first (e.g.
+   * the targets the user is working on), so they're available as early as possible.
+   */
+  public ShardedTargetList withPriorityTargets(
+      Predicate<? super TargetExpression> isPriorityTarget) {
+    return new ShardedTargetList(shardedTargets, shardStats, isPriorityTarget, allowSplitting);
+  }
+
+  /**
+   * Returns a copy of this list whose shards are never split for idle workers, e.g. so a resumed
+   * build looks up the stored outputs of exactly the shards an interrupted build was given.
+   */
+  public ShardedTargetList withoutSplitting() {
+    return new ShardedTargetList(
+        shardedTargets, shardStats, isPriorityTarget, /* allowSplitting= */ false);
+  }
+
+  /**
+   * Returns the index a shard is split at for idle workers. The first half holds the targets before
+   * it, the second half the rest.
+   */
+  public static int splitPoint(List<?> shard) {
+    return shard.size() / 2;
   }
 
   public boolean isEmpty() {
@@ -77,37 +152,60 @@ public class ShardedTargetList {
   }
 
   /**
-   * Runs the provided blaze invocation on each target list shard, returning the combined {@link
-   * BuildResult}. If running serially, attempts to work around out of memory errors caused by lack
-   * of blaze garbage collection where possible.
+   * Runs the provided blaze invocation on each target list shard, passing the outputs of each shard
+   * to {@code shardCompleted} as soon as it's built, and returning the combined {@link
+   * BuildResult}.
+   *
+   * <p>Shards which fail with a transient error are rebuilt, after a delay. If running serially,
+   * also attempts to work around out of memory errors caused by lack of blaze garbage collection
+   * where possible.
    */
   public BuildResult runShardedCommand(
       Project project,
       BlazeContext context,
       Function<Integer, String> progressMessage,
-      Function<List<? extends TargetExpression>, BuildResult> invocation,
+      Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation,
+      Consumer<BlazeBuildOutputs> shardCompleted,
       BuildInvoker binary) {
     if (isEmpty()) {
       return BuildResult.SUCCESS;
     }
+    RetryListener retryListener =
+        (result, attempt) ->
+            IssueOutput.warn(retryOnTransientFailureMessage(project, result, attempt))
+                .submit(context);
     if (shardedTargets.size() == 1) {
-      return invocation.apply(shardedTargets.get(0));
+      BlazeBuildOutputs result =
+          buildWithRetries(context, shardedTargets.get(0), invocation, retryListener);
+      if (!passOnShardOutputs(project, context, shardCompleted, result)) {
+        return BuildResult.FATAL_ERROR;
+      }
+      return result.buildResult;
     }
     if (binary.supportsParallelism()) {
-      return runInParallel(project, context, invocation);
+      return runInParallel(project, context, invocation, shardCompleted, retryListener);
     }
+    List<? extends List<? extends TargetExpression>> shards = inPriorityOrder();
     int progress = 0;
     BuildResult output = null;
-    for (int i = 0; i < shardedTargets.size(); i++, progress++) {
+    for (int i = 0; i < shards.size(); i++, progress++) {
+      if (context.isCancelled()) {
+        return BuildResult.FATAL_ERROR;
+      }
       context.output(new StatusOutput(progressMessage.apply(i + 1)));
-      BuildResult result = invocation.apply(shardedTargets.get(i));
-      if (result.outOfMemory() && progress > 0) {
+      BlazeBuildOutputs result =
+          buildWithRetries(context, shards.get(i), invocation, retryListener);
+      if (result.buildResult.outOfMemory() && progress > 0) {
         // re-try now that blaze server has restarted
         progress = 0;
         IssueOutput.warn(retryOnOomMessage(project, i)).submit(context);
-        result = invocation.apply(shardedTargets.get(i));
+        result = buildWithRetries(context, shards.get(i), invocation, retryListener);
+      }
+      if (!passOnShardOutputs(project, context, shardCompleted, result)) {
+        return BuildResult.FATAL_ERROR;
       }
-      output = output == null ? result : BuildResult.combine(output, result);
+      output =
+          output == null ? result.buildResult : BuildResult.combine(output, result.buildResult);
       if (output.status == BuildResult.Status.FATAL_ERROR) {
         return output;
       }
@@ -115,23 +213,134 @@ public class ShardedTargetList {
     return output;
   }
 
+  /**
+   * Passes on the outputs of a shard built serially. If that fails, the build fails, the same as
+   * when {@link ShardScheduler} fails to pass on the outputs of a shard built in parallel.
+   */
+  private static boolean passOnShardOutputs(
+      Project project,
+      BlazeContext context,
+      Consumer<BlazeBuildOutputs> shardCompleted,
+      BlazeBuildOutputs result) {
+    try {
+      shardCompleted.accept(result);
+      return true;
+    } catch (ProcessCanceledException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      logger.error(e);
+      IssueOutput.error(String.format("%s build failed", Blaze.buildSystemName(project)))
+          .submit(context);
+      context.setHasError();
+      return false;
+    }
+  }
+
+  /** Returns the shards in decreasing order of priority, otherwise keeping their order. */
+  private List<? extends List<? extends TargetExpression>> inPriorityOrder() {
+    List<ImmutableList<? extends TargetExpression>> shards = new ArrayList<>(shardedTargets);
+    // List.sort is stable
+    shards.sort(Comparator.comparingInt(s -> -priority(s, isPriorityTarget)));
+    return shards;
+  }
+
+  private static int priority(
+      List<? extends TargetExpression> shard,
+      Predicate<? super TargetExpression> isPriorityTarget) {
+    return (int) shard.stream().filter(isPriorityTarget).count();
+  }
+
+  private static BlazeBuildOutputs buildWithRetries(
+      BlazeContext context,
+      List<? extends TargetExpression> shard,
+      Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation,
+      RetryListener retryListener) {
+    return buildWithRetries(
+        context,
+        shard,
+        invocation,
+        maxTransientRetries.getValue(),
+        transientRetryDelayMillis.getValue(),
+        retryListener);
+  }
+
+  /**
+   * Builds a single shard, rebuilding it after an exponentially increasing delay each time it fails
+   * with a transient error, up to the maximum number of retries. Returns the last result as soon as
+   * the context is cancelled, rather than waiting to retry.
+   */
+  @VisibleForTesting
+  static BlazeBuildOutputs buildWithRetries(
+      BlazeContext context,
+      List<? extends TargetExpression> shard,
+      Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation,
+      int maxRetries,
+      long baseRetryDelayMillis,
+      RetryListener retryListener) {
+    BlazeBuildOutputs result = invocation.apply(shard);
+    for (int attempt = 1;
+        attempt <= maxRetries && result.buildResult.isTransientFailure();
+        attempt++) {
+      retryListener.retrying(result.buildResult, attempt);
+      if (!waitUnlessCancelled(context, retryDelayMillis(baseRetryDelayMillis, attempt))) {
+        return result;
+      }
+      result = invocation.apply(shard);
+    }
+    return result;
+  }
+
+  /**
+   * Waits for the given delay, returning false as soon as the context is cancelled or the thread
+   * interrupted.
+   */
+  private static boolean waitUnlessCancelled(BlazeContext context, long delayMillis) {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    context.addCancellationHandler(cancelled::countDown);
+    if (context.isCancelled()) {
+      return false;
+    }
+    try {
+      return !cancelled.await(delayMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  @VisibleForTesting
+  static long retryDelayMillis(long baseDelayMillis, int attempt) {
+    return baseDelayMillis << Math.min(attempt - 1, 10);
+  }
+
   private BuildResult runInParallel(
       Project project,
       BlazeContext context,
-      Function<List<? extends TargetExpression>, BuildResult> invocation) {
+      Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation,
+      Consumer<BlazeBuildOutputs> shardCompleted,
+      RetryListener retryListener) {
     // new executor for each sync, so we get an up-to-date experiment value. This is fine, because
     // it's just a view of the single application pool executor. Doesn't need to be shutdown for the
     // same reason
+    int workers = remoteConcurrentSyncs.getValue();
     ListeningExecutorService executor =
         MoreExecutors.listeningDecorator(
-            AppExecutorUtil.createBoundedApplicationPoolExecutor(
-                "RemoteBlazeExecutor", remoteConcurrentSyncs.getValue()));
+            AppExecutorUtil.createBoundedApplicationPoolExecutor("RemoteBlazeExecutor", workers));
 
-    ListenableFuture<List<BuildResult>> future =
-        Futures.allAsList(
-            Streams.mapWithIndex(
-                    shardedTargets.stream(), (s, i) -> executor.submit(() -> invocation.apply(s)))
-                .collect(toImmutableList()));
+    ShardScheduler scheduler =
+        new ShardScheduler(executor, invocation, shardCompleted, workers)
+            .prioritize(isPriorityTarget)
+            .retryTransientFailures(
+                AppExecutorUtil.getAppScheduledExecutorService(),
+                maxTransientRetries.getValue(),
+                transientRetryDelayMillis.getValue(),
+                retryListener);
+    if (allowSplitting && splitShardsForIdleWorkers.getValue()) {
+      scheduler.splitForIdleWorkers(
+          LexicographicTargetSharder.minimumRemoteShardSize.getValue(),
+          TargetBuildCostHistory.load(project).getCostEstimator());
+    }
+    ListenableFuture<List<BuildResult>> future = scheduler.start(shardedTargets);
 
     context.addCancellationHandler(() -> future.cancel(true));
 
@@ -147,6 +356,269 @@ public class ShardedTargetList {
     return results.stream().reduce(BuildResult::combine).orElse(BuildResult.FATAL_ERROR);
   }
 
+  /** Notified before a shard which failed with a transient error is rebuilt. */
+  @VisibleForTesting
+  @FunctionalInterface
+  interface RetryListener {
+    void retrying(BuildResult failure, int attempt);
+  }
+
+  /**
+   * Runs shards on a fixed number of workers, starting the highest priority pending shard as soon
+   * as a worker is free.
+   *
+   * <p>If enabled, whenever a worker becomes idle and there are fewer pending shards than workers,
+   * the pending shard with the highest estimated build cost is split in two, so the workers which
+   * free up towards the end of the build share the remaining work, rather than sitting idle while a
+   * few large shards build. Shards are never split before the build starts, since the sharder has
+   * already sized them for the number of workers.
+   *
+   * <p>Shards which fail with a transient error are returned to the queue after a delay, without
+   * holding on to a worker in the meantime. The outputs of every other shard are passed on as soon
+   * as it's built.
+   */
+  @VisibleForTesting
+  static final class ShardScheduler {
+    private final ListeningExecutorService executor;
+    private final Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation;
+    private final Consumer<BlazeBuildOutputs> shardCompleted;
+    private final int workers;
+
+    private Predicate<? super TargetExpression> isPriorityTarget = target -> false;
+    private boolean splitForIdleWorkers = false;
+    private int minimumSplitShardSize;
+    private ToDoubleFunction<? super TargetExpression> targetCost = target -> 1;
+    private ScheduledExecutorService retryExecutor;
+    private int maxRetries = 0;
+    private long retryDelayMillis;
+    private RetryListener retryListener;
+
+    private final SettableFuture<List<BuildResult>> done = SettableFuture.create();
+
+    // guarded by this
+    private final PriorityQueue<PendingShard> pending =
+        new PriorityQueue<>(
+            Comparator.comparingInt((PendingShard s) -> -s.priority)
+                .thenComparingInt(s -> s.sequence));
+    private final Set<ListenableFuture<BlazeBuildOutputs>> running = new HashSet<>();
+    private final List<BuildResult> results = new ArrayList<>();
+    private int waitingForRetry = 0;
+    private int completing = 0;
+
+    ShardScheduler(
+        ListeningExecutorService executor,
+        Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation,
+        Consumer<BlazeBuildOutputs> shardCompleted,
+        int workers) {
+      this.executor = executor;
+      this.invocation = invocation;
+      this.shardCompleted = shardCompleted;
+      this.workers = workers;
+      done.addListener(this::cancelRunningShards, MoreExecutors.directExecutor());
+    }
+
+    /** Builds the shards with the most matching targets first. */
+    ShardScheduler prioritize(Predicate<? super TargetExpression> isPriorityTarget) {
+      this.isPriorityTarget = isPriorityTarget;
+      return this;
+    }
+
+    /**
+     * Splits the pending shard with the highest estimated cost whenever a worker becomes idle and
+     * there are fewer pending shards than workers, without creating shards with fewer than {@code
+     * minimumShardSize} targets.
+     */
+    ShardScheduler splitForIdleWorkers(
+        int minimumShardSize, ToDoubleFunction<? super TargetExpression> targetCost) {
+      this.splitForIdleWorkers = true;
+      this.minimumSplitShardSize = minimumShardSize;
+      this.targetCost = targetCost;
+      return this;
+    }
+
+    /**
+     * Rebuilds shards which fail with a transient error up to {@code maxRetries} times, after an
+     * exponentially increasing delay.
+     */
+    ShardScheduler retryTransientFailures(
+        ScheduledExecutorService retryExecutor,
+        int maxRetries,
+        long retryDelayMillis,
+        RetryListener retryListener) {
+      this.retryExecutor = retryExecutor;
+      this.maxRetries = maxRetries;
+      this.retryDelayMillis = retryDelayMillis;
+      this.retryListener = retryListener;
+      return this;
+    }
+
+    /** Starts building the given shards, returning the results of all shards. */
+    ListenableFuture<List<BuildResult>> start(
+        List<? extends List<? extends TargetExpression>> shards) {
+      synchronized (this) {
+        for (int i = 0; i < shards.size(); i++) {
+          pending.add(newPendingShard(shards.get(i), i, /* attempt= */ 0));
+        }
+        startPendingShards();
+      }
+      return done;
+    }
+
+    private PendingShard newPendingShard(
+        List<? extends TargetExpression> targets, int sequence, int attempt) {
+      double cost =
+          splitForIdleWorkers ? targets.stream().mapToDouble(targetCost).sum() : targets.size();
+      return new PendingShard(
+          targets, priority(targets, isPriorityTarget), sequence, attempt, cost);
+    }
+
+    private void startPendingShards() {
+      while (running.size() < workers && !pending.isEmpty() && !done.isDone()) {
+        PendingShard shard = pending.remove();
+        ListenableFuture<BlazeBuildOutputs> future =
+            executor.submit(() -> invocation.apply(shard.targets));
+        running.add(future);
+        Futures.addCallback(
+            future,
+            new FutureCallback<BlazeBuildOutputs>() {
+              @Override
+              public void onSuccess(BlazeBuildOutputs result) {
+                onShardFinished(future, shard, result);
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                done.setException(t);
+              }
+            },
+            MoreExecutors.directExecutor());
+      }
+    }
+
+    /**
+     * Called when a worker becomes idle. Splits the costliest splittable pending shard until there
+     * are as many pending shards as workers.
+     */
+    private void splitPendingShards() {
+      while (pending.size() < workers) {
+        PendingShard costliest = null;
+        for (PendingShard shard : pending) {
+          if (canSplit(shard.targets) && (costliest == null || shard.cost > costliest.cost)) {
+            costliest = shard;
+          }
+        }
+        if (costliest == null) {
+          return;
+        }
+        List<? extends TargetExpression> targets = costliest.targets;
+        int middle = splitPoint(targets);
+        pending.remove(costliest);
+        pending.add(
+            newPendingShard(targets.subList(0, middle), costliest.sequence, costliest.attempt));
+        pending.add(
+            newPendingShard(
+                targets.subList(middle, targets.size()), costliest.sequence, costliest.attempt));
+      }
+    }
+
+    /**
+     * Shards containing excluded target patterns aren't split, because the exclusions apply to the
+     * targets preceding them.
+     */
+    private boolean canSplit(List<? extends TargetExpression> shard) {
+      return shard.size() >= 2 * minimumSplitShardSize
+          && shard.stream().noneMatch(TargetExpression::isExcluded);
+    }
+
+    private void onShardFinished(
+        ListenableFuture<BlazeBuildOutputs> future, PendingShard shard, BlazeBuildOutputs result) {
+      boolean retry;
+      synchronized (this) {
+        running.remove(future);
+        retry =
+            result.buildResult.isTransientFailure()
+                && shard.attempt < maxRetries
+                && !done.isDone();
+        if (retry) {
+          waitingForRetry++;
+        } else {
+          completing++;
+        }
+        if (splitForIdleWorkers && !done.isDone()) {
+          splitPendingShards();
+        }
+        startPendingShards();
+      }
+      if (retry) {
+        scheduleRetry(shard, result.buildResult);
+        return;
+      }
+      // passed on outside the lock, so slow consumers don't hold up starting other shards
+      try {
+        shardCompleted.accept(result);
+      } catch (Throwable t) {
+        // otherwise the build would never finish
+        done.setException(t);
+        return;
+      }
+      synchronized (this) {
+        completing--;
+        results.add(result.buildResult);
+        if (running.isEmpty() && pending.isEmpty() && waitingForRetry == 0 && completing == 0) {
+          done.set(ImmutableList.copyOf(results));
+        }
+      }
+    }
+
+    private void scheduleRetry(PendingShard shard, BuildResult failure) {
+      int attempt = shard.attempt + 1;
+      retryListener.retrying(failure, attempt);
+      retryExecutor.schedule(
+          () -> {
+            synchronized (this) {
+              waitingForRetry--;
+              pending.add(newPendingShard(shard.targets, shard.sequence, attempt));
+              startPendingShards();
+            }
+          },
+          ShardedTargetList.retryDelayMillis(retryDelayMillis, attempt),
+          TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called once the build is done. It only succeeds after every shard has finished, so any shard
+     * still running belongs to a build which was cancelled or failed, and is no longer needed.
+     */
+    private synchronized void cancelRunningShards() {
+      running.forEach(f -> f.cancel(true));
+    }
+
+    private static final class PendingShard {
+      final List<? extends TargetExpression> targets;
+      /** The number of priority targets in the shard. */
+      final int priority;
+      /** The position of the original shard, so shards of equal priority are built in order. */
+      final int sequence;
+      /** The number of previous attempts to build the shard. */
+      final int attempt;
+      /** The estimated cost of building the shard. */
+      final double cost;
+
+      PendingShard(
+          List<? extends TargetExpression> targets,
+          int priority,
+          int sequence,
+          int attempt,
+          double cost) {
+        this.targets = targets;
+        this.priority = priority;
+        this.sequence = sequence;
+        this.attempt = attempt;
+        this.cost = cost;
+      }
+    }
+  }
+
   private String retryOnOomMessage(Project project, int shardIndex) {
     String buildSystem = Blaze.buildSystemName(project);
     return String.format(
@@ -154,4 +626,12 @@ public class ShardedTargetList {
             + "collection bugs. Attempting to workaround by resuming with a clean %s server.",
         buildSystem, shardIndex + 1, shardedTargets.size(), buildSystem, buildSystem);
   }
+
+  private static String retryOnTransientFailureMessage(
+      Project project, BuildResult failure, int attempt) {
+    return String.format(
+        "%s build of a shard failed with a transient error (exit code %s). Retrying (attempt %s of"
+            + " %s).",
+        Blaze.buildSystemName(project), failure.exitCode, attempt, maxTransientRetries.getValue());
+  }
 }
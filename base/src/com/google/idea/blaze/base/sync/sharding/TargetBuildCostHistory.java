@@ -0,0 +1,226 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.sync.aspects.BlazeBuildOutputs;
+import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy;
+import com.google.idea.blaze.base.sync.data.VersionedCacheFile;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+import javax.annotation.Nullable;
+
+/**
+ * The build cost of individual targets, recorded from the sharded builds of previous syncs and
+ * persisted in the project cache directory.
+ *
+ * <p>The build event protocol doesn't report timing per target, so the wall time of each shard is
+ * apportioned between its targets, weighted by the number of artifacts each target outputs (a
+ * proxy for its action count) and the size of its aspect output.
+ *
+ * <p>Entries age by one generation each time a build completes, and are dropped once they reach
+ * {@link #MAX_AGE} without being rebuilt.
+ */
+public final class TargetBuildCostHistory {
+  private static final Logger logger = Logger.getInstance(TargetBuildCostHistory.class);
+
+  private static final String FILE_NAME = "target_build_costs.dat";
+  private static final int MAGIC = 0x425a5443; // "BZTC"
+  private static final int VERSION = 1;
+
+  /** Targets which haven't been built in this many completed builds are dropped. */
+  @VisibleForTesting static final int MAX_AGE = 20;
+
+  /** The weight given to the newest sample when updating a target's cost. */
+  private static final double SMOOTHING = 0.5;
+
+  /** The amount of aspect output counted as equivalent to one output artifact. */
+  private static final long ASPECT_OUTPUT_BYTES_PER_ARTIFACT = 8 * 1024;
+
+  @Nullable private final File cacheFile;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private int generation;
+  private volatile boolean modified;
+
+  @VisibleForTesting
+  TargetBuildCostHistory(@Nullable File cacheFile) {
+    this.cacheFile = cacheFile;
+  }
+
+  /** Loads the cost history for the given project. */
+  public static TargetBuildCostHistory load(Project project) {
+    TargetBuildCostHistory history =
+        new TargetBuildCostHistory(VersionedCacheFile.getProjectCacheFile(project, FILE_NAME));
+    if (history.cacheFile != null) {
+      try {
+        history.read(history.cacheFile);
+      } catch (IOException e) {
+        logger.warn("Ignoring unreadable target build cost history " + history.cacheFile, e);
+        history.entries.clear();
+      }
+    }
+    return history;
+  }
+
+  /** Returns the estimated build time of the given target in milliseconds, or null if unknown. */
+  @Nullable
+  Double getBuildMillis(Label target) {
+    Entry entry = entries.get(target.toString());
+    return entry != null ? entry.buildMillis : null;
+  }
+
+  /**
+   * Returns a function estimating the build time of a target in milliseconds: its recorded build
+   * time, or the average of all recorded build times if it has none.
+   */
+  ToDoubleFunction<TargetExpression> getCostEstimator() {
+    double defaultMillis =
+        entries.values().stream().mapToDouble(entry -> entry.buildMillis).average().orElse(1.0);
+    return target -> {
+      Entry entry = target instanceof Label ? entries.get(target.toString()) : null;
+      return entry != null ? entry.buildMillis : defaultMillis;
+    };
+  }
+
+  /**
+   * Records the cost of the targets built by a single shard, given the shard's outputs and wall
+   * time.
+   */
+  public void recordShard(
+      List<? extends TargetExpression> targets, BlazeBuildOutputs outputs, long elapsedMillis) {
+    Map<String, Double> weights = new HashMap<>();
+    for (TargetExpression target : targets) {
+      if (!(target instanceof Label)) {
+        continue;
+      }
+      String label = target.toString();
+      long aspectOutputBytes = 0;
+      int outputCount = 0;
+      for (OutputArtifact artifact : outputs.getTopLevelTargetArtifacts(label)) {
+        outputCount++;
+        if (AspectStrategy.ASPECT_OUTPUT_FILE_PREDICATE.test(artifact.getRelativePath())) {
+          aspectOutputBytes += artifact.getLength();
+        }
+      }
+      weights.put(
+          label,
+          1.0 + outputCount + (double) aspectOutputBytes / ASPECT_OUTPUT_BYTES_PER_ARTIFACT);
+    }
+    recordCosts(weights, elapsedMillis);
+  }
+
+  /** Splits the given wall time between targets in proportion to their weights. */
+  @VisibleForTesting
+  void recordCosts(Map<String, Double> weights, long elapsedMillis) {
+    double totalWeight = weights.values().stream().mapToDouble(Double::doubleValue).sum();
+    if (totalWeight <= 0) {
+      return;
+    }
+    weights.forEach(
+        (label, weight) -> {
+          double sample = elapsedMillis * weight / totalWeight;
+          entries.merge(
+              label,
+              new Entry(sample, generation),
+              (old, latest) ->
+                  new Entry(
+                      SMOOTHING * latest.buildMillis + (1 - SMOOTHING) * old.buildMillis,
+                      generation));
+        });
+    modified = true;
+  }
+
+  /**
+   * Records that a build completed, so entries for targets which weren't part of it age by one
+   * generation. Not called for cancelled or failed builds, which may not have built everything.
+   */
+  public void completeBuild() {
+    generation++;
+    modified = true;
+  }
+
+  /** Writes the history back to the cache file, if anything was recorded since loading. */
+  public void save() {
+    if (cacheFile == null || !modified) {
+      return;
+    }
+    try {
+      write(cacheFile);
+      modified = false;
+    } catch (IOException e) {
+      logger.warn("Could not save target build cost history " + cacheFile, e);
+    }
+  }
+
+  @VisibleForTesting
+  void read(File file) throws IOException {
+    new VersionedCacheFile(file, MAGIC, VERSION)
+        .read(
+            in -> {
+              generation = in.readInt();
+              int count = in.readInt();
+              for (int i = 0; i < count; i++) {
+                String label = in.readUTF();
+                double buildMillis = in.readDouble();
+                int entryGeneration = in.readInt();
+                entries.put(label, new Entry(buildMillis, entryGeneration));
+              }
+              return null;
+            });
+  }
+
+  @VisibleForTesting
+  void write(File file) throws IOException {
+    Map<String, Entry> current = new HashMap<>();
+    entries.forEach(
+        (label, entry) -> {
+          if (generation - entry.generation < MAX_AGE) {
+            current.put(label, entry);
+          }
+        });
+    new VersionedCacheFile(file, MAGIC, VERSION)
+        .write(
+            out -> {
+              out.writeInt(generation);
+              out.writeInt(current.size());
+              for (Map.Entry<String, Entry> e : current.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeDouble(e.getValue().buildMillis);
+                out.writeInt(e.getValue().generation);
+              }
+            });
+  }
+
+  private static class Entry {
+    final double buildMillis;
+    final int generation;
+
+    Entry(double buildMillis, int generation) {
+      this.buildMillis = buildMillis;
+      this.generation = generation;
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.google.idea.blaze.base.async.FutureUtil;
 import com.google.idea.blaze.base.async.process.ExternalTask;
 import com.google.idea.blaze.base.async.process.LineProcessingOutputStream;
 import com.google.idea.blaze.base.bazel.BuildSystem.BuildInvoker;
+import com.google.idea.blaze.base.bazel.BuildSystemProvider;
 import com.google.idea.blaze.base.command.BlazeCommand;
 import com.google.idea.blaze.base.command.BlazeCommandName;
 import com.google.idea.blaze.base.command.BlazeFlags;
@@ -40,8 +41,10 @@ import com.google.idea.blaze.base.scope.output.StatusOutput;
 import com.google.idea.blaze.base.scope.scopes.TimingScope;
 import com.google.idea.blaze.base.scope.scopes.TimingScope.EventType;
 import com.google.idea.blaze.base.settings.Blaze;
+import com.google.idea.blaze.base.settings.BuildSystemName;
 import com.google.idea.blaze.base.sync.aspects.BuildResult;
 import com.google.idea.blaze.base.sync.aspects.BuildResult.Status;
+import com.google.idea.blaze.base.sync.projectview.BazelIgnoreParser;
 import com.google.idea.blaze.base.sync.projectview.LanguageSupport;
 import com.google.idea.blaze.base.sync.workspace.WorkspacePathResolver;
 import com.google.idea.common.experiments.BoolExperiment;
@@ -85,7 +88,8 @@ public class WildcardTargetExpander {
    * Expand recursive wildcard blaze target patterns into single-package wildcard patterns, via a
    * file system traversal.
    *
-   * <p>Exclude target patterns (beginning with '-') are not expanded.
+   * <p>Exclude target patterns (beginning with '-') are not expanded, but packages they
+   * recursively exclude aren't traversed when expanding earlier patterns.
    *
    * <p>Returns null if operation failed or was cancelled.
    */
@@ -93,23 +97,11 @@ public class WildcardTargetExpander {
   static Map<TargetExpression, List<TargetExpression>> expandToNonRecursiveWildcardTargets(
       Project project,
       BlazeContext context,
+      WorkspaceRoot workspaceRoot,
       WorkspacePathResolver pathResolver,
       List<WildcardTargetPattern> wildcardPatterns) {
 
-    Set<WildcardTargetPattern> excludes =
-        wildcardPatterns.stream()
-            .filter(WildcardTargetPattern::isExcluded)
-            .collect(Collectors.toSet());
-
-    Predicate<WorkspacePath> excludePredicate =
-        workspacePath ->
-            excludes.stream().anyMatch(pattern -> pattern.coversPackage(workspacePath));
-
-    List<WildcardTargetPattern> includes = new ArrayList<>(wildcardPatterns);
-    includes.removeAll(excludes);
-
-    Set<File> toPrefetch =
-        PackageLister.getDirectoriesToPrefetch(pathResolver, includes, excludePredicate);
+    Set<File> toPrefetch = PackageLister.getDirectoriesToPrefetch(pathResolver, wildcardPatterns);
 
     ListenableFuture<?> prefetchFuture =
         PrefetchService.getInstance().prefetchFiles(toPrefetch, false, false);
@@ -122,8 +114,27 @@ public class WildcardTargetExpander {
       return null;
     }
 
+    BuildSystemProvider provider = Blaze.getBuildSystemProvider(project);
     return PackageLister.expandPackageTargets(
-        Blaze.getBuildSystemProvider(project), context, pathResolver, includes);
+        provider,
+        context,
+        pathResolver,
+        wildcardPatterns,
+        getIgnoredPaths(project, provider, workspaceRoot),
+        PackageListCache.load(project));
+  }
+
+  /** The directories the build system never looks for packages in. */
+  private static List<WorkspacePath> getIgnoredPaths(
+      Project project, BuildSystemProvider provider, WorkspaceRoot workspaceRoot) {
+    List<WorkspacePath> ignoredPaths = new ArrayList<>();
+    for (String dir : provider.buildArtifactDirectories(workspaceRoot)) {
+      ignoredPaths.add(new WorkspacePath(dir));
+    }
+    if (Blaze.getBuildSystemName(project) == BuildSystemName.Bazel) {
+      ignoredPaths.addAll(new BazelIgnoreParser(workspaceRoot).getIgnoredPaths());
+    }
+    return ignoredPaths;
   }
 
   /** Runs a sharded blaze query to expand wildcard targets to individual blaze targets */
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Streams;
+import com.google.idea.blaze.base.ideinfo.Dependency;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+
+/**
+ * A compact, immutable index of the dependency graph of a {@link TargetMap}.
+ *
+ * <p>Every target key seen in the target map (including dependencies which aren't themselves in
+ * the target map) is assigned a dense int id, and forward and reverse edges are stored as int
+ * arrays. The transitive closures of frequently queried targets are cached as bit sets.
+ *
+ * <p>Forward edges follow {@link TransitiveDependencyMap} semantics (dependencies are mapped to
+ * their plain target), while reverse edges follow {@link ReverseDependencyMap} semantics (keyed by
+ * the exact dependency key, and only for keys in the target map).
+ */
+public final class DependencyGraphIndex {
+
+  /** Above this fraction of changed targets, an incremental update isn't worth it. */
+  private static final double MAX_INCREMENTAL_UPDATE_FRACTION = 0.25;
+
+  private static final int MAX_CACHED_CLOSURES = 256;
+
+  private static final int[] NO_EDGES = new int[0];
+
+  private final TargetMap targetMap;
+  private final Map<TargetKey, Integer> ids;
+  private final TargetKey[] keys;
+  /** The ids of keys which are in the target map. */
+  private final BitSet present;
+  /** Plain-target dependencies, in declaration order, without duplicates. */
+  private final int[][] deps;
+  /** Reverse dependencies, recorded whether or not the dependency is in the target map. */
+  private final int[][] rdeps;
+
+  private final Cache<Integer, BitSet> closures =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_CLOSURES).build();
+
+  private DependencyGraphIndex(
+      TargetMap targetMap,
+      Map<TargetKey, Integer> ids,
+      TargetKey[] keys,
+      BitSet present,
+      int[][] deps,
+      int[][] rdeps) {
+    this.targetMap = targetMap;
+    this.ids = ids;
+    this.keys = keys;
+    this.present = present;
+    this.deps = deps;
+    this.rdeps = rdeps;
+  }
+
+  /** Builds the index from scratch. */
+  public static DependencyGraphIndex create(TargetMap targetMap) {
+    Builder builder = new Builder(targetMap.map().size());
+    targetMap.map().forEach(builder::addTarget);
+    return builder.build(targetMap);
+  }
+
+  /**
+   * Returns an index for {@code newTargetMap}, reusing this index's edges for all targets which
+   * haven't changed (e.g. after a partial sync). Falls back to a full rebuild if most targets
+   * changed.
+   */
+  public DependencyGraphIndex update(TargetMap newTargetMap) {
+    if (newTargetMap == targetMap) {
+      return this;
+    }
+    ImmutableMap<TargetKey, TargetIdeInfo> oldTargets = targetMap.map();
+    ImmutableMap<TargetKey, TargetIdeInfo> newTargets = newTargetMap.map();
+    long maxChanged = Math.round(newTargets.size() * MAX_INCREMENTAL_UPDATE_FRACTION);
+
+    List<TargetKey> changed = new ArrayList<>();
+    for (Map.Entry<TargetKey, TargetIdeInfo> entry : newTargets.entrySet()) {
+      TargetIdeInfo oldTarget = oldTargets.get(entry.getKey());
+      if (oldTarget != entry.getValue() && !entry.getValue().equals(oldTarget)) {
+        changed.add(entry.getKey());
+      }
+    }
+    for (TargetKey key : oldTargets.keySet()) {
+      if (!newTargets.containsKey(key)) {
+        changed.add(key);
+      }
+    }
+    if (changed.isEmpty()) {
+      return new DependencyGraphIndex(newTargetMap, ids, keys, present, deps, rdeps);
+    }
+    if (changed.size() > maxChanged) {
+      return create(newTargetMap);
+    }
+
+    Builder builder = new Builder(this);
+    for (TargetKey key : changed) {
+      TargetIdeInfo oldTarget = oldTargets.get(key);
+      if (oldTarget != null) {
+        builder.removeTarget(key, oldTarget);
+      }
+      TargetIdeInfo newTarget = newTargets.get(key);
+      if (newTarget != null) {
+        builder.addTarget(key, newTarget);
+      }
+    }
+    return builder.build(newTargetMap);
+  }
+
+  TargetMap getTargetMap() {
+    return targetMap;
+  }
+
+  /**
+   * Returns the targets which directly depend on the given target, in the same form as {@link
+   * ReverseDependencyMap#createRdepsMap}.
+   */
+  public ImmutableList<TargetKey> getReverseDependencies(TargetKey key) {
+    Integer id = ids.get(key);
+    if (id == null || !present.get(id)) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<TargetKey> result = ImmutableList.builder();
+    for (int rdep : rdeps[id]) {
+      result.add(keys[rdep]);
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the full reverse dependency map, in the form of {@link
+   * ReverseDependencyMap#createRdepsMap}.
+   */
+  public ImmutableMultimap<TargetKey, TargetKey> toReverseDependencyMap() {
+    ImmutableMultimap.Builder<TargetKey, TargetKey> builder = ImmutableMultimap.builder();
+    for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+      for (int rdep : rdeps[id]) {
+        builder.put(keys[id], keys[rdep]);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns true if {@code possibleDependent} transitively depends on {@code possibleDependency}.
+   */
+  public boolean hasTransitiveDependency(
+      TargetKey possibleDependent, TargetKey possibleDependency) {
+    Integer dependency = ids.get(possibleDependency);
+    BitSet closure = getClosure(possibleDependent);
+    return dependency != null && closure != null && closure.get(dependency);
+  }
+
+  /**
+   * Returns the targets in {@code possibleDependencies} which {@code possibleDependent}
+   * transitively depends on.
+   */
+  public ImmutableSet<TargetKey> filterPossibleTransitiveDeps(
+      TargetKey possibleDependent, Collection<TargetKey> possibleDependencies) {
+    BitSet closure = getClosure(possibleDependent);
+    if (closure == null) {
+      return ImmutableSet.of();
+    }
+    ImmutableSet.Builder<TargetKey> result = ImmutableSet.builder();
+    for (TargetKey key : possibleDependencies) {
+      Integer id = ids.get(key);
+      if (id != null && closure.get(id)) {
+        result.add(key);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns a breadth-first traversal of the transitive dependencies of the given targets, in the
+   * same order as {@link TransitiveDependencyMap#getTransitiveDependenciesStream}.
+   */
+  public Stream<TargetKey> getTransitiveDependencies(Collection<TargetKey> targetKeys) {
+    return Streams.stream(new BreadthFirstIterator(targetKeys));
+  }
+
+  @Nullable
+  private BitSet getClosure(TargetKey key) {
+    Integer id = ids.get(key);
+    if (id == null) {
+      return null;
+    }
+    try {
+      return closures.get(id, () -> computeClosure(id));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private BitSet computeClosure(int id) {
+    BitSet closure = new BitSet(keys.length);
+    int[] queue = new int[keys.length];
+    int head = 0;
+    int tail = 0;
+    for (int dep : deps[id]) {
+      if (!closure.get(dep)) {
+        closure.set(dep);
+        queue[tail++] = dep;
+      }
+    }
+    while (head < tail) {
+      for (int dep : deps[queue[head++]]) {
+        if (!closure.get(dep)) {
+          closure.set(dep);
+          queue[tail++] = dep;
+        }
+      }
+    }
+    return closure;
+  }
+
+  /**
+   * Yields each reachable id once, in the order it was first discovered. Root targets are only
+   * yielded if they're reachable from another root.
+   */
+  private class BreadthFirstIterator implements Iterator<TargetKey> {
+    private final BitSet discovered = new BitSet(keys.length);
+    private int[] queue = new int[16];
+    private int head = 0;
+    private int tail = 0;
+
+    BreadthFirstIterator(Collection<TargetKey> roots) {
+      BitSet seenRoots = new BitSet();
+      for (TargetKey root : roots) {
+        Integer id = ids.get(root);
+        if (id != null && !seenRoots.get(id)) {
+          seenRoots.set(id);
+          enqueueDependencies(id);
+        }
+      }
+    }
+
+    private void enqueueDependencies(int id) {
+      for (int dep : deps[id]) {
+        if (!discovered.get(dep)) {
+          discovered.set(dep);
+          if (tail == queue.length) {
+            queue = Arrays.copyOf(queue, queue.length * 2);
+          }
+          queue[tail++] = dep;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return head < tail;
+    }
+
+    @Override
+    public TargetKey next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int id = queue[head++];
+      enqueueDependencies(id);
+      return keys[id];
+    }
+  }
+
+  /**
+   * Accumulates ids and edges. When updating an existing index, edge arrays are shared with it and
+   * copied on write.
+   */
+  private static class Builder {
+    private final Map<TargetKey, Integer> ids;
+    private final List<TargetKey> keys;
+    private final BitSet present;
+    private int[][] deps;
+    private int[][] rdeps;
+    /**
+     * When building from scratch, reverse edge arrays grow by doubling and this holds their used
+     * lengths. Null when updating an existing index, where all edge arrays are exactly sized.
+     */
+    @Nullable private int[] rdepCounts;
+
+    Builder(int expectedTargets) {
+      int capacity = Math.max(16, expectedTargets);
+      ids = new HashMap<>(capacity * 2);
+      keys = new ArrayList<>(capacity);
+      present = new BitSet(capacity);
+      deps = new int[capacity][];
+      rdeps = new int[capacity][];
+      rdepCounts = new int[capacity];
+    }
+
+    Builder(DependencyGraphIndex index) {
+      ids = new HashMap<>(index.ids);
+      keys = new ArrayList<>(Arrays.asList(index.keys));
+      present = (BitSet) index.present.clone();
+      deps = Arrays.copyOf(index.deps, Math.max(16, index.deps.length));
+      rdeps = Arrays.copyOf(index.rdeps, deps.length);
+      rdepCounts = null;
+    }
+
+    private int intern(TargetKey key) {
+      Integer id = ids.get(key);
+      if (id != null) {
+        return id;
+      }
+      int newId = keys.size();
+      ids.put(key, newId);
+      keys.add(key);
+      if (newId >= deps.length) {
+        deps = Arrays.copyOf(deps, deps.length * 2);
+        rdeps = Arrays.copyOf(rdeps, deps.length);
+        if (rdepCounts != null) {
+          rdepCounts = Arrays.copyOf(rdepCounts, deps.length);
+        }
+      }
+      return newId;
+    }
+
+    void addTarget(TargetKey key, TargetIdeInfo target) {
+      int id = intern(key);
+      present.set(id);
+      List<Dependency> dependencies = target.getDependencies();
+      int[] plainDeps = new int[dependencies.size()];
+      int count = 0;
+      for (Dependency dep : dependencies) {
+        TargetKey depKey = dep.getTargetKey();
+        int depId = intern(depKey);
+        addReverseEdge(depId, id);
+        int plainDep =
+            depKey.isPlainTarget() ? depId : intern(TargetKey.forPlainTarget(depKey.getLabel()));
+        if (!contains(plainDeps, count, plainDep)) {
+          plainDeps[count++] = plainDep;
+        }
+      }
+      deps[id] = count == 0 ? NO_EDGES : Arrays.copyOf(plainDeps, count);
+    }
+
+    void removeTarget(TargetKey key, TargetIdeInfo target) {
+      int id = ids.get(key);
+      present.clear(id);
+      deps[id] = NO_EDGES;
+      for (Dependency dep : target.getDependencies()) {
+        removeReverseEdge(ids.get(dep.getTargetKey()), id);
+      }
+    }
+
+    DependencyGraphIndex build(TargetMap targetMap) {
+      int size = keys.size();
+      int[][] finalDeps = Arrays.copyOf(deps, size);
+      int[][] finalRdeps = Arrays.copyOf(rdeps, size);
+      for (int i = 0; i < size; i++) {
+        if (finalDeps[i] == null) {
+          finalDeps[i] = NO_EDGES;
+        }
+        if (finalRdeps[i] == null) {
+          finalRdeps[i] = NO_EDGES;
+        } else if (rdepCounts != null && rdepCounts[i] != finalRdeps[i].length) {
+          finalRdeps[i] = Arrays.copyOf(finalRdeps[i], rdepCounts[i]);
+        }
+      }
+      return new DependencyGraphIndex(
+          targetMap, ids, keys.toArray(new TargetKey[0]), present, finalDeps, finalRdeps);
+    }
+
+    private void addReverseEdge(int from, int to) {
+      int[] old = rdeps[from] != null ? rdeps[from] : NO_EDGES;
+      if (rdepCounts == null) {
+        int[] updated = Arrays.copyOf(old, old.length + 1);
+        updated[old.length] = to;
+        rdeps[from] = updated;
+        return;
+      }
+      int count = rdepCounts[from];
+      if (count == old.length) {
+        old = Arrays.copyOf(old, Math.max(4, count * 2));
+        rdeps[from] = old;
+      }
+      old[count] = to;
+      rdepCounts[from] = count + 1;
+    }
+
+    /** Removes a single occurrence of the given reverse edge, if present. */
+    private void removeReverseEdge(int from, int to) {
+      int[] old = rdeps[from];
+      if (old == null) {
+        return;
+      }
+      for (int i = 0; i < old.length; i++) {
+        if (old[i] == to) {
+          int[] updated = new int[old.length - 1];
+          System.arraycopy(old, 0, updated, 0, i);
+          System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+          rdeps[from] = updated;
+          return;
+        }
+      }
+    }
+
+    private static boolean contains(int[] array, int length, int value) {
+      for (int i = 0; i < length; i++) {
+        if (array[i] == value) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
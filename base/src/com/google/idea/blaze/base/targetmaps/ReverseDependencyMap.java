@@ -16,24 +16,30 @@
 package com.google.idea.blaze.base.targetmaps;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.idea.blaze.base.ideinfo.Dependency;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
 import com.google.idea.blaze.base.ideinfo.TargetMap;
 import com.google.idea.blaze.base.model.BlazeProjectData;
-import com.google.idea.blaze.base.sync.SyncCache;
 import com.intellij.openapi.project.Project;
 
-/** Handy class to create an reverse dep map of all targets */
+/**
+ * Reverse dependency lookups for the project's target map, answered from its {@link
+ * DependencyGraphIndex} rather than a materialized map of all targets.
+ */
 public class ReverseDependencyMap {
-  public static ImmutableMultimap<TargetKey, TargetKey> get(Project project) {
-    ImmutableMultimap<TargetKey, TargetKey> map =
-        SyncCache.getInstance(project)
-            .get(ReverseDependencyMap.class, ReverseDependencyMap::createRdepsMap);
-    return map != null ? map : ImmutableMultimap.of();
+  /**
+   * Returns the targets which directly depend on the given target. Only targets in the target map
+   * have reverse dependencies.
+   */
+  public static ImmutableList<TargetKey> getReverseDependencies(Project project, TargetKey key) {
+    DependencyGraphIndex index = TransitiveDependencyMap.getInstance(project).getGraphIndex();
+    return index != null ? index.getReverseDependencies(key) : ImmutableList.of();
   }
 
+  /** Builds the full reverse dependency map, which the index must agree with. */
   @VisibleForTesting
   static ImmutableMultimap<TargetKey, TargetKey> createRdepsMap(
       Project project, BlazeProjectData projectData) {
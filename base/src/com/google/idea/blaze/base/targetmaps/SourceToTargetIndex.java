@@ -0,0 +1,243 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.model.BlazeProjectData;
+import com.google.idea.blaze.base.sync.SyncCache;
+import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A compact, immutable index from source file to the targets listing it in their sources, built
+ * once per sync and shared by all source file lookups.
+ *
+ * <p>Resolved source paths are stored as a trie of interned path segments, so common directory
+ * prefixes are stored once rather than per {@link File}. Targets are referred to by dense int ids.
+ * Path segments are compared the way {@link File#equals} compares paths: ignoring case on Windows
+ * only. Sources differing only in case (possible on a case-sensitive macOS volume) stay distinct.
+ */
+public final class SourceToTargetIndex {
+
+  /** Below this many targets, resolving source files in parallel isn't worth it. */
+  private static final int MIN_TARGETS_FOR_PARALLEL_BUILD = 2000;
+
+  private static final int TARGETS_PER_CHUNK = 500;
+
+  private final ArtifactLocationDecoder decoder;
+  private final TargetMap targetMap;
+  private final TargetKey[] keys;
+  private final Node root;
+  private final boolean caseSensitive;
+
+  private SourceToTargetIndex(
+      ArtifactLocationDecoder decoder,
+      TargetMap targetMap,
+      TargetKey[] keys,
+      Node root,
+      boolean caseSensitive) {
+    this.decoder = decoder;
+    this.targetMap = targetMap;
+    this.keys = keys;
+    this.root = root;
+    this.caseSensitive = caseSensitive;
+  }
+
+  /** Returns the index for the project's current sync data, or null if it hasn't been synced. */
+  @Nullable
+  public static SourceToTargetIndex get(Project project) {
+    return SyncCache.getInstance(project)
+        .get(SourceToTargetIndex.class, SourceToTargetIndex::create);
+  }
+
+  /**
+   * Returns the project's index if it was built from the given sync data, and otherwise builds a
+   * new index.
+   */
+  public static SourceToTargetIndex get(
+      Project project, ArtifactLocationDecoder decoder, TargetMap targetMap) {
+    SourceToTargetIndex index = get(project);
+    if (index != null && index.decoder == decoder && index.targetMap == targetMap) {
+      return index;
+    }
+    return create(decoder, targetMap);
+  }
+
+  @SuppressWarnings("unused")
+  private static SourceToTargetIndex create(Project project, BlazeProjectData projectData) {
+    return create(projectData.getArtifactLocationDecoder(), projectData.getTargetMap());
+  }
+
+  /** Builds the index from scratch. */
+  public static SourceToTargetIndex create(ArtifactLocationDecoder decoder, TargetMap targetMap) {
+    return create(decoder, targetMap, !SystemInfo.isWindows);
+  }
+
+  @VisibleForTesting
+  static SourceToTargetIndex create(
+      ArtifactLocationDecoder decoder, TargetMap targetMap, boolean caseSensitive) {
+    List<TargetIdeInfo> targets = ImmutableList.copyOf(targetMap.targets());
+    List<List<File>> sources = resolveSources(decoder, targets);
+
+    TargetKey[] keys = new TargetKey[targets.size()];
+    Node root = new Node();
+    Interner<String> segments = Interners.newStrongInterner();
+    for (int id = 0; id < keys.length; id++) {
+      keys[id] = targets.get(id).getKey();
+      for (File file : sources.get(id)) {
+        root.add(normalize(file.getPath(), caseSensitive), id, segments);
+      }
+    }
+    return new SourceToTargetIndex(decoder, targetMap, keys, root, caseSensitive);
+  }
+
+  private static String normalize(String path, boolean caseSensitive) {
+    return caseSensitive ? path : StringUtil.toLowerCase(path);
+  }
+
+  /**
+   * Resolves the sources of each target, in the same order as the targets. Resolution is the
+   * expensive part of building the index, so large target maps are split across threads.
+   *
+   * <p>The index is often built on a BlazeExecutor thread, so the chunks are resolved by a separate
+   * executor, rather than blocking one bounded executor thread on tasks queued behind it.
+   */
+  private static List<List<File>> resolveSources(
+      ArtifactLocationDecoder decoder, List<TargetIdeInfo> targets) {
+    if (targets.size() < MIN_TARGETS_FOR_PARALLEL_BUILD) {
+      return resolveSourcesSequentially(decoder, targets);
+    }
+    // just a view of the application pool, so it doesn't need to be shut down
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(
+            AppExecutorUtil.createBoundedApplicationPoolExecutor(
+                "SourceToTargetIndex", Runtime.getRuntime().availableProcessors()));
+    List<ListenableFuture<List<List<File>>>> futures = new ArrayList<>();
+    for (List<TargetIdeInfo> chunk : Lists.partition(targets, TARGETS_PER_CHUNK)) {
+      futures.add(executor.submit(() -> resolveSourcesSequentially(decoder, chunk)));
+    }
+    List<List<File>> result = new ArrayList<>(targets.size());
+    for (List<List<File>> chunk : Futures.getUnchecked(Futures.allAsList(futures))) {
+      result.addAll(chunk);
+    }
+    return result;
+  }
+
+  private static List<List<File>> resolveSourcesSequentially(
+      ArtifactLocationDecoder decoder, List<TargetIdeInfo> targets) {
+    List<List<File>> result = new ArrayList<>(targets.size());
+    for (TargetIdeInfo target : targets) {
+      List<File> files = new ArrayList<>(target.getSources().size());
+      for (ArtifactLocation source : target.getSources()) {
+        File file = decoder.resolveSource(source);
+        if (file != null) {
+          files.add(file);
+        }
+      }
+      result.add(files);
+    }
+    return result;
+  }
+
+  /** Returns the targets listing the given file in their sources. */
+  public ImmutableList<TargetKey> getTargets(File sourceFile) {
+    Node node = root.find(normalize(sourceFile.getPath(), caseSensitive));
+    if (node == null || node.targetCount == 0) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<TargetKey> result = ImmutableList.builder();
+    for (int i = 0; i < node.targetCount; i++) {
+      result.add(keys[node.targets[i]]);
+    }
+    return result.build();
+  }
+
+  /** A path segment in the trie. */
+  private static final class Node {
+    private static final int[] NO_TARGETS = new int[0];
+
+    @Nullable private Map<String, Node> children;
+    private int[] targets = NO_TARGETS;
+    private int targetCount;
+
+    void add(String path, int target, Interner<String> segments) {
+      Node node = this;
+      int start = 0;
+      while (start <= path.length()) {
+        int end = nextSeparator(path, start);
+        String segment = path.substring(start, end);
+        if (node.children == null) {
+          node.children = new HashMap<>(4);
+        }
+        node = node.children.computeIfAbsent(segments.intern(segment), s -> new Node());
+        start = end + 1;
+      }
+      // a target's sources are added together, so repeated sources are adjacent
+      if (node.targetCount > 0 && node.targets[node.targetCount - 1] == target) {
+        return;
+      }
+      if (node.targetCount == node.targets.length) {
+        node.targets = Arrays.copyOf(node.targets, Math.max(1, node.targetCount * 2));
+      }
+      node.targets[node.targetCount++] = target;
+    }
+
+    @Nullable
+    Node find(String path) {
+      Node node = this;
+      int start = 0;
+      while (start <= path.length()) {
+        if (node.children == null) {
+          return null;
+        }
+        int end = nextSeparator(path, start);
+        node = node.children.get(path.substring(start, end));
+        if (node == null) {
+          return null;
+        }
+        start = end + 1;
+      }
+      return node;
+    }
+
+    private static int nextSeparator(String path, int start) {
+      int end = path.indexOf(File.separatorChar, start);
+      return end != -1 ? end : path.length();
+    }
+  }
+}
@@ -34,11 +34,15 @@ import java.util.LinkedHashSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 
 /** Handy class to find all transitive dependencies of a given target */
 public class TransitiveDependencyMap {
   private final Project project;
 
+  /** The graph index for the most recently queried target map, updated incrementally. */
+  @Nullable private volatile DependencyGraphIndex graphIndex;
+
   public static TransitiveDependencyMap getInstance(Project project) {
     return ServiceManager.getService(project, TransitiveDependencyMap.class);
   }
@@ -60,8 +64,8 @@ public class TransitiveDependencyMap {
       return false;
     }
 
-    return getTransitiveDependenciesStream(possibleDependent, blazeProjectData.getTargetMap())
-        .anyMatch(possibleDependency::equals);
+    return getGraphIndex(blazeProjectData.getTargetMap())
+        .hasTransitiveDependency(possibleDependent, possibleDependency);
   }
 
   /**
@@ -78,12 +82,8 @@ public class TransitiveDependencyMap {
     if (blazeProjectData == null) {
       return ImmutableSet.of();
     }
-    ImmutableSet<TargetKey> possibleDepsSet = ImmutableSet.copyOf(possibleDependencies);
-    return getTransitiveDependenciesStream(possibleDependent, blazeProjectData.getTargetMap())
-        .filter(possibleDepsSet::contains)
-        .distinct()
-        .limit(possibleDepsSet.size())
-        .collect(ImmutableSet.toImmutableSet());
+    return getGraphIndex(blazeProjectData.getTargetMap())
+        .filterPossibleTransitiveDeps(possibleDependent, possibleDependencies);
   }
 
   public ImmutableCollection<TargetKey> getTransitiveDependencies(TargetKey targetKey) {
@@ -92,8 +92,41 @@ public class TransitiveDependencyMap {
     if (blazeProjectData == null) {
       return ImmutableSet.of();
     }
-    // TODO: see if we need caching.
-    return getTransitiveDependencies(targetKey, blazeProjectData.getTargetMap());
+    return getGraphIndex(blazeProjectData.getTargetMap())
+        .getTransitiveDependencies(ImmutableList.of(targetKey))
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  /**
+   * Returns the dependency graph index for the project's current target map, or null if the
+   * project hasn't been synced.
+   */
+  @Nullable
+  public DependencyGraphIndex getGraphIndex() {
+    BlazeProjectData blazeProjectData =
+        BlazeProjectDataManager.getInstance(project).getBlazeProjectData();
+    return blazeProjectData != null ? getGraphIndex(blazeProjectData.getTargetMap()) : null;
+  }
+
+  /**
+   * Returns the graph index for the given target map. After a sync, the previous index is updated
+   * incrementally rather than rebuilt.
+   */
+  private DependencyGraphIndex getGraphIndex(TargetMap targetMap) {
+    DependencyGraphIndex index = graphIndex;
+    if (index != null && index.getTargetMap() == targetMap) {
+      return index;
+    }
+    synchronized (this) {
+      index = graphIndex;
+      if (index == null) {
+        index = DependencyGraphIndex.create(targetMap);
+      } else if (index.getTargetMap() != targetMap) {
+        index = index.update(targetMap);
+      }
+      graphIndex = index;
+      return index;
+    }
   }
 
   public static ImmutableCollection<TargetKey> getTransitiveDependencies(
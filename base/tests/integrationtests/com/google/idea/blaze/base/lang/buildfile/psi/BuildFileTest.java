@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.lang.buildfile.psi;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.idea.blaze.base.lang.buildfile.BuildFileIntegrationTestCase;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the cached top-level symbol lookups of {@link BuildFile}. */
+@RunWith(JUnit4.class)
+public class BuildFileTest extends BuildFileIntegrationTestCase {
+
+  @Test
+  public void testFindRuleReturnsFirstDeclaration() {
+    BuildFile file =
+        createBuildFile(
+            new WorkspacePath("java/com/google/BUILD"),
+            "java_library(name = 'lib')",
+            "java_binary(name = 'bin')",
+            "java_test(name = 'lib')",
+            "glob(['*.java'])");
+
+    FuncallExpression[] funcalls = file.childrenOfClass(FuncallExpression.class);
+    assertThat(file.findRule("lib")).isEqualTo(funcalls[0]);
+    assertThat(file.findRule("bin")).isEqualTo(funcalls[1]);
+    assertThat(file.findRule("missing")).isNull();
+    assertThat(file.getNamedRules()).containsExactly(funcalls[0], funcalls[1]).inOrder();
+  }
+
+  @Test
+  public void testFindRuleAfterRename() {
+    BuildFile file =
+        createBuildFile(new WorkspacePath("java/com/google/BUILD"), "java_library(name = 'lib')");
+    FuncallExpression rule = file.findRule("lib");
+    assertThat(rule).isNotNull();
+
+    editorTest.replaceStringContents(
+        (StringLiteral) rule.getNameArgument().getValue(), "renamed");
+
+    assertThat(file.findRule("lib")).isNull();
+    assertThat(file.findRule("renamed")).isEqualTo(rule);
+  }
+
+  @Test
+  public void testFindDeclaredAndLoadedFunctions() {
+    BuildFile ext =
+        createBuildFile(
+            new WorkspacePath("java/com/google/build_defs.bzl"), "def macro(name, deps)");
+    BuildFile file =
+        createBuildFile(
+            new WorkspacePath("java/com/google/BUILD"),
+            "load(\"//java/com/google:build_defs.bzl\", \"macro\")",
+            "def local(name, deps)");
+
+    assertThat(file.findDeclaredFunction("local"))
+        .isEqualTo(file.firstChildOfClass(FunctionStatement.class));
+    assertThat(file.findDeclaredFunction("macro")).isNull();
+    assertThat(file.findLoadedFunction("macro"))
+        .isEqualTo(ext.firstChildOfClass(FunctionStatement.class));
+    assertThat(file.findFunctionInScope("macro")).isNotNull();
+    assertThat(file.findLoadedFunction("local")).isNull();
+  }
+}
@@ -171,6 +171,22 @@ public class GlobReferenceTest extends BuildFileIntegrationTestCase {
     assertThat(references).isEmpty();
   }
 
+  @Test
+  public void testCachedResultsUpdatedWhenFilesChange() {
+    PsiFile test = workspace.createPsiFile(new WorkspacePath("java/com/google/Test.java"));
+    BuildFile file =
+        createBuildFile(new WorkspacePath("java/com/google/BUILD"), "glob(['**/*.java'])");
+
+    GlobExpression glob = PsiUtils.findFirstChildOfClassRecursive(file, GlobExpression.class);
+    assertThat(multiResolve(glob)).containsExactly(test);
+
+    PsiFile foo = workspace.createPsiFile(new WorkspacePath("java/com/google/sub/Foo.java"));
+    assertThat(multiResolve(glob)).containsExactly(test, foo);
+
+    createBuildFile(new WorkspacePath("java/com/google/sub/BUILD"));
+    assertThat(multiResolve(glob)).containsExactly(test);
+  }
+
   private List<PsiElement> multiResolve(GlobExpression glob) {
     ResolveResult[] result = glob.getReference().multiResolve(false);
     return Arrays.stream(result)
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.projectstructure;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.idea.blaze.base.BlazeIntegrationTestCase;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.intellij.openapi.roots.CompilerModuleExtension;
+import com.intellij.openapi.roots.ModifiableRootModel;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.SourceFolder;
+import com.intellij.openapi.vfs.VirtualFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.jps.model.java.JavaSourceRootProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RootModelComparator} */
+@RunWith(JUnit4.class)
+public class RootModelComparatorTest extends BlazeIntegrationTestCase {
+
+  private final List<ModifiableRootModel> models = new ArrayList<>();
+  private VirtualFile root;
+
+  @Before
+  public void doSetup() {
+    root = workspace.createDirectory(new WorkspacePath("java/apps"));
+  }
+
+  @After
+  public void doTearDown() {
+    // the models are never committed, so the test module is left unchanged
+    models.forEach(ModifiableRootModel::dispose);
+  }
+
+  @Test
+  public void testSameStructureIsEquivalent() {
+    ModifiableRootModel a = newModel();
+    addSourceFolder(a, "apps", /* generated= */ false);
+    ModifiableRootModel b = newModel();
+    addSourceFolder(b, "apps", /* generated= */ false);
+
+    assertThat(RootModelComparator.isEquivalent(a, b)).isTrue();
+  }
+
+  @Test
+  public void testDifferentPackagePrefixIsNotEquivalent() {
+    ModifiableRootModel a = newModel();
+    addSourceFolder(a, "apps", /* generated= */ false);
+    ModifiableRootModel b = newModel();
+    addSourceFolder(b, "apps.other", /* generated= */ false);
+
+    assertThat(RootModelComparator.isEquivalent(a, b)).isFalse();
+  }
+
+  @Test
+  public void testGeneratedSourceFolderIsNotEquivalent() {
+    ModifiableRootModel a = newModel();
+    addSourceFolder(a, "apps", /* generated= */ false);
+    ModifiableRootModel b = newModel();
+    addSourceFolder(b, "apps", /* generated= */ true);
+
+    assertThat(RootModelComparator.isEquivalent(a, b)).isFalse();
+  }
+
+  @Test
+  public void testChangedModuleExtensionIsNotEquivalent() {
+    ModifiableRootModel a = newModel();
+    ModifiableRootModel b = newModel();
+    CompilerModuleExtension compilerSettings =
+        b.getModuleExtension(CompilerModuleExtension.class);
+    compilerSettings.inheritCompilerOutputPath(false);
+    compilerSettings.setCompilerOutputPath(root.getUrl() + "/out");
+
+    assertThat(RootModelComparator.isEquivalent(a, b)).isFalse();
+  }
+
+  private ModifiableRootModel newModel() {
+    ModifiableRootModel model =
+        ModuleRootManager.getInstance(testFixture.getModule()).getModifiableModel();
+    models.add(model);
+    model.clear();
+    return model;
+  }
+
+  private void addSourceFolder(ModifiableRootModel model, String packagePrefix, boolean generated) {
+    SourceFolder folder = model.addContentEntry(root).addSourceFolder(root, false);
+    folder.setPackagePrefix(packagePrefix);
+    ((JavaSourceRootProperties) folder.getJpsElement().getProperties())
+        .setForGeneratedSources(generated);
+  }
+}
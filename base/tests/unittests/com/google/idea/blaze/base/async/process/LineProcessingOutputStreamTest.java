@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.async.process;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.idea.blaze.base.async.process.LineProcessingOutputStream.CharSequenceLineProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link LineProcessingOutputStream}. */
+@RunWith(JUnit4.class)
+public final class LineProcessingOutputStreamTest {
+
+  private final List<String> lines = new ArrayList<>();
+  private final LineProcessingOutputStream stream =
+      LineProcessingOutputStream.of(
+          line -> {
+            lines.add(line);
+            return true;
+          });
+
+  @Test
+  public void testLineBreaks() {
+    write("a\nb\r\nc\rd\n\ne");
+    assertThat(lines).containsExactly("a", "b", "c", "d", "").inOrder();
+  }
+
+  @Test
+  public void testCarriageReturnLineFeedSplitAcrossWrites() {
+    write("a\r");
+    write("\nb\n");
+    assertThat(lines).containsExactly("a", "b").inOrder();
+  }
+
+  @Test
+  public void testMultiByteCharactersSplitAcrossWrites() {
+    byte[] bytes = "héllo 世界\n".getBytes(UTF_8);
+    for (int i = 0; i < bytes.length; i++) {
+      stream.write(bytes, i, 1);
+    }
+    assertThat(lines).containsExactly("héllo 世界");
+  }
+
+  @Test
+  public void testLongLine() {
+    String longLine = Strings.repeat("x", 100000);
+    write(longLine.substring(0, 50000));
+    write(longLine.substring(50000) + "\nshort\n");
+    assertThat(lines).containsExactly(longLine, "short").inOrder();
+  }
+
+  @Test
+  public void testCharSequenceLineProcessor() {
+    List<String> views = new ArrayList<>();
+    LineProcessingOutputStream stream =
+        LineProcessingOutputStream.of(
+            (CharSequenceLineProcessor)
+                line -> {
+                  views.add(line.toString());
+                  return !line.toString().equals("stop");
+                },
+            line -> {
+              lines.add(line);
+              return true;
+            });
+    byte[] bytes = "first\nstop\nlast\n".getBytes(UTF_8);
+    stream.write(bytes, 0, bytes.length);
+
+    assertThat(views).containsExactly("first", "stop", "last").inOrder();
+    assertThat(lines).containsExactly("first", "last").inOrder();
+  }
+
+  private void write(String text) {
+    byte[] bytes = text.getBytes(UTF_8);
+    stream.write(bytes, 0, bytes.length);
+  }
+}
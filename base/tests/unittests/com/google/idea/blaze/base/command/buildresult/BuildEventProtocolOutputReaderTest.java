@@ -54,7 +54,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -456,6 +458,41 @@ public class BuildEventProtocolOutputReaderTest extends BlazeTestCase {
     assertThat(BlazeArtifact.getLocalFiles(outputs)).containsExactlyElementsIn(allOutputs);
   }
 
+  @Test
+  public void incrementalParser_notifiesListenerOfCompletedTargets() throws Exception {
+    ImmutableList<String> fileSet1 =
+        ImmutableList.of("/usr/out/genfiles/foo.pb.h", "/usr/out/genfiles/foo.proto.h");
+    ImmutableList<String> fileSet2 = ImmutableList.of("/usr/local/lib/File.py");
+
+    List<BuildEvent.Builder> events =
+        ImmutableList.of(
+            BuildEvent.newBuilder()
+                .setStarted(BuildEventStreamProtos.BuildStarted.getDefaultInstance()),
+            configuration("config-id", "k8-opt"),
+            setOfFiles(fileSet2, "set-2"),
+            setOfFiles(fileSet1, "set-1", ImmutableList.of("set-2")),
+            targetComplete(
+                "//some:target",
+                "config-id",
+                ImmutableList.of(outputGroup("group-1", ImmutableList.of("set-1")))));
+
+    Map<String, String> completed = new LinkedHashMap<>();
+    ParsedBepOutput.IncrementalParser parser =
+        new ParsedBepOutput.IncrementalParser(null, completed::put);
+    for (BuildEvent.Builder event : events) {
+      parser.processEvent(event.build());
+    }
+
+    assertThat(completed).containsExactly("//some:target", "k8-opt");
+    assertThat(
+            BlazeArtifact.getLocalFiles(
+                parser.build(0).getOutputGroupArtifacts("group-1", path -> true)))
+        .containsExactlyElementsIn(
+            Streams.concat(fileSet1.stream(), fileSet2.stream())
+                .map(File::new)
+                .collect(toImmutableList()));
+  }
+
   @Test
   public void testStatusEnum_handlesAllProtoEnumValues() {
     Set<String> protoValues =
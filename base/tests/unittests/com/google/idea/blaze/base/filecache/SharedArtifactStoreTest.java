@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.filecache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.idea.blaze.base.command.buildresult.BlazeArtifact.LocalFileArtifact;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SharedArtifactStore}. */
+@RunWith(JUnit4.class)
+public class SharedArtifactStoreTest {
+  private static final long MAX_SIZE = 1024;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File storeDir;
+
+  @Before
+  public void setUp() throws IOException {
+    storeDir = folder.newFolder("store");
+  }
+
+  @Test
+  public void testIdenticalArtifactsAreStoredOnce() throws IOException {
+    SharedArtifactStore store = new SharedArtifactStore(storeDir);
+    File first = folder.newFile("first.jar");
+    File second = folder.newFile("second.jar");
+
+    store.materialize(artifact("out/a.jar", "contents"), first, MAX_SIZE);
+    store.materialize(artifact("other/out/a.jar", "contents"), second, MAX_SIZE);
+
+    assertThat(readString(first)).isEqualTo("contents");
+    assertThat(Files.isSameFile(first.toPath(), second.toPath())).isTrue();
+    assertThat(store.getTotalSize()).isEqualTo("contents".length());
+  }
+
+  @Test
+  public void testModifiedLocalArtifactIsStoredAgain() throws IOException {
+    SharedArtifactStore store = new SharedArtifactStore(storeDir);
+    File destination = folder.newFile("a.jar");
+    LocalFileArtifact artifact = artifact("out/a.jar", "old");
+    store.materialize(artifact, destination, MAX_SIZE);
+
+    Files.write(artifact.getFile().toPath(), "new".getBytes(UTF_8));
+    artifact.getFile().setLastModified(artifact.getFile().lastModified() + 1000);
+    store.materialize(artifact, destination, MAX_SIZE);
+
+    assertThat(readString(destination)).isEqualTo("new");
+    assertThat(store.getTotalSize()).isEqualTo(6);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedArtifactsAreEvicted() throws IOException {
+    SharedArtifactStore store = new SharedArtifactStore(storeDir);
+    LocalFileArtifact a = artifact("out/a.jar", "aaaaaaaaaa");
+    LocalFileArtifact b = artifact("out/b.jar", "bbbbbbbbbb");
+    LocalFileArtifact c = artifact("out/c.jar", "cccccccccc");
+    File destinationA = folder.newFile("a.jar");
+    File destinationB = folder.newFile("b.jar");
+
+    store.materialize(a, destinationA, 25);
+    store.materialize(b, destinationB, 25);
+    store.materialize(a, destinationA, 25);
+    // neither file is linked from a project cache any more
+    Files.delete(destinationA.toPath());
+    Files.delete(destinationB.toPath());
+    store.materialize(c, folder.newFile("c.jar"), 25);
+
+    assertThat(store.getTotalSize()).isEqualTo(20);
+    store.materialize(a, destinationA, MAX_SIZE);
+    assertThat(store.getTotalSize()).isEqualTo(20);
+    store.materialize(b, destinationB, MAX_SIZE);
+    assertThat(store.getTotalSize()).isEqualTo(30);
+  }
+
+  @Test
+  public void testLinkedArtifactsAreNotEvicted() throws IOException {
+    SharedArtifactStore store = new SharedArtifactStore(storeDir);
+    File destinationA = folder.newFile("a.jar");
+    File destinationB = folder.newFile("b.jar");
+
+    store.materialize(artifact("out/a.jar", "aaaaaaaaaa"), destinationA, 15);
+    store.materialize(artifact("out/b.jar", "bbbbbbbbbb"), destinationB, 15);
+
+    assertThat(store.getTotalSize()).isEqualTo(20);
+    assertThat(linkCount(destinationA)).isEqualTo(2);
+    assertThat(linkCount(destinationB)).isEqualTo(2);
+  }
+
+  @Test
+  public void testIndexIsReadBack() throws IOException {
+    SharedArtifactStore store = new SharedArtifactStore(storeDir);
+    store.materialize(artifact("out/a.jar", "contents"), folder.newFile("a.jar"), MAX_SIZE);
+    store.save();
+
+    SharedArtifactStore reloaded = new SharedArtifactStore(storeDir);
+    assertThat(reloaded.getTotalSize()).isEqualTo("contents".length());
+    File destination = folder.newFile("b.jar");
+    reloaded.materialize(artifact("other/out/a.jar", "contents"), destination, MAX_SIZE);
+    assertThat(reloaded.getTotalSize()).isEqualTo("contents".length());
+    assertThat(linkCount(destination)).isEqualTo(3);
+  }
+
+  @Test
+  public void testIndexChangesSavedByOtherInstancesAreMerged() throws IOException {
+    SharedArtifactStore first = new SharedArtifactStore(storeDir);
+    SharedArtifactStore second = new SharedArtifactStore(storeDir);
+    first.materialize(artifact("out/a.jar", "aaaa"), folder.newFile("a.jar"), MAX_SIZE);
+    second.materialize(artifact("out/b.jar", "bbbbbb"), folder.newFile("b.jar"), MAX_SIZE);
+    first.save();
+    second.save();
+
+    assertThat(new SharedArtifactStore(storeDir).getTotalSize()).isEqualTo(10);
+  }
+
+  @Test
+  public void testSourceModifiedTimeIsRecordedPerDestination() throws IOException {
+    SharedArtifactStore store = new SharedArtifactStore(storeDir);
+    LocalFileArtifact a = artifact("out/a.jar", "contents");
+    LocalFileArtifact b = artifact("other/out/a.jar", "contents");
+    a.getFile().setLastModified(10000);
+    b.getFile().setLastModified(20000);
+    File first = folder.newFile("first.jar");
+    File second = folder.newFile("second.jar");
+
+    store.materialize(a, first, MAX_SIZE);
+    store.materialize(b, second, MAX_SIZE);
+    store.save();
+
+    // both destinations are links to the same file, so share its modified time
+    assertThat(second.lastModified()).isEqualTo(first.lastModified());
+    SharedArtifactStore reloaded = new SharedArtifactStore(storeDir);
+    assertThat(reloaded.getMaterializedSourceModifiedTime(first)).isEqualTo(10000L);
+    assertThat(reloaded.getMaterializedSourceModifiedTime(second)).isEqualTo(20000L);
+    assertThat(reloaded.getMaterializedSourceModifiedTime(folder.newFile("c.jar"))).isNull();
+  }
+
+  private LocalFileArtifact artifact(String path, String contents) throws IOException {
+    File file = new File(folder.getRoot(), "execroot/" + path);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), contents.getBytes(UTF_8));
+    return new LocalFileArtifact() {
+      @Override
+      public File getFile() {
+        return file;
+      }
+
+      @Override
+      public long getLength() {
+        return file.length();
+      }
+
+      @Override
+      public BufferedInputStream getInputStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file));
+      }
+    };
+  }
+
+  private static String readString(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), UTF_8);
+  }
+
+  private static int linkCount(File file) throws IOException {
+    return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+  }
+}
@@ -42,6 +42,8 @@ import com.google.idea.common.experiments.ExperimentService;
 import com.google.idea.common.experiments.MockExperimentService;
 import com.intellij.openapi.util.TextRange;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -553,6 +555,47 @@ public class BlazeIssueParserTest extends BlazeTestCase {
         .isEqualTo(TextRange.create(0, "File \"foo/bar.py\", line 123".length()));
   }
 
+  @Test
+  public void testRequiredLiteralPrefix() {
+    assertThat(BlazeIssueParser.requiredLiteralPrefix("^ERROR: (/.*?BUILD):([0-9]+)"))
+        .isEqualTo("ERROR: ");
+    assertThat(BlazeIssueParser.requiredLiteralPrefix("^File \"([^:]*\\.py)\", line"))
+        .isEqualTo("File \"");
+    assertThat(BlazeIssueParser.requiredLiteralPrefix("\\(escaped\\) \\d")).isEqualTo("(escaped) ");
+    assertThat(BlazeIssueParser.requiredLiteralPrefix("ab?c")).isEqualTo("a");
+    assertThat(BlazeIssueParser.requiredLiteralPrefix("^ERROR: (?:(a)|(b))$")).isEqualTo("ERROR: ");
+    assertThat(BlazeIssueParser.requiredLiteralPrefix("ERROR: a|WARNING: b")).isEmpty();
+    assertThat(BlazeIssueParser.requiredLiteralPrefix("^([^:]+):([0-9]+)")).isEmpty();
+  }
+
+  @Test
+  public void testParsersAreOnlyRunOnLinesContainingTheirKeywords() {
+    List<String> parsedLines = new ArrayList<>();
+    BlazeIssueParser.Parser recordingParser =
+        new BlazeIssueParser.Parser() {
+          @Override
+          public BlazeIssueParser.ParseResult parse(String currentLine, List<String> previous) {
+            parsedLines.add(currentLine);
+            return BlazeIssueParser.ParseResult.NO_RESULT;
+          }
+
+          @Override
+          public ImmutableList<String> keywords() {
+            return ImmutableList.of("FAILED", "ERROR");
+          }
+        };
+    BlazeIssueParser blazeIssueParser =
+        new BlazeIssueParser(ImmutableList.of(new TestParser(), recordingParser));
+
+    assertThat(blazeIssueParser.parseIssue("INFO: Analyzed 3 targets")).isNull();
+    assertThat(blazeIssueParser.parseIssue("TEST warning")).isNotNull();
+    assertThat(blazeIssueParser.parseIssue("//foo:bar FAILED in 3s")).isNull();
+    assertThat(blazeIssueParser.parseIssue("ERROR: build failed")).isNull();
+    assertThat(parsedLines)
+        .containsExactly("//foo:bar FAILED in 3s", "ERROR: build failed")
+        .inOrder();
+  }
+
   /** Simple Parser for testing */
   private static class TestParser extends BlazeIssueParser.SingleLineParser {
 
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.lang.buildfile.globbing;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.function.Predicate;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link UnixGlob} pattern matching. */
+@RunWith(JUnit4.class)
+public class UnixGlobTest {
+
+  @Test
+  public void testWildcards() {
+    assertThat(UnixGlob.matches("*", "Foo.java")).isTrue();
+    assertThat(UnixGlob.matches("**", "a/b/Foo.java")).isTrue();
+    assertThat(UnixGlob.matches("*.java", "Foo.java")).isTrue();
+    assertThat(UnixGlob.matches("*.java", "Foo.kt")).isFalse();
+    assertThat(UnixGlob.matches("Foo*", "FooTest.java")).isTrue();
+    assertThat(UnixGlob.matches("F?o*.java", "FooTest.java")).isTrue();
+    assertThat(UnixGlob.matches("F?o*.java", "FoTest.java")).isFalse();
+    assertThat(UnixGlob.matches("**/*.java", "a/b/Foo.java")).isTrue();
+    assertThat(UnixGlob.matches("a/**", "a/b/Foo.java")).isTrue();
+  }
+
+  @Test
+  public void testLeadingDotMatchedExplicitly() {
+    assertThat(UnixGlob.matches("*.txt", ".hidden.txt")).isFalse();
+    assertThat(UnixGlob.matches(".*.txt", ".hidden.txt")).isTrue();
+    assertThat(UnixGlob.matches("*", ".hidden")).isTrue();
+  }
+
+  @Test
+  public void testEmptyPatternOrStringNeverMatches() {
+    assertThat(UnixGlob.matches("", "Foo.java")).isFalse();
+    assertThat(UnixGlob.matches("*", "")).isFalse();
+    assertThat(UnixGlob.matches("*.java", "")).isFalse();
+  }
+
+  @Test
+  public void testRegexCharactersEscaped() {
+    assertThat(UnixGlob.matches("a+b*.c", "a+bx.c")).isTrue();
+    assertThat(UnixGlob.matches("a+b*.c", "aabx.c")).isFalse();
+  }
+
+  @Test
+  public void testCompiledMatcherReused() {
+    Predicate<String> matcher = UnixGlob.compile("src/**/*Test.java");
+    assertThat(UnixGlob.compile("src/**/*Test.java")).isSameInstanceAs(matcher);
+    assertThat(matcher.test("src/a/FooTest.java")).isTrue();
+    assertThat(matcher.test("src/a/Foo.java")).isFalse();
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.model;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.settings.BuildSystemName;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for saving and loading {@link BlazeProjectData}. */
+@RunWith(JUnit4.class)
+public class BlazeProjectDataTest extends BlazeTestCase {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    ExtensionPointImpl<Kind.Provider> ep =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    ep.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+    registerExtensionPoint(
+        SyncData.Extractor.EP_NAME,
+        (Class<SyncData.Extractor<?>>) (Class<?>) SyncData.Extractor.class);
+  }
+
+  @After
+  public void resetMaxFileSize() {
+    IndexedProjectDataFile.maxFileSize = Integer.MAX_VALUE;
+  }
+
+  @Test
+  public void testRoundTripDecodesTargetsLazily() throws IOException {
+    BlazeProjectData projectData = projectData("//a:a", "//b:b");
+    File file = folder.newFile("cache.0.dat");
+
+    projectData.saveToDisk(file);
+    BlazeProjectData loaded = BlazeProjectData.loadFromDisk(BuildSystemName.Bazel, file);
+
+    assertThat(IndexedProjectDataFile.isIndexedFormat(file)).isTrue();
+    TargetMap targetMap = loaded.getTargetMap();
+    assertThat(targetMap.contains(key("//a:a"))).isTrue();
+    assertThat(targetMap.contains(key("//c:c"))).isFalse();
+    assertThat(targetMap.size()).isEqualTo(2);
+    assertThat(targetMap.get(key("//b:b")))
+        .isEqualTo(projectData.getTargetMap().get(key("//b:b")));
+    assertThat(targetMap.hashCode()).isEqualTo(projectData.getTargetMap().hashCode());
+    assertThat(targetMap).isEqualTo(projectData.getTargetMap());
+    assertThat(loaded.getBlazeInfo()).isEqualTo(projectData.getBlazeInfo());
+  }
+
+  @Test
+  public void testTruncatedFileIsRejected() throws IOException {
+    File file = folder.newFile("cache.0.dat");
+    projectData("//a:a", "//b:b").saveToDisk(file);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() / 2);
+    }
+
+    try {
+      BlazeProjectData.loadFromDisk(BuildSystemName.Bazel, file);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCorruptIndexOffsetIsRejected() throws IOException {
+    File file = folder.newFile("cache.0.dat");
+    projectData("//a:a", "//b:b").saveToDisk(file);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // point the footer's index offset past the end of the file
+      raf.seek(raf.length() - Long.BYTES - Integer.BYTES);
+      raf.writeLong(raf.length() + 100);
+    }
+
+    try {
+      BlazeProjectData.loadFromDisk(BuildSystemName.Bazel, file);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testLegacyGzippedFileIsLoaded() throws IOException {
+    BlazeProjectData projectData = projectData("//a:a");
+    File file = folder.newFile("cache.dat.gz");
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+      projectData.toProto().writeTo(out);
+    }
+
+    BlazeProjectData loaded = BlazeProjectData.loadFromDisk(BuildSystemName.Bazel, file);
+
+    assertThat(loaded.getTargetMap()).isEqualTo(projectData.getTargetMap());
+  }
+
+  @Test
+  public void testTooLargeDataIsSavedAsGzippedProto() throws IOException {
+    BlazeProjectData projectData = projectData("//a:a", "//b:b");
+    File file = folder.newFile("cache.0.dat");
+    IndexedProjectDataFile.maxFileSize = 100;
+
+    projectData.saveToDisk(file);
+    BlazeProjectData loaded = BlazeProjectData.loadFromDisk(BuildSystemName.Bazel, file);
+
+    assertThat(IndexedProjectDataFile.isIndexedFormat(file)).isFalse();
+    assertThat(loaded.getTargetMap()).isEqualTo(projectData.getTargetMap());
+  }
+
+  private static BlazeProjectData projectData(String... labels) {
+    TargetMapBuilder targets = TargetMapBuilder.builder();
+    for (String label : labels) {
+      targets.addTarget(TargetIdeInfo.builder().setLabel(label).setKind("proto_library"));
+    }
+    return MockBlazeProjectDataBuilder.builder().setTargetMap(targets.build()).build();
+  }
+
+  private static TargetKey key(String label) {
+    return TargetKey.forPlainTarget(Label.create(label));
+  }
+}
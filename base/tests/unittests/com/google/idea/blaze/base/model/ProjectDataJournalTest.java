@@ -0,0 +1,244 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.model;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.intellij.model.ProjectData;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.settings.BuildSystemName;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ProjectDataJournal}. */
+@RunWith(JUnit4.class)
+public class ProjectDataJournalTest extends BlazeTestCase {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File dataFile;
+  private File journalFile;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    ExtensionPointImpl<Kind.Provider> ep =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    ep.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+    registerExtensionPoint(
+        SyncData.Extractor.EP_NAME,
+        (Class<SyncData.Extractor<?>>) (Class<?>) SyncData.Extractor.class);
+  }
+
+  @Before
+  public void createFiles() {
+    dataFile = new File(folder.getRoot(), "cache.0.dat");
+    journalFile = new File(folder.getRoot(), "cache.journal");
+  }
+
+  @Test
+  public void testDiffOnlyContainsChangedTargetsAndHeaderSections() {
+    BlazeProjectData previous =
+        projectData(null, target("//a:a", "v1"), target("//b:b", "v1"), target("//c:c", "v1"));
+    BlazeProjectData current =
+        update(
+            previous,
+            7L,
+            target("//a:a", "v1"),
+            target("//b:b", "v2"),
+            target("//d:d", "v1"));
+
+    ProjectData.BlazeProjectDataDelta delta = ProjectDataJournal.diff(previous, current);
+
+    assertThat(delta.getUpdatedTargetsList())
+        .containsExactly(
+            current.getTargetMap().get(key("//b:b")).toProto(),
+            current.getTargetMap().get(key("//d:d")).toProto());
+    assertThat(delta.getRemovedTargetsList()).containsExactly(key("//c:c").toProto());
+    assertThat(delta.getHeader().hasBlazeVersionData()).isTrue();
+    assertThat(delta.getHeader().hasBlazeInfo()).isFalse();
+    assertThat(delta.getHeader().hasSyncState()).isFalse();
+    assertThat(delta.getHeader().hasWorkspaceLanguageSettings()).isFalse();
+  }
+
+  @Test
+  public void testUnchangedHeaderIsNotWritten() {
+    BlazeProjectData previous = projectData(null, target("//a:a", "v1"), target("//b:b", "v1"));
+    BlazeProjectData current =
+        update(previous, null, target("//a:a", "v2"), target("//b:b", "v1"));
+
+    assertThat(ProjectDataJournal.diff(previous, current).hasHeader()).isFalse();
+  }
+
+  @Test
+  public void testFullSaveRequiredWhenMostTargetsChanged() throws IOException {
+    BlazeProjectData previous = projectData(null, target("//a:a", "v1"), target("//b:b", "v1"));
+    BlazeProjectData current =
+        update(previous, null, target("//a:a", "v2"), target("//b:b", "v2"));
+    previous.saveToDisk(dataFile);
+
+    assertThat(ProjectDataJournal.diff(previous, current)).isNull();
+    assertThat(ProjectDataJournal.append(dataFile, journalFile, previous, current)).isFalse();
+    assertThat(journalFile.exists()).isFalse();
+  }
+
+  @Test
+  public void testReplayAppliesEntriesInOrder() throws IOException {
+    BlazeProjectData base = projectData(null, target("//a:a", "v1"), target("//b:b", "v1"));
+    BlazeProjectData first = update(base, 1L, target("//a:a", "v1"), target("//b:b", "v2"));
+    BlazeProjectData second = update(first, 1L, target("//a:a", "v1"), target("//b:b", "v3"));
+    base.saveToDisk(dataFile);
+
+    assertThat(ProjectDataJournal.append(dataFile, journalFile, base, first)).isTrue();
+    assertThat(ProjectDataJournal.append(dataFile, journalFile, first, second)).isTrue();
+    BlazeProjectData loaded = load();
+
+    assertThat(loaded.getTargetMap()).isEqualTo(second.getTargetMap());
+    assertThat(loaded.getBlazeVersionData()).isEqualTo(second.getBlazeVersionData());
+  }
+
+  @Test
+  public void testTruncatedEntryIsCutOffBeforeNextAppend() throws IOException {
+    BlazeProjectData base = projectData(null, target("//a:a", "v1"), target("//b:b", "v1"));
+    BlazeProjectData first = update(base, null, target("//a:a", "v1"), target("//b:b", "v2"));
+    BlazeProjectData second = update(first, null, target("//a:a", "v1"), target("//b:b", "v3"));
+    BlazeProjectData third = update(first, null, target("//a:a", "v1"), target("//b:b", "v4"));
+    base.saveToDisk(dataFile);
+    ProjectDataJournal.append(dataFile, journalFile, base, first);
+    long validLength = journalFile.length();
+    ProjectDataJournal.append(dataFile, journalFile, first, second);
+    try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+      raf.setLength(validLength + 3);
+    }
+
+    assertThat(load().getTargetMap()).isEqualTo(first.getTargetMap());
+    assertThat(journalFile.length()).isEqualTo(validLength);
+
+    assertThat(ProjectDataJournal.append(dataFile, journalFile, first, third)).isTrue();
+    assertThat(load().getTargetMap()).isEqualTo(third.getTargetMap());
+  }
+
+  @Test
+  public void testJournalForDifferentSnapshotIsIgnored() throws IOException {
+    BlazeProjectData base = projectData(null, target("//a:a", "v1"), target("//b:b", "v1"));
+    BlazeProjectData first = update(base, null, target("//a:a", "v1"), target("//b:b", "v2"));
+    base.saveToDisk(dataFile);
+    ProjectDataJournal.append(dataFile, journalFile, base, first);
+
+    // rewriting the data file gives it a new snapshot ID, even with identical contents
+    base.saveToDisk(dataFile);
+
+    assertThat(ProjectDataJournal.append(dataFile, journalFile, base, first)).isFalse();
+    assertThat(load().getTargetMap()).isEqualTo(base.getTargetMap());
+    assertThat(journalFile.exists()).isFalse();
+  }
+
+  @Test
+  public void testOnlyTargetsRecordedAsChangedAreCompared() {
+    BlazeProjectData previous =
+        projectData(null, target("//a:a", "v1"), target("//b:b", "v1"), target("//c:c", "v1"));
+    TargetMap targetMap =
+        TargetMap.derivedFrom(
+            previous.getTargetMap(),
+            targetMap(target("//a:a", "v2"), target("//b:b", "v2"), target("//c:c", "v1")),
+            ImmutableSet.of(key("//b:b")));
+    BlazeProjectData current =
+        MockBlazeProjectDataBuilder.builder().setTargetMap(targetMap).build();
+
+    ProjectData.BlazeProjectDataDelta delta = ProjectDataJournal.diff(previous, current);
+
+    assertThat(delta.getUpdatedTargetsList())
+        .containsExactly(current.getTargetMap().get(key("//b:b")).toProto());
+  }
+
+  @Test
+  public void testFullSaveRequiredWhenChangesAreUnknown() {
+    BlazeProjectData previous = projectData(null, target("//a:a", "v1"), target("//b:b", "v1"));
+    BlazeProjectData current = projectData(null, target("//a:a", "v1"), target("//b:b", "v2"));
+
+    assertThat(ProjectDataJournal.diff(previous, current)).isNull();
+  }
+
+  private BlazeProjectData load() throws IOException {
+    return BlazeProjectData.loadFromDisk(BuildSystemName.Bazel, dataFile, journalFile);
+  }
+
+  private static BlazeProjectData projectData(
+      @Nullable Long clientCl, TargetIdeInfo.Builder... targets) {
+    return projectData(clientCl, new TargetMap(targetMap(targets)));
+  }
+
+  /** Returns project data derived from {@code previous}, as a sync would produce it. */
+  private static BlazeProjectData update(
+      BlazeProjectData previous, @Nullable Long clientCl, TargetIdeInfo.Builder... targets) {
+    ImmutableMap<TargetKey, TargetIdeInfo> targetMap = targetMap(targets);
+    ImmutableMap<TargetKey, TargetIdeInfo> previousTargetMap = previous.getTargetMap().map();
+    Set<TargetKey> changedKeys = new HashSet<>(previousTargetMap.keySet());
+    changedKeys.addAll(targetMap.keySet());
+    changedKeys.removeIf(key -> Objects.equals(targetMap.get(key), previousTargetMap.get(key)));
+    return projectData(
+        clientCl,
+        TargetMap.derivedFrom(
+            previous.getTargetMap(), targetMap, ImmutableSet.copyOf(changedKeys)));
+  }
+
+  private static BlazeProjectData projectData(@Nullable Long clientCl, TargetMap targetMap) {
+    return MockBlazeProjectDataBuilder.builder()
+        .setTargetMap(targetMap)
+        .setBlazeVersionData(BlazeVersionData.builder().setClientCl(clientCl).build())
+        .build();
+  }
+
+  private static ImmutableMap<TargetKey, TargetIdeInfo> targetMap(
+      TargetIdeInfo.Builder... targets) {
+    TargetMapBuilder targetMap = TargetMapBuilder.builder();
+    for (TargetIdeInfo.Builder target : targets) {
+      targetMap.addTarget(target);
+    }
+    return targetMap.build().map();
+  }
+
+  private static TargetIdeInfo.Builder target(String label, String tag) {
+    return TargetIdeInfo.builder().setLabel(label).setKind("proto_library").addTag(tag);
+  }
+
+  private static TargetKey key(String label) {
+    return TargetKey.forPlainTarget(Label.create(label));
+  }
+}
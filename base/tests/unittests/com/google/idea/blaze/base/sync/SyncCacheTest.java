@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataBuilder;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataManager;
+import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SyncCache}. */
+@RunWith(JUnit4.class)
+public class SyncCacheTest extends BlazeTestCase {
+
+  private final List<Runnable> backgroundTasks = new ArrayList<>();
+  private SyncCache syncCache;
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    projectServices.register(
+        BlazeProjectDataManager.class,
+        new MockBlazeProjectDataManager(MockBlazeProjectDataBuilder.builder().build()));
+    syncCache = new SyncCache(project, backgroundTasks::add);
+  }
+
+  @Test
+  public void testValueIsComputedOncePerSync() {
+    AtomicInteger computations = new AtomicInteger();
+    SyncCache.SyncCacheComputable<Integer> computable =
+        (project, projectData) -> computations.incrementAndGet();
+
+    assertThat(syncCache.get("key", computable)).isEqualTo(1);
+    assertThat(syncCache.get("key", computable)).isEqualTo(1);
+
+    syncCache.invalidate();
+    assertThat(syncCache.get("key", computable)).isEqualTo(2);
+    assertThat(syncCache.getStats().get("key").hitCount()).isEqualTo(1);
+    assertThat(syncCache.getStats().get("key").missCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testStaleValueIsServedWhileRecomputing() throws Exception {
+    AtomicInteger computations = new AtomicInteger();
+    SyncCache.SyncCacheComputable<Integer> computable =
+        (project, projectData) -> computations.incrementAndGet();
+    assertThat(syncCache.getPossiblyStale("key", computable)).isNull();
+    backgroundTasks.forEach(Runnable::run);
+    backgroundTasks.clear();
+    assertThat(syncCache.getPossiblyStale("key", computable)).isEqualTo(1);
+
+    syncCache.invalidate();
+    assertThat(syncCache.getPossiblyStale("key", computable)).isEqualTo(1);
+    ListenableFuture<Integer> future = syncCache.getAsync("key", computable);
+    assertThat(future.isDone()).isFalse();
+    assertThat(backgroundTasks).hasSize(1);
+
+    backgroundTasks.forEach(Runnable::run);
+    assertThat(future.get()).isEqualTo(2);
+    assertThat(syncCache.getPossiblyStale("key", computable)).isEqualTo(2);
+  }
+
+  @Test
+  public void testValuesNotServedStaleAreReleasedOnSync() {
+    assertThat(syncCache.get("key", (project, projectData) -> 1)).isEqualTo(1);
+
+    syncCache.invalidate();
+
+    assertThat(syncCache.getPossiblyStale("key", (project, projectData) -> 2)).isNull();
+  }
+
+  @Test
+  public void testCancelledComputationIsNotCached() {
+    try {
+      syncCache.get(
+          "key",
+          (project, projectData) -> {
+            throw new ProcessCanceledException();
+          });
+      fail("Should have thrown ProcessCanceledException");
+    } catch (ProcessCanceledException e) {
+      // expected
+    }
+
+    assertThat(syncCache.get("key", (project, projectData) -> "value")).isEqualTo("value");
+    assertThat(syncCache.getStats().get("key").loadExceptionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFailedComputationIsRetried() {
+    try {
+      syncCache.get(
+          "key",
+          (project, projectData) -> {
+            throw new IllegalStateException("failed");
+          });
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessageThat().isEqualTo("failed");
+    }
+
+    assertThat(syncCache.get("key", (project, projectData) -> "value")).isEqualTo("value");
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.sync.FakeRemoteOutputArtifact;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AspectOutputIngestionPipeline}. */
+@RunWith(JUnit4.class)
+public class AspectOutputIngestionPipelineTest {
+
+  private final ListeningExecutorService executor =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testBatchesAreConsumedInInputOrder() {
+    ImmutableList<OutputArtifact> files = createFiles(10);
+    List<List<OutputArtifact>> fetched = new ArrayList<>();
+    AspectOutputIngestionPipeline<String> pipeline =
+        new AspectOutputIngestionPipeline<>(
+            executor,
+            batch -> Futures.immediateFuture(null),
+            batch -> {
+              fetched.add(batch);
+              return Futures.immediateFuture(null);
+            },
+            OutputArtifact::getRelativePath,
+            /* batchSize= */ 3,
+            /* maxBatchesInFlight= */ 2);
+
+    List<String> consumed = new ArrayList<>();
+    assertThat(pipeline.run(BlazeContext.create(), files, consumed::addAll)).isTrue();
+
+    assertThat(fetched.stream().map(List::size).collect(toImmutableList()))
+        .containsExactly(3, 3, 3, 1)
+        .inOrder();
+    assertThat(consumed)
+        .containsExactlyElementsIn(
+            files.stream().map(OutputArtifact::getRelativePath).collect(toImmutableList()))
+        .inOrder();
+  }
+
+  @Test
+  public void testLocalFetchWaitsForRemoteFetch() {
+    SettableFuture<Void> remoteFetch = SettableFuture.create();
+    List<List<OutputArtifact>> fetched = new ArrayList<>();
+    AspectOutputIngestionPipeline<String> pipeline =
+        new AspectOutputIngestionPipeline<>(
+            executor,
+            batch -> remoteFetch,
+            batch -> {
+              assertThat(remoteFetch.isDone()).isTrue();
+              fetched.add(batch);
+              return Futures.immediateFuture(null);
+            },
+            OutputArtifact::getRelativePath,
+            /* batchSize= */ 5,
+            /* maxBatchesInFlight= */ 2);
+
+    executor.submit(() -> remoteFetch.set(null));
+    assertThat(pipeline.run(BlazeContext.create(), createFiles(5), batch -> {})).isTrue();
+    assertThat(fetched).hasSize(1);
+  }
+
+  @Test
+  public void testContextCancellationCancelsBatchesInFlight() {
+    SettableFuture<Void> remoteFetch = SettableFuture.create();
+    AspectOutputIngestionPipeline<String> pipeline =
+        new AspectOutputIngestionPipeline<>(
+            executor,
+            batch -> remoteFetch,
+            batch -> Futures.immediateFuture(null),
+            OutputArtifact::getRelativePath,
+            /* batchSize= */ 3,
+            /* maxBatchesInFlight= */ 2);
+
+    BlazeContext context = BlazeContext.create();
+    List<String> consumed = new ArrayList<>();
+    executor.submit(
+        () -> {
+          Thread.sleep(50);
+          context.setCancelled();
+          return null;
+        });
+
+    assertThat(pipeline.run(context, createFiles(5), consumed::addAll)).isFalse();
+    assertThat(remoteFetch.isCancelled()).isTrue();
+    assertThat(consumed).isEmpty();
+  }
+
+  private static ImmutableList<OutputArtifact> createFiles(int count) {
+    return IntStream.range(0, count)
+        .mapToObj(i -> new FakeRemoteOutputArtifact(new File("target" + i + ".intellij-info.txt")))
+        .collect(toImmutableList());
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.aspects;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.idea.blaze.base.command.buildresult.BepArtifactData;
+import com.google.idea.blaze.base.command.buildresult.LocalFileOutputArtifact;
+import com.google.idea.blaze.base.command.buildresult.OutputArtifact;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ShardResultStore}. */
+@RunWith(JUnit4.class)
+public class ShardResultStoreTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final ImmutableList<Label> SHARD =
+      ImmutableList.of(Label.create("//foo:bar"), Label.create("//foo:baz"));
+
+  private File workspace;
+
+  @Before
+  public void setUp() throws IOException {
+    workspace = folder.newFolder("workspace");
+  }
+
+  @Test
+  public void testOutputsAreRestored() throws IOException {
+    ShardResultStore store = store(folder.newFolder(), "config");
+    store.put(SHARD, outputs(BuildResult.SUCCESS));
+
+    BlazeBuildOutputs restored = store.restore(SHARD).outputs;
+    assertThat(restored).isNotNull();
+    assertThat(restored.buildResult.status).isEqualTo(BuildResult.Status.SUCCESS);
+    assertThat(restored.buildIds).containsExactly("build-id");
+    assertThat(restored.getOutputGroupArtifacts(group -> group.equals("intellij-info-java")))
+        .hasSize(1);
+    OutputArtifact artifact = restored.getTopLevelTargetArtifacts("//foo:bar").iterator().next();
+    assertThat(artifact.getRelativePath()).isEqualTo("k8-fastbuild/bin/foo/bar.intellij-info.txt");
+    assertThat(artifact.getConfigurationMnemonic()).isEqualTo("k8-fastbuild");
+  }
+
+  @Test
+  public void testOutputsAreKeyedByTargetsAndConfiguration() throws IOException {
+    File directory = folder.newFolder();
+    ShardResultStore store = store(directory, "config");
+    store.put(SHARD, outputs(BuildResult.SUCCESS));
+
+    assertThat(store.restore(SHARD.reverse()).outputs).isNull();
+    assertThat(store(directory, "other").restore(SHARD).outputs).isNull();
+  }
+
+  @Test
+  public void testStoredPiecesOfASplitShardAreRestored() throws IOException {
+    ImmutableList<Label> shard = targets(8);
+    ShardResultStore store = store(folder.newFolder(), "config");
+    assertThat(store.hasStoredOutputs()).isFalse();
+    // the shard was split in halves, and the first half split again
+    store.put(shard.subList(0, 2), outputs(BuildResult.SUCCESS));
+    store.put(shard.subList(4, 8), outputs(BuildResult.SUCCESS));
+    assertThat(store.hasStoredOutputs()).isTrue();
+
+    ShardResultStore.RestoredShard restored = store.restore(shard);
+    assertThat(restored.outputs).isNotNull();
+    assertThat(restored.outputs.buildIds).containsExactly("build-id", "build-id");
+    assertThat(restored.remainingTargets).containsExactlyElementsIn(shard.subList(2, 4)).inOrder();
+  }
+
+  @Test
+  public void testShardsWithExcludedTargetsAreNotSplitToFindStoredPieces() throws IOException {
+    List<TargetExpression> shard = new ArrayList<>(targets(4));
+    shard.add(TargetExpression.fromStringSafe("-//foo:target0"));
+    ShardResultStore store = store(folder.newFolder(), "config");
+    store.put(shard.subList(0, 2), outputs(BuildResult.SUCCESS));
+
+    ShardResultStore.RestoredShard restored = store.restore(shard);
+    assertThat(restored.outputs).isNull();
+    assertThat(restored.remainingTargets).containsExactlyElementsIn(shard).inOrder();
+  }
+
+  @Test
+  public void testFailedShardsAreNotStored() throws IOException {
+    ShardResultStore store = store(folder.newFolder(), "config");
+    store.put(SHARD, outputs(BuildResult.fromExitCode(1)));
+
+    assertThat(store.restore(SHARD).outputs).isNull();
+  }
+
+  @Test
+  public void testExpiredOutputsAreIgnored() throws IOException {
+    File directory = folder.newFolder();
+    store(directory, "config").put(SHARD, outputs(BuildResult.SUCCESS));
+
+    for (File file : directory.listFiles()) {
+      file.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2));
+    }
+    assertThat(store(directory, "config").restore(SHARD).outputs).isNull();
+    assertThat(directory.listFiles()).isEmpty();
+  }
+
+  @Test
+  public void testClearDeletesStoredOutputs() throws IOException {
+    ShardResultStore store = store(folder.newFolder(), "config");
+    store.put(SHARD, outputs(BuildResult.SUCCESS));
+    store.clear();
+
+    assertThat(store.restore(SHARD).outputs).isNull();
+  }
+
+  @Test
+  public void testOutputsAreInvalidatedByBuildFileChanges() throws IOException {
+    File buildFile = new File(workspace, "foo/BUILD");
+    buildFile.getParentFile().mkdirs();
+    Files.write(buildFile.toPath(), "java_library(name = 'bar')".getBytes(UTF_8));
+    ShardResultStore store = store(folder.newFolder(), "config");
+    store.put(SHARD, outputs(BuildResult.SUCCESS));
+    assertThat(store.restore(SHARD).outputs).isNotNull();
+
+    Files.write(buildFile.toPath(), "java_library(name = 'bar_lib')".getBytes(UTF_8));
+    assertThat(store.restore(SHARD).outputs).isNull();
+  }
+
+  @Test
+  public void testWorkingSetStateChangesWhenAFileIsEdited() throws IOException {
+    File source = new File(workspace, "foo/Bar.java");
+    source.getParentFile().mkdirs();
+    Files.write(source.toPath(), "class Bar {}".getBytes(UTF_8));
+    WorkingSet workingSet =
+        new WorkingSet(
+            ImmutableList.of(),
+            ImmutableList.of(new WorkspacePath("foo/Bar.java")),
+            ImmutableList.of());
+    WorkspaceRoot workspaceRoot = new WorkspaceRoot(workspace);
+    String state = ShardResultStore.getWorkingSetState(workspaceRoot, workingSet);
+
+    assertThat(ShardResultStore.getWorkingSetState(workspaceRoot, workingSet)).isEqualTo(state);
+    Files.write(source.toPath(), "class Bar { int x; }".getBytes(UTF_8));
+    assertThat(ShardResultStore.getWorkingSetState(workspaceRoot, workingSet))
+        .isNotEqualTo(state);
+  }
+
+  private ShardResultStore store(File directory, String configuration) {
+    return new ShardResultStore(
+        directory,
+        new WorkspaceRoot(workspace),
+        ImmutableList.of("BUILD"),
+        configuration,
+        TimeUnit.HOURS.toMillis(1));
+  }
+
+  private static ImmutableList<Label> targets(int count) {
+    ImmutableList.Builder<Label> targets = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      targets.add(Label.create("//foo:target" + i));
+    }
+    return targets.build();
+  }
+
+  private static BlazeBuildOutputs outputs(BuildResult result) {
+    OutputArtifact artifact =
+        new LocalFileOutputArtifact(
+            new File("/out/k8-fastbuild/bin/foo/bar.intellij-info.txt"),
+            "k8-fastbuild/bin/foo/bar.intellij-info.txt",
+            "k8-fastbuild");
+    BepArtifactData data =
+        new BepArtifactData(
+            artifact, ImmutableList.of("intellij-info-java"), ImmutableList.of("//foo:bar"));
+    return BlazeBuildOutputs.create(
+        result, ImmutableMap.of(artifact.getKey(), data), ImmutableList.of("build-id"), 100L);
+  }
+}
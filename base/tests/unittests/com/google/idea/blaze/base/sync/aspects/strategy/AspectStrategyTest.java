@@ -16,21 +16,29 @@
 package com.google.idea.blaze.base.sync.aspects.strategy;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.devtools.intellij.ideinfo.IntellijIdeInfo;
 import com.google.idea.blaze.base.BlazeTestCase;
 import com.google.idea.blaze.base.command.BlazeCommand;
 import com.google.idea.blaze.base.command.BlazeCommandName;
 import com.google.idea.blaze.base.model.primitives.LanguageClass;
+import com.google.idea.blaze.base.sync.FakeRemoteOutputArtifact;
 import com.google.idea.blaze.base.sync.aspects.strategy.AspectStrategy.OutputGroup;
 import com.google.idea.common.experiments.ExperimentService;
 import com.google.idea.common.experiments.MockExperimentService;
+import com.google.repackaged.bazel.protobuf.TextFormat;
+import java.io.File;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -39,6 +47,7 @@ import org.junit.runners.JUnit4;
 public class AspectStrategyTest extends BlazeTestCase {
 
   private static final MockAspectStrategy strategy = new MockAspectStrategy();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
   private MockExperimentService experiments;
 
   @Override
@@ -48,6 +57,26 @@ public class AspectStrategyTest extends BlazeTestCase {
     registerExtensionPoint(OutputGroupsProvider.EP_NAME, OutputGroupsProvider.class);
   }
 
+  @Test
+  public void testReadAspectFileInBinaryAndTextFormats() throws Exception {
+    IntellijIdeInfo.TargetIdeInfo target =
+        IntellijIdeInfo.TargetIdeInfo.newBuilder()
+            .setKindString("java_library")
+            .setKey(IntellijIdeInfo.TargetKey.newBuilder().setLabel("//foo:bar"))
+            .addTags("manual")
+            .build();
+    File textFile = temporaryFolder.newFile("bar.intellij-info.txt");
+    Files.write(textFile.toPath(), TextFormat.printToString(target).getBytes(UTF_8));
+    File binaryFile = temporaryFolder.newFile("bar" + AspectStrategy.BINARY_ASPECT_OUTPUT_SUFFIX);
+    Files.write(binaryFile.toPath(), target.toByteArray());
+
+    assertThat(strategy.readAspectFile(new FakeRemoteOutputArtifact(textFile))).isEqualTo(target);
+    assertThat(strategy.readAspectFile(new FakeRemoteOutputArtifact(binaryFile)))
+        .isEqualTo(target);
+    assertThat(AspectStrategy.ASPECT_OUTPUT_FILE_PREDICATE.test(textFile.getPath())).isTrue();
+    assertThat(AspectStrategy.ASPECT_OUTPUT_FILE_PREDICATE.test(binaryFile.getPath())).isTrue();
+  }
+
   @Test
   public void testGenericOutputGroupAlwaysPresent() {
     Set<LanguageClass> activeLanguages = ImmutableSet.of();
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.autosync;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.sync.BlazeSyncParams;
+import com.google.idea.blaze.base.sync.SyncMode;
+import com.google.idea.blaze.base.sync.autosync.AutoSyncProvider.ChangeKind;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for the batching logic in {@link AutoSyncHandler}. */
+@RunWith(JUnit4.class)
+public class AutoSyncHandlerTest {
+
+  @Test
+  public void testRemoveCoveredTargets_recursiveWildcard() {
+    assertThat(
+            AutoSyncHandler.removeCoveredTargets(
+                targets("//foo:all", "//foo/bar:baz", "//foo/...", "//foobar:all", "//other:x")))
+        .containsExactlyElementsIn(targets("//foo/...", "//foobar:all", "//other:x"));
+  }
+
+  @Test
+  public void testRemoveCoveredTargets_packageWildcard() {
+    assertThat(
+            AutoSyncHandler.removeCoveredTargets(
+                targets("//foo:all", "//foo:bar", "//foo:*", "//foo/bar:baz")))
+        .containsExactlyElementsIn(targets("//foo:all", "//foo:*", "//foo/bar:baz"));
+  }
+
+  @Test
+  public void testRemoveCoveredTargets_excludedTargetsLeftUntouched() {
+    ImmutableList<TargetExpression> targets = targets("//foo/...", "-//foo/bar/...", "//foo:x");
+    assertThat(AutoSyncHandler.removeCoveredTargets(targets))
+        .containsExactlyElementsIn(targets)
+        .inOrder();
+  }
+
+  @Test
+  public void testPromoteLargePartialSync() {
+    BlazeSyncParams small = partialSync(targets("//a:all", "//b:all"));
+    assertThat(AutoSyncHandler.promoteLargePartialSync(small, 2, false)).isEqualTo(small);
+
+    BlazeSyncParams large = partialSync(targets("//a:all", "//b:all", "//c:all"));
+    assertThat(AutoSyncHandler.promoteLargePartialSync(large, 0, false)).isEqualTo(large);
+
+    BlazeSyncParams promoted = AutoSyncHandler.promoteLargePartialSync(large, 2, true);
+    assertThat(promoted.syncMode()).isEqualTo(SyncMode.INCREMENTAL);
+    assertThat(promoted.targetExpressions()).isEmpty();
+    assertThat(promoted.addProjectViewTargets()).isTrue();
+    assertThat(promoted.addWorkingSet()).isTrue();
+    assertThat(promoted.backgroundSync()).isTrue();
+  }
+
+  @Test
+  public void testRetryDelayEstimatesRemainingSyncTime() {
+    assertThat(AutoSyncHandler.getRetryDelay(Duration.ofSeconds(5), null))
+        .isEqualTo(Duration.ofSeconds(10));
+    assertThat(AutoSyncHandler.getRetryDelay(Duration.ofSeconds(20), Duration.ofSeconds(60)))
+        .isEqualTo(Duration.ofSeconds(40));
+    assertThat(AutoSyncHandler.getRetryDelay(Duration.ofSeconds(90), Duration.ofSeconds(60)))
+        .isEqualTo(Duration.ofSeconds(10));
+    assertThat(AutoSyncHandler.getRetryDelay(Duration.ZERO, Duration.ofMinutes(10)))
+        .isEqualTo(Duration.ofMinutes(2));
+  }
+
+  @Test
+  public void testProjectViewChangesAreSyncedWithoutWaiting() {
+    Duration quietPeriod = Duration.ofSeconds(5);
+    assertThat(
+            AutoSyncHandler.getQuietPeriod(
+                EnumSet.of(ChangeKind.BUILD_FILE, ChangeKind.PROJECT_VIEW), quietPeriod))
+        .isEqualTo(Duration.ZERO);
+    assertThat(AutoSyncHandler.getQuietPeriod(EnumSet.of(ChangeKind.BUILD_FILE), quietPeriod))
+        .isEqualTo(quietPeriod);
+    assertThat(AutoSyncHandler.getQuietPeriod(EnumSet.noneOf(ChangeKind.class), quietPeriod))
+        .isEqualTo(quietPeriod);
+  }
+
+  private static BlazeSyncParams partialSync(ImmutableList<TargetExpression> targets) {
+    return BlazeSyncParams.builder()
+        .setTitle(AutoSyncProvider.AUTO_SYNC_TITLE)
+        .setSyncMode(SyncMode.PARTIAL)
+        .setSyncOrigin(AutoSyncProvider.AUTO_SYNC_REASON + ".Test")
+        .addTargetExpressions(targets)
+        .setBackgroundSync(true)
+        .build();
+  }
+
+  private static ImmutableList<TargetExpression> targets(String... targets) {
+    return Arrays.stream(targets)
+        .map(TargetExpression::fromStringSafe)
+        .collect(ImmutableList.toImmutableList());
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.autosync;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PendingChangesHandler}. */
+@RunWith(JUnit4.class)
+public class PendingChangesHandlerTest {
+
+  private static final Duration BASE_DELAY = Duration.ofSeconds(5);
+  private static final Duration MAX_DELAY = Duration.ofSeconds(30);
+
+  @Test
+  public void testQuietPeriodIsBaseDelayForOccasionalChanges() {
+    assertThat(getQuietPeriod(1, Duration.ZERO)).isEqualTo(BASE_DELAY);
+    assertThat(getQuietPeriod(3, Duration.ofSeconds(1))).isEqualTo(BASE_DELAY);
+    assertThat(getQuietPeriod(20, Duration.ofSeconds(60))).isEqualTo(BASE_DELAY);
+  }
+
+  @Test
+  public void testQuietPeriodGrowsWithChangeRate() {
+    // two changes per second over the base delay
+    assertThat(getQuietPeriod(10, Duration.ofSeconds(2))).isEqualTo(Duration.ofSeconds(10));
+    // four changes per second
+    assertThat(getQuietPeriod(40, Duration.ofSeconds(10))).isEqualTo(Duration.ofSeconds(15));
+  }
+
+  @Test
+  public void testQuietPeriodIsCappedAtMaxDelay() {
+    assertThat(getQuietPeriod(10000, Duration.ofSeconds(1))).isEqualTo(MAX_DELAY);
+    assertThat(
+            PendingChangesHandler.getQuietPeriod(
+                BASE_DELAY, BASE_DELAY, 10000, Duration.ofSeconds(1)))
+        .isEqualTo(BASE_DELAY);
+  }
+
+  @Test
+  public void testTaskRunsAfterAdjustedQuietPeriod() throws Exception {
+    CountDownLatch taskRun = new CountDownLatch(1);
+    PendingChangesHandler<String> handler =
+        new PendingChangesHandler<String>(BASE_DELAY, MAX_DELAY) {
+          @Override
+          boolean runTask(ImmutableSet<String> changes) {
+            taskRun.countDown();
+            return true;
+          }
+
+          @Override
+          Duration adjustQuietPeriod(ImmutableSet<String> pendingChanges, Duration quietPeriod) {
+            return pendingChanges.contains("urgent") ? Duration.ZERO : quietPeriod;
+          }
+        };
+
+    handler.queueChange("urgent");
+
+    assertThat(taskRun.await(BASE_DELAY.toMillis() / 2, TimeUnit.MILLISECONDS)).isTrue();
+  }
+
+  private static Duration getQuietPeriod(int changeCount, Duration burstDuration) {
+    return PendingChangesHandler.getQuietPeriod(
+        BASE_DELAY, MAX_DELAY, changeCount, burstDuration);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.libraries;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.intellij.openapi.roots.OrderRootType;
+import java.util.function.Function;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link LibraryEditor}. */
+@RunWith(JUnit4.class)
+public class LibraryEditorTest {
+
+  private static final String CLASS_JAR = "jar:///cache/foo.jar!/";
+  private static final String SOURCE_JAR = "jar:///cache/foo-src.jar!/";
+
+  @Test
+  public void testHasRoots_sameRoots() {
+    assertThat(
+            LibraryEditor.hasRoots(
+                currentUrls(ImmutableListMultimap.of(OrderRootType.CLASSES, CLASS_JAR)),
+                ImmutableListMultimap.of(OrderRootType.CLASSES, CLASS_JAR)))
+        .isTrue();
+  }
+
+  @Test
+  public void testHasRoots_sourceJarAttached() {
+    assertThat(
+            LibraryEditor.hasRoots(
+                currentUrls(ImmutableListMultimap.of(OrderRootType.CLASSES, CLASS_JAR)),
+                ImmutableListMultimap.of(
+                    OrderRootType.CLASSES, CLASS_JAR, OrderRootType.SOURCES, SOURCE_JAR)))
+        .isFalse();
+  }
+
+  @Test
+  public void testHasRoots_sourceJarDetached() {
+    assertThat(
+            LibraryEditor.hasRoots(
+                currentUrls(
+                    ImmutableListMultimap.of(
+                        OrderRootType.CLASSES, CLASS_JAR, OrderRootType.SOURCES, SOURCE_JAR)),
+                ImmutableListMultimap.of(OrderRootType.CLASSES, CLASS_JAR)))
+        .isFalse();
+  }
+
+  @Test
+  public void testHasRoots_rootOrderChanged() {
+    String otherJar = "jar:///cache/bar.jar!/";
+    assertThat(
+            LibraryEditor.hasRoots(
+                currentUrls(
+                    ImmutableListMultimap.of(
+                        OrderRootType.CLASSES, CLASS_JAR, OrderRootType.CLASSES, otherJar)),
+                ImmutableListMultimap.of(
+                    OrderRootType.CLASSES, otherJar, OrderRootType.CLASSES, CLASS_JAR)))
+        .isFalse();
+  }
+
+  private static Function<OrderRootType, String[]> currentUrls(
+      ImmutableListMultimap<OrderRootType, String> roots) {
+    return type -> roots.get(type).toArray(new String[0]);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.projectview;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.model.primitives.WorkspacePath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DirectoryTrie}. */
+@RunWith(JUnit4.class)
+public class DirectoryTrieTest {
+
+  @Test
+  public void testFindRootDirectory() {
+    DirectoryTrie trie =
+        new DirectoryTrie(
+            ImmutableList.of(path("java/com/foo"), path("javascript")),
+            ImmutableList.of(path("java/com/foo/excluded"), path("javascript/a/b")));
+
+    assertThat(trie.findRootDirectory("java/com/foo")).isEqualTo(path("java/com/foo"));
+    assertThat(trie.findRootDirectory("java/com/foo/Foo.java")).isEqualTo(path("java/com/foo"));
+    assertThat(trie.findRootDirectory("javascript/a/c.js")).isEqualTo(path("javascript"));
+    assertThat(trie.findRootDirectory("java/com/foobar/Foo.java")).isNull();
+    assertThat(trie.findRootDirectory("java/com")).isNull();
+    assertThat(trie.findRootDirectory("java")).isNull();
+    assertThat(trie.findRootDirectory("")).isNull();
+  }
+
+  @Test
+  public void testExcludedDirectories() {
+    DirectoryTrie trie =
+        new DirectoryTrie(
+            ImmutableList.of(path("java/com/foo"), path("javascript")),
+            ImmutableList.of(path("java/com/foo/excluded"), path("javascript/a/b")));
+
+    assertThat(trie.findRootDirectory("java/com/foo/excluded")).isNull();
+    assertThat(trie.findRootDirectory("java/com/foo/excluded/Foo.java")).isNull();
+    assertThat(trie.findRootDirectory("java/com/foo/excludedToo/Foo.java"))
+        .isEqualTo(path("java/com/foo"));
+    assertThat(trie.findRootDirectory("javascript/a/b/c.js")).isNull();
+  }
+
+  @Test
+  public void testWorkspaceRoot() {
+    DirectoryTrie trie =
+        new DirectoryTrie(ImmutableList.of(path("")), ImmutableList.of(path("bazel-out")));
+
+    assertThat(trie.findRootDirectory("")).isEqualTo(path(""));
+    assertThat(trie.findRootDirectory("java/Foo.java")).isEqualTo(path(""));
+    assertThat(trie.findRootDirectory("bazel-out/k8/bin")).isNull();
+  }
+
+  private static WorkspacePath path(String relativePath) {
+    return new WorkspacePath(relativePath);
+  }
+}
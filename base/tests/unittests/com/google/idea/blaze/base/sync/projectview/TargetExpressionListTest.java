@@ -90,6 +90,29 @@ public class TargetExpressionListTest extends BlazeTestCase {
     assertThat(helper.includesPackage(new WorkspacePath("bar"))).isTrue();
   }
 
+  @Test
+  public void testLaterNestedPatternsOverrideEarlierPatterns() throws Exception {
+    TargetExpressionList helper =
+        TargetExpressionList.create(
+            ImmutableList.of(
+                TargetExpression.fromString("//foo/..."),
+                TargetExpression.fromString("-//foo/bar/..."),
+                TargetExpression.fromString("//foo/bar/baz:all"),
+                TargetExpression.fromString("//foo/bar:target"),
+                TargetExpression.fromString("-//foo/bar/baz:target")));
+
+    assertThat(helper.includesPackage(new WorkspacePath("foo"))).isTrue();
+    assertThat(helper.includesPackage(new WorkspacePath("foo/bar"))).isFalse();
+    assertThat(helper.includesPackage(new WorkspacePath("foo/bar/qux"))).isFalse();
+    assertThat(helper.includesPackage(new WorkspacePath("foo/bar/baz"))).isTrue();
+    assertThat(helper.includesPackage(new WorkspacePath("foo/barbaz"))).isTrue();
+
+    assertThat(helper.includesTarget(Label.create("//foo/bar:target"))).isTrue();
+    assertThat(helper.includesTarget(Label.create("//foo/bar:other"))).isFalse();
+    assertThat(helper.includesTarget(Label.create("//foo/bar/baz:target"))).isFalse();
+    assertThat(helper.includesTarget(Label.create("//foo/bar/baz:other"))).isTrue();
+  }
+
   @Test
   public void includesAnyTargetInPackage_acceptsIndividualPackageTarget() throws Exception {
     TargetExpressionList helper =
@@ -127,7 +127,7 @@ public class BlazeBuildTargetSharderTest extends BlazeTestCase {
             target("-//java/com/google:six"));
     ShardedTargetList shards =
         BlazeBuildTargetSharder.shardSingleTargets(
-            targets, SyncStrategy.SERIAL, /* shardSize= */ 3);
+            getProject(), targets, SyncStrategy.SERIAL, /* shardSize= */ 3);
 
     assertThat(shards.shardedTargets).hasSize(1);
     assertThat(shards.shardedTargets.get(0)).containsExactly(target("//java/com/google:two"));
@@ -144,7 +144,7 @@ public class BlazeBuildTargetSharderTest extends BlazeTestCase {
             target("-//java/com/foo/..."));
     ShardedTargetList shards =
         BlazeBuildTargetSharder.shardSingleTargets(
-            targets, SyncStrategy.SERIAL, /* shardSize= */ 2);
+            getProject(), targets, SyncStrategy.SERIAL, /* shardSize= */ 2);
     assertThat(shards.shardedTargets).hasSize(1);
     assertThat(shards.shardedTargets.get(0))
         .containsExactly(target("//java/com/bar:target"), target("//java/com/baz:target"))
@@ -162,7 +162,7 @@ public class BlazeBuildTargetSharderTest extends BlazeTestCase {
             target("//java/com/google:two"));
     ShardedTargetList shards =
         BlazeBuildTargetSharder.shardSingleTargets(
-            targets, SyncStrategy.SERIAL, /* shardSize= */ 3);
+            getProject(), targets, SyncStrategy.SERIAL, /* shardSize= */ 3);
     assertThat(shards.shardedTargets).hasSize(1);
     assertThat(shards.shardedTargets.get(0))
         .containsExactly(target("//java/com/google:one"), target("//java/com/google:two"));
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.idea.blaze.base.model.primitives.Label;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CostAwareTargetSharder}. */
+@RunWith(JUnit4.class)
+public class CostAwareTargetSharderTest {
+
+  private static final Label SLOW = Label.create("//java/com/google/slow:target");
+  private static final Label FOO_ONE = Label.create("//java/com/google/foo:one");
+  private static final Label FOO_TWO = Label.create("//java/com/google/foo:two");
+  private static final Label BAR_ONE = Label.create("//java/com/google/bar:one");
+  private static final Label BAR_TWO = Label.create("//java/com/google/bar:two");
+
+  @Test
+  public void testShardsAreBalancedByCost() {
+    ImmutableList<ImmutableList<Label>> shards =
+        CostAwareTargetSharder.balanceShards(
+            ImmutableSet.of(SLOW, FOO_ONE, FOO_TWO, BAR_ONE, BAR_TWO),
+            ImmutableMap.of(
+                SLOW, 100.0, FOO_ONE, 20.0, FOO_TWO, 30.0, BAR_ONE, 25.0, BAR_TWO, 25.0),
+            /* shardCount= */ 2,
+            /* maxShardSize= */ 4);
+
+    assertThat(shards)
+        .containsExactly(
+            ImmutableList.of(SLOW), ImmutableList.of(BAR_ONE, BAR_TWO, FOO_ONE, FOO_TWO))
+        .inOrder();
+  }
+
+  @Test
+  public void testTargetsWithoutHistoryCostTheAverage() {
+    ImmutableList<ImmutableList<Label>> shards =
+        CostAwareTargetSharder.balanceShards(
+            ImmutableSet.of(SLOW, FOO_ONE, BAR_ONE),
+            ImmutableMap.of(SLOW, 10.0, FOO_ONE, 30.0),
+            /* shardCount= */ 2,
+            /* maxShardSize= */ 2);
+
+    // BAR_ONE is assumed to cost 20, so shares a shard with the cheaper SLOW
+    assertThat(shards)
+        .containsExactly(ImmutableList.of(FOO_ONE), ImmutableList.of(BAR_ONE, SLOW))
+        .inOrder();
+  }
+
+  @Test
+  public void testMaxShardSizeIsRespected() {
+    ImmutableList<ImmutableList<Label>> shards =
+        CostAwareTargetSharder.balanceShards(
+            ImmutableSet.of(SLOW, FOO_ONE, FOO_TWO, BAR_ONE, BAR_TWO),
+            ImmutableMap.of(SLOW, 1000.0),
+            /* shardCount= */ 1,
+            /* maxShardSize= */ 2);
+
+    assertThat(shards).hasSize(3);
+    shards.forEach(shard -> assertThat(shard.size()).isAtMost(2));
+    assertThat(shards.stream().flatMap(List::stream).collect(toImmutableList()))
+        .containsExactly(SLOW, FOO_ONE, FOO_TWO, BAR_ONE, BAR_TWO);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.sync.sharding.PackageListCache.Listing;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PackageListCache}. */
+@RunWith(JUnit4.class)
+public class PackageListCacheTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testEntriesAreValidatedByModifiedTime() {
+    PackageListCache cache = new PackageListCache(null);
+    cache.put("java/com/google", 10, new Listing(true, ImmutableList.of("foo")));
+
+    assertThat(cache.get("java/com/google", 10).subdirectories).containsExactly("foo");
+    assertThat(cache.get("java/com/google", 11)).isNull();
+    // stale entries are dropped
+    assertThat(cache.get("java/com/google", 10)).isNull();
+  }
+
+  @Test
+  public void testUnchangedCacheIsNotRewritten() throws IOException {
+    File file = folder.newFile("package_listings.dat");
+    PackageListCache cache = new PackageListCache(file);
+    cache.put("java", 20, new Listing(true, ImmutableList.of()));
+    cache.save();
+    file.setLastModified(1000);
+
+    PackageListCache reloaded = new PackageListCache(file);
+    reloaded.read(file);
+    assertThat(reloaded.get("java", 20)).isNotNull();
+    reloaded.save();
+
+    assertThat(file.lastModified()).isEqualTo(1000);
+  }
+
+  @Test
+  public void testOnlyUsedEntriesAreWritten() throws IOException {
+    File file = folder.newFile("package_listings.dat");
+    PackageListCache cache = new PackageListCache(file);
+    cache.put("", 10, new Listing(false, ImmutableList.of("java", "javatests")));
+    cache.put("java", 20, new Listing(true, ImmutableList.of()));
+    cache.write(file);
+
+    PackageListCache reloaded = new PackageListCache(file);
+    reloaded.read(file);
+    Listing listing = reloaded.get("", 10);
+    assertThat(listing.hasBuildFile).isFalse();
+    assertThat(listing.subdirectories).containsExactly("java", "javatests").inOrder();
+    reloaded.write(file);
+
+    PackageListCache pruned = new PackageListCache(file);
+    pruned.read(file);
+    assertThat(pruned.get("", 10)).isNotNull();
+    assertThat(pruned.get("java", 20)).isNull();
+  }
+}
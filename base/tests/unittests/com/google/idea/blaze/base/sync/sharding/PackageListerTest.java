@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.model.primitives.WildcardTargetPattern;
+import com.google.idea.blaze.base.model.primitives.WorkspaceRoot;
+import com.google.idea.blaze.base.sync.workspace.WorkspacePathResolver;
+import com.google.idea.blaze.base.sync.workspace.WorkspacePathResolverImpl;
+import com.google.idea.common.experiments.ExperimentService;
+import com.google.idea.common.experiments.MockExperimentService;
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PackageLister}. */
+@RunWith(JUnit4.class)
+public class PackageListerTest extends BlazeTestCase {
+
+  private static final WorkspaceRoot WORKSPACE_ROOT = new WorkspaceRoot(new File("/root"));
+
+  private final WorkspacePathResolver pathResolver = new WorkspacePathResolverImpl(WORKSPACE_ROOT);
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    applicationServices.register(ExperimentService.class, new MockExperimentService());
+  }
+
+  @Test
+  public void testPrefetchSkipsPackagesExcludedByALaterPattern() {
+    assertThat(
+            PackageLister.getDirectoriesToPrefetch(
+                pathResolver, patterns("//foo/...", "//bar/...", "-//bar/...")))
+        .containsExactly(new File("/root/foo"));
+  }
+
+  @Test
+  public void testPrefetchIncludesPackagesReincludedAfterAnExclude() {
+    assertThat(
+            PackageLister.getDirectoriesToPrefetch(
+                pathResolver, patterns("-//foo/...", "//foo/bar/...")))
+        .containsExactly(new File("/root/foo/bar"));
+  }
+
+  @Test
+  public void testPrefetchIgnoresNonRecursiveExcludes() {
+    assertThat(
+            PackageLister.getDirectoriesToPrefetch(
+                pathResolver, patterns("//foo/...", "-//foo:all")))
+        .containsExactly(new File("/root/foo"));
+  }
+
+  private static ImmutableList<WildcardTargetPattern> patterns(String... patterns) {
+    return Arrays.stream(patterns)
+        .map(TargetExpression::fromStringSafe)
+        .map(WildcardTargetPattern::fromExpression)
+        .collect(toImmutableList());
+  }
+}
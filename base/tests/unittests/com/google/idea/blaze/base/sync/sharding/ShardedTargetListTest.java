@@ -0,0 +1,359 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import com.google.idea.blaze.base.scope.BlazeContext;
+import com.google.idea.blaze.base.sync.aspects.BlazeBuildOutputs;
+import com.google.idea.blaze.base.sync.aspects.BuildResult;
+import com.google.idea.blaze.base.sync.sharding.ShardedTargetList.ShardScheduler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ShardedTargetList}. */
+@RunWith(JUnit4.class)
+public class ShardedTargetListTest {
+  // the exit code for a remote environmental error
+  private static final int TRANSIENT_EXIT_CODE = 34;
+  private static final int MINIMUM_SHARD_SIZE = 50;
+
+  private final ListeningExecutorService executor =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+  private final ScheduledExecutorService retryExecutor =
+      Executors.newSingleThreadScheduledExecutor();
+  private final List<Integer> builtShardSizes = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> builtShards = Collections.synchronizedList(new ArrayList<>());
+  private final List<BuildResult> completedShards = Collections.synchronizedList(new ArrayList<>());
+  private final Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation =
+      targets -> {
+        builtShardSizes.add(targets.size());
+        return BlazeBuildOutputs.noOutputs(BuildResult.SUCCESS);
+      };
+  private final Consumer<BlazeBuildOutputs> shardCompleted =
+      outputs -> completedShards.add(outputs.buildResult);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    retryExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testShardsAreNotSplitBeforeTheBuildStarts() throws Exception {
+    List<BuildResult> results =
+        scheduler(invocation, /* workers= */ 4, /* splitForIdleWorkers= */ true)
+            .start(ImmutableList.of(targets("a", 400)))
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(results).hasSize(1);
+    assertThat(builtShardSizes).containsExactly(400);
+  }
+
+  @Test
+  public void testPendingShardsAreSplitWhenAWorkerBecomesIdle() throws Exception {
+    List<BuildResult> results =
+        scheduler(holdingSlowShards(410), /* workers= */ 2, /* splitForIdleWorkers= */ true)
+            .start(ImmutableList.of(targets("slow", 10), targets("a", 10), targets("b", 400)))
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(results).hasSize(6);
+    assertThat(builtShards)
+        .containsExactly("slow:10", "a:10", "b:200", "b:100", "b:50", "b:50");
+  }
+
+  @Test
+  public void testPendingShardWithTheHighestCostIsSplit() throws Exception {
+    new ShardScheduler(executor, holdingSlowShards(410), shardCompleted, /* workers= */ 3)
+        .splitForIdleWorkers(
+            MINIMUM_SHARD_SIZE,
+            target -> ((Label) target).blazePackage().relativePath().equals("costly") ? 10 : 1)
+        .start(
+            ImmutableList.of(
+                targets("slow", 5),
+                targets("slow", 5),
+                targets("a", 10),
+                targets("cheap", 200),
+                targets("costly", 200)))
+        .get(10, TimeUnit.SECONDS);
+
+    assertThat(builtShards).contains("cheap:200");
+    assertThat(builtShards).doesNotContain("costly:200");
+  }
+
+  @Test
+  public void testSmallShardsAreNotSplit() throws Exception {
+    int size = 2 * MINIMUM_SHARD_SIZE - 1;
+    scheduler(holdingSlowShards(10 + size), /* workers= */ 2, /* splitForIdleWorkers= */ true)
+        .start(ImmutableList.of(targets("slow", 10), targets("a", 10), targets("b", size)))
+        .get(10, TimeUnit.SECONDS);
+
+    assertThat(builtShards).containsExactly("slow:10", "a:10", "b:" + size);
+  }
+
+  @Test
+  public void testShardsWithExcludedTargetsAreNotSplit() throws Exception {
+    List<TargetExpression> shard = new ArrayList<>(targets("b", 400));
+    shard.add(TargetExpression.fromStringSafe("-//b/..."));
+    scheduler(holdingSlowShards(411), /* workers= */ 2, /* splitForIdleWorkers= */ true)
+        .start(ImmutableList.of(targets("slow", 10), targets("a", 10), shard))
+        .get(10, TimeUnit.SECONDS);
+
+    assertThat(builtShards).containsExactly("slow:10", "a:10", "b:401");
+  }
+
+  @Test
+  public void testAllShardsAreBuiltWithoutSplitting() throws Exception {
+    List<BuildResult> results =
+        scheduler(invocation, /* workers= */ 2, /* splitForIdleWorkers= */ false)
+            .start(ImmutableList.of(targets("a", 400), targets("b", 300), targets("c", 200)))
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(results).hasSize(3);
+    assertThat(builtShardSizes).containsExactly(400, 300, 200);
+    assertThat(completedShards).hasSize(3);
+  }
+
+  @Test
+  public void testPriorityShardsAreBuiltFirst() throws Exception {
+    Function<List<? extends TargetExpression>, BlazeBuildOutputs> recordingInvocation =
+        targets -> {
+          builtShards.add(((Label) targets.get(0)).blazePackage().relativePath());
+          return BlazeBuildOutputs.noOutputs(BuildResult.SUCCESS);
+        };
+    scheduler(recordingInvocation, /* workers= */ 1, /* splitForIdleWorkers= */ false)
+        .prioritize(target -> target.toString().startsWith("//c:"))
+        .start(ImmutableList.of(targets("a", 10), targets("b", 10), targets("c", 10)))
+        .get(10, TimeUnit.SECONDS);
+
+    assertThat(builtShards).containsExactly("c", "a", "b").inOrder();
+  }
+
+  @Test
+  public void testTransientFailuresAreRetried() throws Exception {
+    List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    Function<List<? extends TargetExpression>, BlazeBuildOutputs> flakyInvocation =
+        targets -> {
+          String shard = ((Label) targets.get(0)).blazePackage().relativePath();
+          builtShards.add(shard);
+          if (shard.equals("b") && !failed.contains(shard)) {
+            failed.add(shard);
+            return BlazeBuildOutputs.noOutputs(BuildResult.fromExitCode(TRANSIENT_EXIT_CODE));
+          }
+          return BlazeBuildOutputs.noOutputs(BuildResult.SUCCESS);
+        };
+    List<Integer> retries = Collections.synchronizedList(new ArrayList<>());
+    List<BuildResult> results =
+        scheduler(flakyInvocation, /* workers= */ 2, /* splitForIdleWorkers= */ false)
+            .retryTransientFailures(
+                retryExecutor,
+                /* maxRetries= */ 2,
+                /* retryDelayMillis= */ 0,
+                (failure, attempt) -> retries.add(attempt))
+            .start(ImmutableList.of(targets("a", 10), targets("b", 10)))
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(builtShards).containsExactly("a", "b", "b");
+    assertThat(retries).containsExactly(1);
+    assertThat(results).containsExactly(BuildResult.SUCCESS, BuildResult.SUCCESS);
+    // only the final result of each shard is passed on
+    assertThat(completedShards).containsExactly(BuildResult.SUCCESS, BuildResult.SUCCESS);
+  }
+
+  @Test
+  public void testRetriesAreLimited() throws Exception {
+    Function<List<? extends TargetExpression>, BlazeBuildOutputs> failingInvocation =
+        targets -> {
+          builtShardSizes.add(targets.size());
+          return BlazeBuildOutputs.noOutputs(BuildResult.fromExitCode(TRANSIENT_EXIT_CODE));
+        };
+    List<BuildResult> results =
+        scheduler(failingInvocation, /* workers= */ 2, /* splitForIdleWorkers= */ false)
+            .retryTransientFailures(
+                retryExecutor,
+                /* maxRetries= */ 2,
+                /* retryDelayMillis= */ 0,
+                (failure, attempt) -> {})
+            .start(ImmutableList.of(targets("a", 10)))
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(builtShardSizes).containsExactly(10, 10, 10);
+    assertThat(results).hasSize(1);
+    assertThat(results.get(0).exitCode).isEqualTo(TRANSIENT_EXIT_CODE);
+  }
+
+  @Test
+  public void testBuildErrorsAreNotRetried() throws Exception {
+    Function<List<? extends TargetExpression>, BlazeBuildOutputs> failingInvocation =
+        targets -> {
+          builtShardSizes.add(targets.size());
+          return BlazeBuildOutputs.noOutputs(BuildResult.fromExitCode(1));
+        };
+    List<BuildResult> results =
+        scheduler(failingInvocation, /* workers= */ 2, /* splitForIdleWorkers= */ false)
+            .retryTransientFailures(
+                retryExecutor,
+                /* maxRetries= */ 2,
+                /* retryDelayMillis= */ 0,
+                (failure, attempt) -> {})
+            .start(ImmutableList.of(targets("a", 10)))
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(builtShardSizes).containsExactly(10);
+    assertThat(results.get(0).status).isEqualTo(BuildResult.Status.BUILD_ERROR);
+  }
+
+  @Test
+  public void testFailureToPassOnOutputsFailsTheBuild() throws Exception {
+    Consumer<BlazeBuildOutputs> failingShardCompleted =
+        outputs -> {
+          throw new IllegalStateException("failed to pass on outputs");
+        };
+    try {
+      new ShardScheduler(executor, invocation, failingShardCompleted, /* workers= */ 2)
+          .start(ImmutableList.of(targets("a", 10), targets("b", 10)))
+          .get(10, TimeUnit.SECONDS);
+      fail("Expected the build to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+  }
+
+  @Test
+  public void testRunningShardsAreCancelledWhenTheBuildFails() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    Function<List<? extends TargetExpression>, BlazeBuildOutputs> slowInvocation =
+        targets -> {
+          String shard = ((Label) targets.get(0)).blazePackage().relativePath();
+          try {
+            if (shard.equals("a")) {
+              started.await();
+            } else {
+              started.countDown();
+              Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            }
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+          }
+          return BlazeBuildOutputs.noOutputs(BuildResult.SUCCESS);
+        };
+    Consumer<BlazeBuildOutputs> failingShardCompleted =
+        outputs -> {
+          throw new IllegalStateException("failed to pass on outputs");
+        };
+    try {
+      new ShardScheduler(executor, slowInvocation, failingShardCompleted, /* workers= */ 2)
+          .start(ImmutableList.of(targets("a", 10), targets("b", 10)))
+          .get(10, TimeUnit.SECONDS);
+      fail("Expected the build to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+    assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void testSerialRetryStopsWaitingWhenTheContextIsCancelled() {
+    Function<List<? extends TargetExpression>, BlazeBuildOutputs> failingInvocation =
+        targets -> {
+          builtShardSizes.add(targets.size());
+          return BlazeBuildOutputs.noOutputs(BuildResult.fromExitCode(TRANSIENT_EXIT_CODE));
+        };
+    BlazeContext context = BlazeContext.create();
+    retryExecutor.schedule(context::setCancelled, 100, TimeUnit.MILLISECONDS);
+
+    long startMillis = System.currentTimeMillis();
+    BlazeBuildOutputs result =
+        ShardedTargetList.buildWithRetries(
+            context,
+            targets("a", 10),
+            failingInvocation,
+            /* maxRetries= */ 2,
+            /* baseRetryDelayMillis= */ TimeUnit.MINUTES.toMillis(1),
+            (failure, attempt) -> {});
+
+    assertThat(System.currentTimeMillis() - startMillis).isLessThan(TimeUnit.SECONDS.toMillis(30));
+    assertThat(result.buildResult.exitCode).isEqualTo(TRANSIENT_EXIT_CODE);
+    assertThat(builtShardSizes).containsExactly(10);
+  }
+
+  @Test
+  public void testRetryDelayIncreasesExponentially() {
+    assertThat(ShardedTargetList.retryDelayMillis(100, 1)).isEqualTo(100);
+    assertThat(ShardedTargetList.retryDelayMillis(100, 2)).isEqualTo(200);
+    assertThat(ShardedTargetList.retryDelayMillis(100, 3)).isEqualTo(400);
+  }
+
+  private ShardScheduler scheduler(
+      Function<List<? extends TargetExpression>, BlazeBuildOutputs> invocation,
+      int workers,
+      boolean splitForIdleWorkers) {
+    ShardScheduler scheduler = new ShardScheduler(executor, invocation, shardCompleted, workers);
+    return splitForIdleWorkers
+        ? scheduler.splitForIdleWorkers(MINIMUM_SHARD_SIZE, target -> 1)
+        : scheduler;
+  }
+
+  /**
+   * Returns an invocation which records the package and size of each shard it builds. Shards in the
+   * "slow" package keep their worker busy until the given number of other targets are built.
+   */
+  private Function<List<? extends TargetExpression>, BlazeBuildOutputs> holdingSlowShards(
+      int otherTargets) {
+    CountDownLatch remaining = new CountDownLatch(otherTargets);
+    return targets -> {
+      String shard = ((Label) targets.get(0)).blazePackage().relativePath();
+      builtShards.add(shard + ":" + targets.size());
+      if (shard.equals("slow")) {
+        try {
+          remaining.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      } else {
+        targets.forEach(target -> remaining.countDown());
+      }
+      return BlazeBuildOutputs.noOutputs(BuildResult.SUCCESS);
+    };
+  }
+
+  private static ImmutableList<Label> targets(String packageName, int count) {
+    ImmutableList.Builder<Label> targets = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      targets.add(Label.create("//" + packageName + ":target" + i));
+    }
+    return targets.build();
+  }
+}
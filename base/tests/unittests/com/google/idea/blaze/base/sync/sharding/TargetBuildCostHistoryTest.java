@@ -0,0 +1,108 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.sync.sharding;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.model.primitives.TargetExpression;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.ToDoubleFunction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TargetBuildCostHistory}. */
+@RunWith(JUnit4.class)
+public class TargetBuildCostHistoryTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Label ONE = Label.create("//foo:one");
+  private static final Label TWO = Label.create("//foo:two");
+
+  @Test
+  public void testShardTimeIsSplitByWeight() {
+    TargetBuildCostHistory history = new TargetBuildCostHistory(null);
+    history.recordCosts(ImmutableMap.of("//foo:one", 1.0, "//foo:two", 3.0), 400);
+
+    assertThat(history.getBuildMillis(ONE)).isWithin(1e-9).of(100);
+    assertThat(history.getBuildMillis(TWO)).isWithin(1e-9).of(300);
+    assertThat(history.getBuildMillis(Label.create("//foo:three"))).isNull();
+  }
+
+  @Test
+  public void testTargetsWithoutACostAreEstimatedAtTheAverage() {
+    TargetBuildCostHistory history = new TargetBuildCostHistory(null);
+    history.recordCosts(ImmutableMap.of("//foo:one", 1.0, "//foo:two", 3.0), 400);
+    ToDoubleFunction<TargetExpression> estimator = history.getCostEstimator();
+
+    assertThat(estimator.applyAsDouble(TWO)).isWithin(1e-9).of(300);
+    assertThat(estimator.applyAsDouble(Label.create("//foo:three"))).isWithin(1e-9).of(200);
+  }
+
+  @Test
+  public void testCostsAreSmoothedAcrossBuilds() {
+    TargetBuildCostHistory history = new TargetBuildCostHistory(null);
+    history.recordCosts(ImmutableMap.of("//foo:one", 1.0), 100);
+    history.recordCosts(ImmutableMap.of("//foo:one", 1.0), 300);
+
+    assertThat(history.getBuildMillis(ONE)).isWithin(1e-9).of(200);
+  }
+
+  @Test
+  public void testTargetsNotRebuiltAreEventuallyDropped() throws IOException {
+    File file = folder.newFile("target_build_costs.dat");
+    TargetBuildCostHistory history = new TargetBuildCostHistory(file);
+    history.recordCosts(ImmutableMap.of("//foo:one", 1.0), 100);
+    history.completeBuild();
+    history.write(file);
+
+    for (int i = 1; i < TargetBuildCostHistory.MAX_AGE; i++) {
+      history = new TargetBuildCostHistory(file);
+      history.read(file);
+      assertThat(history.getBuildMillis(ONE)).isWithin(1e-9).of(100);
+      history.recordCosts(ImmutableMap.of("//foo:two", 1.0), 50);
+      history.completeBuild();
+      history.write(file);
+    }
+
+    history = new TargetBuildCostHistory(file);
+    history.read(file);
+    assertThat(history.getBuildMillis(ONE)).isNull();
+    assertThat(history.getBuildMillis(TWO)).isWithin(1e-9).of(50);
+  }
+
+  @Test
+  public void testLoadingWithoutCompletingABuildDoesNotAgeEntries() throws IOException {
+    File file = folder.newFile("target_build_costs.dat");
+    TargetBuildCostHistory history = new TargetBuildCostHistory(file);
+    history.recordCosts(ImmutableMap.of("//foo:one", 1.0), 100);
+    history.write(file);
+
+    for (int i = 0; i < 2 * TargetBuildCostHistory.MAX_AGE; i++) {
+      history = new TargetBuildCostHistory(file);
+      history.read(file);
+      history.recordCosts(ImmutableMap.of("//foo:two", 1.0), 50);
+      history.write(file);
+    }
+
+    assertThat(history.getBuildMillis(ONE)).isWithin(1e-9).of(100);
+  }
+}
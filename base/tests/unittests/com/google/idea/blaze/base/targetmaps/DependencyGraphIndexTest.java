@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.MockBlazeProjectDataBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DependencyGraphIndex}. */
+@RunWith(JUnit4.class)
+public class DependencyGraphIndexTest extends BlazeTestCase {
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    ExtensionPointImpl<Kind.Provider> ep =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    ep.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+  }
+
+  @Test
+  public void testTraversalMatchesTransitiveDependencyMap() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(target("//a:a").addDependency("//a:b").addDependency("//a:c"))
+            .addTarget(target("//a:b").addDependency("//a:d"))
+            .addTarget(
+                target("//a:e")
+                    .addDependency("//a:a")
+                    .addDependency("//a:c")
+                    .addDependency("//external:f"))
+            .addTarget(target("//a:c"))
+            .addTarget(target("//a:d"))
+            .build();
+    ImmutableList<TargetKey> roots = ImmutableList.of(key("//a:a"), key("//a:e"));
+
+    assertThat(
+            DependencyGraphIndex.create(targetMap)
+                .getTransitiveDependencies(roots)
+                .collect(toImmutableList()))
+        .containsExactlyElementsIn(
+            TransitiveDependencyMap.getTransitiveDependenciesStream(roots, targetMap)
+                .collect(toImmutableList()))
+        .inOrder();
+  }
+
+  @Test
+  public void testReverseDependenciesMatchReverseDependencyMap() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(target("//l:l1").addDependency("//l:l2").addDependency("//l:l3"))
+            .addTarget(target("//l:l2").addDependency("//l:l3").addDependency("//l:missing"))
+            .addTarget(target("//l:l3"))
+            .build();
+
+    DependencyGraphIndex index = DependencyGraphIndex.create(targetMap);
+
+    assertThat(index.toReverseDependencyMap())
+        .isEqualTo(
+            ReverseDependencyMap.createRdepsMap(
+                getProject(),
+                MockBlazeProjectDataBuilder.builder().setTargetMap(targetMap).build()));
+    assertThat(index.getReverseDependencies(key("//l:l3")))
+        .containsExactly(key("//l:l1"), key("//l:l2"));
+    assertThat(index.getReverseDependencies(key("//l:missing"))).isEmpty();
+  }
+
+  @Test
+  public void testHasTransitiveDependency() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(target("//a:a").addDependency("//a:b"))
+            .addTarget(target("//a:b").addDependency("//a:c"))
+            .addTarget(target("//a:c"))
+            .build();
+
+    DependencyGraphIndex index = DependencyGraphIndex.create(targetMap);
+
+    assertThat(index.hasTransitiveDependency(key("//a:a"), key("//a:c"))).isTrue();
+    assertThat(index.hasTransitiveDependency(key("//a:c"), key("//a:a"))).isFalse();
+    assertThat(index.hasTransitiveDependency(key("//a:a"), key("//a:a"))).isFalse();
+    assertThat(
+            index.filterPossibleTransitiveDeps(
+                key("//a:b"), ImmutableList.of(key("//a:a"), key("//a:c"), key("//a:unknown"))))
+        .containsExactly(key("//a:c"));
+  }
+
+  @Test
+  public void testIncrementalUpdateMatchesFullRebuild() {
+    TargetMapBuilder builder = TargetMapBuilder.builder();
+    for (int i = 0; i < 20; i++) {
+      builder.addTarget(target("//a:t" + i).addDependency("//a:t" + (i + 1)));
+    }
+    TargetMap before = builder.build();
+
+    builder = TargetMapBuilder.builder();
+    before.targets().stream()
+        .filter(t -> !t.getKey().equals(key("//a:t5")))
+        .filter(t -> !t.getKey().equals(key("//a:t10")))
+        .forEach(builder::addTarget);
+    builder.addTarget(target("//a:t10").addDependency("//a:t0"));
+    builder.addTarget(target("//a:new").addDependency("//a:t3"));
+    TargetMap after = builder.build();
+
+    DependencyGraphIndex original = DependencyGraphIndex.create(before);
+    DependencyGraphIndex updated = original.update(after);
+    DependencyGraphIndex rebuilt = DependencyGraphIndex.create(after);
+
+    assertThat(updated.toReverseDependencyMap()).isEqualTo(rebuilt.toReverseDependencyMap());
+    for (TargetKey key : after.map().keySet()) {
+      ImmutableList<TargetKey> roots = ImmutableList.of(key);
+      assertThat(updated.getTransitiveDependencies(roots).collect(toImmutableList()))
+          .containsExactlyElementsIn(
+              rebuilt.getTransitiveDependencies(roots).collect(toImmutableList()))
+          .inOrder();
+    }
+    // the original index is unaffected
+    assertThat(original.toReverseDependencyMap())
+        .isEqualTo(DependencyGraphIndex.create(before).toReverseDependencyMap());
+  }
+
+  private static TargetIdeInfo.Builder target(String label) {
+    return TargetIdeInfo.builder().setLabel(label).setKind("proto_library");
+  }
+
+  private static TargetKey key(String label) {
+    return TargetKey.forPlainTarget(Label.create(label));
+  }
+}
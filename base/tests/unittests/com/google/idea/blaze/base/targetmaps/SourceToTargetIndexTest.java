@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.base.targetmaps;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.idea.blaze.base.BlazeTestCase;
+import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
+import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
+import com.google.idea.blaze.base.ideinfo.TargetKey;
+import com.google.idea.blaze.base.ideinfo.TargetMap;
+import com.google.idea.blaze.base.ideinfo.TargetMapBuilder;
+import com.google.idea.blaze.base.model.primitives.GenericBlazeRules;
+import com.google.idea.blaze.base.model.primitives.Kind;
+import com.google.idea.blaze.base.model.primitives.Label;
+import com.google.idea.blaze.base.sync.workspace.MockArtifactLocationDecoder;
+import com.intellij.openapi.extensions.impl.ExtensionPointImpl;
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SourceToTargetIndex}. */
+@RunWith(JUnit4.class)
+public class SourceToTargetIndexTest extends BlazeTestCase {
+
+  @Override
+  protected void initTest(Container applicationServices, Container projectServices) {
+    super.initTest(applicationServices, projectServices);
+    ExtensionPointImpl<Kind.Provider> ep =
+        registerExtensionPoint(Kind.Provider.EP_NAME, Kind.Provider.class);
+    ep.registerExtension(new GenericBlazeRules());
+    applicationServices.register(Kind.ApplicationState.class, new Kind.ApplicationState());
+  }
+
+  @Test
+  public void testSourcesMapToAllTargetsListingThem() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(target("//a:lib").addSource(source("a/Lib.java")))
+            .addTarget(
+                target("//a:test")
+                    .addSource(source("a/Lib.java"))
+                    .addSource(source("a/LibTest.java"))
+                    .addSource(source("a/LibTest.java")))
+            .addTarget(target("//b:b").addSource(source("b/Lib.java")))
+            .build();
+
+    SourceToTargetIndex index =
+        SourceToTargetIndex.create(new MockArtifactLocationDecoder(), targetMap);
+
+    assertThat(index.getTargets(new File("a/Lib.java")))
+        .containsExactly(key("//a:lib"), key("//a:test"));
+    assertThat(index.getTargets(new File("a/LibTest.java"))).containsExactly(key("//a:test"));
+    assertThat(index.getTargets(new File("b/Lib.java"))).containsExactly(key("//b:b"));
+  }
+
+  @Test
+  public void testDirectoriesAndUnknownFilesHaveNoTargets() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(target("//a:lib").addSource(source("a/b/Lib.java")))
+            .build();
+
+    SourceToTargetIndex index =
+        SourceToTargetIndex.create(new MockArtifactLocationDecoder(), targetMap);
+
+    assertThat(index.getTargets(new File("a/b"))).isEmpty();
+    assertThat(index.getTargets(new File("a/b/Lib"))).isEmpty();
+    assertThat(index.getTargets(new File("a/b/Lib.java/c"))).isEmpty();
+    assertThat(index.getTargets(new File("/a/b/Lib.java"))).isEmpty();
+  }
+
+  @Test
+  public void testPathsMatchIgnoringCaseOnCaseInsensitiveFileSystems() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(target("//a:lib").addSource(source("a/b/Lib.java")))
+            .build();
+
+    SourceToTargetIndex caseInsensitive =
+        SourceToTargetIndex.create(
+            new MockArtifactLocationDecoder(), targetMap, /* caseSensitive= */ false);
+    SourceToTargetIndex caseSensitive =
+        SourceToTargetIndex.create(
+            new MockArtifactLocationDecoder(), targetMap, /* caseSensitive= */ true);
+
+    assertThat(caseInsensitive.getTargets(new File("A/b/lib.JAVA")))
+        .containsExactly(key("//a:lib"));
+    assertThat(caseSensitive.getTargets(new File("A/b/lib.JAVA"))).isEmpty();
+    assertThat(caseSensitive.getTargets(new File("a/b/Lib.java"))).containsExactly(key("//a:lib"));
+  }
+
+  @Test
+  public void testCaseSensitivePathsDifferingOnlyInCaseMapToTheirOwnTargets() {
+    TargetMap targetMap =
+        TargetMapBuilder.builder()
+            .addTarget(target("//a:lower").addSource(source("a/b/lib.java")))
+            .addTarget(target("//a:upper").addSource(source("a/B/Lib.java")))
+            .build();
+
+    SourceToTargetIndex index =
+        SourceToTargetIndex.create(
+            new MockArtifactLocationDecoder(), targetMap, /* caseSensitive= */ true);
+
+    assertThat(index.getTargets(new File("a/b/lib.java"))).containsExactly(key("//a:lower"));
+    assertThat(index.getTargets(new File("a/B/Lib.java"))).containsExactly(key("//a:upper"));
+  }
+
+  private static TargetIdeInfo.Builder target(String label) {
+    return TargetIdeInfo.builder().setLabel(label).setKind("proto_library");
+  }
+
+  private static ArtifactLocation source(String relativePath) {
+    return ArtifactLocation.builder().setRelativePath(relativePath).setIsSource(true).build();
+  }
+
+  private static TargetKey key(String label) {
+    return TargetKey.forPlainTarget(Label.create(label));
+  }
+}
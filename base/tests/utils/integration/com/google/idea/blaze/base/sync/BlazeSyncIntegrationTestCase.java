@@ -59,6 +59,7 @@ import com.google.idea.blaze.base.sync.data.BlazeDataStorage;
 import com.google.idea.blaze.base.sync.projectview.LanguageSupport;
 import com.google.idea.blaze.base.sync.projectview.WorkspaceLanguageSettings;
 import com.google.idea.blaze.base.sync.sharding.ShardedTargetList;
+import com.google.idea.blaze.base.sync.workspace.WorkingSet;
 import com.google.idea.blaze.base.sync.workspace.WorkspacePathResolverImpl;
 import com.google.idea.blaze.base.vcs.BlazeVcsHandler;
 import com.google.idea.testing.ServiceHelper;
@@ -336,6 +337,7 @@ public abstract class BlazeSyncIntegrationTestCase extends BlazeIntegrationTestC
         BuildInvoker invoker,
         ProjectViewSet projectViewSet,
         ShardedTargetList shardedTargets,
+        @Nullable WorkingSet workingSet,
         WorkspaceLanguageSettings workspaceLanguageSettings,
         ImmutableSet<OutputGroup> outputGroups,
         BlazeInvocationContext blazeInvocationContext) {
@@ -128,7 +128,7 @@ public class BlazeGoPackage extends GoPackage {
     if (target == null || target.getKind() != GenericBlazeRules.RuleTypes.PROTO_LIBRARY.getKind()) {
       return targetKey;
     }
-    return ReverseDependencyMap.get(project).get(targetKey).stream()
+    return ReverseDependencyMap.getReverseDependencies(project, targetKey).stream()
         .map(targetMap::get)
         .filter(Objects::nonNull)
         .filter(t -> t.getKind() == RuleTypes.GO_PROTO_LIBRARY.getKind())
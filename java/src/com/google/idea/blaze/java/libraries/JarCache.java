@@ -35,6 +35,7 @@ import com.google.idea.blaze.base.command.buildresult.RemoteOutputArtifact;
 import com.google.idea.blaze.base.command.buildresult.SourceArtifact;
 import com.google.idea.blaze.base.filecache.FileCache;
 import com.google.idea.blaze.base.filecache.FileCacheDiffer;
+import com.google.idea.blaze.base.filecache.SharedArtifactStore;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.LibraryArtifact;
 import com.google.idea.blaze.base.io.FileOperationProvider;
@@ -66,13 +67,12 @@ import com.intellij.util.PathUtil;
 import com.intellij.util.concurrency.AppExecutorUtil;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -100,9 +100,15 @@ public class JarCache {
   private final Project project;
   private final JarCacheFolderProvider jarCacheFolderProvider;
 
-  /** The state of the cache as of the last call to {@link #readFileState}. */
+  /**
+   * The files in the cache. Read from disk once, then kept up to date as files are copied and
+   * removed, so the cache folder isn't listed on every refresh.
+   */
   private volatile ImmutableMap<String, File> cacheState = ImmutableMap.of();
 
+  /** Whether {@link #cacheState} reflects the cache folder, or needs to be read again. */
+  private volatile boolean cacheStateLoaded;
+
   private volatile ListenableFuture<List<Object>> repackagingTasks =
       Futures.immediateCancelledFuture();
 
@@ -147,9 +153,26 @@ public class JarCache {
             ? ImmutableMap.of()
             : Arrays.stream(files).collect(toImmutableMap(File::getName, f -> f));
     this.cacheState = cacheState;
+    cacheStateLoaded = true;
     return cacheState;
   }
 
+  /** Returns the currently cached files, only reading them from disk if not already known. */
+  private ImmutableMap<String, File> getFileState() {
+    return cacheStateLoaded ? cacheState : readFileState();
+  }
+
+  /** Records files which have been added to or removed from the cache folder. */
+  private synchronized void updateFileState(Collection<File> added, Collection<File> removed) {
+    if (added.isEmpty() && removed.isEmpty()) {
+      return;
+    }
+    Map<String, File> state = new HashMap<>(cacheState);
+    removed.forEach(f -> state.remove(f.getName()));
+    added.forEach(f -> state.put(f.getName(), f));
+    cacheState = ImmutableMap.copyOf(state);
+  }
+
   private void onSync(
       BlazeContext context,
       ProjectViewSet projectViewSet,
@@ -197,7 +220,9 @@ public class JarCache {
 
     ImmutableMap<String, BlazeArtifact> projectState =
         getArtifactsToCache(projectViewSet, projectData);
-    ImmutableMap<String, File> cachedFiles = readFileState();
+    ImmutableMap<String, File> cachedFiles = getFileState();
+    List<File> copied = Collections.synchronizedList(new ArrayList<>());
+    List<File> deleted = Collections.synchronizedList(new ArrayList<>());
     try {
       Map<String, BlazeArtifact> updated =
           FileCacheDiffer.findUpdatedOutputs(projectState, cachedFiles, previousOutputs);
@@ -232,12 +257,13 @@ public class JarCache {
           .run();
 
       // update cache files, and remove files if required
-      List<ListenableFuture<?>> futures = new ArrayList<>(copyLocally(updated));
+      List<ListenableFuture<?>> futures = new ArrayList<>(copyLocally(updated, copied));
       if (removeMissingFiles) {
-        futures.addAll(deleteCacheFiles(removed));
+        futures.addAll(deleteCacheFiles(removed, deleted));
       }
 
       Futures.allAsList(futures).get();
+      SharedArtifactStore.getInstance().save();
       if (!updated.isEmpty()) {
         context.output(PrintOutput.log(String.format("Copied %d jars", updated.size())));
       }
@@ -250,13 +276,16 @@ public class JarCache {
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       context.setCancelled();
+      // copies may still be in progress, so re-read the cache folder next time
+      cacheStateLoaded = false;
     } catch (ExecutionException e) {
       logger.warn("Jar Cache synchronization didn't complete", e);
       IssueOutput.warn("Jar Cache synchronization didn't complete").submit(context);
+      cacheStateLoaded = false;
     } finally {
       // update the in-memory record of which files are cached
-      ImmutableMap<String, File> state = readFileState();
-      logCacheSize(context, state);
+      updateFileState(copied, deleted);
+      logCacheSize(context, cacheState);
     }
   }
 
@@ -303,8 +332,12 @@ public class JarCache {
     return ImmutableMap.copyOf(newOutputs);
   }
 
-  /** Copy artifacts that needed to be updated to local cache, repackage it if it's lint jar. */
-  private List<ListenableFuture<?>> copyLocally(Map<String, BlazeArtifact> updated) {
+  /**
+   * Copy artifacts that needed to be updated to local cache, repackage it if it's lint jar. Files
+   * which were successfully copied are added to {@code copied}.
+   */
+  private List<ListenableFuture<?>> copyLocally(
+      Map<String, BlazeArtifact> updated, List<File> copied) {
     List<ListenableFuture<?>> futures = new ArrayList<>();
     updated.forEach(
         (key, artifact) ->
@@ -314,6 +347,7 @@ public class JarCache {
                       File destination = jarCacheFolderProvider.getCacheFileByKey(key);
                       try {
                         copyLocally(artifact, destination);
+                        copied.add(destination);
                       } catch (IOException e) {
                         logger.warn(
                             String.format(
@@ -325,19 +359,12 @@ public class JarCache {
     return futures;
   }
 
+  /**
+   * Links the cached file to the artifact's copy in the shared store, so projects using the same
+   * jars don't each store a copy.
+   */
   private static void copyLocally(BlazeArtifact output, File destination) throws IOException {
-    if (output instanceof LocalFileArtifact) {
-      File source = ((LocalFileArtifact) output).getFile();
-      Files.copy(
-          Paths.get(source.getPath()),
-          Paths.get(destination.getPath()),
-          StandardCopyOption.REPLACE_EXISTING,
-          StandardCopyOption.COPY_ATTRIBUTES);
-      return;
-    }
-    try (InputStream stream = output.getInputStream()) {
-      Files.copy(stream, Paths.get(destination.getPath()), StandardCopyOption.REPLACE_EXISTING);
-    }
+    SharedArtifactStore.getInstance().materialize(output, destination);
   }
 
   /**
@@ -434,10 +461,18 @@ public class JarCache {
     File jar = jarCacheFolderProvider.getCacheFileByKey(cacheKeyForJar(blazeArtifact));
     if (shouldRepackage.test(jar)) {
       jarRepackager.processJar(jar);
+      File repackagedJar =
+          new File(
+              jarCacheFolderProvider.getJarCacheFolder(),
+              jarRepackager.getRepackagePrefix() + jar.getName());
+      if (repackagedJar.exists()) {
+        updateFileState(ImmutableList.of(repackagedJar), ImmutableList.of());
+      }
     }
   }
 
-  private Collection<ListenableFuture<?>> deleteCacheFiles(Collection<File> files) {
+  private Collection<ListenableFuture<?>> deleteCacheFiles(
+      Collection<File> files, List<File> deleted) {
     return files.stream()
         .map(
             f ->
@@ -445,6 +480,7 @@ public class JarCache {
                     () -> {
                       try {
                         Files.deleteIfExists(Paths.get(f.getPath()));
+                        deleted.add(f);
                       } catch (IOException e) {
                         logger.warn(e);
                       }
@@ -454,11 +490,13 @@ public class JarCache {
 
   private void clearCache(BlazeContext context, boolean blockOnCompletion) {
     cacheState = ImmutableMap.of();
+    cacheStateLoaded = true;
     File[] cacheFiles = jarCacheFolderProvider.getJarCacheFolder().listFiles();
     if (cacheFiles == null) {
       return;
     }
-    Collection<ListenableFuture<?>> futures = deleteCacheFiles(ImmutableList.copyOf(cacheFiles));
+    Collection<ListenableFuture<?>> futures =
+        deleteCacheFiles(ImmutableList.copyOf(cacheFiles), new ArrayList<>());
     if (!blockOnCompletion) {
       return;
     }
@@ -15,85 +15,76 @@
  */
 package com.google.idea.blaze.java.run.coverage;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import com.google.common.collect.ImmutableMap;
-import com.intellij.openapi.diagnostic.Logger;
-import gnu.trove.TIntIntHashMap;
-import java.io.BufferedReader;
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import javax.annotation.Nullable;
 
-/** Blaze coverage data class. Parsed from LCOV-formatted blaze output. */
+/**
+ * Blaze coverage data class. Parsed from LCOV-formatted blaze output.
+ *
+ * <p>The whole report is parsed up front, but the line hits of all files are stored together in
+ * primitive arrays rather than per-file collections. A {@link FileData} is a copy of one file's
+ * range, created on each request.
+ */
 class BlazeCoverageData {
 
-  private static final Logger logger = Logger.getInstance(BlazeCoverageData.class);
-
   static BlazeCoverageData parse(InputStream inputStream) throws IOException {
     return LcovParser.parse(inputStream);
   }
 
+  static BlazeCoverageData parse(File file) throws IOException {
+    return LcovParser.parse(file);
+  }
+
   static class FileData {
     final String source;
-    final TIntIntHashMap lineHits;
+    /** The covered line numbers, in increasing order. */
+    final int[] lines;
+    /** The hit count of each line in {@link #lines}. */
+    final int[] hits;
 
-    private FileData(String source, TIntIntHashMap lineHits) {
+    private FileData(String source, int[] lines, int[] hits) {
       this.source = source;
-      this.lineHits = lineHits;
+      this.lines = lines;
+      this.hits = hits;
     }
   }
 
-  final ImmutableMap<String, FileData> perFileData;
+  /** The position of each file's data in the line and hit arrays. */
+  private final ImmutableMap<String, Integer> fileIndex;
+  /** The start offset of each file's data, followed by the end offset of the last file. */
+  private final int[] fileOffsets;
 
-  private BlazeCoverageData(ImmutableMap<String, FileData> perFileData) {
-    this.perFileData = perFileData;
-  }
+  private final int[] lines;
+  private final int[] hits;
 
-  private static class LcovParser {
-    // there are other valid lcov tracefile prefixes, but they're all ignored here
-    static final String SF = "SF:";
-    static final String DA = "DA:";
-    static final String END_OF_RECORD = "end_of_record";
+  BlazeCoverageData(
+      ImmutableMap<String, Integer> fileIndex, int[] fileOffsets, int[] lines, int[] hits) {
+    this.fileIndex = fileIndex;
+    this.fileOffsets = fileOffsets;
+    this.lines = lines;
+    this.hits = hits;
+  }
 
-    private static BlazeCoverageData parse(InputStream inputStream) throws IOException {
-      Map<String, FileData> map = new HashMap<>();
-      BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
-      String line;
-      while ((line = reader.readLine()) != null) {
-        if (line.startsWith(SF)) {
-          String source = line.substring(SF.length());
-          TIntIntHashMap hits = parseHits(reader);
-          if (!hits.isEmpty()) {
-            map.put(source, new FileData(source, hits));
-          }
-        }
-      }
-      return new BlazeCoverageData(ImmutableMap.copyOf(map));
-    }
+  /** The source files with coverage data. */
+  ImmutableSet<String> getSources() {
+    return fileIndex.keySet();
+  }
 
-    private static TIntIntHashMap parseHits(BufferedReader reader) throws IOException {
-      TIntIntHashMap hits = new TIntIntHashMap();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        if (line.startsWith(END_OF_RECORD)) {
-          return hits;
-        }
-        if (line.startsWith(DA)) {
-          // DA:line,hits
-          int comma = line.indexOf(',');
-          try {
-            hits.put(
-                Integer.parseInt(line.substring(DA.length(), comma)),
-                Integer.parseInt(line.substring(comma + 1)));
-          } catch (NumberFormatException e) {
-            logger.warn("Cannot parse LCOV line: " + line, e);
-          }
-        }
-      }
-      return hits;
+  /** Returns the coverage data of the given source file, or null if there is none. */
+  @Nullable
+  FileData getFileData(String source) {
+    Integer index = fileIndex.get(source);
+    if (index == null) {
+      return null;
     }
+    int start = fileOffsets[index];
+    int end = fileOffsets[index + 1];
+    return new FileData(
+        source, Arrays.copyOfRange(lines, start, end), Arrays.copyOfRange(hits, start, end));
   }
 }
@@ -16,7 +16,6 @@
 package com.google.idea.blaze.java.run.coverage;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.primitives.Ints;
 import com.google.idea.blaze.base.model.BlazeProjectData;
 import com.google.idea.blaze.base.settings.Blaze;
 import com.google.idea.blaze.base.sync.data.BlazeProjectDataManager;
@@ -30,7 +29,6 @@ import com.intellij.rt.coverage.data.ClassData;
 import com.intellij.rt.coverage.data.LineData;
 import com.intellij.rt.coverage.data.ProjectData;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import javax.annotation.Nullable;
@@ -52,8 +50,9 @@ public class BlazeCoverageRunner extends CoverageRunner {
     if (blazeProjectData == null) {
       return null;
     }
-    try (FileInputStream stream = new FileInputStream(sessionDataFile)) {
-      return parseCoverage(blazeProjectData.getWorkspacePathResolver(), stream);
+    try {
+      return toProjectData(
+          blazeProjectData.getWorkspacePathResolver(), BlazeCoverageData.parse(sessionDataFile));
     } catch (IOException e) {
       logger.warn(e);
     }
@@ -63,32 +62,31 @@ public class BlazeCoverageRunner extends CoverageRunner {
   @VisibleForTesting
   static ProjectData parseCoverage(WorkspacePathResolver pathResolver, InputStream stream)
       throws IOException {
+    return toProjectData(pathResolver, BlazeCoverageData.parse(stream));
+  }
+
+  private static ProjectData toProjectData(
+      WorkspacePathResolver pathResolver, BlazeCoverageData blazeData) {
     ProjectData data = new ProjectData();
-    BlazeCoverageData blazeData = BlazeCoverageData.parse(stream);
-    for (String filePath : blazeData.perFileData.keySet()) {
+    for (String filePath : blazeData.getSources()) {
       File file = pathResolver.resolveToFile(filePath);
       ClassData classData = data.getOrCreateClassData(file.getPath());
-      classData.setLines(fromFileData(blazeData.perFileData.get(filePath)));
+      classData.setLines(fromFileData(blazeData.getFileData(filePath)));
     }
     return data;
   }
 
   private static LineData[] fromFileData(FileData fileData) {
-    LineData[] lines = new LineData[maxLineNumber(fileData) + 1];
-    fileData.lineHits.forEachEntry(
-        (line, hits) -> {
-          LineData newLine = new LineData(line, null);
-          newLine.setHits(hits);
-          lines[line] = newLine;
-          return true;
-        });
+    // lines are sorted, so the last is the highest line number
+    LineData[] lines = new LineData[fileData.lines[fileData.lines.length - 1] + 1];
+    for (int i = 0; i < fileData.lines.length; i++) {
+      LineData newLine = new LineData(fileData.lines[i], null);
+      newLine.setHits(fileData.hits[i]);
+      lines[fileData.lines[i]] = newLine;
+    }
     return lines;
   }
 
-  private static int maxLineNumber(FileData fileData) {
-    return Ints.max(fileData.lineHits.keys());
-  }
-
   @Override
   public String getPresentableName() {
     return Blaze.defaultBuildSystemName();
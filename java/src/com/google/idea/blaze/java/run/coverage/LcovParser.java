@@ -0,0 +1,364 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.run.coverage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.idea.common.experiments.IntExperiment;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Parses LCOV tracefiles into {@link BlazeCoverageData}.
+ *
+ * <p>Large files are memory-mapped and split into chunks at record boundaries, which are parsed in
+ * parallel. If a file appears in more than one record, the last record wins.
+ */
+final class LcovParser {
+  private static final Logger logger = Logger.getInstance(LcovParser.class);
+
+  private static final IntExperiment chunkSizeKb =
+      new IntExperiment("blaze.coverage.lcov.chunk.size.kb", 16 * 1024);
+
+  private static final ListeningExecutorService EXECUTOR =
+      MoreExecutors.listeningDecorator(
+          AppExecutorUtil.createBoundedApplicationPoolExecutor(
+              "LcovParser", Runtime.getRuntime().availableProcessors()));
+
+  // there are other valid lcov tracefile prefixes, but they're all ignored here
+  private static final byte[] SF = "SF:".getBytes(UTF_8);
+  private static final byte[] DA = "DA:".getBytes(UTF_8);
+  private static final byte[] END_OF_RECORD = "end_of_record".getBytes(UTF_8);
+
+  /** The size of the buffer used when searching for a record boundary. */
+  private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+  static BlazeCoverageData parse(InputStream inputStream) throws IOException {
+    ByteBuffer contents = ByteBuffer.wrap(ByteStreams.toByteArray(inputStream));
+    return merge(Arrays.asList(parseChunk(contents)));
+  }
+
+  static BlazeCoverageData parse(File file) throws IOException {
+    return parse(file, Math.max(chunkSizeKb.getValue(), 1) * 1024L, EXECUTOR);
+  }
+
+  @VisibleForTesting
+  static BlazeCoverageData parse(File file, long chunkSize, ListeningExecutorService executor)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      List<long[]> chunks = splitIntoChunks(channel, chunkSize);
+      List<ListenableFuture<Chunk>> futures = new ArrayList<>();
+      for (long[] chunk : chunks) {
+        futures.add(
+            executor.submit(
+                () ->
+                    parseChunk(
+                        channel.map(
+                            FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]))));
+      }
+      return merge(Futures.allAsList(futures).get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted parsing LCOV file " + file);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to parse LCOV file " + file, e.getCause());
+    }
+  }
+
+  /**
+   * Splits the file into [start, end) ranges of at least the given size (other than the last),
+   * each ending just after an end_of_record line.
+   */
+  private static List<long[]> splitIntoChunks(FileChannel channel, long chunkSize)
+      throws IOException {
+    long size = channel.size();
+    List<long[]> chunks = new ArrayList<>();
+    long start = 0;
+    while (start < size) {
+      long end = start + chunkSize >= size ? size : findRecordEnd(channel, start + chunkSize);
+      chunks.add(new long[] {start, end});
+      start = end;
+    }
+    return chunks;
+  }
+
+  /**
+   * Returns the position just after the first end_of_record line which ends at or after the given
+   * position, or the end of the file if there is none.
+   */
+  private static long findRecordEnd(FileChannel channel, long from) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    // match a line break followed by end_of_record, starting just before 'from' so a marker
+    // starting at 'from' is found
+    long position = from - 1;
+    int matched = 0;
+    boolean foundMarker = false;
+    while (true) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      if (read <= 0) {
+        return channel.size();
+      }
+      for (int i = 0; i < read; i++) {
+        byte b = buffer.get(i);
+        if (foundMarker) {
+          if (b == '\n') {
+            return position + i + 1;
+          }
+        } else if (matched > 0 && b == END_OF_RECORD[matched - 1]) {
+          matched++;
+          if (matched == END_OF_RECORD.length + 1) {
+            foundMarker = true;
+          }
+        } else {
+          matched = b == '\n' ? 1 : 0;
+        }
+      }
+      position += read;
+    }
+  }
+
+  /** Parses the records in the given buffer, which mustn't split a record. */
+  private static Chunk parseChunk(ByteBuffer buffer) {
+    Chunk chunk = new Chunk();
+    int limit = buffer.limit();
+    int position = 0;
+    while (position < limit) {
+      int lineEnd = position;
+      while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+        lineEnd++;
+      }
+      int end = lineEnd > position && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+      if (chunk.inRecord()) {
+        if (startsWith(buffer, position, end, END_OF_RECORD)) {
+          chunk.endRecord();
+        } else if (startsWith(buffer, position, end, DA)) {
+          parseHits(buffer, position + DA.length, end, chunk);
+        }
+      } else if (startsWith(buffer, position, end, SF)) {
+        chunk.startRecord(decode(buffer, position + SF.length, end));
+      }
+      position = lineEnd + 1;
+    }
+    // a trailing record without an end_of_record line is still kept
+    chunk.endRecord();
+    return chunk;
+  }
+
+  /** Parses a 'DA:line,hits[,checksum]' line. */
+  private static void parseHits(ByteBuffer buffer, int start, int end, Chunk chunk) {
+    int comma = start;
+    while (comma < end && buffer.get(comma) != ',') {
+      comma++;
+    }
+    int hitsEnd = comma + 1;
+    while (hitsEnd < end && buffer.get(hitsEnd) != ',') {
+      hitsEnd++;
+    }
+    int line = parseInt(buffer, start, comma);
+    int hits = comma < end ? parseInt(buffer, comma + 1, hitsEnd) : -1;
+    if (line < 0 || hits < 0) {
+      logger.warn("Cannot parse LCOV line: DA:" + decode(buffer, start, end));
+      return;
+    }
+    chunk.addHits(line, hits);
+  }
+
+  /** Returns the non-negative integer in the given range, or -1 if it isn't a valid int. */
+  private static int parseInt(ByteBuffer buffer, int start, int end) {
+    if (start >= end) {
+      return -1;
+    }
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      byte b = buffer.get(i);
+      if (b < '0' || b > '9') {
+        return -1;
+      }
+      value = value * 10 + (b - '0');
+      if (value > Integer.MAX_VALUE) {
+        return -1;
+      }
+    }
+    return (int) value;
+  }
+
+  private static boolean startsWith(ByteBuffer buffer, int start, int end, byte[] prefix) {
+    if (end - start < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer.get(start + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String decode(ByteBuffer buffer, int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Combines the records of all chunks, in order, sorting each file's lines. Where a file has more
+   * than one record, the last is kept, and where a line has more than one entry, the last is kept.
+   */
+  private static BlazeCoverageData merge(List<Chunk> chunks) {
+    Map<String, Record> records = new LinkedHashMap<>();
+    int totalLines = 0;
+    for (Chunk chunk : chunks) {
+      for (Record record : chunk.records) {
+        Record previous = records.remove(record.source);
+        if (previous != null) {
+          totalLines -= previous.end - previous.start;
+        }
+        records.put(record.source, record);
+        totalLines += record.end - record.start;
+      }
+    }
+    ImmutableMap.Builder<String, Integer> fileIndex = ImmutableMap.builder();
+    int[] fileOffsets = new int[records.size() + 1];
+    int[] lines = new int[totalLines];
+    int[] hits = new int[totalLines];
+    int index = 0;
+    int offset = 0;
+    for (Record record : records.values()) {
+      fileIndex.put(record.source, index);
+      fileOffsets[index++] = offset;
+      offset = record.copySorted(lines, hits, offset);
+    }
+    fileOffsets[index] = offset;
+    if (offset < totalLines) {
+      // duplicate line entries were dropped
+      lines = Arrays.copyOf(lines, offset);
+      hits = Arrays.copyOf(hits, offset);
+    }
+    return new BlazeCoverageData(fileIndex.build(), fileOffsets, lines, hits);
+  }
+
+  /** The records parsed from one chunk of a tracefile, with all line hits in shared arrays. */
+  private static final class Chunk {
+    final List<Record> records = new ArrayList<>();
+    int[] lines = new int[1024];
+    int[] hits = new int[1024];
+    int size;
+
+    private String currentSource;
+    private int recordStart;
+
+    boolean inRecord() {
+      return currentSource != null;
+    }
+
+    void startRecord(String source) {
+      currentSource = source;
+      recordStart = size;
+    }
+
+    void addHits(int line, int hitCount) {
+      if (size == lines.length) {
+        lines = Arrays.copyOf(lines, size * 2);
+        hits = Arrays.copyOf(hits, size * 2);
+      }
+      lines[size] = line;
+      hits[size] = hitCount;
+      size++;
+    }
+
+    void endRecord() {
+      // files without any line data are ignored
+      if (currentSource != null && size > recordStart) {
+        records.add(new Record(currentSource, this, recordStart, size));
+      }
+      currentSource = null;
+    }
+  }
+
+  private static final class Record {
+    final String source;
+    final Chunk chunk;
+    final int start;
+    final int end;
+
+    Record(String source, Chunk chunk, int start, int end) {
+      this.source = source;
+      this.chunk = chunk;
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * Copies this record's hits into the given arrays in increasing line order, and returns the
+     * offset after the last copied entry.
+     */
+    int copySorted(int[] lines, int[] hits, int offset) {
+      boolean sorted = true;
+      for (int i = start + 1; i < end && sorted; i++) {
+        sorted = chunk.lines[i - 1] < chunk.lines[i];
+      }
+      if (sorted) {
+        System.arraycopy(chunk.lines, start, lines, offset, end - start);
+        System.arraycopy(chunk.hits, start, hits, offset, end - start);
+        return offset + end - start;
+      }
+      // sort by line, then by position, so the last entry for each line can be kept
+      long[] keys = new long[end - start];
+      for (int i = start; i < end; i++) {
+        keys[i - start] = ((long) chunk.lines[i] << 32) | i;
+      }
+      Arrays.sort(keys);
+      for (int i = 0; i < keys.length; i++) {
+        int line = (int) (keys[i] >>> 32);
+        if (i + 1 < keys.length && (int) (keys[i + 1] >>> 32) == line) {
+          continue;
+        }
+        lines[offset] = line;
+        hits[offset] = chunk.hits[(int) keys[i]];
+        offset++;
+      }
+      return offset;
+    }
+  }
+
+  private LcovParser() {}
+}
@@ -16,11 +16,11 @@
 package com.google.idea.blaze.java.run.hotswap;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
-import static com.google.common.collect.ImmutableMap.toImmutableMap;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
 import com.google.idea.blaze.base.async.executor.BlazeExecutor;
 import com.google.idea.blaze.base.filecache.FilesDiff;
@@ -34,10 +34,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
 import javax.annotation.Nullable;
 
 /** A manifest of .class file hashes for jars needed at runtime. Used for HotSwapping. */
@@ -71,7 +68,8 @@ public class ClassFileManifest {
     for (Map.Entry<File, JarManifest> entry : newManifest.jarManifests.entrySet()) {
       // quick test for object equality -- jars are often not rebuilt
       JarManifest old = oldManifest.jarManifests.get(entry.getKey());
-      if (old == entry.getValue()) {
+      if (old == entry.getValue()
+          || (old != null && old.digest.equals(entry.getValue().digest))) {
         continue;
       }
       ImmutableList<String> changedClasses = JarManifest.diff(old, entry.getValue());
@@ -98,7 +96,7 @@ public class ClassFileManifest {
               jarManifests.put(f, previousManifest.jarManifests.get(f));
             }
           });
-      buildJarManifests(diff.getUpdatedFiles()).stream()
+      buildJarManifests(diff.getUpdatedFiles(), previousManifest).stream()
           .filter(Objects::nonNull)
           .forEach(m -> jarManifests.put(m.jar, m));
       return new ClassFileManifest(diff.getNewFileState(), jarManifests.build());
@@ -109,49 +107,72 @@ public class ClassFileManifest {
     }
   }
 
-  private static List<JarManifest> buildJarManifests(Collection<File> jars)
+  private static List<JarManifest> buildJarManifests(
+      Collection<File> jars, @Nullable ClassFileManifest previousManifest)
       throws java.util.concurrent.ExecutionException, InterruptedException {
     BlazeExecutor executor = BlazeExecutor.getInstance();
+    JarManifestCache cache = JarManifestCache.create();
     return Futures.allAsList(
             jars.stream()
-                .map(f -> executor.submit(() -> JarManifest.build(f)))
+                .map(
+                    f ->
+                        executor.submit(
+                            () ->
+                                JarManifest.build(
+                                    f,
+                                    previousManifest != null
+                                        ? previousManifest.jarManifests.get(f)
+                                        : null,
+                                    cache)))
                 .collect(Collectors.toList()))
         .get();
   }
 
   /** .class file manifest for a single jar. */
-  private static class JarManifest {
-    private final File jar;
-    private final ImmutableMap<String, Long> nameToHash;
+  static class JarManifest {
+    final File jar;
+    /** A digest of the jar's central directory, which changes whenever any entry does. */
+    final HashCode digest;
+
+    final ImmutableMap<String, Long> nameToHash;
 
+    /**
+     * Returns the manifest of the given jar, from the persisted cache if the jar is unchanged since
+     * it was stored. Returns the previous manifest if the jar's contents are unchanged.
+     */
     @Nullable
-    static JarManifest build(File file) {
-      try {
-        JarFile jar = new JarFile(file);
-        return new JarManifest(
-            file,
-            jar.stream()
-                .filter(e -> e.getName().endsWith(".class"))
-                .collect(
-                    toImmutableMap(JarEntry::getName, ZipEntry::getCrc, (first, second) -> first)));
-      } catch (IOException e) {
-        logger.warn("Error reading jar file: " + file, e);
-        return null;
+    static JarManifest build(File file, @Nullable JarManifest previous, JarManifestCache cache) {
+      long size = file.length();
+      long modifiedTime = file.lastModified();
+      JarManifest manifest = cache.get(file, size, modifiedTime);
+      if (manifest == null) {
+        try {
+          JarCentralDirectory directory = JarCentralDirectory.read(file);
+          manifest = new JarManifest(file, directory.digest, directory.classCrcs);
+        } catch (IOException e) {
+          logger.warn("Error reading jar file: " + file, e);
+          return null;
+        }
+        cache.put(manifest, size, modifiedTime);
       }
+      return previous != null && previous.digest.equals(manifest.digest) ? previous : manifest;
     }
 
-    private JarManifest(File jar, ImmutableMap<String, Long> nameToHash) {
+    JarManifest(File jar, HashCode digest, ImmutableMap<String, Long> nameToHash) {
       this.jar = jar;
+      this.digest = digest;
       this.nameToHash = nameToHash;
     }
 
     /** Returns the list of classes changed in the new manifest. */
-    static ImmutableList<String> diff(JarManifest oldManifest, JarManifest newManifest) {
+    static ImmutableList<String> diff(@Nullable JarManifest oldManifest, JarManifest newManifest) {
+      Map<String, Long> oldHashes =
+          oldManifest != null ? oldManifest.nameToHash : ImmutableMap.of();
       return newManifest
           .nameToHash
           .entrySet()
           .stream()
-          .filter(e -> !Objects.equals(e.getValue(), oldManifest.nameToHash.get(e.getKey())))
+          .filter(e -> !Objects.equals(e.getValue(), oldHashes.get(e.getKey())))
           .map(Entry::getKey)
           .collect(toImmutableList());
     }
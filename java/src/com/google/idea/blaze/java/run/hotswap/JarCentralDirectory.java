@@ -0,0 +1,189 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.run.hotswap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The .class file CRCs of a jar, read directly from the zip central directory.
+ *
+ * <p>Only the central directory is read, so no entries are inflated and large deploy jars are
+ * scanned in a single pass over a small fraction of the file.
+ */
+final class JarCentralDirectory {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+  private static final int CENTRAL_FILE_HEADER_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_FILE_HEADER_SIZE = 46;
+  private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+  private static final byte[] CLASS_SUFFIX = ".class".getBytes(UTF_8);
+
+  /** A hash of the whole central directory, which changes whenever any entry does. */
+  final HashCode digest;
+
+  final ImmutableMap<String, Long> classCrcs;
+
+  private JarCentralDirectory(HashCode digest, ImmutableMap<String, Long> classCrcs) {
+    this.digest = digest;
+    this.classCrcs = classCrcs;
+  }
+
+  static JarCentralDirectory read(File jar) throws IOException {
+    try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      int tailSize =
+          (int)
+              Math.min(
+                  fileSize,
+                  END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH + ZIP64_LOCATOR_SIZE);
+      long tailStart = fileSize - tailSize;
+      ByteBuffer tail = read(channel, tailStart, tailSize);
+      int end = findEndOfCentralDirectory(tail);
+      if (end < 0) {
+        throw new IOException("Not a zip file: " + jar);
+      }
+      long entryCount = tail.getShort(end + 10) & 0xffff;
+      long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+      // the position the central directory is expected to end at, which is used in preference to
+      // the recorded offset so jars with prepended data (e.g. launcher scripts) are handled
+      long directoryEnd = tailStart + end;
+      if (entryCount == 0xffff || directorySize == 0xffffffffL) {
+        int locator = end - ZIP64_LOCATOR_SIZE;
+        if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+          throw new IOException("Missing zip64 end of central directory locator: " + jar);
+        }
+        // as with the central directory, the record's expected position (directly before the
+        // locator) is used in preference to the recorded offset
+        long zip64End = tailStart + locator - ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE;
+        if (!isZip64EndOfCentralDirectory(channel, zip64End)) {
+          zip64End = tail.getLong(locator + 8);
+          if (!isZip64EndOfCentralDirectory(channel, zip64End)) {
+            throw new IOException("Invalid zip64 end of central directory: " + jar);
+          }
+        }
+        ByteBuffer record = read(channel, zip64End, ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+        entryCount = record.getLong(32);
+        directorySize = record.getLong(40);
+        directoryEnd = zip64End;
+      }
+      long directoryStart = directoryEnd - directorySize;
+      if (directoryStart < 0 || directorySize > Integer.MAX_VALUE) {
+        throw new IOException("Invalid zip central directory: " + jar);
+      }
+      ByteBuffer directory = read(channel, directoryStart, (int) directorySize);
+      HashCode digest = Hashing.sha256().hashBytes(directory.duplicate());
+      return new JarCentralDirectory(digest, readClassCrcs(jar, directory, entryCount));
+    }
+  }
+
+  /**
+   * Reads part of the file into a heap buffer. Unlike a mapped buffer, it doesn't keep the file
+   * mapped (and on Windows, locked) until it's garbage collected.
+   */
+  private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static boolean isZip64EndOfCentralDirectory(FileChannel channel, long position)
+      throws IOException {
+    if (position < 0 || position + ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE > channel.size()) {
+      return false;
+    }
+    return read(channel, position, 4).getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE;
+  }
+
+  /** Returns the position of the end of central directory record, or -1 if there is none. */
+  private static int findEndOfCentralDirectory(ByteBuffer tail) {
+    // the record is followed by a variable-length comment, so search backwards for its signature
+    for (int i = tail.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE
+          && i + END_OF_CENTRAL_DIRECTORY_SIZE + (tail.getShort(i + 20) & 0xffff)
+              == tail.limit()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static ImmutableMap<String, Long> readClassCrcs(
+      File jar, ByteBuffer directory, long entryCount) throws IOException {
+    Map<String, Long> crcs = new HashMap<>();
+    int position = 0;
+    for (long i = 0; i < entryCount; i++) {
+      if (position + CENTRAL_FILE_HEADER_SIZE > directory.limit()
+          || directory.getInt(position) != CENTRAL_FILE_HEADER_SIGNATURE) {
+        throw new IOException("Invalid zip central directory entry: " + jar);
+      }
+      long crc = directory.getInt(position + 16) & 0xffffffffL;
+      int nameLength = directory.getShort(position + 28) & 0xffff;
+      int extraLength = directory.getShort(position + 30) & 0xffff;
+      int commentLength = directory.getShort(position + 32) & 0xffff;
+      int nameStart = position + CENTRAL_FILE_HEADER_SIZE;
+      if (nameStart + nameLength > directory.limit()) {
+        throw new IOException("Invalid zip central directory entry: " + jar);
+      }
+      if (isClassFile(directory, nameStart, nameLength)) {
+        byte[] name = new byte[nameLength];
+        for (int j = 0; j < nameLength; j++) {
+          name[j] = directory.get(nameStart + j);
+        }
+        // keep the first of any duplicate entries, which is the one the class loader sees
+        crcs.putIfAbsent(new String(name, UTF_8), crc);
+      }
+      position = nameStart + nameLength + extraLength + commentLength;
+    }
+    return ImmutableMap.copyOf(crcs);
+  }
+
+  private static boolean isClassFile(ByteBuffer directory, int nameStart, int nameLength) {
+    if (nameLength < CLASS_SUFFIX.length) {
+      return false;
+    }
+    int suffixStart = nameStart + nameLength - CLASS_SUFFIX.length;
+    for (int i = 0; i < CLASS_SUFFIX.length; i++) {
+      if (directory.get(suffixStart + i) != CLASS_SUFFIX[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.run.hotswap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.idea.blaze.base.sync.data.VersionedCacheFile;
+import com.google.idea.blaze.java.run.hotswap.ClassFileManifest.JarManifest;
+import com.google.idea.common.experiments.BoolExperiment;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+/**
+ * The .class file manifests of runtime jars, persisted in the IDE system directory so they survive
+ * IDE restarts. Each jar's manifest is stored in its own file, and is only valid while the jar's
+ * size and modification time are unchanged.
+ */
+final class JarManifestCache {
+  private static final Logger logger = Logger.getInstance(JarManifestCache.class);
+
+  private static final BoolExperiment enabled =
+      new BoolExperiment("blaze.hotswap.persist.jar.manifests", true);
+
+  private static final int MAGIC = 0x425a4a4d; // "BZJM"
+  private static final int VERSION = 1;
+
+  /** Manifests which haven't been written for this long are deleted. */
+  private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+  private static final AtomicBoolean pruned = new AtomicBoolean();
+
+  @Nullable private final File directory;
+
+  @VisibleForTesting
+  JarManifestCache(@Nullable File directory) {
+    this.directory = directory;
+  }
+
+  /** Returns the persisted manifest cache, which doesn't persist anything in unit tests. */
+  static JarManifestCache create() {
+    if (ApplicationManager.getApplication().isUnitTestMode() || !enabled.getValue()) {
+      return new JarManifestCache(null);
+    }
+    JarManifestCache cache =
+        new JarManifestCache(new File(PathManager.getSystemPath(), "blaze/hotswap_manifests"));
+    if (pruned.compareAndSet(false, true)) {
+      cache.prune(System.currentTimeMillis() - MAX_AGE_MILLIS);
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the stored manifest for the given jar, or null if there is none or the jar has changed
+   * since it was stored.
+   */
+  @Nullable
+  JarManifest get(File jar, long size, long modifiedTime) {
+    if (directory == null) {
+      return null;
+    }
+    VersionedCacheFile file = getFile(jar);
+    try {
+      return file.read(in -> read(in, jar, size, modifiedTime));
+    } catch (IOException e) {
+      logger.warn("Ignoring unreadable jar manifest " + file.getFile(), e);
+      file.getFile().delete();
+      return null;
+    }
+  }
+
+  /** Stores the manifest of a jar with the given size and modification time. */
+  void put(JarManifest manifest, long size, long modifiedTime) {
+    if (directory == null) {
+      return;
+    }
+    VersionedCacheFile file = getFile(manifest.jar);
+    try {
+      file.write(
+          out -> {
+            out.writeUTF(manifest.jar.getAbsolutePath());
+            out.writeLong(size);
+            out.writeLong(modifiedTime);
+            byte[] digest = manifest.digest.asBytes();
+            out.writeInt(digest.length);
+            out.write(digest);
+            out.writeInt(manifest.nameToHash.size());
+            for (Map.Entry<String, Long> entry : manifest.nameToHash.entrySet()) {
+              out.writeUTF(entry.getKey());
+              out.writeLong(entry.getValue());
+            }
+          });
+    } catch (IOException e) {
+      logger.warn("Could not save jar manifest " + file.getFile(), e);
+    }
+  }
+
+  /** Deletes manifests last written before the given time, e.g. those of jars no longer built. */
+  private void prune(long cutoffMillis) {
+    File[] files = directory != null ? directory.listFiles() : null;
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.lastModified() < cutoffMillis) {
+        file.delete();
+      }
+    }
+  }
+
+  private VersionedCacheFile getFile(File jar) {
+    String path = jar.getAbsolutePath();
+    File file = new File(directory, Hashing.sha256().hashString(path, UTF_8) + ".dat");
+    return new VersionedCacheFile(file, MAGIC, VERSION);
+  }
+
+  /** Returns the stored manifest, or null if it's for a different version of the jar. */
+  @Nullable
+  private static JarManifest read(DataInputStream in, File jar, long size, long modifiedTime)
+      throws IOException {
+    if (!in.readUTF().equals(jar.getAbsolutePath())
+        || in.readLong() != size
+        || in.readLong() != modifiedTime) {
+      return null;
+    }
+    byte[] digest = new byte[in.readInt()];
+    in.readFully(digest);
+    int count = in.readInt();
+    Map<String, Long> nameToHash = new LinkedHashMap<>(count);
+    for (int i = 0; i < count; i++) {
+      nameToHash.put(in.readUTF(), in.readLong());
+    }
+    return new JarManifest(jar, HashCode.fromBytes(digest), ImmutableMap.copyOf(nameToHash));
+  }
+}
@@ -16,6 +16,7 @@
 package com.google.idea.blaze.java.sync.model;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.devtools.intellij.model.ProjectData;
 import com.google.idea.blaze.base.ideinfo.ArtifactLocation;
 import com.google.idea.blaze.base.ideinfo.LibraryArtifact;
@@ -29,7 +30,6 @@ import com.google.idea.blaze.java.libraries.JarCache;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.OrderRootType;
-import com.intellij.openapi.roots.libraries.Library;
 import java.io.File;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
@@ -65,14 +65,13 @@ public final class BlazeJarLibrary extends BlazeLibrary {
   }
 
   @Override
-  public void modifyLibraryModel(
-      Project project,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      Library.ModifiableModel libraryModel) {
+  public ImmutableListMultimap<OrderRootType, String> getLibraryRoots(
+      Project project, ArtifactLocationDecoder artifactLocationDecoder) {
+    ImmutableListMultimap.Builder<OrderRootType, String> roots = ImmutableListMultimap.builder();
     JarCache jarCache = JarCache.getInstance(project);
     File jar = jarCache.getCachedJar(artifactLocationDecoder, this);
     if (jar != null) {
-      libraryModel.addRoot(pathToUrl(jar), OrderRootType.CLASSES);
+      roots.put(OrderRootType.CLASSES, pathToUrl(jar));
     } else {
       logger.error("No local jar file found for " + libraryArtifact.jarForIntellijLibrary());
     }
@@ -85,14 +84,15 @@ public final class BlazeJarLibrary extends BlazeLibrary {
     }
 
     if (!sourceJarManager.hasSourceJarAttached(key)) {
-      return;
+      return roots.build();
     }
     for (ArtifactLocation srcJar : libraryArtifact.getSourceJars()) {
       File sourceJar = jarCache.getCachedSourceJar(artifactLocationDecoder, srcJar);
       if (sourceJar != null) {
-        libraryModel.addRoot(pathToUrl(sourceJar), OrderRootType.SOURCES);
+        roots.put(OrderRootType.SOURCES, pathToUrl(sourceJar));
       }
     }
+    return roots.build();
   }
 
   @Override
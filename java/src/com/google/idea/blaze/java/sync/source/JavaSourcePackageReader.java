@@ -17,6 +17,8 @@ package com.google.idea.blaze.java.sync.source;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.idea.blaze.base.io.FileOperationProvider;
 import com.google.idea.blaze.base.io.InputStreamProvider;
 import com.google.idea.blaze.base.scope.BlazeContext;
 import com.google.idea.blaze.base.scope.output.IssueOutput;
@@ -30,27 +32,46 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.PushbackReader;
+import java.io.Reader;
 import javax.annotation.Nullable;
 
-/** Parse package string directly from java source */
-public class JavaSourcePackageReader extends JavaPackageReader {
+/**
+ * Parse package string directly from java source.
+ *
+ * <p>Only the start of each file is read: scanning stops at the first token which isn't a comment,
+ * annotation or package declaration. Results are recorded in a sync-scoped {@link
+ * PackageDeclarationCache} supplied by the caller, so unchanged files aren't re-read on subsequent
+ * syncs.
+ */
+public class JavaSourcePackageReader {
   private static final Logger logger = Logger.getInstance(JavaSourcePackageReader.class);
 
   public static JavaSourcePackageReader getInstance() {
     return ServiceManager.getService(JavaSourcePackageReader.class);
   }
 
-  // Package declaration of java-like languages.
-  private static final Pattern PACKAGE_PATTERN = Pattern.compile("^\\s*package\\s+([\\w\\.]+)");
+  /** Returns a reader which looks up and records packages in the given cache. */
+  public JavaPackageReader withCache(PackageDeclarationCache cache) {
+    return new JavaPackageReader() {
+      @Override
+      @Nullable
+      String getDeclaredPackageOfJavaFile(
+          BlazeContext context,
+          ArtifactLocationDecoder artifactLocationDecoder,
+          SourceArtifact sourceArtifact) {
+        return JavaSourcePackageReader.this.getDeclaredPackageOfJavaFile(
+            context, artifactLocationDecoder, sourceArtifact, cache);
+      }
+    };
+  }
 
-  @Override
   @Nullable
   public String getDeclaredPackageOfJavaFile(
       BlazeContext context,
       ArtifactLocationDecoder artifactLocationDecoder,
-      SourceArtifact sourceArtifact) {
+      SourceArtifact sourceArtifact,
+      PackageDeclarationCache cache) {
     if (sourceArtifact.artifactLocation.isGenerated()) {
       return null;
     }
@@ -59,26 +80,154 @@ public class JavaSourcePackageReader extends JavaPackageReader {
     if (sourceFile == null) {
       return null;
     }
-    try (InputStream javaInputStream = inputStreamProvider.forFile(sourceFile)) {
-      BufferedReader javaReader = new BufferedReader(new InputStreamReader(javaInputStream, UTF_8));
-      String javaLine;
-
-      while ((javaLine = javaReader.readLine()) != null) {
-        Matcher packageMatch = PACKAGE_PATTERN.matcher(javaLine);
-        if (packageMatch.find()) {
-          return packageMatch.group(1);
-        }
+    FileOperationProvider fileOperationProvider = FileOperationProvider.getInstance();
+    long modifiedTime = fileOperationProvider.getFileModifiedTime(sourceFile);
+    long size = fileOperationProvider.getFileSize(sourceFile);
+    String packageName = cache.get(sourceFile, modifiedTime, size);
+    if (packageName == null) {
+      try (InputStream javaInputStream = inputStreamProvider.forFile(sourceFile)) {
+        packageName =
+            readDeclaredPackage(
+                new BufferedReader(new InputStreamReader(javaInputStream, UTF_8)));
+      } catch (FileNotFoundException e) {
+        context.output(PrintOutput.log("No source file found for: " + sourceFile));
+        return null;
+      } catch (IOException e) {
+        logger.error(e);
+        return null;
       }
+      if (packageName == null) {
+        packageName = PackageDeclarationCache.NO_PACKAGE;
+      }
+      cache.put(sourceFile, modifiedTime, size, packageName);
+    }
+    if (packageName.equals(PackageDeclarationCache.NO_PACKAGE)) {
       IssueOutput.warn("No package name string found in java source file: " + sourceFile)
           .inFile(sourceFile)
           .submit(context);
       return null;
-    } catch (FileNotFoundException e) {
-      context.output(PrintOutput.log("No source file found for: " + sourceFile));
-      return null;
-    } catch (IOException e) {
-      logger.error(e);
+    }
+    return packageName;
+  }
+
+  /**
+   * Returns the package declared at the start of a java-like source file, skipping any leading
+   * comments and annotations. Returns null if the first other token isn't a package declaration.
+   */
+  @VisibleForTesting
+  @Nullable
+  static String readDeclaredPackage(Reader reader) throws IOException {
+    Tokenizer tokenizer = new Tokenizer(reader);
+    String token = tokenizer.next();
+    while ("@".equals(token)) {
+      tokenizer.skipAnnotation();
+      token = tokenizer.next();
+    }
+    if (!"package".equals(token)) {
       return null;
     }
+    String packageName = tokenizer.next();
+    return packageName != null && isWordChar(packageName.charAt(0)) ? packageName : null;
+  }
+
+  private static boolean isWordChar(int c) {
+    return Character.isJavaIdentifierPart(c) || c == '.';
+  }
+
+  /**
+   * Splits source into words (runs of identifier characters and dots) and single-character
+   * symbols, skipping whitespace and comments.
+   */
+  private static class Tokenizer {
+    private final PushbackReader reader;
+
+    Tokenizer(Reader reader) {
+      this.reader = new PushbackReader(reader, 2);
+    }
+
+    @Nullable
+    String next() throws IOException {
+      int c = skipWhitespaceAndComments();
+      if (c == -1) {
+        return null;
+      }
+      if (!isWordChar(c)) {
+        return String.valueOf((char) c);
+      }
+      StringBuilder word = new StringBuilder();
+      while (c != -1 && isWordChar(c)) {
+        word.append((char) c);
+        c = reader.read();
+      }
+      unread(c);
+      return word.toString();
+    }
+
+    /** Skips the rest of an annotation, after its '@'. */
+    void skipAnnotation() throws IOException {
+      next(); // the annotation name, or 'file' for Kotlin file annotations
+      int c = skipWhitespaceAndComments();
+      if (c == ':') {
+        next();
+        c = skipWhitespaceAndComments();
+      }
+      if (c != '(') {
+        unread(c);
+        return;
+      }
+      int depth = 1;
+      while (depth > 0 && (c = skipWhitespaceAndComments()) != -1) {
+        if (c == '(') {
+          depth++;
+        } else if (c == ')') {
+          depth--;
+        } else if (c == '"' || c == '\'') {
+          skipLiteral(c);
+        }
+      }
+    }
+
+    private void skipLiteral(int quote) throws IOException {
+      int c;
+      while ((c = reader.read()) != -1 && c != quote) {
+        if (c == '\\') {
+          reader.read();
+        }
+      }
+    }
+
+    /** Returns the first character which isn't whitespace or part of a comment. */
+    private int skipWhitespaceAndComments() throws IOException {
+      while (true) {
+        int c = reader.read();
+        if (c == -1) {
+          return -1;
+        }
+        if (Character.isWhitespace(c) || c == '\uFEFF') {
+          continue;
+        }
+        if (c != '/') {
+          return c;
+        }
+        int next = reader.read();
+        if (next == '/') {
+          while ((c = reader.read()) != -1 && c != '\n') {}
+        } else if (next == '*') {
+          int previous = 0;
+          while ((c = reader.read()) != -1 && !(previous == '*' && c == '/')) {
+            previous = c;
+          }
+        } else {
+          unread(next);
+          return c;
+        }
+      }
+    }
+
+    private void unread(int c) throws IOException {
+      if (c != -1) {
+        reader.unread(c);
+      }
+    }
   }
 }
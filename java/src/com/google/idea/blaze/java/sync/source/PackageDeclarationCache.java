@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.source;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.idea.blaze.base.sync.data.StampedEntryCache;
+import com.intellij.openapi.project.Project;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * A map from java source file to its declared package, validated by the file's modification time
+ * and size, and persisted in the project cache directory between syncs.
+ *
+ * <p>Files without a package declaration are cached too, as {@link #NO_PACKAGE}, so they aren't
+ * re-read either.
+ */
+public final class PackageDeclarationCache {
+  private static final String FILE_NAME = "package_declarations.dat";
+  private static final int MAGIC = 0x425a504b; // "BZPK"
+  private static final int VERSION = 1;
+
+  /** Cached for files without a package declaration. Never a valid package name. */
+  public static final String NO_PACKAGE = "";
+
+  private static final StampedEntryCache.ValueCodec<String> CODEC =
+      new StampedEntryCache.ValueCodec<String>() {
+        @Override
+        public void write(DataOutputStream out, String packageName) throws IOException {
+          out.writeUTF(packageName);
+        }
+
+        @Override
+        public String read(DataInputStream in) throws IOException {
+          return in.readUTF();
+        }
+      };
+
+  private final StampedEntryCache<String> cache;
+
+  @VisibleForTesting
+  PackageDeclarationCache(@Nullable File cacheFile) {
+    this(new StampedEntryCache<>(cacheFile, MAGIC, VERSION, CODEC));
+  }
+
+  private PackageDeclarationCache(StampedEntryCache<String> cache) {
+    this.cache = cache;
+  }
+
+  /** Loads the cache for the given project. */
+  public static PackageDeclarationCache load(Project project) {
+    return new PackageDeclarationCache(
+        StampedEntryCache.load(project, FILE_NAME, MAGIC, VERSION, CODEC));
+  }
+
+  /**
+   * Returns the cached package for the given file, {@link #NO_PACKAGE} if it was cached as having
+   * no package declaration, or null if there is no entry or the file has been modified since it
+   * was cached.
+   */
+  @Nullable
+  public String get(File file, long modifiedTime, long size) {
+    return cache.get(file.getPath(), modifiedTime, size);
+  }
+
+  public void put(File file, long modifiedTime, long size, String packageName) {
+    if (modifiedTime == 0) {
+      // the file doesn't exist, or its modification time can't be read
+      return;
+    }
+    cache.put(file.getPath(), modifiedTime, size, packageName);
+  }
+
+  /** Writes the used entries back to the cache file, if they changed since loading. */
+  public void save() {
+    cache.save();
+  }
+
+  @VisibleForTesting
+  void read(File file) throws IOException {
+    cache.read(file);
+  }
+
+  @VisibleForTesting
+  void write(File file) throws IOException {
+    cache.write(file);
+  }
+}
@@ -46,7 +46,9 @@ import com.google.idea.blaze.base.sync.workspace.ArtifactLocationDecoder;
 import com.google.idea.blaze.base.util.PackagePrefixCalculator;
 import com.google.idea.blaze.java.sync.model.BlazeContentEntry;
 import com.google.idea.blaze.java.sync.model.BlazeSourceDirectory;
+import com.google.idea.common.experiments.BoolExperiment;
 import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import java.io.File;
 import java.util.Collection;
 import java.util.Comparator;
@@ -72,7 +74,20 @@ public final class SourceDirectoryCalculator {
 
   private static final JavaPackageReader generatedFileJavaPackageReader =
       new FilePathJavaPackageReader();
-  private final ListeningExecutorService executorService = MoreExecutors.newDirectExecutorService();
+
+  private static final BoolExperiment parallelCalculation =
+      new BoolExperiment("blaze.sync.parallel.source.directories", true);
+
+  private static final int MAX_THREADS = 16;
+  private static final ListeningExecutorService parallelExecutor =
+      MoreExecutors.listeningDecorator(
+          AppExecutorUtil.createBoundedApplicationPoolExecutor(
+              "SourceDirectoryCalculator", MAX_THREADS));
+
+  private final ListeningExecutorService executorService =
+      parallelCalculation.getValue()
+          ? parallelExecutor
+          : MoreExecutors.newDirectExecutorService();
 
   public ImmutableList<BlazeContentEntry> calculateContentEntries(
       Project project,
@@ -99,10 +114,11 @@ public final class SourceDirectoryCalculator {
               return new ManifestFilePackageReader(manifestMap);
             });
 
+    PackageDeclarationCache packageDeclarationCache = PackageDeclarationCache.load(project);
     final List<JavaPackageReader> javaPackageReaders =
         Lists.newArrayList(
             manifestFilePackageReader,
-            JavaSourcePackageReader.getInstance(),
+            JavaSourcePackageReader.getInstance().withCache(packageDeclarationCache),
             generatedFileJavaPackageReader);
 
     Collection<SourceArtifact> nonGeneratedSources = filterGeneratedArtifacts(sources);
@@ -116,20 +132,38 @@ public final class SourceDirectoryCalculator {
         context,
         (childContext) -> {
           childContext.push(new TimingScope("CalculateSourceDirectories", EventType.Other));
+          // Content roots are calculated concurrently, each once its own package reads are done
+          List<ListenableFuture<BlazeContentEntry>> contentEntryFutures = Lists.newArrayList();
           for (WorkspacePath workspacePath : importRoots.rootDirectories()) {
             File contentRoot = workspaceRoot.fileForPath(workspacePath);
-            ImmutableList<BlazeSourceDirectory> sourceDirectories =
-                calculateSourceDirectoriesForContentRoot(
-                    context,
-                    workspaceRoot,
-                    artifactLocationDecoder,
-                    workspacePath,
-                    sourcesUnderDirectoryRoot.get(workspacePath),
-                    javaPackageReaders);
-            result.add(new BlazeContentEntry(contentRoot, sourceDirectories));
+            contentEntryFutures.add(
+                Futures.transform(
+                    calculateSourceDirectoriesForContentRoot(
+                        context,
+                        workspaceRoot,
+                        artifactLocationDecoder,
+                        workspacePath,
+                        sourcesUnderDirectoryRoot.get(workspacePath),
+                        javaPackageReaders),
+                    sourceDirectories -> new BlazeContentEntry(contentRoot, sourceDirectories),
+                    MoreExecutors.directExecutor()));
+          }
+          ListenableFuture<List<BlazeContentEntry>> contentEntries =
+              Futures.allAsList(contentEntryFutures);
+          try {
+            result.addAll(contentEntries.get());
+          } catch (InterruptedException e) {
+            contentEntries.cancel(true);
+            Thread.currentThread().interrupt();
+            context.setCancelled();
+          } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not read sources", e);
           }
           result.sort(Comparator.comparing(lhs -> lhs.contentRoot));
         });
+    if (!context.isCancelled()) {
+      packageDeclarationCache.save();
+    }
     return ImmutableList.copyOf(result);
   }
 
@@ -146,37 +180,24 @@ public final class SourceDirectoryCalculator {
     Multimap<WorkspacePath, SourceArtifact> result = ArrayListMultimap.create();
 
     for (SourceArtifact sourceArtifact : sources) {
-      String sourcePath = sourceArtifact.artifactLocation.getRelativePath();
-      if (importRoots.excludeDirectories().stream()
-          .anyMatch(excluded -> isUnderRootDirectory(excluded, sourcePath))) {
-        continue;
+      WorkspacePath rootDirectory =
+          importRoots.findRootDirectory(sourceArtifact.artifactLocation.getRelativePath());
+      if (rootDirectory != null) {
+        result.put(rootDirectory, sourceArtifact);
       }
-      importRoots.rootDirectories().stream()
-          .filter(rootDirectory -> isUnderRootDirectory(rootDirectory, sourcePath))
-          .findFirst()
-          .ifPresent(foundWorkspacePath -> result.put(foundWorkspacePath, sourceArtifact));
     }
     return result;
   }
 
-  private static boolean isUnderRootDirectory(WorkspacePath rootDirectory, String relativePath) {
-    if (rootDirectory.isWorkspaceRoot()) {
-      return true;
-    }
-    String rootDirectoryString = rootDirectory.toString();
-    return relativePath.startsWith(rootDirectoryString)
-        && (relativePath.length() == rootDirectoryString.length()
-            || (relativePath.charAt(rootDirectoryString.length()) == '/'));
-  }
-
   /** Calculates all source directories for a single content root. */
-  private ImmutableList<BlazeSourceDirectory> calculateSourceDirectoriesForContentRoot(
-      BlazeContext context,
-      WorkspaceRoot workspaceRoot,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      WorkspacePath directoryRoot,
-      Collection<SourceArtifact> sourceArtifacts,
-      Collection<JavaPackageReader> javaPackageReaders) {
+  private ListenableFuture<ImmutableList<BlazeSourceDirectory>>
+      calculateSourceDirectoriesForContentRoot(
+          BlazeContext context,
+          WorkspaceRoot workspaceRoot,
+          ArtifactLocationDecoder artifactLocationDecoder,
+          WorkspacePath directoryRoot,
+          Collection<SourceArtifact> sourceArtifacts,
+          Collection<JavaPackageReader> javaPackageReaders) {
 
     // Split out java-like files
     Predicate<ArtifactLocation> isSourceFile = JavaLikeLanguage.getSourceFileMatcher();
@@ -187,43 +208,6 @@ public final class SourceDirectoryCalculator {
       }
     }
 
-    List<BlazeSourceDirectory> result = Lists.newArrayList();
-
-    // Add java source directories
-    calculateJavaSourceDirectories(
-        context,
-        workspaceRoot,
-        artifactLocationDecoder,
-        directoryRoot,
-        javaArtifacts,
-        javaPackageReaders,
-        result);
-
-    if (result.isEmpty()) {
-      // if there are no nested source directories, then mark the content root as a source directory
-      return ImmutableList.of(
-          BlazeSourceDirectory.builder(workspaceRoot.fileForPath(directoryRoot))
-              .setPackagePrefix(PackagePrefixCalculator.packagePrefixOf(directoryRoot))
-              .setGenerated(false)
-              .build());
-    }
-
-    result.sort(BlazeSourceDirectory.COMPARATOR);
-    return ImmutableList.copyOf(result);
-  }
-
-  /** Adds the java source directories. */
-  private void calculateJavaSourceDirectories(
-      BlazeContext context,
-      WorkspaceRoot workspaceRoot,
-      ArtifactLocationDecoder artifactLocationDecoder,
-      WorkspacePath directoryRoot,
-      Collection<SourceArtifact> javaArtifacts,
-      Collection<JavaPackageReader> javaPackageReaders,
-      Collection<BlazeSourceDirectory> result) {
-
-    List<SourceRoot> sourceRootsPerFile = Lists.newArrayList();
-
     // Get java sources
     List<ListenableFuture<SourceRoot>> sourceRootFutures = Lists.newArrayList();
     for (final SourceArtifact sourceArtifact : javaArtifacts) {
@@ -234,22 +218,45 @@ public final class SourceDirectoryCalculator {
                       context, artifactLocationDecoder, sourceArtifact, javaPackageReaders));
       sourceRootFutures.add(future);
     }
-    try {
-      for (SourceRoot sourceRoot : Futures.allAsList(sourceRootFutures).get()) {
-        if (sourceRoot != null) {
-          sourceRootsPerFile.add(sourceRoot);
-        }
-      }
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      context.setCancelled();
-    } catch (ExecutionException e) {
-      throw new IllegalStateException("Could not read sources", e);
-    }
+
+    return Futures.transform(
+        Futures.allAsList(sourceRootFutures),
+        sourceRootsPerFile -> {
+          List<BlazeSourceDirectory> result = Lists.newArrayList();
+
+          // Add java source directories
+          calculateJavaSourceDirectories(
+              workspaceRoot, directoryRoot, sourceRootsPerFile, result);
+
+          if (result.isEmpty()) {
+            // if there are no nested source directories, then mark the content root as a source
+            // directory
+            return ImmutableList.of(
+                BlazeSourceDirectory.builder(workspaceRoot.fileForPath(directoryRoot))
+                    .setPackagePrefix(PackagePrefixCalculator.packagePrefixOf(directoryRoot))
+                    .setGenerated(false)
+                    .build());
+          }
+
+          result.sort(BlazeSourceDirectory.COMPARATOR);
+          return ImmutableList.copyOf(result);
+        },
+        executorService);
+  }
+
+  /** Adds the java source directories, given the source root of each java source. */
+  private static void calculateJavaSourceDirectories(
+      WorkspaceRoot workspaceRoot,
+      WorkspacePath directoryRoot,
+      List<SourceRoot> sourceRoots,
+      Collection<BlazeSourceDirectory> result) {
 
     // Sort source roots into their respective directories
     Map<WorkspacePath, Multiset<SourceRoot>> sourceDirectoryToSourceRoots = new HashMap<>();
-    for (SourceRoot sourceRoot : sourceRootsPerFile) {
+    for (SourceRoot sourceRoot : sourceRoots) {
+      if (sourceRoot == null) {
+        continue;
+      }
       sourceDirectoryToSourceRoots
           .computeIfAbsent(sourceRoot.workspacePath, k -> HashMultiset.create())
           .add(sourceRoot);
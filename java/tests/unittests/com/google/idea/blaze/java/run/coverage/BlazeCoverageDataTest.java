@@ -19,21 +19,26 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.idea.blaze.java.run.coverage.BlazeCoverageData.FileData;
-import gnu.trove.TIntIntHashMap;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.function.Function;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 /** Unit tests for {@link BlazeCoverageData} */
 @RunWith(JUnit4.class)
 public class BlazeCoverageDataTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
 
   @Test
   public void testParseSingleFile() throws IOException {
@@ -52,15 +57,15 @@ public class BlazeCoverageDataTest {
                 "DA:5,0",
                 "DA:123,1",
                 "end_of_record"));
-    assertThat(data.perFileData).hasSize(2);
+    assertThat(data.getSources()).hasSize(2);
 
-    FileData fileData = data.perFileData.get("path/to/file.txt");
+    FileData fileData = data.getFileData("path/to/file.txt");
     assertThat(fileData.source).isEqualTo("path/to/file.txt");
-    assertThat(toMap(fileData.lineHits)).containsExactly(4, 0, 8, 0, 9, 1, 23, 3);
+    assertThat(toMap(fileData)).containsExactly(4, 0, 8, 0, 9, 1, 23, 3);
 
-    fileData = data.perFileData.get("path/to/another/file.txt");
+    fileData = data.getFileData("path/to/another/file.txt");
     assertThat(fileData.source).isEqualTo("path/to/another/file.txt");
-    assertThat(toMap(fileData.lineHits)).containsExactly(1, 1, 2, 2, 5, 0, 123, 1);
+    assertThat(toMap(fileData)).containsExactly(1, 1, 2, 2, 5, 0, 123, 1);
   }
 
   @Test
@@ -78,13 +83,80 @@ public class BlazeCoverageDataTest {
                 "DA:5,0",
                 "DA:123,1",
                 "end_of_record"));
-    assertThat(data.perFileData.keySet()).containsExactly("path/to/another/file.txt");
+    assertThat(data.getSources()).containsExactly("path/to/another/file.txt");
   }
 
-  private static ImmutableMap<Integer, Integer> toMap(TIntIntHashMap troveMap) {
-    return Arrays.stream(troveMap.keys())
-        .boxed()
-        .collect(ImmutableMap.toImmutableMap(Function.identity(), troveMap::get));
+  @Test
+  public void testLinesAreSortedAndLastEntryWins() throws IOException {
+    BlazeCoverageData data =
+        BlazeCoverageData.parse(
+            inputStream(
+                "SF:path/to/file.txt",
+                "DA:9,1",
+                "DA:4,0",
+                "DA:9,2,checksum",
+                "end_of_record",
+                "SF:path/to/another/file.txt",
+                "DA:1,1",
+                "end_of_record",
+                "SF:path/to/file.txt",
+                "DA:5,1",
+                "DA:4,3",
+                "DA:5,7",
+                "end_of_record"));
+
+    FileData fileData = data.getFileData("path/to/file.txt");
+    assertThat(fileData.lines).asList().containsExactly(4, 5).inOrder();
+    assertThat(fileData.hits).asList().containsExactly(3, 7).inOrder();
+    assertThat(data.getFileData("path/to/another/file.txt").lines).asList().containsExactly(1);
+  }
+
+  @Test
+  public void testMalformedLinesIgnored() throws IOException {
+    BlazeCoverageData data =
+        BlazeCoverageData.parse(
+            inputStream(
+                "DA:1,1",
+                "SF:path/to/file.txt",
+                "DA:x,1",
+                "DA:2",
+                "DA:3,99999999999",
+                "DA:4,1\r",
+                "end_of_record"));
+
+    assertThat(toMap(data.getFileData("path/to/file.txt"))).containsExactly(4, 1);
+  }
+
+  @Test
+  public void testParseFileInParallelChunks() throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (int file = 0; file < 100; file++) {
+      lines.add("SF:path/to/file" + file + ".txt");
+      for (int line = 1; line <= file % 10 + 1; line++) {
+        lines.add("DA:" + line + "," + file);
+      }
+      lines.add("end_of_record");
+    }
+    File lcovFile = folder.newFile("coverage.dat");
+    Files.write(lcovFile.toPath(), lines, StandardCharsets.UTF_8);
+
+    BlazeCoverageData data =
+        LcovParser.parse(lcovFile, /* chunkSize= */ 100, MoreExecutors.newDirectExecutorService());
+
+    assertThat(data.getSources()).hasSize(100);
+    for (int file = 0; file < 100; file++) {
+      FileData fileData = data.getFileData("path/to/file" + file + ".txt");
+      assertThat(fileData.lines).hasLength(file % 10 + 1);
+      assertThat(fileData.hits[0]).isEqualTo(file);
+    }
+  }
+
+  private static ImmutableMap<Integer, Integer> toMap(FileData fileData) {
+    ImmutableMap.Builder<Integer, Integer> map = ImmutableMap.builder();
+    for (int i = 0; i < fileData.lines.length; i++) {
+      map.put(fileData.lines[i], fileData.hits[i]);
+    }
+    return map.build();
   }
 
   private static InputStream inputStream(String... lines) {
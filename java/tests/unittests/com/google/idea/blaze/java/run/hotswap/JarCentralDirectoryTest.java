@@ -0,0 +1,180 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.run.hotswap;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link JarCentralDirectory}. */
+@RunWith(JUnit4.class)
+public class JarCentralDirectoryTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testClassCrcsMatchJarFile() throws IOException {
+    Map<String, String> entries = new LinkedHashMap<>();
+    entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n");
+    entries.put("com/google/Foo.class", "foo");
+    entries.put("com/google/Foo$Inner.class", "inner");
+    entries.put("com/google/resource.txt", "text");
+    File jar = writeJar("test.jar", entries, /* storedEntries= */ false);
+    File storedJar = writeJar("stored.jar", entries, /* storedEntries= */ true);
+
+    JarCentralDirectory directory = JarCentralDirectory.read(jar);
+
+    assertThat(directory.classCrcs.keySet())
+        .containsExactly("com/google/Foo.class", "com/google/Foo$Inner.class");
+    try (JarFile jarFile = new JarFile(jar)) {
+      for (String name : directory.classCrcs.keySet()) {
+        assertThat(directory.classCrcs.get(name)).isEqualTo(jarFile.getEntry(name).getCrc());
+      }
+    }
+    assertThat(JarCentralDirectory.read(storedJar).classCrcs).isEqualTo(directory.classCrcs);
+  }
+
+  @Test
+  public void testDigestChangesWithContents() throws IOException {
+    Map<String, String> entries = new LinkedHashMap<>();
+    entries.put("com/google/Foo.class", "foo");
+    entries.put("com/google/Bar.class", "bar");
+    JarCentralDirectory original =
+        JarCentralDirectory.read(writeJar("original.jar", entries, false));
+    JarCentralDirectory rebuilt = JarCentralDirectory.read(writeJar("rebuilt.jar", entries, false));
+    entries.put("com/google/Bar.class", "changed");
+    JarCentralDirectory changed = JarCentralDirectory.read(writeJar("changed.jar", entries, false));
+
+    assertThat(rebuilt.digest).isEqualTo(original.digest);
+    assertThat(changed.digest).isNotEqualTo(original.digest);
+    assertThat(changed.classCrcs.get("com/google/Bar.class"))
+        .isNotEqualTo(original.classCrcs.get("com/google/Bar.class"));
+  }
+
+  @Test
+  public void testZip64Jar() throws IOException {
+    Map<String, String> entries = zip64Entries();
+    File jar = writeJar("large.jar", entries, /* storedEntries= */ true);
+
+    JarCentralDirectory directory = JarCentralDirectory.read(jar);
+
+    assertThat(directory.classCrcs).hasSize(entries.size());
+    assertThat(directory.classCrcs).containsKey("com/google/C65545.class");
+  }
+
+  @Test
+  public void testJarWithPrependedData() throws IOException {
+    Map<String, String> entries = new LinkedHashMap<>();
+    entries.put("com/google/Foo.class", "foo");
+    File jar = folder.newFile("launcher.jar");
+    try (OutputStream out = new FileOutputStream(jar)) {
+      out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(UTF_8));
+      writeEntries(out, entries, /* storedEntries= */ false);
+    }
+
+    JarCentralDirectory directory = JarCentralDirectory.read(jar);
+
+    assertThat(directory.classCrcs).isEqualTo(ImmutableMap.of("com/google/Foo.class", crc("foo")));
+  }
+
+  @Test
+  public void testZip64JarWithPrependedData() throws IOException {
+    Map<String, String> entries = zip64Entries();
+    File jar = folder.newFile("large_launcher.jar");
+    try (OutputStream out = new FileOutputStream(jar)) {
+      out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(UTF_8));
+      writeEntries(out, entries, /* storedEntries= */ true);
+    }
+
+    JarCentralDirectory directory = JarCentralDirectory.read(jar);
+
+    assertThat(directory.classCrcs).hasSize(entries.size());
+    assertThat(directory.classCrcs).containsKey("com/google/C65545.class");
+  }
+
+  @Test
+  public void testNonZipFileIsRejected() throws IOException {
+    File file = folder.newFile("not_a.jar");
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write("not a zip file".getBytes(UTF_8));
+    }
+    try {
+      JarCentralDirectory.read(file);
+      throw new AssertionError("Expected an IOException");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  /** Enough entries that the jar needs a zip64 end of central directory record. */
+  private static Map<String, String> zip64Entries() {
+    Map<String, String> entries = new LinkedHashMap<>();
+    for (int i = 0; i < 0x10000 + 10; i++) {
+      entries.put("com/google/C" + i + ".class", "");
+    }
+    return entries;
+  }
+
+  private File writeJar(String name, Map<String, String> entries, boolean storedEntries)
+      throws IOException {
+    File jar = folder.newFile(name);
+    try (OutputStream out = new FileOutputStream(jar)) {
+      writeEntries(out, entries, storedEntries);
+    }
+    return jar;
+  }
+
+  private static void writeEntries(
+      OutputStream out, Map<String, String> entries, boolean storedEntries) throws IOException {
+    try (ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (Map.Entry<String, String> e : entries.entrySet()) {
+        byte[] contents = e.getValue().getBytes(UTF_8);
+        ZipEntry entry = new ZipEntry(e.getKey());
+        // a fixed timestamp, so identical jars have identical central directories
+        entry.setTime(0);
+        if (storedEntries) {
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(contents.length);
+          entry.setCrc(crc(e.getValue()));
+        }
+        zip.putNextEntry(entry);
+        zip.write(contents);
+        zip.closeEntry();
+      }
+    }
+  }
+
+  private static long crc(String contents) {
+    CRC32 crc = new CRC32();
+    crc.update(contents.getBytes(UTF_8));
+    return crc.getValue();
+  }
+}
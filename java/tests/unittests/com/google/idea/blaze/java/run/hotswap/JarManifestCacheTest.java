@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.run.hotswap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.idea.blaze.java.run.hotswap.ClassFileManifest.JarManifest;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link JarManifestCache}. */
+@RunWith(JUnit4.class)
+public class JarManifestCacheTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testManifestIsReadBack() throws IOException {
+    JarManifestCache cache = new JarManifestCache(folder.newFolder("manifests"));
+    File jar = new File(folder.getRoot(), "runtime.jar");
+    JarManifest manifest =
+        new JarManifest(
+            jar,
+            HashCode.fromLong(42),
+            ImmutableMap.of("com/google/Foo.class", 1L, "com/google/Bar.class", 0xffffffffL));
+    cache.put(manifest, 100, 200);
+
+    JarManifest reloaded = cache.get(jar, 100, 200);
+
+    assertThat(reloaded.jar).isEqualTo(jar);
+    assertThat(reloaded.digest).isEqualTo(manifest.digest);
+    assertThat(reloaded.nameToHash).isEqualTo(manifest.nameToHash);
+  }
+
+  @Test
+  public void testModifiedJarIsNotReadBack() throws IOException {
+    JarManifestCache cache = new JarManifestCache(folder.newFolder("manifests"));
+    File jar = new File(folder.getRoot(), "runtime.jar");
+    cache.put(new JarManifest(jar, HashCode.fromLong(42), ImmutableMap.of()), 100, 200);
+
+    assertThat(cache.get(jar, 100, 201)).isNull();
+    assertThat(cache.get(jar, 101, 200)).isNull();
+    assertThat(cache.get(new File(folder.getRoot(), "other.jar"), 100, 200)).isNull();
+  }
+
+  @Test
+  public void testCacheWithoutDirectoryStoresNothing() {
+    JarManifestCache cache = new JarManifestCache(null);
+    File jar = new File(folder.getRoot(), "runtime.jar");
+    cache.put(new JarManifest(jar, HashCode.fromLong(42), ImmutableMap.of()), 100, 200);
+
+    assertThat(cache.get(jar, 100, 200)).isNull();
+  }
+}
@@ -82,6 +82,7 @@ import com.google.idea.blaze.java.sync.model.BlazeJavaImportResult;
 import com.google.idea.blaze.java.sync.model.BlazeSourceDirectory;
 import com.google.idea.blaze.java.sync.source.JavaLikeLanguage;
 import com.google.idea.blaze.java.sync.source.JavaSourcePackageReader;
+import com.google.idea.blaze.java.sync.source.PackageDeclarationCache;
 import com.google.idea.blaze.java.sync.source.PackageManifestReader;
 import com.google.idea.blaze.java.sync.source.SourceArtifact;
 import com.google.idea.blaze.java.sync.workingset.JavaWorkingSet;
@@ -202,7 +203,8 @@ public class BlazeJavaWorkspaceImporterTest extends BlazeTestCase {
           public String getDeclaredPackageOfJavaFile(
               BlazeContext context,
               ArtifactLocationDecoder artifactLocationDecoder,
-              SourceArtifact sourceArtifact) {
+              SourceArtifact sourceArtifact,
+              PackageDeclarationCache cache) {
             return null;
           }
         });
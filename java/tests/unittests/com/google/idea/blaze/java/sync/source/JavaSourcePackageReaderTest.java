@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.source;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.io.StringReader;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link JavaSourcePackageReader}. */
+@RunWith(JUnit4.class)
+public class JavaSourcePackageReaderTest {
+
+  @Test
+  public void testSimplePackage() throws IOException {
+    assertThat(read("package com.google.example;\n\npublic class Foo {}"))
+        .isEqualTo("com.google.example");
+  }
+
+  @Test
+  public void testCommentsBeforePackageAreSkipped() throws IOException {
+    assertThat(
+            read(
+                "/*\n * Copyright\n * package com.wrong;\n */\n"
+                    + "// package com.also.wrong;\n"
+                    + "package com.google.example;"))
+        .isEqualTo("com.google.example");
+  }
+
+  @Test
+  public void testAnnotationsBeforePackageAreSkipped() throws IOException {
+    assertThat(read("@ParametersAreNonnullByDefault\npackage com.google.example;"))
+        .isEqualTo("com.google.example");
+    assertThat(
+            read(
+                "@file:JvmName(\"Foo(\")\n"
+                    + "@file:Suppress(\"UNUSED\")\n"
+                    + "package com.google.example\n"
+                    + "\n"
+                    + "fun foo() {}"))
+        .isEqualTo("com.google.example");
+  }
+
+  @Test
+  public void testScanningStopsAtFirstOtherToken() throws IOException {
+    assertThat(read("import java.util.List;\npackage com.google.example;")).isNull();
+    assertThat(read("public class Foo {\n  String s = \"\npackage com.google.example\";\n}"))
+        .isNull();
+  }
+
+  @Test
+  public void testNoPackage() throws IOException {
+    assertThat(read("")).isNull();
+    assertThat(read("// just a comment")).isNull();
+    assertThat(read("package")).isNull();
+  }
+
+  @Nullable
+  private static String read(String source) throws IOException {
+    return JavaSourcePackageReader.readDeclaredPackage(new StringReader(source));
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.idea.blaze.java.sync.source;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PackageDeclarationCache}. */
+@RunWith(JUnit4.class)
+public class PackageDeclarationCacheTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final File FOO = new File("/root/java/com/google/Foo.java");
+  private static final File BAR = new File("/root/java/com/google/Bar.java");
+
+  @Test
+  public void testEntriesAreValidatedByModifiedTimeAndSize() {
+    PackageDeclarationCache cache = new PackageDeclarationCache(null);
+    cache.put(FOO, 10, 100, "com.google");
+
+    assertThat(cache.get(FOO, 10, 100)).isEqualTo("com.google");
+    assertThat(cache.get(FOO, 10, 101)).isNull();
+    // stale entries are dropped
+    assertThat(cache.get(FOO, 10, 100)).isNull();
+  }
+
+  @Test
+  public void testUnknownModifiedTimeIsNotCached() {
+    PackageDeclarationCache cache = new PackageDeclarationCache(null);
+    cache.put(FOO, 0, 100, "com.google");
+
+    assertThat(cache.get(FOO, 0, 100)).isNull();
+  }
+
+  @Test
+  public void testFilesWithoutPackageDeclarationAreCached() {
+    PackageDeclarationCache cache = new PackageDeclarationCache(null);
+    cache.put(FOO, 10, 100, PackageDeclarationCache.NO_PACKAGE);
+
+    assertThat(cache.get(FOO, 10, 100)).isEqualTo(PackageDeclarationCache.NO_PACKAGE);
+  }
+
+  @Test
+  public void testUnchangedCacheIsNotRewritten() throws IOException {
+    File file = folder.newFile("package_declarations.dat");
+    PackageDeclarationCache cache = new PackageDeclarationCache(file);
+    cache.put(FOO, 10, 100, "com.google");
+    cache.save();
+    long length = file.length();
+    file.setLastModified(1000);
+
+    PackageDeclarationCache reloaded = new PackageDeclarationCache(file);
+    reloaded.read(file);
+    assertThat(reloaded.get(FOO, 10, 100)).isEqualTo("com.google");
+    reloaded.save();
+
+    assertThat(file.lastModified()).isEqualTo(1000);
+    assertThat(file.length()).isEqualTo(length);
+  }
+
+  @Test
+  public void testOnlyUsedEntriesAreWritten() throws IOException {
+    File file = folder.newFile("package_declarations.dat");
+    PackageDeclarationCache cache = new PackageDeclarationCache(file);
+    cache.put(FOO, 10, 100, "com.google");
+    cache.put(BAR, 20, 200, "com.google.bar");
+    cache.write(file);
+
+    PackageDeclarationCache reloaded = new PackageDeclarationCache(file);
+    reloaded.read(file);
+    assertThat(reloaded.get(FOO, 10, 100)).isEqualTo("com.google");
+    reloaded.write(file);
+
+    PackageDeclarationCache pruned = new PackageDeclarationCache(file);
+    pruned.read(file);
+    assertThat(pruned.get(FOO, 10, 100)).isEqualTo("com.google");
+    assertThat(pruned.get(BAR, 20, 200)).isNull();
+  }
+}
@@ -18,7 +18,6 @@ package com.google.idea.blaze.javascript.run.producers;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterables;
 import com.google.idea.blaze.base.ideinfo.TargetIdeInfo;
 import com.google.idea.blaze.base.ideinfo.TargetKey;
@@ -55,7 +54,6 @@ import com.intellij.util.io.URLUtil;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import javax.annotation.Nullable;
 import javax.swing.Icon;
@@ -129,7 +127,6 @@ public class BlazeJavaScriptTestRunLineMarkerContributor extends RunLineMarkerCo
             return Result.create(
                 ImmutableList.of(), BlazeSyncModificationTracker.getInstance(project));
           }
-          ImmutableMultimap<TargetKey, TargetKey> rdeps = ReverseDependencyMap.get(project);
           TargetMap targetMap = projectData.getTargetMap();
           return Result.create(
               SourceToTargetFinder.findTargetsForSourceFile(
@@ -141,8 +138,7 @@ public class BlazeJavaScriptTestRunLineMarkerContributor extends RunLineMarkerCo
                   .filter(t -> t.getKind().hasLanguage(LanguageClass.JAVASCRIPT))
                   .map(t -> t.label)
                   .map(TargetKey::forPlainTarget)
-                  .map(rdeps::get)
-                  .filter(Objects::nonNull)
+                  .map(key -> ReverseDependencyMap.getReverseDependencies(project, key))
                   .flatMap(Collection::stream)
                   .filter(
                       key -> {
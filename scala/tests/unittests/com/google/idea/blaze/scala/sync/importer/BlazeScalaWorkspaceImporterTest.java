@@ -66,6 +66,7 @@ import com.google.idea.blaze.java.sync.model.BlazeJavaImportResult;
 import com.google.idea.blaze.java.sync.model.BlazeSourceDirectory;
 import com.google.idea.blaze.java.sync.source.JavaLikeLanguage;
 import com.google.idea.blaze.java.sync.source.JavaSourcePackageReader;
+import com.google.idea.blaze.java.sync.source.PackageDeclarationCache;
 import com.google.idea.blaze.java.sync.source.PackageManifestReader;
 import com.google.idea.blaze.java.sync.source.SourceArtifact;
 import com.google.idea.blaze.scala.ScalaBlazeRules;
@@ -135,7 +136,8 @@ public class BlazeScalaWorkspaceImporterTest extends BlazeTestCase {
           public String getDeclaredPackageOfJavaFile(
               BlazeContext context,
               ArtifactLocationDecoder artifactLocationDecoder,
-              SourceArtifact sourceArtifact) {
+              SourceArtifact sourceArtifact,
+              PackageDeclarationCache cache) {
             return null;
           }
         });